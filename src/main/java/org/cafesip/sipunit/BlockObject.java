@@ -35,6 +35,10 @@ public class BlockObject {
    * FOR INTERNAL USE ONLY - A test class doesn't use this method.
    */
   public void waitForEvent(long timeout) throws Exception {
+    if (EventLoop.inEventLoop()) {
+      throw new IllegalStateException("blocking wait called on a SipUnit event loop thread");
+    }
+
     synchronized (this) {
       this.wait(timeout);
     }
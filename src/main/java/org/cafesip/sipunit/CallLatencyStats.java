@@ -0,0 +1,79 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+/**
+ * This class aggregates the call setup and teardown latencies measured by the SipCall timelines
+ * (see CallTimeline) into histograms suitable for percentile reporting. There is one for each
+ * SipPhone, covering the calls of that SipPhone, and one for the SipStack, covering all the calls
+ * of its SipPhones - see SipPhone.getLatencyStats() and SipStack.getLatencyStats().
+ * 
+ */
+public class CallLatencyStats {
+
+  private final LatencyHistogram postDialDelay = new LatencyHistogram();
+
+  private final LatencyHistogram answerTime = new LatencyHistogram();
+
+  private final LatencyHistogram ackLatency = new LatencyHistogram();
+
+  private final LatencyHistogram byeRoundTrip = new LatencyHistogram();
+
+  /**
+   * Returns the histogram of the post-dial delays: from sending the INVITE to receiving the first
+   * 18x response.
+   */
+  public LatencyHistogram getPostDialDelay() {
+    return postDialDelay;
+  }
+
+  /**
+   * Returns the histogram of the answer times: from sending the INVITE to receiving the 200 OK.
+   */
+  public LatencyHistogram getAnswerTime() {
+    return answerTime;
+  }
+
+  /**
+   * Returns the histogram of the ACK latencies: from receiving the 200 OK for the INVITE to
+   * sending the ACK.
+   */
+  public LatencyHistogram getAckLatency() {
+    return ackLatency;
+  }
+
+  /**
+   * Returns the histogram of the BYE round trips: from sending the BYE to receiving its final
+   * response.
+   */
+  public LatencyHistogram getByeRoundTrip() {
+    return byeRoundTrip;
+  }
+
+  /**
+   * Forgets all the values recorded.
+   */
+  public void reset() {
+    postDialDelay.reset();
+    answerTime.reset();
+    ackLatency.reset();
+    byeRoundTrip.reset();
+  }
+
+  public String toString() {
+    return "post-dial delay: " + postDialDelay + "\nanswer time: " + answerTime
+        + "\nACK latency: " + ackLatency + "\nBYE round trip: " + byeRoundTrip;
+  }
+}
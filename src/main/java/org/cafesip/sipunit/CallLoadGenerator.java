@@ -0,0 +1,455 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class generates a load of calls (or registrations, or instant messages) at a target rate,
+ * by starting runs of one or more CallScenario objects on a ScenarioRunner. It is an open-loop
+ * generator: the start time of each attempt is set by the arrival schedule alone - a constant rate,
+ * a linear ramp or Poisson arrivals - and not by the completion of earlier attempts, so a system
+ * under test that slows down keeps getting the offered load instead of being given a break by a
+ * generator waiting on it.
+ * 
+ * <p>
+ * For the same reason, latencies are measured from the time each attempt was scheduled to start,
+ * not from the time it actually started: if the generator itself falls behind, the delay is part
+ * of the latency reported instead of going unnoticed. Three histograms are kept:
+ * <ul>
+ * <li>getResponseLatency() - scheduled start to the first final response (the answer or rejection
+ * of an INVITE, the response to a REGISTER or MESSAGE),
+ * <li>getCompletionLatency() - scheduled start to the end of the run,
+ * <li>getStartLag() - scheduled start to actual start, which should stay small - if it doesn't, the
+ * generator or its host is the bottleneck and the figures above say more about it than about the
+ * system under test.
+ * </ul>
+ * 
+ * <p>
+ * The traffic mix is given by the scenarios added and their weights; each attempt picks one at
+ * random in proportion to its weight. For calls with Erlang-model hold times, use
+ * CallScenario.pauseExponential() between the ACK and the BYE.
+ * 
+ * <pre>
+ * CallLoadGenerator load = new CallLoadGenerator(ua, runner);
+ * load.addScenario(new CallScenario().invite(to, route).expectResponse(Response.OK).ack()
+ *     .pauseExponential(2000).bye().expectResponse(Response.OK), 9);
+ * load.addScenario(new CallScenario().message(to, route, &quot;hello&quot;).expectResponse(Response.OK), 1);
+ * load.setPoissonRate(50.0);
+ * load.start(60000);
+ * load.awaitCompletion(120000);
+ * </pre>
+ * 
+ */
+public class CallLoadGenerator {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CallLoadGenerator.class);
+
+  /**
+   * Attempts are started at a fixed interval.
+   */
+  public static final int CONSTANT = 0;
+
+  /**
+   * The rate changes linearly from a start rate to an end rate, then stays at the end rate.
+   */
+  public static final int RAMP = 1;
+
+  /**
+   * Attempts are started at exponentially distributed intervals (Poisson arrivals).
+   */
+  public static final int POISSON = 2;
+
+  private final SipPhone phone;
+
+  private final ScenarioRunner runner;
+
+  private final ArrayList<CallScenario> scenarios = new ArrayList<>();
+
+  private final ArrayList<Integer> weights = new ArrayList<>();
+
+  private int totalWeight;
+
+  private volatile int arrivals = CONSTANT;
+
+  private volatile double rate = 1.0;
+
+  private volatile double endRate = 1.0;
+
+  private volatile long rampTime;
+
+  private final LatencyHistogram responseLatency = new LatencyHistogram();
+
+  private final LatencyHistogram completionLatency = new LatencyHistogram();
+
+  private final LatencyHistogram startLag = new LatencyHistogram();
+
+  private final AtomicLong attempts = new AtomicLong();
+
+  private final AtomicLong succeeded = new AtomicLong();
+
+  private final AtomicLong failed = new AtomicLong();
+
+  private final AtomicInteger outstanding = new AtomicInteger();
+
+  private final Object idleBlock = new Object();
+
+  private Thread generator; // guarded by idleBlock
+
+  private volatile boolean stopped;
+
+  /**
+   * A constructor for this class.
+   * 
+   * @param phone the SipPhone the attempts are made from.
+   * @param runner the ScenarioRunner carrying out the attempts.
+   */
+  public CallLoadGenerator(SipPhone phone, ScenarioRunner runner) {
+    this.phone = phone;
+    this.runner = runner;
+  }
+
+  /**
+   * Adds a scenario to the traffic mix.
+   * 
+   * @param scenario the steps of an attempt.
+   * @param weight the relative frequency of this scenario in the mix, at least 1.
+   * @throws IllegalArgumentException if the scenario refers to an undefined label.
+   */
+  public synchronized CallLoadGenerator addScenario(CallScenario scenario, int weight) {
+    if (weight < 1) {
+      throw new IllegalArgumentException("weight must be at least 1");
+    }
+    scenario.compile(); // check the labels now rather than on the generator thread
+
+    scenarios.add(scenario);
+    totalWeight += weight;
+    weights.add(totalWeight);
+    return this;
+  }
+
+  /**
+   * Starts attempts at the given fixed rate.
+   * 
+   * @param cps attempts per second, greater than 0.
+   */
+  public CallLoadGenerator setConstantRate(double cps) {
+    checkRate(cps);
+    rate = cps;
+    arrivals = CONSTANT;
+    return this;
+  }
+
+  /**
+   * Starts attempts at a rate going linearly from startCps to endCps over the given time, counted
+   * from start(), and staying at endCps after that.
+   * 
+   * @param startCps attempts per second at the start, 0 or more.
+   * @param endCps attempts per second at the end of the ramp, greater than 0.
+   * @param rampMillis the duration of the ramp in milliseconds.
+   */
+  public CallLoadGenerator setRamp(double startCps, double endCps, long rampMillis) {
+    if (startCps < 0.0) {
+      throw new IllegalArgumentException("rate must not be negative");
+    }
+    checkRate(endCps);
+    if (rampMillis < 0) {
+      throw new IllegalArgumentException("ramp time must not be negative");
+    }
+    rate = startCps;
+    endRate = endCps;
+    rampTime = TimeUnit.MILLISECONDS.toNanos(rampMillis);
+    arrivals = RAMP;
+    return this;
+  }
+
+  /**
+   * Starts attempts at exponentially distributed intervals averaging the given rate.
+   * 
+   * @param cps mean attempts per second, greater than 0.
+   */
+  public CallLoadGenerator setPoissonRate(double cps) {
+    checkRate(cps);
+    rate = cps;
+    arrivals = POISSON;
+    return this;
+  }
+
+  /**
+   * Returns the arrival process, CONSTANT, RAMP or POISSON.
+   */
+  public int getArrivals() {
+    return arrivals;
+  }
+
+  /**
+   * Starts generating attempts for the given time. This is a non-blocking call, the attempts are
+   * started by a thread of this object - see awaitCompletion() and stop().
+   * 
+   * @param durationMillis how long to generate attempts for, in milliseconds.
+   * @throws IllegalStateException if no scenario has been added or the generator is already
+   *         running.
+   */
+  public void start(long durationMillis) {
+    final long duration = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+    synchronized (this) {
+      if (scenarios.isEmpty()) {
+        throw new IllegalStateException("no scenario added");
+      }
+    }
+
+    synchronized (idleBlock) {
+      if (generator != null) {
+        throw new IllegalStateException("already running");
+      }
+
+      stopped = false;
+      generator = new Thread(() -> generate(duration), "SipUnit load " + phone.getAddress().getURI());
+      generator.setDaemon(true);
+      generator.start();
+    }
+  }
+
+  /**
+   * Stops generating attempts. Attempts in progress carry on to their end.
+   */
+  public void stop() {
+    stopped = true;
+    synchronized (idleBlock) {
+      if (generator != null) {
+        LockSupport.unpark(generator);
+      }
+    }
+  }
+
+  /**
+   * Waits until attempts are no longer generated and those started have all ended. This is a
+   * blocking call.
+   * 
+   * @param timeout The maximum amount of time to wait, in milliseconds.
+   * @return true if done, false if the wait timed out.
+   */
+  public boolean awaitCompletion(long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+
+    synchronized (idleBlock) {
+      while ((generator != null) || (outstanding.get() > 0)) {
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0) {
+          return false;
+        }
+        idleBlock.wait(left);
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns the latency from the scheduled start of each attempt to its first final response.
+   */
+  public LatencyHistogram getResponseLatency() {
+    return responseLatency;
+  }
+
+  /**
+   * Returns the latency from the scheduled start of each attempt to its end.
+   */
+  public LatencyHistogram getCompletionLatency() {
+    return completionLatency;
+  }
+
+  /**
+   * Returns the delay between the scheduled and actual start of each attempt.
+   */
+  public LatencyHistogram getStartLag() {
+    return startLag;
+  }
+
+  /**
+   * Returns the number of attempts started.
+   */
+  public long getAttempts() {
+    return attempts.get();
+  }
+
+  /**
+   * Returns the number of attempts whose run ended successfully.
+   */
+  public long getSucceeded() {
+    return succeeded.get();
+  }
+
+  /**
+   * Returns the number of attempts whose run failed or couldn't be started.
+   */
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * Returns the number of attempts in progress.
+   */
+  public int getOutstanding() {
+    return outstanding.get();
+  }
+
+  /**
+   * Sets the counters and histograms back to 0.
+   */
+  public void reset() {
+    attempts.set(0);
+    succeeded.set(0);
+    failed.set(0);
+    responseLatency.reset();
+    completionLatency.reset();
+    startLag.reset();
+  }
+
+  public String toString() {
+    return "attempts=" + getAttempts() + ", succeeded=" + getSucceeded() + ", failed="
+        + getFailed() + ", outstanding=" + getOutstanding() + ", response latency: "
+        + responseLatency + ", completion latency: " + completionLatency + ", start lag: "
+        + startLag;
+  }
+
+  private void generate(long duration) {
+    try {
+      long origin = System.nanoTime();
+      long count = 1;
+      long next = scheduledStart(count, 0); // relative to origin
+
+      while ((stopped == false) && (next < duration)) {
+        long wait = next - (System.nanoTime() - origin);
+        if (wait > 0) {
+          LockSupport.parkNanos(wait);
+          continue;
+        }
+
+        // late or not, the attempt keeps its scheduled start
+        launch(origin + next);
+        next = scheduledStart(++count, next);
+      }
+    } catch (Exception ex) {
+      LOG.error("Load generator stopped: " + ex.getClass().getName() + ": " + ex.getMessage(), ex);
+    } finally {
+      synchronized (idleBlock) {
+        generator = null;
+        idleBlock.notifyAll();
+      }
+    }
+  }
+
+  private void launch(final long scheduled) {
+    CallScenario scenario = pick();
+
+    attempts.incrementAndGet();
+    outstanding.incrementAndGet();
+    startLag.record(System.nanoTime() - scheduled);
+
+    try {
+      runner.start(phone, scenario, run -> ended(run, scheduled));
+    } catch (RuntimeException ex) {
+      LOG.error("Load generator couldn't start an attempt: " + ex.getClass().getName() + ": "
+          + ex.getMessage(), ex);
+      failed.incrementAndGet();
+      attemptEnded();
+    }
+  }
+
+  private void ended(ScenarioRun run, long scheduled) {
+    completionLatency.record(System.nanoTime() - scheduled);
+
+    long response = run.getCall().getTimeline().getFirstFinalResponse();
+    if (response != -1) {
+      responseLatency.record(response - scheduled);
+    }
+
+    if (run.isSuccessful()) {
+      succeeded.incrementAndGet();
+    } else {
+      failed.incrementAndGet();
+    }
+
+    attemptEnded();
+  }
+
+  private void attemptEnded() {
+    synchronized (idleBlock) {
+      if (outstanding.decrementAndGet() == 0) {
+        idleBlock.notifyAll();
+      }
+    }
+  }
+
+  private synchronized CallScenario pick() {
+    if (scenarios.size() == 1) {
+      return scenarios.get(0);
+    }
+
+    int draw = ThreadLocalRandom.current().nextInt(totalWeight);
+    for (int i = 0; i < scenarios.size(); i++) {
+      if (draw < weights.get(i)) {
+        return scenarios.get(i);
+      }
+    }
+    return scenarios.get(scenarios.size() - 1);
+  }
+
+  /**
+   * Returns the scheduled start of the given attempt (the first is 1) in nanoseconds from the start
+   * of the generation, given that of the previous one: the time by which the arrival process has
+   * produced that many attempts.
+   */
+  private long scheduledStart(long attempt, long previous) {
+    switch (arrivals) {
+      case POISSON:
+        return previous
+            + (long) (-Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * 1.0E9 / rate);
+
+      case RAMP:
+        // attempts by time t (seconds) during the ramp: r0 * t + (r1 - r0) * t^2 / (2 * T)
+        double ramp = rampTime / 1.0E9;
+        double rampAttempts = (rate + endRate) * ramp / 2;
+        double t;
+        if (attempt > rampAttempts) {
+          t = ramp + (attempt - rampAttempts) / endRate;
+        } else {
+          double a = (endRate - rate) / (2 * ramp);
+          t = (a == 0.0 ? attempt / rate
+              : (Math.sqrt(rate * rate + 4 * a * attempt) - rate) / (2 * a));
+        }
+        return Math.max(previous, (long) (t * 1.0E9));
+
+      default: // CONSTANT
+        return (long) (attempt * 1.0E9 / rate);
+    }
+  }
+
+  private static void checkRate(double cps) {
+    if ((cps > 0.0) == false) {
+      throw new IllegalArgumentException("rate must be greater than 0");
+    }
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class defines the steps of an outgoing call once, for a ScenarioRunner to carry out on any
+ * number of calls at the same time. Where a test would otherwise dedicate a thread to each call
+ * and step it through initiateOutgoingCall(), waitOutgoingCallResponse(), sendInviteOkAck(),
+ * disconnect(), etc., a scenario is run as an event-driven state machine: a run only occupies a
+ * ScenarioRunner thread while it sends a message or handles one it has received, never while it
+ * waits. Thousands of calls can be in progress on a pool of a few threads.
+ *
+ * <p>
+ * The steps are added in order by the methods of this class, which return this object so that a
+ * scenario can be written as a single expression:
+ * 
+ * <pre>
+ * CallScenario scenario = new CallScenario().invite(&quot;sip:becky@nist.gov&quot;, route)
+ *     .expectFinalResponse().onStatus(Response.BUSY_HERE, &quot;busy&quot;)
+ *     .ack().pause(1000).bye().expectResponse(Response.OK).end()
+ *     .label(&quot;busy&quot;).fail(&quot;callee busy&quot;);
+ * </pre>
+ * 
+ * <p>
+ * The messages are sent and received by a SipCall created for each run, with its usual message
+ * construction, authentication handling and message history (see ScenarioRun.getCall()). A run
+ * ends successfully when it goes past the last step or reaches an end() step, and fails when an
+ * expect step times out or gets an unexpected final response, a message can't be sent, or a fail()
+ * step is reached.
+ * 
+ * <p>
+ * A scenario must not be modified once it has been given to a ScenarioRunner.
+ * 
+ */
+public class CallScenario {
+
+  static final int INVITE = 0;
+
+  static final int ACK = 1;
+
+  static final int BYE = 2;
+
+  static final int CANCEL = 3;
+
+  static final int RESPOND = 4;
+
+  static final int EXPECT_RESPONSE = 5;
+
+  static final int EXPECT_FINAL_RESPONSE = 6;
+
+  static final int EXPECT_REQUEST = 7;
+
+  static final int PAUSE = 8;
+
+  static final int ON_STATUS = 9;
+
+  static final int JUMP = 10;
+
+  static final int END = 11;
+
+  static final int FAIL = 12;
+
+  static final int MESSAGE = 13;
+
+  static final int REGISTER = 14;
+
+  static final int PAUSE_EXPONENTIAL = 15;
+
+  private final List<Step> steps = new ArrayList<>();
+
+  private final HashMap<String, Integer> labels = new HashMap<>();
+
+  private long timeout = 10000;
+
+  /**
+   * Sets the maximum time an expect step waits for its message, in milliseconds. The default is
+   * 10000. A run waiting longer fails.
+   */
+  public CallScenario setTimeout(long timeout) {
+    if (timeout <= 0) {
+      throw new IllegalArgumentException("timeout must be greater than 0");
+    }
+    this.timeout = timeout;
+    return this;
+  }
+
+  public long getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * Adds a step sending the INVITE, as SipCall.initiateOutgoingCall(toUri, viaNonProxyRoute) does.
+   */
+  public CallScenario invite(String toUri, String viaNonProxyRoute) {
+    return add(new Step(INVITE, toUri, viaNonProxyRoute, 0));
+  }
+
+  /**
+   * Adds a step sending a MESSAGE with the given text body, as
+   * SipCall.initiateOutgoingMessage(toUri, viaNonProxyRoute, body) does. Its response is waited for
+   * by a following expect step, if any.
+   */
+  public CallScenario message(String toUri, String viaNonProxyRoute, String body) {
+    return add(new Step(MESSAGE, toUri, viaNonProxyRoute, 0, 0, body));
+  }
+
+  /**
+   * Adds a step sending a REGISTER for the SipPhone's address of record, as
+   * SipPhone.register(contact, expiry) does but without waiting for the response - a following
+   * expect step does. An authentication challenge is answered with the SipPhone's credentials.
+   *
+   * @param contact An URI string (ex: sip:bob@192.0.2.4), or null to keep the SipPhone's contact.
+   * @param expiry Expiry time in seconds, or 0 if no expiry.
+   */
+  public CallScenario register(String contact, int expiry) {
+    return add(new Step(REGISTER, contact, null, expiry));
+  }
+
+  /**
+   * Adds a step sending the ACK for the 200 OK received for the INVITE, as
+   * SipCall.sendInviteOkAck() does.
+   */
+  public CallScenario ack() {
+    return add(new Step(ACK, null, null, 0));
+  }
+
+  /**
+   * Adds a step sending a BYE on the call dialog, as SipCall.disconnect() does. Its response is
+   * waited for by a following expect step, if any.
+   */
+  public CallScenario bye() {
+    return add(new Step(BYE, null, null, 0));
+  }
+
+  /**
+   * Adds a step sending a CANCEL for the INVITE, as SipCall.sendCancel() does. A provisional
+   * response must have been received for the INVITE.
+   */
+  public CallScenario cancel() {
+    return add(new Step(CANCEL, null, null, 0));
+  }
+
+  /**
+   * Adds a step sending a response with the given status code to the request received by the last
+   * expectRequest() step.
+   */
+  public CallScenario respond(int statusCode) {
+    return add(new Step(RESPOND, null, null, statusCode));
+  }
+
+  /**
+   * Adds a step waiting for a response with the given status code to the last request sent.
+   * Provisional responses with another status code are skipped, a final response with another
+   * status code fails the run.
+   */
+  public CallScenario expectResponse(int statusCode) {
+    return add(new Step(EXPECT_RESPONSE, null, null, statusCode));
+  }
+
+  /**
+   * The same as expectResponse(statusCode) but for the response to the last request sent with the
+   * given method - ie, the 487 for the INVITE after a CANCEL.
+   */
+  public CallScenario expectResponse(int statusCode, String method) {
+    return add(new Step(EXPECT_RESPONSE, method, null, statusCode));
+  }
+
+  /**
+   * Adds a step waiting for the final response to the last request sent, whatever its status code
+   * - typically followed by onStatus() steps.
+   */
+  public CallScenario expectFinalResponse() {
+    return add(new Step(EXPECT_FINAL_RESPONSE, null, null, 0));
+  }
+
+  /**
+   * Adds a step waiting for an in-dialog request with the given method (SipRequest.BYE, etc.)
+   * from the far end.
+   */
+  public CallScenario expectRequest(String method) {
+    return add(new Step(EXPECT_REQUEST, method, null, 0));
+  }
+
+  /**
+   * Adds a step doing nothing for the given time, in milliseconds. Messages received meanwhile
+   * are kept for the following expect steps.
+   */
+  public CallScenario pause(long millis) {
+    if (millis < 0) {
+      throw new IllegalArgumentException("pause must not be negative");
+    }
+    return add(new Step(PAUSE, null, null, 0, millis));
+  }
+
+  /**
+   * Adds a step doing nothing for a time drawn for each run from an exponential distribution with
+   * the given mean, in milliseconds - the hold time of calls in an Erlang traffic model.
+   */
+  public CallScenario pauseExponential(long meanMillis) {
+    if (meanMillis < 0) {
+      throw new IllegalArgumentException("pause must not be negative");
+    }
+    return add(new Step(PAUSE_EXPONENTIAL, null, null, 0, meanMillis));
+  }
+
+  /**
+   * Adds a step going on with the step following the given label if the status code of the last
+   * response received by an expect step is the given one, or with the next step otherwise.
+   */
+  public CallScenario onStatus(int statusCode, String label) {
+    return add(new Step(ON_STATUS, label, null, statusCode));
+  }
+
+  /**
+   * Adds a step going on with the step following the given label.
+   */
+  public CallScenario jump(String label) {
+    return add(new Step(JUMP, label, null, 0));
+  }
+
+  /**
+   * Adds a step ending the run successfully.
+   */
+  public CallScenario end() {
+    return add(new Step(END, null, null, 0));
+  }
+
+  /**
+   * Adds a step ending the run as failed, with the given reason.
+   */
+  public CallScenario fail(String reason) {
+    return add(new Step(FAIL, reason, null, 0));
+  }
+
+  /**
+   * Marks the position of the next step with the given name, for onStatus() and jump().
+   */
+  public CallScenario label(String name) {
+    if (labels.put(name, steps.size()) != null) {
+      throw new IllegalArgumentException("duplicate label: " + name);
+    }
+    return this;
+  }
+
+  /**
+   * Returns the number of steps of this scenario.
+   */
+  public int size() {
+    return steps.size();
+  }
+
+  /**
+   * Returns the steps ready to run, with the label of each branch resolved into a step index.
+   * 
+   * @throws IllegalArgumentException if a branch refers to an undefined label.
+   */
+  Step[] compile() {
+    Step[] compiled = steps.toArray(new Step[steps.size()]);
+    for (Step step : compiled) {
+      if ((step.kind == ON_STATUS) || (step.kind == JUMP)) {
+        Integer target = labels.get(step.text);
+        if (target == null) {
+          throw new IllegalArgumentException("undefined label: " + step.text);
+        }
+        step.target = target;
+      }
+    }
+    return compiled;
+  }
+
+  private CallScenario add(Step step) {
+    steps.add(step);
+    return this;
+  }
+
+  /**
+   * One step of a scenario: what it does (kind) and its parameters.
+   */
+  static class Step {
+    final int kind;
+
+    final String text;
+
+    final String route;
+
+    final int statusCode;
+
+    final long millis;
+
+    final String body;
+
+    int target = -1;
+
+    Step(int kind, String text, String route, int statusCode) {
+      this(kind, text, route, statusCode, 0);
+    }
+
+    Step(int kind, String text, String route, int statusCode, long millis) {
+      this(kind, text, route, statusCode, millis, null);
+    }
+
+    Step(int kind, String text, String route, int statusCode, long millis, String body) {
+      this.kind = kind;
+      this.text = text;
+      this.route = route;
+      this.statusCode = statusCode;
+      this.millis = millis;
+      this.body = body;
+    }
+  }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.sip.header.CSeqHeader;
+import javax.sip.message.Message;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * This class is the signalling timeline of a SipCall: each message the call sends or receives,
+ * with the time it was sent or received, and the latencies derived from them - post-dial delay,
+ * answer time, ACK latency and BYE round trip. Times come from System.nanoTime(), so they can be
+ * compared with each other but not with wall-clock time.
+ * 
+ * <p>
+ * A response or an in-dialog request is timestamped when the SIP stack hands it to SipUnit. A
+ * request the call gets from the SipPhone's request queue (ie, the initial INVITE for
+ * waitForIncomingCall()) is timestamped when the call takes it from the queue.
+ * 
+ * <p>
+ * The latencies are measured once per call and are also recorded in the CallLatencyStats of the
+ * SipPhone and of the SipStack. The events are kept according to the call's message retention (see
+ * SipCall.setMessageRetention()): all of them by default, the last N with MessageRetention.lastN(N)
+ * and only the last one otherwise - the latencies are measured regardless.
+ * 
+ */
+public class CallTimeline {
+
+  /**
+   * The direction of an event for a message sent by the call.
+   */
+  public static final int SENT = 0;
+
+  /**
+   * The direction of an event for a message received by the call.
+   */
+  public static final int RECEIVED = 1;
+
+  private final CallLatencyStats[] stats;
+
+  private final ArrayDeque<Event> events = new ArrayDeque<>();
+
+  private int limit;
+
+  private long inviteSent = -1;
+
+  private long firstProvisional = -1;
+
+  private long okReceived = -1;
+
+  private long ackSent = -1;
+
+  private long byeSent = -1;
+
+  private long byeResponse = -1;
+
+  private long firstFinalResponse = -1;
+
+  CallTimeline(CallLatencyStats... stats) {
+    this.stats = stats;
+  }
+
+  /**
+   * Returns the events of this timeline, oldest first.
+   * 
+   * @return List of zero or more Event objects.
+   */
+  public synchronized List<Event> getEvents() {
+    return new ArrayList<>(events);
+  }
+
+  /**
+   * Returns the post-dial delay of the call (INVITE sent to first 18x received) in the given unit,
+   * or -1 if not known.
+   */
+  public long getPostDialDelay(TimeUnit unit) {
+    return between(inviteSent, firstProvisional, unit);
+  }
+
+  /**
+   * Returns the answer time of the call (INVITE sent to 200 OK received) in the given unit, or -1
+   * if not known.
+   */
+  public long getAnswerTime(TimeUnit unit) {
+    return between(inviteSent, okReceived, unit);
+  }
+
+  /**
+   * Returns the ACK latency of the call (200 OK received to ACK sent) in the given unit, or -1 if
+   * not known.
+   */
+  public long getAckLatency(TimeUnit unit) {
+    return between(okReceived, ackSent, unit);
+  }
+
+  /**
+   * Returns the BYE round trip of the call (BYE sent to final response received) in the given
+   * unit, or -1 if not known.
+   */
+  public long getByeRoundTrip(TimeUnit unit) {
+    return between(byeSent, byeResponse, unit);
+  }
+
+  public synchronized String toString() {
+    StringBuilder buf = new StringBuilder();
+    long start = events.isEmpty() ? 0 : events.peekFirst().time;
+    for (Event event : events) {
+      buf.append(String.format("%10.3f ms ", (event.time - start) / 1000000.0)).append(event)
+          .append('\n');
+    }
+    return buf.toString();
+  }
+
+  synchronized void setLimit(int limit) {
+    this.limit = limit;
+    trim();
+  }
+
+  synchronized void clear() {
+    events.clear();
+    inviteSent = -1;
+    firstProvisional = -1;
+    okReceived = -1;
+    ackSent = -1;
+    byeSent = -1;
+    byeResponse = -1;
+    firstFinalResponse = -1;
+  }
+
+  /**
+   * Returns the System.nanoTime() at which the first final response other than an authentication
+   * challenge was received, or -1 if none has been.
+   */
+  synchronized long getFirstFinalResponse() {
+    return firstFinalResponse;
+  }
+
+  void sent(Message message) {
+    add(new Event(System.nanoTime(), SENT, message));
+  }
+
+  /**
+   * Records a response sent to the given request.
+   */
+  void sent(int statusCode, Request request) {
+    add(new Event(System.nanoTime(), SENT, request, statusCode));
+  }
+
+  void received(Message message) {
+    add(new Event(System.nanoTime(), RECEIVED, message));
+  }
+
+  private void add(Event event) {
+    synchronized (this) {
+      events.addLast(event);
+      trim();
+
+      if (event.direction == SENT) {
+        if (event.isRequest() == false) {
+          return;
+        }
+
+        if (Request.INVITE.equals(event.method) && (inviteSent == -1)) {
+          inviteSent = event.time;
+        } else if (Request.ACK.equals(event.method) && (okReceived != -1) && (ackSent == -1)) {
+          ackSent = event.time;
+          report(okReceived, ackSent, 2);
+        } else if (Request.BYE.equals(event.method) && (byeSent == -1)) {
+          byeSent = event.time;
+        }
+        return;
+      }
+
+      if (event.isRequest()) {
+        return;
+      }
+
+      int status = event.statusCode;
+      if ((status >= 200) && (status != Response.UNAUTHORIZED)
+          && (status != Response.PROXY_AUTHENTICATION_REQUIRED) && (firstFinalResponse == -1)) {
+        firstFinalResponse = event.time;
+      }
+
+      if (Request.INVITE.equals(event.method) && (inviteSent != -1)) {
+        if ((status >= 180) && (status < 190) && (firstProvisional == -1)) {
+          firstProvisional = event.time;
+          report(inviteSent, firstProvisional, 0);
+        } else if ((status == Response.OK) && (okReceived == -1)) {
+          okReceived = event.time;
+          report(inviteSent, okReceived, 1);
+        }
+      } else if (Request.BYE.equals(event.method) && (byeSent != -1) && (status >= 200)
+          && (byeResponse == -1)) {
+        byeResponse = event.time;
+        report(byeSent, byeResponse, 3);
+      }
+    }
+  }
+
+  private void report(long from, long to, int which) {
+    for (CallLatencyStats s : stats) {
+      LatencyHistogram h;
+      switch (which) {
+        case 0:
+          h = s.getPostDialDelay();
+          break;
+        case 1:
+          h = s.getAnswerTime();
+          break;
+        case 2:
+          h = s.getAckLatency();
+          break;
+        default:
+          h = s.getByeRoundTrip();
+          break;
+      }
+      h.record(to - from);
+    }
+  }
+
+  private void trim() {
+    if (limit > 0) {
+      while (events.size() > limit) {
+        events.removeFirst();
+      }
+    }
+  }
+
+  private synchronized long between(long from, long to, TimeUnit unit) {
+    if ((from == -1) || (to == -1)) {
+      return -1;
+    }
+    return unit.convert(to - from, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * One message sent or received by the call.
+   */
+  public static class Event {
+    private final long time;
+
+    private final int direction;
+
+    private final String method;
+
+    private final int statusCode;
+
+    private final long cseq;
+
+    Event(long time, int direction, Message message) {
+      this(time, direction, message,
+          message instanceof Response ? ((Response) message).getStatusCode() : -1);
+    }
+
+    Event(long time, int direction, Message message, int statusCode) {
+      this.time = time;
+      this.direction = direction;
+      this.statusCode = statusCode;
+
+      CSeqHeader hdr = (CSeqHeader) message.getHeader(CSeqHeader.NAME);
+      cseq = (hdr == null ? -1 : hdr.getSeqNumber());
+      if (message instanceof Request) {
+        method = ((Request) message).getMethod();
+      } else {
+        method = (hdr == null ? null : hdr.getMethod());
+      }
+    }
+
+    /**
+     * Returns the time of the event, as given by System.nanoTime().
+     */
+    public long getTime() {
+      return time;
+    }
+
+    /**
+     * Returns SENT or RECEIVED.
+     */
+    public int getDirection() {
+      return direction;
+    }
+
+    /**
+     * Returns the method of the request, or for a response the CSeq method.
+     */
+    public String getMethod() {
+      return method;
+    }
+
+    /**
+     * Returns the status code of the response, or -1 for a request.
+     */
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    public boolean isRequest() {
+      return statusCode == -1;
+    }
+
+    /**
+     * Returns the CSeq sequence number of the message, or -1 if it had none.
+     */
+    public long getCSeq() {
+      return cseq;
+    }
+
+    public String toString() {
+      return (direction == SENT ? "sent " : "received ")
+          + (isRequest() ? method : statusCode + " (" + method + ")") + " CSeq " + cseq;
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.cafesip.sipunit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * This class represents one endpoint of a conference user - a device or session through which the
+ * user takes part in the conference - as received in a conference event package (RFC 4575) NOTIFY.
+ * See ConferenceSubscriber.
+ *
+ * <p>
+ * Objects of this class are immutable: a partial notification updating an endpoint gives a new
+ * object, so that one obtained from the roster keeps the state it was obtained with.
+ *
+ */
+public class ConferenceEndpoint {
+
+  private final String entity;
+
+  private final String displayText;
+
+  private final String status;
+
+  private final String joiningMethod;
+
+  private final LinkedHashMap<String, ConferenceMedia> media; // by ID
+
+  private ConferenceEndpoint(String entity, String displayText, String status,
+      String joiningMethod, LinkedHashMap<String, ConferenceMedia> media) {
+    this.entity = entity;
+    this.displayText = displayText;
+    this.status = status;
+    this.joiningMethod = joiningMethod;
+    this.media = media;
+  }
+
+  /**
+   * Applies the given endpoint element to the given endpoint. The fields and media streams given by
+   * the element replace those of the endpoint, the others are kept - unless the element's state is
+   * full, in which case the endpoint is replaced as a whole.
+   *
+   * @param endpoint the current state of the endpoint, or null if it is a new one.
+   * @param update the endpoint element, whose state is full or partial.
+   * @return the new state of the endpoint.
+   */
+  static ConferenceEndpoint update(ConferenceEndpoint endpoint,
+      ConferenceInfoParser.Endpoint update) {
+    if ((endpoint == null) || update.state.equals(ConferenceInfoParser.FULL)) {
+      endpoint = new ConferenceEndpoint(update.entity, null, null, null,
+          new LinkedHashMap<String, ConferenceMedia>());
+    }
+
+    LinkedHashMap<String, ConferenceMedia> media = new LinkedHashMap<>(endpoint.media);
+    for (ConferenceMedia m : update.media) {
+      media.put(m.getId(), m);
+    }
+
+    return new ConferenceEndpoint(update.entity,
+        update.displayText == null ? endpoint.displayText : update.displayText,
+        update.status == null ? endpoint.status : update.status,
+        update.joiningMethod == null ? endpoint.joiningMethod : update.joiningMethod, media);
+  }
+
+  /**
+   * Gets the URI of this endpoint.
+   *
+   * @return the entity attribute of the endpoint element.
+   */
+  public String getEntity() {
+    return entity;
+  }
+
+  /**
+   * Gets the display text of this endpoint.
+   *
+   * @return the display text, or null if none was received.
+   */
+  public String getDisplayText() {
+    return displayText;
+  }
+
+  /**
+   * Gets the status of this endpoint in the conference (ie, connected, disconnected, on-hold,
+   * alerting).
+   *
+   * @return the status, or null if none was received.
+   */
+  public String getStatus() {
+    return status;
+  }
+
+  /**
+   * Gets how this endpoint joined the conference (ie, dialed-in, dialed-out).
+   *
+   * @return the joining method, or null if none was received.
+   */
+  public String getJoiningMethod() {
+    return joiningMethod;
+  }
+
+  /**
+   * Indicates if this endpoint is connected to the conference.
+   *
+   * @return true if its status is connected, false otherwise.
+   */
+  public boolean isConnected() {
+    return "connected".equals(status);
+  }
+
+  /**
+   * Gets the media streams of this endpoint.
+   *
+   * @return the media streams in the order they were first received.
+   */
+  public List<ConferenceMedia> getMedia() {
+    return Collections.unmodifiableList(new ArrayList<>(media.values()));
+  }
+
+  /**
+   * Gets the given media stream of this endpoint.
+   *
+   * @param id the ID of the media stream.
+   * @return the media stream, or null if this endpoint has none with the given ID.
+   */
+  public ConferenceMedia getMedia(String id) {
+    return media.get(id);
+  }
+
+  public String toString() {
+    return "endpoint " + entity + " (" + status + ", " + media.size() + " media)";
+  }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.cafesip.sipunit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * FOR INTERNAL USE ONLY. A test class doesn't use this class.
+ *
+ * <p>
+ * This class parses conference event package (application/conference-info+xml, RFC 4575)
+ * documents for ConferenceSubscriber with a streaming (StAX) parser, in one pass. Only the parts
+ * of the document the roster is made of are read: the conference description (subject and display
+ * text), the conference state (user count, active, locked) and the users with their endpoints and
+ * media. Other elements, extensions included, are skipped with their content.
+ *
+ * <p>
+ * The elements are expected in the conference-info namespace, but elements without a namespace are
+ * accepted as well since some focuses leave it out.
+ *
+ */
+class ConferenceInfoParser {
+
+  static final String NAMESPACE = "urn:ietf:params:xml:ns:conference-info";
+
+  static final String FULL = "full";
+
+  static final String PARTIAL = "partial";
+
+  static final String DELETED = "deleted";
+
+  private ConferenceInfoParser() {}
+
+  /**
+   * Parses a conference-info document.
+   *
+   * @param body the document.
+   * @return the content of the document, in document order.
+   * @throws Exception if the document can't be parsed.
+   */
+  static Info parse(byte[] body) throws Exception {
+    XMLStreamReader reader = StaxReaders.create(body);
+    try {
+      reader.nextTag();
+      if (is(reader, "conference-info") == false) {
+        throw new XMLStreamException("unexpected root element " + reader.getName());
+      }
+
+      Info info = new Info();
+      info.entity = StaxReaders.collapse(reader.getAttributeValue(null, "entity"));
+      String version = reader.getAttributeValue(null, "version");
+      if ((info.entity == null) || (version == null)) {
+        throw new XMLStreamException("conference-info without entity or version");
+      }
+      info.version = Long.parseLong(version.trim());
+      info.state = parseState(reader, "conference-info");
+
+      while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+        if (is(reader, "conference-description")) {
+          parseDescription(reader, info);
+        } else if (is(reader, "conference-state")) {
+          parseConferenceState(reader, info);
+        } else if (is(reader, "users")) {
+          while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (is(reader, "user")) {
+              info.users.add(parseUser(reader));
+            } else {
+              StaxReaders.skip(reader);
+            }
+          }
+        } else {
+          StaxReaders.skip(reader);
+        }
+      }
+
+      return info;
+    } catch (NumberFormatException e) {
+      throw new XMLStreamException("invalid number: " + e.getMessage());
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static void parseDescription(XMLStreamReader reader, Info info)
+      throws XMLStreamException {
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (is(reader, "display-text")) {
+        info.displayText = reader.getElementText();
+      } else if (is(reader, "subject")) {
+        info.subject = reader.getElementText();
+      } else {
+        StaxReaders.skip(reader);
+      }
+    }
+  }
+
+  private static void parseConferenceState(XMLStreamReader reader, Info info)
+      throws XMLStreamException {
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (is(reader, "user-count")) {
+        info.userCount = Integer.valueOf(reader.getElementText().trim());
+      } else if (is(reader, "active")) {
+        info.active = parseBoolean(reader.getElementText());
+      } else if (is(reader, "locked")) {
+        info.locked = parseBoolean(reader.getElementText());
+      } else {
+        StaxReaders.skip(reader);
+      }
+    }
+  }
+
+  private static User parseUser(XMLStreamReader reader) throws XMLStreamException {
+    User user = new User();
+    user.entity = StaxReaders.collapse(reader.getAttributeValue(null, "entity"));
+    if (user.entity == null) {
+      throw new XMLStreamException("user without entity");
+    }
+    user.state = parseState(reader, "user " + user.entity);
+
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (is(reader, "display-text")) {
+        user.displayText = reader.getElementText();
+      } else if (is(reader, "endpoint")) {
+        user.endpoints.add(parseEndpoint(reader, user.entity));
+      } else {
+        StaxReaders.skip(reader);
+      }
+    }
+
+    return user;
+  }
+
+  private static Endpoint parseEndpoint(XMLStreamReader reader, String user)
+      throws XMLStreamException {
+    Endpoint endpoint = new Endpoint();
+    endpoint.entity = StaxReaders.collapse(reader.getAttributeValue(null, "entity"));
+    if (endpoint.entity == null) {
+      throw new XMLStreamException("endpoint of user " + user + " without entity");
+    }
+    endpoint.state = parseState(reader, "endpoint " + endpoint.entity);
+
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (is(reader, "display-text")) {
+        endpoint.displayText = reader.getElementText();
+      } else if (is(reader, "status")) {
+        endpoint.status = StaxReaders.collapse(reader.getElementText());
+      } else if (is(reader, "joining-method")) {
+        endpoint.joiningMethod = StaxReaders.collapse(reader.getElementText());
+      } else if (is(reader, "media")) {
+        endpoint.media.add(parseMedia(reader, endpoint.entity));
+      } else {
+        StaxReaders.skip(reader);
+      }
+    }
+
+    return endpoint;
+  }
+
+  private static ConferenceMedia parseMedia(XMLStreamReader reader, String endpoint)
+      throws XMLStreamException {
+    String id = StaxReaders.collapse(reader.getAttributeValue(null, "id"));
+    if (id == null) {
+      throw new XMLStreamException("media of endpoint " + endpoint + " without id");
+    }
+
+    String displayText = null;
+    String type = null;
+    String srcId = null;
+    String status = null;
+
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (is(reader, "display-text")) {
+        displayText = reader.getElementText();
+      } else if (is(reader, "type")) {
+        type = StaxReaders.collapse(reader.getElementText());
+      } else if (is(reader, "src-id")) {
+        srcId = StaxReaders.collapse(reader.getElementText());
+      } else if (is(reader, "status")) {
+        status = StaxReaders.collapse(reader.getElementText());
+      } else {
+        StaxReaders.skip(reader);
+      }
+    }
+
+    return new ConferenceMedia(id, displayText, type, srcId, status);
+  }
+
+  /*
+   * Returns the state attribute of the current element, full if it has none.
+   */
+  private static String parseState(XMLStreamReader reader, String what)
+      throws XMLStreamException {
+    String state = StaxReaders.collapse(reader.getAttributeValue(null, "state"));
+    if (state == null) {
+      return FULL;
+    }
+
+    if (state.equals(FULL) || state.equals(PARTIAL) || state.equals(DELETED)) {
+      return state;
+    }
+
+    throw new XMLStreamException(what + " with invalid state " + state);
+  }
+
+  private static Boolean parseBoolean(String value) throws XMLStreamException {
+    String text = value.trim();
+    if (text.equals("true") || text.equals("1")) {
+      return Boolean.TRUE;
+    }
+
+    if (text.equals("false") || text.equals("0")) {
+      return Boolean.FALSE;
+    }
+
+    throw new XMLStreamException("invalid boolean " + text);
+  }
+
+  private static boolean is(XMLStreamReader reader, String name) {
+    return StaxReaders.is(reader, NAMESPACE, name);
+  }
+
+  /**
+   * The content of a conference-info document. The description and conference state fields are
+   * null if the document doesn't give them.
+   */
+  static class Info {
+    String entity;
+
+    long version;
+
+    String state;
+
+    String displayText;
+
+    String subject;
+
+    Integer userCount;
+
+    Boolean active;
+
+    Boolean locked;
+
+    final List<User> users = new ArrayList<>();
+  }
+
+  /**
+   * One user element - the fields other than the entity and state are null if not given.
+   */
+  static class User {
+    String entity;
+
+    String state;
+
+    String displayText;
+
+    final List<Endpoint> endpoints = new ArrayList<>();
+  }
+
+  /**
+   * One endpoint element of a user - the fields other than the entity and state are null if not
+   * given.
+   */
+  static class Endpoint {
+    String entity;
+
+    String state;
+
+    String displayText;
+
+    String status;
+
+    String joiningMethod;
+
+    final List<ConferenceMedia> media = new ArrayList<>();
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.cafesip.sipunit;
+
+/**
+ * This class represents one media stream of a conference endpoint, as received in a conference
+ * event package (RFC 4575) NOTIFY - see ConferenceSubscriber. Objects of this class are immutable.
+ *
+ */
+public class ConferenceMedia {
+
+  private final String id;
+
+  private final String displayText;
+
+  private final String type;
+
+  private final String srcId;
+
+  private final String status;
+
+  ConferenceMedia(String id, String displayText, String type, String srcId, String status) {
+    this.id = id;
+    this.displayText = displayText;
+    this.type = type;
+    this.srcId = srcId;
+    this.status = status;
+  }
+
+  /**
+   * Gets the ID of this media stream, unique within the conference.
+   *
+   * @return the id attribute of the media element.
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * Gets the display text of this media stream.
+   *
+   * @return the display text, or null if none was received.
+   */
+  public String getDisplayText() {
+    return displayText;
+  }
+
+  /**
+   * Gets the media type of this stream (ie, audio, video).
+   *
+   * @return the type, or null if none was received.
+   */
+  public String getType() {
+    return type;
+  }
+
+  /**
+   * Gets the synchronization source (SSRC) of this stream, as a string.
+   *
+   * @return the src-id, or null if none was received.
+   */
+  public String getSrcId() {
+    return srcId;
+  }
+
+  /**
+   * Gets the direction of this stream (sendrecv, sendonly, recvonly or inactive).
+   *
+   * @return the status, or null if none was received.
+   */
+  public String getStatus() {
+    return status;
+  }
+
+  public String toString() {
+    return "media " + id + " (" + type + ", " + status + ')';
+  }
+}
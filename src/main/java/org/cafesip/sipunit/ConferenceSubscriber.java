@@ -0,0 +1,258 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.cafesip.sipunit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The ConferenceSubscriber class represents a subscription to the conference event package (RFC
+ * 4575) of a conference focus. A subscription is created by calling SipPhone.subscribeConference().
+ *
+ * <p>
+ * The SUBSCRIBE requests carry "Event: conference" and accept application/conference-info+xml.
+ * Processing a received NOTIFY (processNotify()) reads its conference-info document with a
+ * streaming parser and applies it to the roster of the conference - its users, each with its
+ * endpoints and their media streams - which can then be queried at any time with getUsers() or
+ * getUser() without parsing anything again. The conference description and state (subject, user
+ * count, active, locked) are kept as well.
+ *
+ * <p>
+ * A full state document replaces the roster. A partial one, which must carry the next version,
+ * only gives what has changed - typically the user that has joined, left or changed status - and
+ * is merged into the roster: a user or endpoint whose state is deleted is removed, one whose state
+ * is full is replaced and one whose state is partial is updated with the elements given. Applying
+ * a partial document thus costs in proportion to the users it names, not to the size of the
+ * conference. The ConferenceUser and ConferenceEndpoint objects are immutable, so those obtained
+ * from the roster aren't affected by later notifications. A NOTIFY that can't be applied as a whole
+ * is rejected and leaves the roster unchanged.
+ *
+ * <p>
+ * Like other subscriber objects, operation-invoking methods of this class return an object or true
+ * if successful. In case of an error or caller-specified timeout, a null object or a false is
+ * returned. The getErrorMessage(), getReturnCode() and getException() methods may be used for
+ * further diagnostics.
+ *
+ */
+public class ConferenceSubscriber extends DocumentSubscriber {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ConferenceSubscriber.class);
+
+  /*
+   * The users of the conference in document order, indexed by entity - guarded by its monitor
+   */
+  private final LinkedHashMap<String, ConferenceUser> users = new LinkedHashMap<>();
+
+  private volatile long version = -1;
+
+  private volatile String displayText;
+
+  private volatile String subject;
+
+  private volatile int userCount = -1;
+
+  private volatile boolean active;
+
+  private volatile boolean locked;
+
+  /**
+   * A constructor for this class. Used internally by SipUnit. Test programs should call
+   * SipPhone.subscribeConference() to create a conference subscription.
+   */
+  public ConferenceSubscriber(String conferenceUri, SipPhone parent) throws ParseException {
+    super(conferenceUri, parent, "conference", "application", "conference-info+xml");
+  }
+
+  /**
+   * Removes this object from the SipPhone conference subscriptions. No check is done. You should
+   * unsubscribe() before calling this method.
+   */
+  public void dispose() {
+    parent.removeConference(this);
+  }
+
+  protected void applyDocument(byte[] bodyBytes) throws SubscriptionError {
+    ConferenceInfoParser.Info info;
+    try {
+      info = ConferenceInfoParser.parse(bodyBytes);
+    } catch (Exception e) {
+      throw new SubscriptionError(SipResponse.BAD_REQUEST,
+          "NOTIFY conference-info parsing error : " + e.getMessage());
+    }
+
+    if (!targetUri.equals(info.entity)) {
+      throw new SubscriptionError(SipResponse.BAD_REQUEST,
+          "received NOTIFY body for wrong conference = " + info.entity);
+    }
+
+    if (info.state.equals(ConferenceInfoParser.DELETED)) {
+      throw new SubscriptionError(SipResponse.BAD_REQUEST,
+          "received conference NOTIFY body with state = " + info.state);
+    }
+
+    boolean full = info.state.equals(ConferenceInfoParser.FULL);
+    if (full ? (info.version <= version) : (info.version != version + 1)) {
+      throw new SubscriptionError(SipResponse.BAD_REQUEST,
+          "received conference NOTIFY body out of sequence, version = " + info.version
+              + ", last = " + version);
+    }
+
+    synchronized (users) {
+      // work out the new state of each user named before changing anything - a null value
+      // removes the user
+      LinkedHashMap<String, ConferenceUser> changes = new LinkedHashMap<>();
+      for (ConferenceInfoParser.User update : info.users) {
+        if (update.state.equals(ConferenceInfoParser.DELETED)) {
+          changes.put(update.entity, null);
+          continue;
+        }
+
+        ConferenceUser user = changes.containsKey(update.entity) ? changes.get(update.entity)
+            : (full ? null : users.get(update.entity));
+        changes.put(update.entity, ConferenceUser.update(user, update));
+      }
+
+      // now apply it
+
+      if (full) {
+        users.clear();
+      }
+
+      for (Map.Entry<String, ConferenceUser> change : changes.entrySet()) {
+        if (change.getValue() == null) {
+          users.remove(change.getKey());
+        } else {
+          users.put(change.getKey(), change.getValue());
+        }
+      }
+
+      if (full || (info.displayText != null)) {
+        displayText = info.displayText;
+      }
+
+      if (full || (info.subject != null)) {
+        subject = info.subject;
+      }
+
+      if (full || (info.userCount != null)) {
+        userCount = info.userCount == null ? -1 : info.userCount.intValue();
+      }
+
+      if (full || (info.active != null)) {
+        active = Boolean.TRUE.equals(info.active);
+      }
+
+      if (full || (info.locked != null)) {
+        locked = Boolean.TRUE.equals(info.locked);
+      }
+
+      version = info.version;
+    }
+
+    LOG.trace("Processed {} conference NOTIFY body version {} ({} users) for {}",
+        full ? "full state" : "partial", info.version, info.users.size(), targetUri);
+  }
+
+  /**
+   * Gets the roster of the conference, as received in the NOTIFY messages so far.
+   *
+   * @return a map of the entity (URI) of each user to its ConferenceUser object, in the order of
+   *         the last full state notification (users added by partial notifications come last).
+   */
+  public Map<String, ConferenceUser> getUsers() {
+    synchronized (users) {
+      return new LinkedHashMap<>(users);
+    }
+  }
+
+  /**
+   * Returns getUsers().
+   */
+  protected Object getNotifyContent() {
+    return getUsers();
+  }
+
+  /**
+   * Gets the given user of the conference - see getUsers().
+   *
+   * @param entity the URI of the user (ie, sip:alice@example.com).
+   * @return the ConferenceUser object of the user, or null if the user isn't in the roster.
+   */
+  public ConferenceUser getUser(String entity) {
+    synchronized (users) {
+      return users.get(entity);
+    }
+  }
+
+  /**
+   * Gets the version of the conference-info document last applied.
+   *
+   * @return the version, or -1 if no conference NOTIFY body has been received yet.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Gets the display text of the conference, from its conference description.
+   *
+   * @return the display text, or null if none was received.
+   */
+  public String getDisplayText() {
+    return displayText;
+  }
+
+  /**
+   * Gets the subject of the conference, from its conference description.
+   *
+   * @return the subject, or null if none was received.
+   */
+  public String getSubject() {
+    return subject;
+  }
+
+  /**
+   * Gets the number of users of the conference as given by the focus in its conference state. It
+   * may differ from the size of the roster, since a focus doesn't have to list every user.
+   *
+   * @return the user count, or -1 if none was received.
+   */
+  public int getUserCount() {
+    return userCount;
+  }
+
+  /**
+   * Indicates if the conference is active, as given by the focus in its conference state.
+   *
+   * @return true if the conference is active, false if it isn't or no state was received.
+   */
+  public boolean isConferenceActive() {
+    return active;
+  }
+
+  /**
+   * Indicates if the conference is locked, as given by the focus in its conference state.
+   *
+   * @return true if the conference is locked, false if it isn't or no state was received.
+   */
+  public boolean isConferenceLocked() {
+    return locked;
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.cafesip.sipunit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * This class represents one user of a conference, with its endpoints, as received in a conference
+ * event package (RFC 4575) NOTIFY. See ConferenceSubscriber.
+ *
+ * <p>
+ * Objects of this class are immutable: a partial notification updating a user gives a new object,
+ * sharing the endpoints it doesn't update with the previous one, so that applying it costs no more
+ * than the size of the user and an object obtained from the roster keeps the state it was obtained
+ * with.
+ *
+ */
+public class ConferenceUser {
+
+  private final String entity;
+
+  private final String displayText;
+
+  private final LinkedHashMap<String, ConferenceEndpoint> endpoints; // by entity
+
+  private ConferenceUser(String entity, String displayText,
+      LinkedHashMap<String, ConferenceEndpoint> endpoints) {
+    this.entity = entity;
+    this.displayText = displayText;
+    this.endpoints = endpoints;
+  }
+
+  /**
+   * Applies the given user element to the given user. The display text and endpoints given by the
+   * element replace or update those of the user (an endpoint whose state is deleted is removed),
+   * the others are kept - unless the element's state is full, in which case the user is replaced as
+   * a whole.
+   *
+   * @param user the current state of the user, or null if it is a new one.
+   * @param update the user element, whose state is full or partial.
+   * @return the new state of the user.
+   */
+  static ConferenceUser update(ConferenceUser user, ConferenceInfoParser.User update) {
+    if ((user == null) || update.state.equals(ConferenceInfoParser.FULL)) {
+      user = new ConferenceUser(update.entity, null,
+          new LinkedHashMap<String, ConferenceEndpoint>());
+    }
+
+    LinkedHashMap<String, ConferenceEndpoint> endpoints = new LinkedHashMap<>(user.endpoints);
+    for (ConferenceInfoParser.Endpoint ep : update.endpoints) {
+      if (ep.state.equals(ConferenceInfoParser.DELETED)) {
+        endpoints.remove(ep.entity);
+      } else {
+        endpoints.put(ep.entity, ConferenceEndpoint.update(endpoints.get(ep.entity), ep));
+      }
+    }
+
+    return new ConferenceUser(update.entity,
+        update.displayText == null ? user.displayText : update.displayText, endpoints);
+  }
+
+  /**
+   * Gets the URI of this user.
+   *
+   * @return the entity attribute of the user element (ie, sip:alice@example.com).
+   */
+  public String getEntity() {
+    return entity;
+  }
+
+  /**
+   * Gets the display text of this user.
+   *
+   * @return the display text, or null if none was received.
+   */
+  public String getDisplayText() {
+    return displayText;
+  }
+
+  /**
+   * Indicates if this user is connected to the conference.
+   *
+   * @return true if one of its endpoints is connected, false otherwise.
+   */
+  public boolean isConnected() {
+    for (ConferenceEndpoint ep : endpoints.values()) {
+      if (ep.isConnected()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets the endpoints of this user.
+   *
+   * @return the endpoints in the order they were first received.
+   */
+  public List<ConferenceEndpoint> getEndpoints() {
+    return Collections.unmodifiableList(new ArrayList<>(endpoints.values()));
+  }
+
+  /**
+   * Gets the given endpoint of this user.
+   *
+   * @param entity the URI of the endpoint.
+   * @return the endpoint, or null if this user has none with the given URI.
+   */
+  public ConferenceEndpoint getEndpoint(String entity) {
+    return endpoints.get(entity);
+  }
+
+  public String toString() {
+    return "user " + entity + " (" + endpoints.size() + " endpoints)";
+  }
+}
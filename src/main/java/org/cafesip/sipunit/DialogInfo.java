@@ -0,0 +1,243 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.cafesip.sipunit;
+
+/**
+ * This class represents one dialog of a monitored user agent, as received in a dialog event package
+ * (RFC 4235) NOTIFY - see DialogInfoSubscriber. Each dialog element received carries the whole
+ * state of the dialog, so an object of this class is never changed once received: a later
+ * notification about the same dialog gives a new object.
+ *
+ */
+public class DialogInfo {
+
+  public static final String TRYING = "trying";
+
+  public static final String PROCEEDING = "proceeding";
+
+  public static final String EARLY = "early";
+
+  public static final String CONFIRMED = "confirmed";
+
+  public static final String TERMINATED = "terminated";
+
+  public static final String INITIATOR = "initiator";
+
+  public static final String RECIPIENT = "recipient";
+
+  // set by DialogInfoParser only
+
+  final String id;
+
+  String callId;
+
+  String localTag;
+
+  String remoteTag;
+
+  String direction;
+
+  String state;
+
+  String event;
+
+  int code = -1;
+
+  int duration = -1;
+
+  String localIdentity;
+
+  String localDisplay;
+
+  String localTarget;
+
+  String remoteIdentity;
+
+  String remoteDisplay;
+
+  String remoteTarget;
+
+  DialogInfo(String id) {
+    this.id = id;
+  }
+
+  /**
+   * Gets the ID of this dialog, unique among the dialogs of the monitored user agent.
+   *
+   * @return the id attribute of the dialog element.
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * Gets the Call-ID of this dialog.
+   *
+   * @return the Call-ID, or null if none was received.
+   */
+  public String getCallId() {
+    return callId;
+  }
+
+  /**
+   * Gets the local tag of this dialog.
+   *
+   * @return the tag, or null if none was received.
+   */
+  public String getLocalTag() {
+    return localTag;
+  }
+
+  /**
+   * Gets the remote tag of this dialog.
+   *
+   * @return the tag, or null if none was received.
+   */
+  public String getRemoteTag() {
+    return remoteTag;
+  }
+
+  /**
+   * Gets the direction of this dialog from the point of view of the monitored user agent.
+   *
+   * @return INITIATOR, RECIPIENT or null if none was received.
+   */
+  public String getDirection() {
+    return direction;
+  }
+
+  /**
+   * Gets the state of this dialog.
+   *
+   * @return TRYING, PROCEEDING, EARLY, CONFIRMED or TERMINATED.
+   */
+  public String getState() {
+    return state;
+  }
+
+  /**
+   * Gets the event that caused the dialog to be terminated, or to go into its current state (ie,
+   * cancelled, rejected, replaced, local-bye, remote-bye, error, timeout).
+   *
+   * @return the event attribute of the state element, or null if none was received.
+   */
+  public String getEvent() {
+    return event;
+  }
+
+  /**
+   * Gets the response code that caused the dialog to go into its current state.
+   *
+   * @return the code attribute of the state element, or -1 if none was received.
+   */
+  public int getCode() {
+    return code;
+  }
+
+  /**
+   * Gets how long the dialog has been in its current state.
+   *
+   * @return the duration in seconds, or -1 if none was received.
+   */
+  public int getDuration() {
+    return duration;
+  }
+
+  /**
+   * Gets the identity (URI) of the monitored user agent in this dialog.
+   *
+   * @return the local identity, or null if none was received.
+   */
+  public String getLocalIdentity() {
+    return localIdentity;
+  }
+
+  /**
+   * Gets the display name of the local identity.
+   *
+   * @return the display name, or null if none was received.
+   */
+  public String getLocalDisplay() {
+    return localDisplay;
+  }
+
+  /**
+   * Gets the target (contact) URI of the monitored user agent in this dialog.
+   *
+   * @return the local target, or null if none was received.
+   */
+  public String getLocalTarget() {
+    return localTarget;
+  }
+
+  /**
+   * Gets the identity (URI) of the peer of the monitored user agent in this dialog.
+   *
+   * @return the remote identity, or null if none was received.
+   */
+  public String getRemoteIdentity() {
+    return remoteIdentity;
+  }
+
+  /**
+   * Gets the display name of the remote identity.
+   *
+   * @return the display name, or null if none was received.
+   */
+  public String getRemoteDisplay() {
+    return remoteDisplay;
+  }
+
+  /**
+   * Gets the target (contact) URI of the peer in this dialog.
+   *
+   * @return the remote target, or null if none was received.
+   */
+  public String getRemoteTarget() {
+    return remoteTarget;
+  }
+
+  /**
+   * Indicates if this dialog is being set up, its state being trying, proceeding or early.
+   *
+   * @return true if the dialog isn't confirmed or terminated yet, false otherwise.
+   */
+  public boolean isEarly() {
+    return TRYING.equals(state) || PROCEEDING.equals(state) || EARLY.equals(state);
+  }
+
+  /**
+   * Indicates if this dialog is established.
+   *
+   * @return true if its state is confirmed, false otherwise.
+   */
+  public boolean isConfirmed() {
+    return CONFIRMED.equals(state);
+  }
+
+  /**
+   * Indicates if this dialog is over.
+   *
+   * @return true if its state is terminated, false otherwise.
+   */
+  public boolean isTerminated() {
+    return TERMINATED.equals(state);
+  }
+
+  public String toString() {
+    return "dialog " + id + " (" + state + (direction == null ? "" : ", " + direction) + ')';
+  }
+}
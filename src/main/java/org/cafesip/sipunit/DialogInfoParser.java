@@ -0,0 +1,173 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.cafesip.sipunit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * FOR INTERNAL USE ONLY. A test class doesn't use this class.
+ *
+ * <p>
+ * This class parses dialog event package (application/dialog-info+xml, RFC 4235) documents for
+ * DialogInfoSubscriber with a streaming (StAX) parser, in one pass, creating the DialogInfo objects
+ * directly. Of each dialog, its attributes, state, duration and the identity and target of both
+ * participants are read; the other elements (route sets, session descriptions, extensions, ...) are
+ * skipped with their content.
+ *
+ * <p>
+ * The elements are expected in the dialog-info namespace, but elements without a namespace are
+ * accepted as well.
+ *
+ */
+class DialogInfoParser {
+
+  static final String NAMESPACE = "urn:ietf:params:xml:ns:dialog-info";
+
+  private DialogInfoParser() {}
+
+  /**
+   * Parses a dialog-info document.
+   *
+   * @param body the document.
+   * @return the content of the document, the dialogs in document order.
+   * @throws Exception if the document can't be parsed.
+   */
+  static Info parse(byte[] body) throws Exception {
+    XMLStreamReader reader = StaxReaders.create(body);
+    try {
+      reader.nextTag();
+      if (is(reader, "dialog-info") == false) {
+        throw new XMLStreamException("unexpected root element " + reader.getName());
+      }
+
+      Info info = new Info();
+      info.entity = StaxReaders.collapse(reader.getAttributeValue(null, "entity"));
+      String version = reader.getAttributeValue(null, "version");
+      String state = StaxReaders.collapse(reader.getAttributeValue(null, "state"));
+      if ((info.entity == null) || (version == null) || (state == null)) {
+        throw new XMLStreamException("dialog-info without entity, version or state");
+      }
+      info.version = Long.parseLong(version.trim());
+
+      if (state.equals("full")) {
+        info.fullState = true;
+      } else if (state.equals("partial") == false) {
+        throw new XMLStreamException("dialog-info with invalid state " + state);
+      }
+
+      while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+        if (is(reader, "dialog")) {
+          info.dialogs.add(parseDialog(reader));
+        } else {
+          StaxReaders.skip(reader);
+        }
+      }
+
+      return info;
+    } catch (NumberFormatException e) {
+      throw new XMLStreamException("invalid number: " + e.getMessage());
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static DialogInfo parseDialog(XMLStreamReader reader) throws XMLStreamException {
+    String id = StaxReaders.collapse(reader.getAttributeValue(null, "id"));
+    if (id == null) {
+      throw new XMLStreamException("dialog without id");
+    }
+
+    DialogInfo dialog = new DialogInfo(id);
+    dialog.callId = StaxReaders.collapse(reader.getAttributeValue(null, "call-id"));
+    dialog.localTag = StaxReaders.collapse(reader.getAttributeValue(null, "local-tag"));
+    dialog.remoteTag = StaxReaders.collapse(reader.getAttributeValue(null, "remote-tag"));
+    dialog.direction = StaxReaders.collapse(reader.getAttributeValue(null, "direction"));
+
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (is(reader, "state")) {
+        dialog.event = StaxReaders.collapse(reader.getAttributeValue(null, "event"));
+        String code = StaxReaders.collapse(reader.getAttributeValue(null, "code"));
+        if (code != null) {
+          dialog.code = Integer.parseInt(code);
+        }
+        dialog.state = StaxReaders.collapse(reader.getElementText());
+      } else if (is(reader, "duration")) {
+        dialog.duration = Integer.parseInt(reader.getElementText().trim());
+      } else if (is(reader, "local")) {
+        parseParticipant(reader, dialog, true);
+      } else if (is(reader, "remote")) {
+        parseParticipant(reader, dialog, false);
+      } else {
+        StaxReaders.skip(reader);
+      }
+    }
+
+    if (dialog.state == null) {
+      throw new XMLStreamException("dialog " + id + " without state");
+    }
+
+    return dialog;
+  }
+
+  private static void parseParticipant(XMLStreamReader reader, DialogInfo dialog, boolean local)
+      throws XMLStreamException {
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (is(reader, "identity")) {
+        String display = reader.getAttributeValue(null, "display");
+        String identity = StaxReaders.collapse(reader.getElementText());
+        if (local) {
+          dialog.localIdentity = identity;
+          dialog.localDisplay = display;
+        } else {
+          dialog.remoteIdentity = identity;
+          dialog.remoteDisplay = display;
+        }
+      } else if (is(reader, "target")) {
+        String uri = StaxReaders.collapse(reader.getAttributeValue(null, "uri"));
+        if (local) {
+          dialog.localTarget = uri;
+        } else {
+          dialog.remoteTarget = uri;
+        }
+        StaxReaders.skip(reader);
+      } else {
+        StaxReaders.skip(reader);
+      }
+    }
+  }
+
+  private static boolean is(XMLStreamReader reader, String name) {
+    return StaxReaders.is(reader, NAMESPACE, name);
+  }
+
+  /**
+   * The content of a dialog-info document.
+   */
+  static class Info {
+    String entity;
+
+    long version;
+
+    boolean fullState;
+
+    final List<DialogInfo> dialogs = new ArrayList<>();
+  }
+}
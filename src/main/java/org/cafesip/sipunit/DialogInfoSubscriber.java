@@ -0,0 +1,198 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.cafesip.sipunit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The DialogInfoSubscriber class represents a subscription to the dialog event package (RFC 4235)
+ * of a user agent or extension, as used by attendant consoles and busy lamp fields (BLF) to follow
+ * the calls of the extensions they monitor. A subscription is created by calling
+ * SipPhone.subscribeDialogInfo(), for one extension or for many at once.
+ *
+ * <p>
+ * The SUBSCRIBE requests carry "Event: dialog" and accept application/dialog-info+xml. Processing a
+ * received NOTIFY (processNotify()) reads its dialog-info document with a streaming parser and
+ * applies it to the dialogs of the extension, which can then be queried at any time with
+ * getDialogInfo() or getLampState() without parsing anything again.
+ *
+ * <p>
+ * A full state document replaces the dialogs. A partial one, which must carry the next version,
+ * only gives the dialogs that have changed, each with its whole state, and so costs in proportion
+ * to the change: a dialog in the terminated state is removed, any other replaces the dialog with
+ * the same ID. A NOTIFY that can't be applied as a whole is rejected and leaves the state as it
+ * was.
+ *
+ * <p>
+ * Like other subscriber objects, operation-invoking methods of this class return an object or true
+ * if successful. In case of an error or caller-specified timeout, a null object or a false is
+ * returned. The getErrorMessage(), getReturnCode() and getException() methods may be used for
+ * further diagnostics.
+ *
+ */
+public class DialogInfoSubscriber extends DocumentSubscriber {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DialogInfoSubscriber.class);
+
+  /**
+   * Lamp state of an extension without dialogs.
+   */
+  public static final int IDLE = 0;
+
+  /**
+   * Lamp state of an extension whose only dialogs are incoming ones being set up.
+   */
+  public static final int RINGING = 1;
+
+  /**
+   * Lamp state of an extension with an established dialog or one it has initiated.
+   */
+  public static final int BUSY = 2;
+
+  /*
+   * The dialogs not terminated in document order, indexed by ID - guarded by its monitor
+   */
+  private final LinkedHashMap<String, DialogInfo> dialogs = new LinkedHashMap<>();
+
+  private volatile long version = -1;
+
+  private volatile int lampState = IDLE;
+
+  /**
+   * A constructor for this class. Used internally by SipUnit. Test programs should call
+   * SipPhone.subscribeDialogInfo() to create a dialog subscription.
+   */
+  public DialogInfoSubscriber(String uri, SipPhone parent) throws ParseException {
+    super(uri, parent, "dialog", "application", "dialog-info+xml");
+  }
+
+  /**
+   * Removes this object from the SipPhone dialog subscriptions. No check is done. You should
+   * unsubscribe() before calling this method.
+   */
+  public void dispose() {
+    parent.removeDialogInfoSubscription(this);
+  }
+
+  protected void applyDocument(byte[] bodyBytes) throws SubscriptionError {
+    DialogInfoParser.Info info;
+    try {
+      info = DialogInfoParser.parse(bodyBytes);
+    } catch (Exception e) {
+      throw new SubscriptionError(SipResponse.BAD_REQUEST,
+          "NOTIFY dialog-info parsing error : " + e.getMessage());
+    }
+
+    if (!targetUri.equals(info.entity)) {
+      throw new SubscriptionError(SipResponse.BAD_REQUEST,
+          "received NOTIFY body for wrong entity = " + info.entity);
+    }
+
+    synchronized (dialogs) {
+      if (info.fullState ? (info.version <= version) : (info.version != version + 1)) {
+        throw new SubscriptionError(SipResponse.BAD_REQUEST,
+            "received dialog NOTIFY body out of sequence, version = " + info.version + ", last = "
+                + version);
+      }
+
+      if (info.fullState) {
+        dialogs.clear();
+      }
+
+      for (DialogInfo dialog : info.dialogs) {
+        if (dialog.isTerminated()) {
+          dialogs.remove(dialog.getId());
+        } else {
+          dialogs.put(dialog.getId(), dialog);
+        }
+      }
+
+      version = info.version;
+      lampState = lampState(dialogs);
+    }
+
+    LOG.trace("Processed {} dialog NOTIFY body version {} ({} dialogs) for {}",
+        info.fullState ? "full state" : "partial", info.version, info.dialogs.size(), targetUri);
+  }
+
+  private static int lampState(Map<String, DialogInfo> dialogs) {
+    int state = IDLE;
+    for (DialogInfo dialog : dialogs.values()) {
+      if (dialog.isConfirmed() || DialogInfo.INITIATOR.equals(dialog.getDirection())) {
+        return BUSY;
+      }
+      state = RINGING;
+    }
+    return state;
+  }
+
+  /**
+   * Gets the dialogs of the extension, as received in the NOTIFY messages so far. Terminated
+   * dialogs are left out.
+   *
+   * @return a map of the ID of each dialog to its DialogInfo object, in the order of the last full
+   *         state notification (dialogs added by partial notifications come last).
+   */
+  public Map<String, DialogInfo> getDialogInfo() {
+    synchronized (dialogs) {
+      return new LinkedHashMap<>(dialogs);
+    }
+  }
+
+  /**
+   * Returns getDialogInfo().
+   */
+  protected Object getNotifyContent() {
+    return getDialogInfo();
+  }
+
+  /**
+   * Gets the given dialog of the extension - see getDialogInfo().
+   *
+   * @param id the ID of the dialog, as given by the dialog element.
+   * @return the DialogInfo object of the dialog, or null if there is no such dialog or it has
+   *         terminated.
+   */
+  public DialogInfo getDialogInfo(String id) {
+    synchronized (dialogs) {
+      return dialogs.get(id);
+    }
+  }
+
+  /**
+   * Gets the version of the dialog-info document last applied.
+   *
+   * @return the version, or -1 if no dialog NOTIFY body has been received yet.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Gets the busy lamp field state of the extension, as of the last NOTIFY processed.
+   *
+   * @return BUSY if one of its dialogs is confirmed or was initiated by the extension, otherwise
+   *         RINGING if it has a dialog (an incoming one being set up), otherwise IDLE.
+   */
+  public int getLampState() {
+    return lampState;
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import java.text.ParseException;
+
+import javax.sip.header.AcceptHeader;
+import javax.sip.header.ContentTypeHeader;
+import javax.sip.header.EventHeader;
+import javax.sip.header.ProxyAuthorizationHeader;
+import javax.sip.message.Request;
+
+/**
+ * FOR INTERNAL USE ONLY. A test class doesn't use this class.
+ *
+ * <p>
+ * This class holds what the subscribers to an event package whose NOTIFY bodies are state
+ * documents of a single MIME type - ConferenceSubscriber and DialogInfoSubscriber - have in
+ * common: the event type and Accept header of the SUBSCRIBE requests, the checks of the received
+ * Event and Content-Type headers, and the refresh and unsubscribe operations. A subclass only
+ * applies the body of each NOTIFY, in applyDocument().
+ *
+ */
+abstract class DocumentSubscriber extends EventSubscriber {
+
+  private final String eventType;
+
+  private final String contentType;
+
+  private final String contentSubType;
+
+  DocumentSubscriber(String uri, SipPhone parent, String eventType, String contentType,
+      String contentSubType) throws ParseException {
+    super(uri, parent);
+    this.eventType = eventType;
+    this.contentType = contentType;
+    this.contentSubType = contentSubType;
+  }
+
+  /**
+   * Removes this object from the SipPhone subscriptions it is kept in. No check is done. You should
+   * unsubscribe() before calling this method.
+   */
+  public abstract void dispose();
+
+  /**
+   * This method is the same as EventSubscriber.createSubscribeMessage() except there's no need for
+   * the caller to supply the eventType parameter, and the Accept header is set to the MIME type of
+   * the event package documents.
+   *
+   * @param duration the duration in seconds to put in the SUBSCRIBE message.
+   * @param eventId the event "id" to use in the SUBSCRIBE message, or null for no event "id"
+   *        parameter.
+   * @return a SUBSCRIBE request
+   */
+  public Request createSubscribeMessage(int duration, String eventId) {
+    Request req = super.createSubscribeMessage(duration, eventId, eventType);
+    if (req == null) {
+      return null;
+    }
+
+    try {
+      req.setHeader(getUnsupportedMediaAcceptHeader());
+    } catch (Exception ex) {
+      setReturnCode(SipSession.EXCEPTION_ENCOUNTERED);
+      setException(ex);
+      setErrorMessage("Exception: " + ex.getClass().getName() + ": " + ex.getMessage());
+      return null;
+    }
+
+    return req;
+  }
+
+  protected boolean expiresResponseHeaderApplicable() {
+    return true;
+  }
+
+  protected void checkEventType(EventHeader receivedHdr) throws SubscriptionError {
+    String event = receivedHdr.getEventType();
+    if (event.equals(eventType) == false) {
+      throw new SubscriptionError(SipResponse.BAD_EVENT,
+          "received a " + eventType + " event header containing unknown event = " + event);
+    }
+  }
+
+  protected void updateEventInfo(Request request) throws SubscriptionError {
+    byte[] bodyBytes = request.getRawContent();
+    if (bodyBytes == null) {
+      return;
+    }
+
+    ContentTypeHeader ct = (ContentTypeHeader) request.getHeader(ContentTypeHeader.NAME);
+    if (ct == null) {
+      throw new SubscriptionError(SipResponse.BAD_REQUEST,
+          "NOTIFY body has bytes but no content type header was received");
+    }
+
+    if ((ct.getContentType().equalsIgnoreCase(contentType) == false)
+        || (ct.getContentSubType().equalsIgnoreCase(contentSubType) == false)) {
+      throw new SubscriptionError(SipResponse.UNSUPPORTED_MEDIA_TYPE,
+          "received " + eventType + " NOTIFY body with unsupported content type = "
+              + ct.getContentType() + '/' + ct.getContentSubType());
+    }
+
+    applyDocument(bodyBytes);
+  }
+
+  /**
+   * Applies the document carried by a received NOTIFY, whose content type has been checked, to the
+   * state kept by this object. A document that can't be applied as a whole must leave the state
+   * unchanged.
+   *
+   * @param bodyBytes the body of the NOTIFY.
+   * @throws SubscriptionError if the document is invalid or out of sequence.
+   */
+  protected abstract void applyDocument(byte[] bodyBytes) throws SubscriptionError;
+
+  protected AcceptHeader getUnsupportedMediaAcceptHeader() throws ParseException {
+    return parent.getHeaderFactory().createAcceptHeader(contentType, contentSubType);
+  }
+
+  /**
+   * This method initiates a SUBSCRIBE/NOTIFY sequence for the purpose of refreshing this
+   * subscription. It creates a SUBSCRIBE request message with the given duration and the event
+   * "id" of this subscription, sends it out, and waits for a first response to be received. Any
+   * response status code other than a provisional one, UNAUTHORIZED, PROXY_AUTHENTICATION_REQUIRED,
+   * OK or ACCEPTED, or a response timeout or any other error, is fatal to this refresh operation.
+   *
+   * <p>
+   * If this method returns true, your next step will be to call the processResponse() method to
+   * proceed with the refresh sequence. If it returns false, call getErrorMessage(),
+   * getReturnCode() and/or getException() to find out what happened.
+   *
+   * @param duration the duration in seconds to put in the SUBSCRIBE message and reset the
+   *        subscription time left to. If it is 0, this is an unsubscribe.
+   * @param timeout The maximum amount of time to wait for a SUBSCRIBE response, in milliseconds.
+   *        Use a value of 0 to wait indefinitely.
+   * @return true if the refresh operation is successful so far, false otherwise.
+   */
+  public boolean refresh(int duration, long timeout) {
+    Request req = createSubscribeMessage(duration, getEventId());
+
+    if (req == null) {
+      return false;
+    }
+
+    req.removeHeader(ProxyAuthorizationHeader.NAME);
+
+    return refreshSubscription(req, timeout, parent.getProxyHost() != null);
+  }
+
+  /**
+   * This method is the same as refresh(duration, timeout) except that the SUBSCRIBE duration sent
+   * will be however much time is left on the current subscription.
+   */
+  public boolean refresh(long timeout) {
+    return refresh(getTimeLeft(), timeout);
+  }
+
+  /**
+   * This method initiates a SUBSCRIBE/NOTIFY sequence to terminate the subscription unless the
+   * subscription is already terminated. It sends out a SUBSCRIBE request message with a duration
+   * of 0 and waits for a first response to be received, as refresh(duration, timeout) does.
+   *
+   * <p>
+   * If this method returns true, call isRemovalComplete() to know whether an unsubscribe sequence
+   * was initiated: if it was, your next step will be to call the processResponse() method to
+   * proceed with it. If this method returns false, the unsubscribe operation was required and it
+   * failed - call getErrorMessage(), getReturnCode() and/or getException() to find out why.
+   *
+   * @param timeout The maximum amount of time to wait for a SUBSCRIBE response, in milliseconds.
+   *        Use a value of 0 to wait indefinitely.
+   * @return true if the unsubscribe operation is successful so far or wasn't needed, false
+   *         otherwise.
+   */
+  public boolean unsubscribe(long timeout) {
+    initErrorInfo();
+
+    Request req = createSubscribeMessage(0, getEventId());
+
+    if (req == null) {
+      return false;
+    }
+
+    req.removeHeader(ProxyAuthorizationHeader.NAME);
+
+    return endSubscription(req, timeout, parent.getProxyHost() != null, "Unsubscribe");
+  }
+}
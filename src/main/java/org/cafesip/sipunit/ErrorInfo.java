@@ -0,0 +1,62 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+/**
+ * FOR INTERNAL USE ONLY. A test class doesn't use this class.
+ *
+ * <p>
+ * This class holds the outcome of the last operation invoked on a SipActionObject - its return
+ * code, error message and exception - for each calling thread. Threads invoking operations on one
+ * object at the same time, such as makeCall() or register() on a SipPhone, thus each see the
+ * outcome of their own operation and never that of another thread's.
+ *
+ */
+final class ErrorInfo {
+
+  private static final class Outcome {
+    int returnCode = -1;
+
+    String errorMessage = "";
+
+    Throwable exception;
+  }
+
+  private final ThreadLocal<Outcome> outcome = ThreadLocal.withInitial(Outcome::new);
+
+  int getReturnCode() {
+    return outcome.get().returnCode;
+  }
+
+  void setReturnCode(int returnCode) {
+    outcome.get().returnCode = returnCode;
+  }
+
+  String getErrorMessage() {
+    return outcome.get().errorMessage;
+  }
+
+  void setErrorMessage(String errorMessage) {
+    outcome.get().errorMessage = errorMessage;
+  }
+
+  Throwable getException() {
+    return outcome.get().exception;
+  }
+
+  void setException(Throwable exception) {
+    outcome.get().exception = exception;
+  }
+}
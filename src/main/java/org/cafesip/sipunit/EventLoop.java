@@ -0,0 +1,214 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipListener;
+import javax.sip.TimeoutEvent;
+
+/**
+ * FOR INTERNAL USE ONLY. A test class doesn't use this class.
+ *
+ * <p>
+ * This class is one event-loop thread of a SipStack in event-loop mode (see
+ * SipStack.setEventLoops()). The SipPhones pinned to it, with their calls, subscriptions and UAS or
+ * session timer handling, get all their stack events on this one thread, in the order the stack
+ * delivered them, and the tasks given to SipPhone.execute() run on it as well. The SIP stack
+ * threads only queue the events here and go back to reading the network.
+ *
+ */
+class EventLoop {
+
+  private static final Logger LOG = LoggerFactory.getLogger(EventLoop.class);
+
+  private final ScheduledThreadPoolExecutor executor;
+
+  private volatile SipListener[] listeners = new SipListener[0];
+
+  // for the delayed work of the SipPhones not in event-loop mode
+  private static volatile ScheduledExecutorService sharedScheduler;
+
+  EventLoop(String name) {
+    executor = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread t = new LoopThread(r, name);
+      t.setDaemon(true);
+      return t;
+    });
+    executor.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Tells if the calling thread is an event-loop thread, where blocking on a SIP event would keep
+   * the event from ever being delivered.
+   */
+  static boolean inEventLoop() {
+    return Thread.currentThread() instanceof LoopThread;
+  }
+
+  /**
+   * Tells if the calling thread is this loop's thread.
+   */
+  boolean inThisLoop() {
+    Thread t = Thread.currentThread();
+    return (t instanceof LoopThread) && (((LoopThread) t).loop() == this);
+  }
+
+  synchronized void add(SipListener listener) {
+    SipListener[] list = Arrays.copyOf(listeners, listeners.length + 1);
+    list[listeners.length] = listener;
+    listeners = list;
+  }
+
+  synchronized void remove(SipListener listener) {
+    for (int i = 0; i < listeners.length; i++) {
+      if (listeners[i] == listener) {
+        SipListener[] list = new SipListener[listeners.length - 1];
+        System.arraycopy(listeners, 0, list, 0, i);
+        System.arraycopy(listeners, i + 1, list, i, list.length - i);
+        listeners = list;
+        return;
+      }
+    }
+  }
+
+  boolean contains(SipListener listener) {
+    for (SipListener l : listeners) {
+      if (l == listener) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  int size() {
+    return listeners.length;
+  }
+
+  void processRequest(RequestEvent event) {
+    dispatch(l -> l.processRequest(event));
+  }
+
+  void processResponse(ResponseEvent event) {
+    dispatch(l -> l.processResponse(event));
+  }
+
+  void processTimeout(TimeoutEvent event) {
+    dispatch(l -> l.processTimeout(event));
+  }
+
+  /**
+   * Runs the given task on this loop, logging what it throws.
+   */
+  void execute(Runnable task) {
+    executor.execute(() -> {
+      try {
+        task.run();
+      } catch (RuntimeException | Error e) {
+        LOG.error("event loop task failed: " + e.getClass().getName() + ": " + e.getMessage(), e);
+      }
+    });
+  }
+
+  /**
+   * Returns this loop as a scheduler, for the delayed work of the handlers of its SipPhones. It
+   * must not be shut down by them.
+   */
+  ScheduledExecutorService getScheduler() {
+    return executor;
+  }
+
+  /**
+   * Returns the scheduler for the delayed work of the handlers of the given SipPhone: its event
+   * loop in event-loop mode, otherwise a pool of daemon threads shared by all the SipPhones of the
+   * process, whose idle threads go away after a while. It must not be shut down by them - they
+   * cancel what they have scheduled instead.
+   */
+  static ScheduledExecutorService getScheduler(SipPhone phone) {
+    EventLoop loop = phone.getEventLoop();
+    if (loop != null) {
+      return loop.getScheduler();
+    }
+
+    ScheduledExecutorService s = sharedScheduler;
+    if (s == null) {
+      synchronized (EventLoop.class) {
+        s = sharedScheduler;
+        if (s == null) {
+          ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(
+              Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "SipUnit scheduler");
+                t.setDaemon(true);
+                return t;
+              });
+          pool.setKeepAliveTime(10, TimeUnit.SECONDS);
+          pool.allowCoreThreadTimeOut(true);
+          pool.setRemoveOnCancelPolicy(true);
+          s = pool;
+          sharedScheduler = s;
+        }
+      }
+    }
+    return s;
+  }
+
+  /**
+   * Returns the number of events and tasks run by this loop so far.
+   */
+  long getCompletedTasks() {
+    return executor.getCompletedTaskCount();
+  }
+
+  void shutdown() {
+    executor.shutdownNow();
+    listeners = new SipListener[0];
+  }
+
+  private void dispatch(Consumer<SipListener> delivery) {
+    if (listeners.length == 0) {
+      return;
+    }
+
+    execute(() -> {
+      for (SipListener listener : listeners) {
+        try {
+          delivery.accept(listener);
+        } catch (RuntimeException e) {
+          LOG.error("error delivering a SIP event to " + listener + ": " + e.getClass().getName()
+              + ": " + e.getMessage(), e);
+        }
+      }
+    });
+  }
+
+  private class LoopThread extends Thread {
+    LoopThread(Runnable r, String name) {
+      super(r, name);
+    }
+
+    EventLoop loop() {
+      return EventLoop.this;
+    }
+  }
+}
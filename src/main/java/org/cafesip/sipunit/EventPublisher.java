@@ -0,0 +1,526 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.cafesip.sipunit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EventObject;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sip.ResponseEvent;
+import javax.sip.TimeoutEvent;
+import javax.sip.address.Address;
+import javax.sip.address.SipURI;
+import javax.sip.address.URI;
+import javax.sip.header.ExpiresHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.SIPETagHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * The EventPublisher class represents one publication of event state (RFC 3903) by a SipPhone to an
+ * event state compositor - the presence state of a presentity, for example. An object of this class
+ * is returned by SipPhone.publish() or SipPhone.createPublisher().
+ * 
+ * <p>
+ * The initial PUBLISH carries the full state. The entity-tag the compositor returns in the
+ * SIP-ETag header of its 2xx response is kept by this object and sent in a SIP-If-Match header by
+ * the PUBLISH requests that follow: publish() again to modify the state, refresh() to extend the
+ * publication with a PUBLISH that has no body, unpublish() to remove it. A 412 Conditional Request
+ * Failed response means the compositor doesn't know the entity-tag any more; it is forgotten and
+ * the next publish() starts a new publication.
+ * 
+ * <p>
+ * When a PublishPolicy is in effect for the SipPhone (see SipPhone.setPublishPolicy()), the
+ * publication is refreshed automatically and the refresh methods of this class needn't be called.
+ * They may still be: the automatic refreshes of the publication wait while a PUBLISH sent by this
+ * object is outstanding, and it waits for the automatic refresh in progress, if any, to complete.
+ * 
+ * <p>
+ * As is the case for other SipUnit objects, the methods of this class return a boolean or an object
+ * for which null means failure. Call getReturnCode(), getErrorMessage() and/or getException() or
+ * format() for failure info. Authentication challenges to a PUBLISH are not answered.
+ * 
+ */
+public class EventPublisher implements SipActionObject {
+
+  private static final Logger LOG = LoggerFactory.getLogger(EventPublisher.class);
+
+  private final SipPhone parent;
+
+  private final String uri;
+
+  private final Address address;
+
+  private final String eventType;
+
+  private final String contentType;
+
+  private final String contentSubType;
+
+  private final String callId;
+
+  private final String fromTag;
+
+  private final AtomicLong cseq = new AtomicLong();
+
+  // the publication state, guarded by this object's monitor, also used by PublishRefresher
+
+  String etag;
+
+  String body;
+
+  int expires = SipPhone.DEFAULT_PUBLISH_DURATION;
+
+  int grantedExpires;
+
+  long expiresAt; // System.nanoTime()
+
+  boolean ended;
+
+  int generation; // incremented by unpublish(), so that a refresh outstanding is ignored
+
+  ScheduledFuture<?> pending;
+
+  int refreshing; // refreshes sent by PublishRefresher and not yet completed
+
+  int held; // PUBLISH requests of the test program outstanding, during which nothing is refreshed
+
+  private volatile int returnCode = -1;
+
+  private volatile String errorMessage = "";
+
+  private volatile Throwable exception;
+
+  EventPublisher(SipPhone parent, String uri, String eventType, String contentType,
+      String contentSubType) throws Exception {
+    this.parent = parent;
+    this.uri = uri.trim();
+    this.address = parent.getAddressFactory().createAddress(this.uri);
+    this.eventType = eventType;
+    this.contentType = contentType;
+    this.contentSubType = contentSubType;
+    this.callId = parent.getNewCallIdHeader().getCallId();
+    this.fromTag = parent.generateNewTag();
+  }
+
+  /**
+   * Publishes the given event state, blocking until the final response is received or the timeout
+   * elapses. The first time, or after the publication has been lost or removed, this sends an
+   * initial PUBLISH; otherwise it modifies the publication, sending the entity-tag in a
+   * SIP-If-Match header.
+   * 
+   * @param body the event state, of the content type given when creating this object.
+   * @param expires the requested duration of the publication in seconds.
+   * @param timeout the maximum time to wait for the final response, in milliseconds.
+   * @return true if a 2xx response with a SIP-ETag header has been received, false otherwise. A
+   *         412 response makes getReturnCode() return SipResponse.CONDITIONAL_REQUEST_FAILED.
+   */
+  public boolean publish(String body, int expires, long timeout) {
+    initErrorInfo();
+
+    String ifMatch;
+    synchronized (this) {
+      if (ended) {
+        return invalidOperation("this publisher has been disposed of");
+      }
+      if (hold(timeout) == false) {
+        return false;
+      }
+      this.body = body;
+      this.expires = expires;
+      ifMatch = etag;
+    }
+
+    try {
+      return send(body, expires, ifMatch, timeout);
+    } finally {
+      release();
+    }
+  }
+
+  /**
+   * Refreshes the publication with a PUBLISH that has no body, blocking until the final response is
+   * received or the timeout elapses. The compositor returns a new entity-tag, which replaces the
+   * one held.
+   * 
+   * @param timeout the maximum time to wait for the final response, in milliseconds.
+   * @return true if a 2xx response has been received, false otherwise (see publish()).
+   */
+  public boolean refresh(long timeout) {
+    initErrorInfo();
+
+    String ifMatch;
+    int duration;
+    synchronized (this) {
+      if (ended || (etag == null)) {
+        return invalidOperation("there is no publication to refresh");
+      }
+      if (hold(timeout) == false) {
+        return false;
+      }
+      if (etag == null) {
+        held--; // lost by the automatic refresh waited for
+        return invalidOperation("there is no publication to refresh");
+      }
+      ifMatch = etag;
+      duration = expires;
+    }
+
+    try {
+      return send(null, duration, ifMatch, timeout);
+    } finally {
+      release();
+    }
+  }
+
+  /**
+   * Removes the publication, with a PUBLISH that has Expires: 0 and no body, blocking until the
+   * final response is received or the timeout elapses. The entity-tag is forgotten whatever the
+   * response. This method returns true at once if there is no publication to remove.
+   * 
+   * @param timeout the maximum time to wait for the final response, in milliseconds.
+   * @return true if a 2xx response has been received, false otherwise.
+   */
+  public boolean unpublish(long timeout) {
+    initErrorInfo();
+
+    String ifMatch;
+    synchronized (this) {
+      if (hold(timeout) == false) {
+        return false;
+      }
+      ifMatch = etag;
+      etag = null;
+      generation++;
+    }
+
+    PublishRefresher refresher = parent.getPublishRefresher();
+    if (refresher != null) {
+      refresher.cancel(this);
+    }
+
+    try {
+      if (ifMatch == null) {
+        return true;
+      }
+
+      return send(null, 0, ifMatch, timeout);
+    } finally {
+      release();
+    }
+  }
+
+  /**
+   * Cancels the automatic refreshes of this publication and removes this object from the
+   * SipPhone's list of publishers. No PUBLISH is sent, call unpublish() first to remove the
+   * publication from the compositor.
+   */
+  public void dispose() {
+    synchronized (this) {
+      ended = true;
+    }
+
+    PublishRefresher refresher = parent.getPublishRefresher();
+    if (refresher != null) {
+      refresher.cancel(this);
+    }
+
+    parent.removePublisher(this);
+  }
+
+  /**
+   * Returns the entity-tag of the publication, or null if there is no publication in effect.
+   */
+  public synchronized String getETag() {
+    return etag;
+  }
+
+  /**
+   * Returns the duration of the publication granted by the compositor in its last 2xx response, in
+   * seconds.
+   */
+  public synchronized int getExpires() {
+    return grantedExpires;
+  }
+
+  /**
+   * Returns the event state last given to publish().
+   */
+  public synchronized String getBody() {
+    return body;
+  }
+
+  /**
+   * Returns the URI of the presentity (or other resource) whose state is published.
+   */
+  public String getUri() {
+    return uri;
+  }
+
+  public String getEventType() {
+    return eventType;
+  }
+
+  /**
+   * FOR INTERNAL USE ONLY. Creates a PUBLISH request for this publication. The body is included if
+   * not null, the entity-tag if ifMatch is not null.
+   */
+  Request createPublish(String body, int expires, String ifMatch) throws Exception {
+    HeaderFactory hdrFactory = parent.getHeaderFactory();
+    URI requestUri = parent.getAddressFactory().createURI(uri);
+
+    Request req = parent.getMessageFactory().createRequest(requestUri, Request.PUBLISH,
+        hdrFactory.createCallIdHeader(callId),
+        hdrFactory.createCSeqHeader(cseq.incrementAndGet(), Request.PUBLISH),
+        hdrFactory.createFromHeader(address, fromTag), hdrFactory.createToHeader(address, null),
+        parent.getViaHeaders(), hdrFactory.createMaxForwardsHeader(SipPhone.MAX_FORWARDS_DEFAULT));
+
+    if (parent.getProxyHost() == null) {
+      // local: add a route header to loop the message back to our stack
+      SipURI routeUri = parent.getAddressFactory().createSipURI(null, parent.getStackAddress());
+      routeUri.setLrParam();
+      routeUri.setPort(parent.getParent().getSipProvider().getListeningPoints()[0].getPort());
+      routeUri.setTransportParam(parent.getParent().getSipProvider().getListeningPoints()[0]
+          .getTransport());
+      if (requestUri.isSipURI()) {
+        routeUri.setSecure(((SipURI) requestUri).isSecure());
+      }
+
+      Address routeAddress = parent.getAddressFactory().createAddress(routeUri);
+      req.addHeader(hdrFactory.createRouteHeader(routeAddress));
+    }
+
+    req.setHeader(hdrFactory.createEventHeader(eventType));
+    req.setExpires(hdrFactory.createExpiresHeader(expires));
+
+    if (ifMatch != null) {
+      req.setHeader(hdrFactory.createSIPIfMatchHeader(ifMatch));
+    }
+
+    if (body != null) {
+      req.setContent(body, hdrFactory.createContentTypeHeader(contentType, contentSubType));
+    }
+
+    parent.addAuthorizations(callId, req);
+    return req;
+  }
+
+  /**
+   * FOR INTERNAL USE ONLY. Updates the publication state from the final response to a PUBLISH that
+   * requested the given duration.
+   * 
+   * @return the status code of the response, or SipSession.FAR_END_ERROR for a 2xx response to a
+   *         PUBLISH other than a removal that has no SIP-ETag header.
+   */
+  synchronized int published(Response response, int expires) {
+    int status = response.getStatusCode();
+
+    if (status / 100 == 2) {
+      if (expires == 0) {
+        etag = null;
+        grantedExpires = 0;
+        return status;
+      }
+
+      SIPETagHeader etagHdr = (SIPETagHeader) response.getHeader(SIPETagHeader.NAME);
+      if (etagHdr == null) {
+        etag = null;
+        return SipSession.FAR_END_ERROR;
+      }
+
+      ExpiresHeader expiresHdr = response.getExpires();
+      etag = etagHdr.getETag();
+      grantedExpires = expiresHdr == null ? expires : expiresHdr.getExpires();
+      expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(grantedExpires);
+    } else if (status == SipResponse.CONDITIONAL_REQUEST_FAILED) {
+      etag = null;
+    }
+
+    return status;
+  }
+
+  private boolean send(String body, int expires, String ifMatch, long timeout) {
+    Request req;
+    try {
+      req = createPublish(body, expires, ifMatch);
+    } catch (Exception ex) {
+      exception = ex;
+      errorMessage = "Exception: " + ex.getClass().getName() + ": " + ex.getMessage();
+      returnCode = SipSession.EXCEPTION_ENCOUNTERED;
+      return false;
+    }
+
+    LOG.trace("Sending PUBLISH for {}: {}", uri, req);
+
+    SipTransaction trans =
+        parent.sendRequestWithTransaction(req, parent.getProxyHost() != null, null);
+    if (trans == null) {
+      copyErrorInfo();
+      return false;
+    }
+
+    while (true) {
+      EventObject event = parent.waitResponse(trans, timeout);
+      if (event == null) {
+        copyErrorInfo();
+        parent.clearTransaction(trans);
+        return false;
+      }
+
+      if (event instanceof TimeoutEvent) {
+        returnCode = SipSession.TIMEOUT_OCCURRED;
+        errorMessage = "The PUBLISH transaction timed out.";
+        return false;
+      }
+
+      if ((event instanceof ResponseEvent) == false) {
+        continue;
+      }
+
+      Response response = ((ResponseEvent) event).getResponse();
+      if (response.getStatusCode() < 200) {
+        continue;
+      }
+
+      returnCode = published(response, expires);
+      if (returnCode == SipSession.FAR_END_ERROR) {
+        errorMessage = "Received a " + response.getStatusCode()
+            + " response to PUBLISH without a SIP-ETag header";
+        return false;
+      }
+
+      if (returnCode / 100 != 2) {
+        errorMessage = "Received response status: " + returnCode + ", reason: "
+            + response.getReasonPhrase();
+        return false;
+      }
+
+      return true;
+    }
+  }
+
+  /*
+   * Holds off the automatic refreshes of this publication for a PUBLISH of the test program: the
+   * one scheduled is cancelled and the ones in progress are waited for, so that the entity-tag they
+   * get back is the one sent. Called with this object's monitor held; release() must follow if
+   * true is returned.
+   */
+  private boolean hold(long timeout) {
+    held++;
+    PublishRefresher.cancelPending(this);
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    try {
+      while (refreshing > 0) {
+        long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (timeout == 0) {
+          wait();
+        } else if (left > 0) {
+          wait(left);
+        } else {
+          held--;
+          returnCode = SipSession.TIMEOUT_OCCURRED;
+          errorMessage = "An automatic refresh of the publication is still outstanding.";
+          return false;
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      held--;
+      exception = ex;
+      errorMessage = "Interrupted while waiting for an automatic refresh of the publication.";
+      returnCode = SipSession.EXCEPTION_ENCOUNTERED;
+      return false;
+    }
+
+    return true;
+  }
+
+  /*
+   * Ends the hold() of a PUBLISH of the test program and schedules the next automatic refresh
+   */
+  private void release() {
+    synchronized (this) {
+      held--;
+      if ((held > 0) || ended || (etag == null)) {
+        return;
+      }
+    }
+
+    PublishRefresher refresher = parent.getPublishRefresher();
+    if (refresher != null) {
+      refresher.schedule(this);
+    }
+  }
+
+  private boolean invalidOperation(String message) {
+    returnCode = SipSession.INVALID_OPERATION;
+    errorMessage = message;
+    return false;
+  }
+
+  private void initErrorInfo() {
+    returnCode = -1;
+    errorMessage = "";
+    exception = null;
+  }
+
+  private void copyErrorInfo() {
+    returnCode = parent.getReturnCode();
+    errorMessage = parent.getErrorMessage();
+    exception = parent.getException();
+  }
+
+  /*
+   * @see org.cafesip.sipunit.SipActionObject#getErrorMessage()
+   */
+  public String getErrorMessage() {
+    return errorMessage;
+  }
+
+  /*
+   * @see org.cafesip.sipunit.SipActionObject#getException()
+   */
+  public Throwable getException() {
+    return exception;
+  }
+
+  /*
+   * @see org.cafesip.sipunit.SipActionObject#getReturnCode()
+   */
+  public int getReturnCode() {
+    return returnCode;
+  }
+
+  /*
+   * @see org.cafesip.sipunit.SipActionObject#format()
+   */
+  public String format() {
+    if (SipSession.isInternal(returnCode) == true) {
+      return SipSession.statusCodeDescription.get(new Integer(returnCode))
+          + (errorMessage.length() > 0 ? (": " + errorMessage) : "");
+    } else {
+      return "Status code received from network = " + returnCode + ", "
+          + SipResponse.statusCodeDescription.get(new Integer(returnCode))
+          + (errorMessage.length() > 0 ? (": " + errorMessage) : "");
+    }
+  }
+}
@@ -77,6 +77,11 @@ public class EventSubscriber implements MessageListener, SipActionObject {
 
   private static final Logger LOG = LoggerFactory.getLogger(EventSubscriber.class);
 
+  /**
+   * The default number of NOTIFY messages held for a slow consumer of notifications().
+   */
+  public static final int DEFAULT_NOTIFICATION_BUFFER = 256;
+
   protected String targetUri; // The subscription target (ie,
 
   // sip:bob@nist.gov)
@@ -114,20 +119,21 @@ public class EventSubscriber implements MessageListener, SipActionObject {
   private CallIdHeader callId;
 
   /*
-   * list of SipResponse
+   * received messages, as kept by the message retention
    */
-  protected LinkedList<SipResponse> receivedResponses = new LinkedList<>();
+  private MessageHistory<SipResponse> receivedResponses;
 
-  /*
-   * list of SipRequest
-   */
-  protected LinkedList<SipRequest> receivedRequests = new LinkedList<>();
+  private MessageHistory<SipRequest> receivedRequests;
 
   /*
    * for wait operations
    */
   private LinkedList<RequestEvent> reqEvents = new LinkedList<>();
 
+  // set while NOTIFYs are given to a NotifyFlow.Subscriber instead of waitNotify(), see
+  // notifications() - changed with this object's lock held
+  private volatile NotifyStream stream;
+
   private BlockObject responseBlock = new BlockObject();
 
   /*
@@ -158,6 +164,10 @@ public class EventSubscriber implements MessageListener, SipActionObject {
     targetAddress = parent.getAddressFactory().createAddress(this.targetUri);
     this.parent = parent;
 
+    MessageRetention retention = parent.getParent().getDefaultMessageRetention();
+    receivedResponses = new MessageHistory<>(retention);
+    receivedRequests = new MessageHistory<>(retention);
+
     this.dialog = dialog;
     if (dialog == null) {
       callId = parent.getNewCallIdHeader();
@@ -172,19 +182,63 @@ public class EventSubscriber implements MessageListener, SipActionObject {
     }
   }
 
+  /*
+   * For the state of a resource of a list subscription (see ResourceListSubscriber): the object
+   * shares the list's Call-ID and local tag and sends no requests of its own.
+   */
+  EventSubscriber(String uri, EventSubscriber list) throws ParseException {
+    this.targetUri = uri.trim();
+    targetAddress = list.parent.getAddressFactory().createAddress(this.targetUri);
+    this.parent = list.parent;
+
+    MessageRetention retention = parent.getParent().getDefaultMessageRetention();
+    receivedResponses = new MessageHistory<>(retention);
+    receivedRequests = new MessageHistory<>(retention);
+
+    callId = list.callId;
+    myTag = list.myTag;
+  }
+
   protected boolean startSubscription(Request req, long timeout, boolean viaProxy) {
     return startSubscription(req, timeout, viaProxy, null, null, null);
   }
 
   protected boolean startSubscription(Request req, long timeout, boolean viaProxy,
       ArrayList<Header> additionalHeaders, ArrayList<Header> replaceHeaders, String body) {
+    return sendSubscription(req, viaProxy, additionalHeaders, replaceHeaders, body)
+        && awaitSubscriptionStart(timeout);
+  }
+
+  /**
+   * Sends the initial SUBSCRIBE request of this subscription without waiting for its response -
+   * the first half of startSubscription(), so that many subscriptions can be started at once
+   * instead of one after the other. awaitSubscriptionStart() completes it.
+   */
+  protected boolean sendSubscription(Request req, boolean viaProxy) {
+    return sendSubscription(req, viaProxy, null, null, null);
+  }
+
+  protected boolean sendSubscription(Request req, boolean viaProxy,
+      ArrayList<Header> additionalHeaders, ArrayList<Header> replaceHeaders, String body) {
     initErrorInfo();
     LOG.trace("Starting subscription for URI {}", targetUri);
 
     if (sendRequest(req, viaProxy, additionalHeaders, replaceHeaders, body) == true) {
-      if (waitNextPositiveResponse(timeout) == true) {
-        return true;
-      }
+      return true;
+    }
+
+    LOG.trace("Subscription startup failed : {}", getErrorMessage());
+
+    return false;
+  }
+
+  /**
+   * Waits for the response to the SUBSCRIBE request sent by sendSubscription() - the second half of
+   * startSubscription().
+   */
+  protected boolean awaitSubscriptionStart(long timeout) {
+    if (waitNextPositiveResponse(timeout) == true) {
+      return true;
     }
 
     /*
@@ -613,10 +667,24 @@ public class EventSubscriber implements MessageListener, SipActionObject {
 
     notifyCSeq = rcvSeqHdr;
 
+    NotifyStream s;
     synchronized (this) {
-      receivedRequests.addLast(new SipRequest(requestEvent));
-      reqEvents.addLast(requestEvent);
-      this.notify();
+      receivedRequests.add(new SipRequest(requestEvent));
+
+      s = stream;
+      if (s == null) {
+        reqEvents.addLast(requestEvent);
+        this.notify();
+        return;
+      }
+    }
+
+    if (s.offer(requestEvent) == false) {
+      // cancelled in the meantime
+      synchronized (this) {
+        reqEvents.addLast(requestEvent);
+        this.notify();
+      }
     }
   }
 
@@ -634,7 +702,7 @@ public class EventSubscriber implements MessageListener, SipActionObject {
         return;
       }
 
-      receivedResponses.addLast(new SipResponse(responseEvent));
+      receivedResponses.add(new SipResponse(responseEvent));
       transaction.getEvents().addLast(responseEvent);
       responseBlock.notifyEvent();
     }
@@ -1199,13 +1267,7 @@ public class EventSubscriber implements MessageListener, SipActionObject {
    * @see org.cafesip.sipunit.MessageListener#getLastReceivedResponse()
    */
   public SipResponse getLastReceivedResponse() {
-    synchronized (responseBlock) {
-      if (receivedResponses.isEmpty()) {
-        return null;
-      }
-
-      return (SipResponse) receivedResponses.getLast();
-    }
+    return receivedResponses.getLast();
   }
 
   /**
@@ -1217,41 +1279,151 @@ public class EventSubscriber implements MessageListener, SipActionObject {
    * @see org.cafesip.sipunit.MessageListener#getLastReceivedRequest()
    */
   public SipRequest getLastReceivedRequest() {
-    synchronized (this) {
-      if (receivedRequests.isEmpty()) {
-        return null;
-      }
-
-      return (SipRequest) receivedRequests.getLast();
-    }
+    return receivedRequests.getLast();
   }
 
   /**
    * Gets the responses received on this subscription, including any that required re-initiation of
    * the subscription (ie, authentication challenge). Not included are out-of-sequence (late)
-   * responses.
+   * responses. Only the responses kept by the message retention are returned - see
+   * setMessageRetention().
    * 
    * @return ArrayList of zero or more SipResponse objects.
    * 
    * @see org.cafesip.sipunit.MessageListener#getAllReceivedResponses()
    */
   public ArrayList<SipResponse> getAllReceivedResponses() {
-    synchronized (responseBlock) {
-      return new ArrayList<>(receivedResponses);
-    }
+    return receivedResponses.getAll();
   }
 
   /**
    * Gets the NOTIFY requests received on this subscription. (Retransmissions aren't included.)
+   * Only the requests kept by the message retention are returned - see setMessageRetention().
    * 
    * @return ArrayList of zero or more SipRequest objects.
    * 
    * @see org.cafesip.sipunit.MessageListener#getAllReceivedRequests()
    */
   public ArrayList<SipRequest> getAllReceivedRequests() {
-    synchronized (this) {
-      return new ArrayList<>(receivedRequests);
-    }
+    return receivedRequests.getAll();
+  }
+
+  /**
+   * For subclasses, which used the former protected receivedResponses list: gets a copy of the
+   * responses kept by the message retention, oldest first.
+   */
+  protected LinkedList<SipResponse> getReceivedResponses() {
+    return new LinkedList<>(receivedResponses.getAll());
+  }
+
+  /**
+   * For subclasses, which used the former protected receivedRequests list: gets a copy of the
+   * requests kept by the message retention, oldest first.
+   */
+  protected LinkedList<SipRequest> getReceivedRequests() {
+    return new LinkedList<>(receivedRequests.getAll());
+  }
+
+  /**
+   * For subclasses, which used the former protected receivedResponses list: records a received
+   * response, subject to the message retention.
+   */
+  protected void addReceivedResponse(SipResponse response) {
+    receivedResponses.add(response);
+  }
+
+  /**
+   * For subclasses, which used the former protected receivedRequests list: records a received
+   * request, subject to the message retention.
+   */
+  protected void addReceivedRequest(SipRequest request) {
+    receivedRequests.add(request);
+  }
+
+  /**
+   * Finds the most recent response received on this subscription with the given status code,
+   * from an index of the kept responses (no copy or scan).
+   * 
+   * @see org.cafesip.sipunit.MessageListener#findMostRecentResponse(int)
+   */
+  public SipResponse findMostRecentResponse(int statusCode) {
+    return receivedResponses.findLast(statusCode);
+  }
+
+  /**
+   * Finds the most recent response received on this subscription with the given status code, CSeq
+   * method and CSeq sequence number.
+   * 
+   * @see org.cafesip.sipunit.MessageListener#findMostRecentResponse(int, String, long)
+   */
+  public SipResponse findMostRecentResponse(int statusCode, String method, long sequenceNumber) {
+    return receivedResponses.findLast(statusCode, method, sequenceNumber);
+  }
+
+  /**
+   * Finds the most recent request received on this subscription with the given method.
+   * 
+   * @see org.cafesip.sipunit.MessageListener#findMostRecentRequest(String)
+   */
+  public SipRequest findMostRecentRequest(String method) {
+    return receivedRequests.findLast(method);
+  }
+
+  /**
+   * Finds the most recent request received on this subscription with the given CSeq method and
+   * CSeq sequence number.
+   * 
+   * @see org.cafesip.sipunit.MessageListener#findMostRecentRequest(String, long)
+   */
+  public SipRequest findMostRecentRequest(String method, long sequenceNumber) {
+    return receivedRequests.findLast(method, sequenceNumber);
+  }
+
+  /**
+   * Sets how much of the messages received on this subscription is kept - see MessageRetention.
+   * This applies to the messages already received as well as the ones to come. The initial
+   * retention is the SipStack's default message retention, which is to keep everything unless
+   * changed by SipStack.setDefaultMessageRetention(). A subscription receiving NOTIFYs at a high
+   * rate or for a long time can use a bounded retention to keep its memory use flat.
+   * 
+   * <p>
+   * Whatever the retention, the last request and the last response received are kept.
+   * 
+   * @param retention the retention to use, or null for MessageRetention.full().
+   */
+  public void setMessageRetention(MessageRetention retention) {
+    receivedResponses.setRetention(retention);
+    receivedRequests.setRetention(retention);
+  }
+
+  /**
+   * Returns the message retention currently in effect for this subscription - see
+   * setMessageRetention().
+   */
+  public MessageRetention getMessageRetention() {
+    return receivedRequests.getRetention();
+  }
+
+  /**
+   * Returns the summary records of the NOTIFY requests received on this subscription, oldest
+   * first. Records are kept only with the SUMMARY message retention - see setMessageRetention();
+   * otherwise the returned list is empty.
+   * 
+   * @return List of zero or more MessageSummary objects.
+   */
+  public List<MessageSummary> getReceivedRequestSummaries() {
+    return receivedRequests.getSummaries();
+  }
+
+  /**
+   * Returns the summary records of the responses received on this subscription, oldest first.
+   * Records are kept only with the SUMMARY message retention - see setMessageRetention();
+   * otherwise the returned list is empty.
+   * 
+   * @return List of zero or more MessageSummary objects.
+   */
+  public List<MessageSummary> getReceivedResponseSummaries() {
+    return receivedResponses.getSummaries();
   }
 
   /**
@@ -1291,6 +1463,15 @@ public class EventSubscriber implements MessageListener, SipActionObject {
     return terminationReason;
   }
 
+  /*
+   * Sets the subscription state of a resource of a list subscription, as given by the list's RLMI
+   * document.
+   */
+  void setResourceState(String state, String reason) {
+    subscriptionState = state;
+    terminationReason = reason;
+  }
+
   /*
    * @see org.cafesip.sipunit.SipActionObject#getErrorMessage()
    */
@@ -1473,6 +1654,120 @@ public class EventSubscriber implements MessageListener, SipActionObject {
     return dialog == null ? "" : dialog.getDialogId();
   }
 
+  /**
+   * Gets the Call-ID used for this subscription. It is fixed when this object is created.
+   */
+  protected String getCallIdValue() {
+    return callId.getCallId();
+  }
+
+  /**
+   * Gets the local (From header) tag used for this subscription. It is fixed when this object is
+   * created and is what the far end puts in the To header tag of NOTIFY requests.
+   */
+  protected String getLocalTag() {
+    return myTag;
+  }
+
+  /**
+   * Same as notifications(DEFAULT_NOTIFICATION_BUFFER).
+   */
+  public NotifyFlow.Publisher<NotifyEvent> notifications() {
+    return notifications(DEFAULT_NOTIFICATION_BUFFER);
+  }
+
+  /**
+   * Returns a Publisher of the NOTIFY messages received for this subscription, for a test program
+   * or analysis code to consume them asynchronously at the rate they come in instead of calling
+   * waitNotify(), processNotify() and replyToNotify() for each one. Each NOTIFY asked for by the
+   * Subscriber (with Subscription.request()) is processed as processNotify() does, replied to with
+   * the response it returns - normally 200 OK - and given to onNext() as a NotifyEvent. The NOTIFY
+   * ending the subscription is followed by onComplete().
+   * 
+   * <p>
+   * Until asked for, received NOTIFYs are held unanswered, up to the given number; beyond that they
+   * are rejected with a 503 response, which doesn't end the subscription. NOTIFYs already waiting
+   * for waitNotify() are delivered first. onNext() is called on the SIP stack thread or on the
+   * thread calling request(), never concurrently, so it should hand off any lengthy work. As the
+   * NOTIFYs are processed on this object, getReturnCode() and getErrorMessage() are not meaningful
+   * to another thread in the meantime - the NotifyEvent tells how each one went.
+   * 
+   * <p>
+   * There can be one Subscriber at a time; another one gets onError() with an
+   * IllegalStateException. Once the Subscription is cancelled, the NOTIFYs not delivered yet and
+   * those received afterwards go back to waitNotify().
+   * 
+   * @param bufferSize the number of NOTIFYs to hold for the Subscriber, at least 1.
+   * @return a Publisher for one Subscriber at a time.
+   */
+  public NotifyFlow.Publisher<NotifyEvent> notifications(final int bufferSize) {
+    if (bufferSize < 1) {
+      throw new IllegalArgumentException("buffer size must be at least 1");
+    }
+
+    return subscriber -> {
+      NotifyStream s = new NotifyStream(this, subscriber, bufferSize);
+      synchronized (this) {
+        if (stream != null) {
+          s = null;
+        } else {
+          stream = s;
+          for (RequestEvent event : reqEvents) {
+            s.offerBeforeStart(event);
+          }
+          reqEvents.clear();
+        }
+      }
+
+      if (s == null) {
+        subscriber.onError(new IllegalStateException(
+            "the notifications of " + targetUri + " already have a subscriber"));
+        return;
+      }
+
+      subscriber.onSubscribe(s);
+      s.drain();
+    };
+  }
+
+  /*
+   * Called by the stream once it takes no more NOTIFYs: what it holds goes back to waitNotify().
+   */
+  void streamCancelled(NotifyStream s) {
+    synchronized (this) {
+      if (stream == s) {
+        stream = null;
+      }
+
+      reqEvents.addAll(0, s.takeBuffered());
+      if (reqEvents.isEmpty() == false) {
+        this.notifyAll();
+      }
+    }
+  }
+
+  /*
+   * Processes and replies to a NOTIFY for the stream, as a test program would.
+   */
+  NotifyEvent processStreamedNotify(RequestEvent requestEvent) {
+    Response response = processNotify(requestEvent);
+    String error = getErrorMessage();
+
+    if (response != null) {
+      replyToNotify(requestEvent, response);
+    }
+
+    return new NotifyEvent(this, requestEvent.getRequest(), response, error, getNotifyContent());
+  }
+
+  /**
+   * Returns a copy of the event information of this subscription for a NotifyEvent, or null if it
+   * has none. This implementation returns null.
+   */
+  protected Object getNotifyContent() {
+    return null;
+  }
+
   /**
    * The waitNotify() method allows received NOTIFY messages to be examined and processed by the
    * test program, one by one. Call this method whenever you are expecting a NOTIFY to be received
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class is a histogram of latency values, for percentile reporting in load tests. Values are
+ * recorded in nanoseconds and counted in buckets of microsecond resolution: exact below 64
+ * microseconds, within about 3% above, up to about 12 days. Recording is lock-free and may be done
+ * from any number of threads; the figures read while values are being recorded are approximate.
+ * 
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS; // values counted exactly
+
+  private static final int MAX_EXPONENT = 40;
+
+  // the linear buckets, SUB_BUCKETS for each power of 2 above, and one for the values too large
+  private static final int BUCKETS =
+      LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  private final AtomicLong count = new AtomicLong();
+
+  private final AtomicLong sum = new AtomicLong();
+
+  private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records a value.
+   * 
+   * @param nanos the value in nanoseconds. Negative values are ignored.
+   */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      return;
+    }
+
+    counts.incrementAndGet(bucketOf(TimeUnit.NANOSECONDS.toMicros(nanos)));
+    count.incrementAndGet();
+    sum.addAndGet(nanos);
+
+    long m;
+    while (nanos < (m = min.get()) && (min.compareAndSet(m, nanos) == false)) {
+      // retry
+    }
+    while (nanos > (m = max.get()) && (max.compareAndSet(m, nanos) == false)) {
+      // retry
+    }
+  }
+
+  /**
+   * Returns the number of values recorded.
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Returns the smallest value recorded in the given unit, or -1 if none.
+   */
+  public long getMin(TimeUnit unit) {
+    return count.get() == 0 ? -1 : unit.convert(min.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns the largest value recorded in the given unit, or -1 if none.
+   */
+  public long getMax(TimeUnit unit) {
+    return count.get() == 0 ? -1 : unit.convert(max.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns the mean of the values recorded in the given unit, or -1 if none.
+   */
+  public long getMean(TimeUnit unit) {
+    long n = count.get();
+    return n == 0 ? -1 : unit.convert(sum.get() / n, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns the value below which the given percentage of the recorded values fall, in the given
+   * unit, or -1 if no value has been recorded. The value returned is the upper bound of the bucket
+   * the percentile falls in.
+   * 
+   * @param percentile a percentage between 0.0 and 100.0 - ie, 99.0 for the 99th percentile.
+   */
+  public long getPercentile(double percentile, TimeUnit unit) {
+    if ((percentile < 0.0) || (percentile > 100.0)) {
+      throw new IllegalArgumentException("percentile must be between 0.0 and 100.0");
+    }
+
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+
+    if (total == 0) {
+      return -1;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        long micros = Math.min(upperBoundOf(i), TimeUnit.NANOSECONDS.toMicros(max.get()));
+        return unit.convert(micros, TimeUnit.MICROSECONDS);
+      }
+    }
+
+    return getMax(unit);
+  }
+
+  /**
+   * Adds the values recorded by the given histogram to this one.
+   */
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      long n = other.counts.get(i);
+      if (n > 0) {
+        counts.addAndGet(i, n);
+      }
+    }
+    count.addAndGet(other.count.get());
+    sum.addAndGet(other.sum.get());
+    if (other.count.get() > 0) {
+      long m;
+      long v = other.min.get();
+      while (v < (m = min.get()) && (min.compareAndSet(m, v) == false)) {
+        // retry
+      }
+      v = other.max.get();
+      while (v > (m = max.get()) && (max.compareAndSet(m, v) == false)) {
+        // retry
+      }
+    }
+  }
+
+  /**
+   * Forgets all the values recorded.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    sum.set(0);
+    min.set(Long.MAX_VALUE);
+    max.set(0);
+  }
+
+  /**
+   * Returns a summary of the histogram in milliseconds: count, min, mean, 50th, 90th, 99th
+   * percentiles and max.
+   */
+  public String toString() {
+    if (getCount() == 0) {
+      return "count=0";
+    }
+
+    return "count=" + getCount() + ", min=" + format(getMin(TimeUnit.MICROSECONDS)) + ", mean="
+        + format(getMean(TimeUnit.MICROSECONDS)) + ", p50="
+        + format(getPercentile(50.0, TimeUnit.MICROSECONDS)) + ", p90="
+        + format(getPercentile(90.0, TimeUnit.MICROSECONDS)) + ", p99="
+        + format(getPercentile(99.0, TimeUnit.MICROSECONDS)) + ", max="
+        + format(getMax(TimeUnit.MICROSECONDS)) + " ms";
+  }
+
+  private static String format(long micros) {
+    return String.format("%.3f", micros / 1000.0);
+  }
+
+  static int bucketOf(long micros) {
+    if (micros < LINEAR_LIMIT) {
+      return (int) micros;
+    }
+
+    int exponent = 63 - Long.numberOfLeadingZeros(micros); // >= SUB_BUCKET_BITS + 1
+    if (exponent >= MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+
+    int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long upperBoundOf(int bucket) {
+    if (bucket < LINEAR_LIMIT) {
+      return bucket;
+    }
+
+    int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+    long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return (1L << exponent) + (subBucket + 1) * width - 1;
+  }
+}
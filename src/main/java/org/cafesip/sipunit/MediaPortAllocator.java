@@ -0,0 +1,138 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import java.util.BitSet;
+
+/**
+ * This class hands out media (RTP) ports from a range, for the SDP of concurrent calls - see
+ * SdpSession. Ports are even, the odd port above each one being left for RTCP, and are given out
+ * in turn through the range so that a port just released isn't reused right away. A port is free
+ * again once released.
+ * 
+ * <p>
+ * An allocator may be shared by any number of threads and SipPhones.
+ * 
+ */
+public class MediaPortAllocator {
+
+  private final int minPort;
+
+  private final int slots;
+
+  private final BitSet used; // guarded by this
+
+  private int next; // guarded by this
+
+  private int inUse; // guarded by this
+
+  /**
+   * A constructor for this class.
+   * 
+   * @param minPort the lowest port of the range, rounded up to an even number.
+   * @param maxPort the highest port of the range (an RTCP port).
+   */
+  public MediaPortAllocator(int minPort, int maxPort) {
+    if ((minPort < 1) || (maxPort > 65535)) {
+      throw new IllegalArgumentException("ports must be between 1 and 65535");
+    }
+
+    this.minPort = minPort + (minPort & 1);
+    slots = (maxPort - this.minPort + 1) / 2;
+    if (slots < 1) {
+      throw new IllegalArgumentException("invalid port range: " + minPort + " - " + maxPort);
+    }
+
+    used = new BitSet(slots);
+  }
+
+  /**
+   * Allocates a port.
+   * 
+   * @return an even port, or -1 if all the ports of the range are in use.
+   */
+  public synchronized int allocate() {
+    if (inUse == slots) {
+      return -1;
+    }
+
+    int slot = used.nextClearBit(next);
+    if (slot >= slots) {
+      slot = used.nextClearBit(0);
+    }
+
+    used.set(slot);
+    inUse++;
+    next = (slot + 1 == slots ? 0 : slot + 1);
+    return minPort + 2 * slot;
+  }
+
+  /**
+   * Allocates the given number of ports at once.
+   * 
+   * @return the ports, or null if there aren't enough free ports (none is allocated then).
+   */
+  public synchronized int[] allocate(int count) {
+    if (slots - inUse < count) {
+      return null;
+    }
+
+    int[] ports = new int[count];
+    for (int i = 0; i < count; i++) {
+      ports[i] = allocate();
+    }
+    return ports;
+  }
+
+  /**
+   * Releases a port given by allocate(). Ports out of the range, such as 0, are ignored.
+   */
+  public synchronized void release(int port) {
+    int slot = (port - minPort) / 2;
+    if ((port < minPort) || (slot >= slots) || ((port & 1) != 0) || (used.get(slot) == false)) {
+      return;
+    }
+
+    used.clear(slot);
+    inUse--;
+  }
+
+  /**
+   * Releases the ports given by allocate(count).
+   */
+  public synchronized void release(int[] ports) {
+    for (int port : ports) {
+      release(port);
+    }
+  }
+
+  /**
+   * Returns the number of ports in use.
+   */
+  public synchronized int getInUse() {
+    return inUse;
+  }
+
+  /**
+   * Returns the number of ports free.
+   */
+  public synchronized int getFree() {
+    return slots - inUse;
+  }
+
+  public synchronized String toString() {
+    return "ports " + minPort + "-" + (minPort + 2 * slots - 1) + ", in use=" + inUse;
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cafesip.sipunit;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * FOR INTERNAL USE ONLY. A test class doesn't use this class.
+ *
+ * <p>
+ * This class holds the received messages of one kind (requests or responses) of a SipCall or
+ * EventSubscriber, trimmed according to a MessageRetention. The last message added is always
+ * available from getLast(). The messages are indexed by status code, method and CSeq as they are
+ * added, so that the findLast() methods look up a message without copying or scanning the whole
+ * history. The methods are synchronized on this object.
+ *
+ */
+class MessageHistory<T extends SipMessage> {
+
+  private MessageRetention retention;
+
+  private final ArrayDeque<Entry<T>> messages = new ArrayDeque<>();
+
+  // the messages of each status code (responses only), method (requests only) and CSeq, oldest
+  // first - the oldest message of the history is also the oldest of each of its index buckets
+  private final HashMap<Integer, ArrayDeque<Entry<T>>> byStatusCode = new HashMap<>();
+
+  private final HashMap<String, ArrayDeque<Entry<T>>> byMethod = new HashMap<>();
+
+  private final HashMap<String, ArrayDeque<Entry<T>>> byCSeq = new HashMap<>();
+
+  private ArrayDeque<MessageSummary> summaries;
+
+  MessageHistory(MessageRetention retention) {
+    setRetention(retention);
+  }
+
+  synchronized void setRetention(MessageRetention retention) {
+    this.retention = (retention == null ? MessageRetention.full() : retention);
+
+    if (this.retention.getMode() == MessageRetention.SUMMARY) {
+      if (summaries == null) {
+        summaries = new ArrayDeque<>();
+      }
+    } else {
+      summaries = null;
+    }
+
+    trim();
+  }
+
+  synchronized MessageRetention getRetention() {
+    return retention;
+  }
+
+  synchronized void add(T message) {
+    Entry<T> entry = new Entry<>(message, new MessageSummary(message));
+    messages.addLast(entry);
+
+    if (entry.summary.isRequest()) {
+      index(byMethod, entry.summary.getMethod(), entry);
+    } else {
+      index(byStatusCode, entry.summary.getStatusCode(), entry);
+    }
+    index(byCSeq, cseqKey(entry.summary.getMethod(), entry.summary.getCSeq()), entry);
+
+    if (summaries != null) {
+      summaries.addLast(entry.summary);
+    }
+
+    trim();
+  }
+
+  synchronized T getLast() {
+    Entry<T> entry = messages.peekLast();
+    return entry == null ? null : entry.message;
+  }
+
+  synchronized boolean isEmpty() {
+    return messages.isEmpty();
+  }
+
+  synchronized ArrayList<T> getAll() {
+    ArrayList<T> all = new ArrayList<>(messages.size());
+    for (Entry<T> entry : messages) {
+      all.add(entry.message);
+    }
+    return all;
+  }
+
+  /**
+   * Returns the most recent response with the given status code, or null if there is none.
+   */
+  synchronized T findLast(int statusCode) {
+    ArrayDeque<Entry<T>> bucket = byStatusCode.get(statusCode);
+    return bucket == null ? null : bucket.peekLast().message;
+  }
+
+  /**
+   * Returns the most recent request with the given method, or null if there is none.
+   */
+  synchronized T findLast(String method) {
+    ArrayDeque<Entry<T>> bucket = byMethod.get(method);
+    return bucket == null ? null : bucket.peekLast().message;
+  }
+
+  /**
+   * Returns the most recent message with the given CSeq method and sequence number, or null if
+   * there is none.
+   */
+  synchronized T findLast(String method, long sequenceNumber) {
+    ArrayDeque<Entry<T>> bucket = byCSeq.get(cseqKey(method, sequenceNumber));
+    return bucket == null ? null : bucket.peekLast().message;
+  }
+
+  /**
+   * Returns the most recent response with the given status code, CSeq method and sequence number,
+   * or null if there is none.
+   */
+  synchronized T findLast(int statusCode, String method, long sequenceNumber) {
+    ArrayDeque<Entry<T>> bucket = byCSeq.get(cseqKey(method, sequenceNumber));
+    if (bucket == null) {
+      return null;
+    }
+
+    // a bucket holds the responses of one transaction, a handful at most
+    Iterator<Entry<T>> i = bucket.descendingIterator();
+    while (i.hasNext()) {
+      Entry<T> entry = i.next();
+      if (entry.summary.getStatusCode() == statusCode) {
+        return entry.message;
+      }
+    }
+
+    return null;
+  }
+
+  synchronized List<MessageSummary> getSummaries() {
+    if (summaries == null) {
+      return Collections.emptyList();
+    }
+    return new ArrayList<>(summaries);
+  }
+
+  synchronized void clear() {
+    messages.clear();
+    byStatusCode.clear();
+    byMethod.clear();
+    byCSeq.clear();
+    if (summaries != null) {
+      summaries.clear();
+    }
+  }
+
+  private void trim() {
+    int limit = retention.getFullLimit();
+    if (limit > 0) {
+      while (messages.size() > limit) {
+        Entry<T> entry = messages.removeFirst();
+
+        if (entry.summary.isRequest()) {
+          unindex(byMethod, entry.summary.getMethod());
+        } else {
+          unindex(byStatusCode, entry.summary.getStatusCode());
+        }
+        unindex(byCSeq, cseqKey(entry.summary.getMethod(), entry.summary.getCSeq()));
+      }
+    }
+
+    if (summaries != null) {
+      limit = retention.getLimit();
+      if (limit > 0) {
+        while (summaries.size() > limit) {
+          summaries.removeFirst();
+        }
+      }
+    }
+  }
+
+  private static <K, T extends SipMessage> void index(HashMap<K, ArrayDeque<Entry<T>>> index,
+      K key, Entry<T> entry) {
+    if (key == null) {
+      return;
+    }
+
+    ArrayDeque<Entry<T>> bucket = index.get(key);
+    if (bucket == null) {
+      bucket = new ArrayDeque<>();
+      index.put(key, bucket);
+    }
+    bucket.addLast(entry);
+  }
+
+  /**
+   * Drops the oldest entry of the given key's bucket - called when that entry is dropped from the
+   * history, of which it is the oldest message.
+   */
+  private static <K, T extends SipMessage> void unindex(HashMap<K, ArrayDeque<Entry<T>>> index,
+      K key) {
+    if (key == null) {
+      return;
+    }
+
+    ArrayDeque<Entry<T>> bucket = index.get(key);
+    if (bucket != null) {
+      bucket.removeFirst();
+      if (bucket.isEmpty()) {
+        index.remove(key);
+      }
+    }
+  }
+
+  private static String cseqKey(String method, long sequenceNumber) {
+    return method == null ? null : method + ' ' + sequenceNumber;
+  }
+
+  private static class Entry<T> {
+    final T message;
+
+    final MessageSummary summary;
+
+    Entry(T message, MessageSummary summary) {
+      this.message = message;
+      this.summary = summary;
+    }
+  }
+}
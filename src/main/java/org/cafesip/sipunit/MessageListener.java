@@ -17,6 +17,10 @@
 package org.cafesip.sipunit;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.ListIterator;
+
+import javax.sip.message.Request;
 
 /**
  * MessageListener represents certain SipUnit objects (such as SipCall) that perform SIP messaging
@@ -73,4 +77,92 @@ public interface MessageListener extends RequestListener {
    * @see #getAllReceivedResponses()
    */
   public SipResponse getLastReceivedResponse();
+
+  /**
+   * Finds the most recent response received by this object with the given status code. SipCall and
+   * EventSubscriber answer this from an index kept as responses arrive; the default implementation
+   * scans getAllReceivedResponses().
+   * 
+   * @param statusCode the status code to look for.
+   * @return SipResponse object or null, if not found.
+   */
+  public default SipResponse findMostRecentResponse(int statusCode) {
+    List<SipResponse> responses = getAllReceivedResponses();
+
+    ListIterator<SipResponse> i = responses.listIterator(responses.size());
+    while (i.hasPrevious()) {
+      SipResponse resp = i.previous();
+      if (resp.getStatusCode() == statusCode) {
+        return resp;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Finds the most recent response received by this object with the given status code, CSeq method
+   * and CSeq sequence number.
+   * 
+   * @param statusCode the status code to look for.
+   * @param method the CSeq method to look for (SipRequest.INVITE, etc.).
+   * @param sequenceNumber the CSeq sequence number to look for.
+   * @return SipResponse object or null, if not found.
+   */
+  public default SipResponse findMostRecentResponse(int statusCode, String method,
+      long sequenceNumber) {
+    List<SipResponse> responses = getAllReceivedResponses();
+
+    ListIterator<SipResponse> i = responses.listIterator(responses.size());
+    while (i.hasPrevious()) {
+      SipResponse resp = i.previous();
+      if ((resp.getStatusCode() == statusCode) && resp.hasCSeq(method, sequenceNumber)) {
+        return resp;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Finds the most recent request received by this object with the given method.
+   * 
+   * @param method the request method to look for (SipRequest.BYE, etc.).
+   * @return SipRequest object or null, if not found.
+   */
+  public default SipRequest findMostRecentRequest(String method) {
+    List<SipRequest> requests = getAllReceivedRequests();
+
+    ListIterator<SipRequest> i = requests.listIterator(requests.size());
+    while (i.hasPrevious()) {
+      SipRequest req = i.previous();
+      if ((req.getMessage() != null) && ((Request) req.getMessage()).getMethod().equals(method)) {
+        return req;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Finds the most recent request received by this object with the given CSeq method and CSeq
+   * sequence number.
+   * 
+   * @param method the CSeq method to look for (SipRequest.BYE, etc.).
+   * @param sequenceNumber the CSeq sequence number to look for.
+   * @return SipRequest object or null, if not found.
+   */
+  public default SipRequest findMostRecentRequest(String method, long sequenceNumber) {
+    List<SipRequest> requests = getAllReceivedRequests();
+
+    ListIterator<SipRequest> i = requests.listIterator(requests.size());
+    while (i.hasPrevious()) {
+      SipRequest req = i.previous();
+      if (req.hasCSeq(method, sequenceNumber)) {
+        return req;
+      }
+    }
+
+    return null;
+  }
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cafesip.sipunit;
+
+/**
+ * This class describes how much of the message history a SipCall or EventSubscriber keeps - that
+ * is, what getAllReceivedRequests(), getAllReceivedResponses() and, for a SipCall,
+ * getAllReceivedMessagesContent() return. By default the full history is kept, which is what a
+ * functional test usually wants. A long-running call with session refreshes or a subscription
+ * receiving frequent NOTIFYs can use a bounded retention instead, so that memory use doesn't grow
+ * with the number of messages received.
+ *
+ * <p>
+ * Whatever the retention, the last request and the last response received are always kept in full
+ * - SipUnit itself needs them (ie, sendInviteOkAck() uses the last response) and so do the
+ * getLastReceivedXyz() methods. The retention can be set per object (SipCall.setMessageRetention(),
+ * EventSubscriber.setMessageRetention()) or for all the objects created afterwards
+ * (SipStack.setDefaultMessageRetention()).
+ *
+ * <p>
+ * Objects of this class are immutable.
+ *
+ */
+public final class MessageRetention {
+
+  /**
+   * Every received message is kept in full. This is the default.
+   */
+  public static final int FULL = 0;
+
+  /**
+   * Only the last N received messages (of each kind, requests and responses) are kept in full.
+   */
+  public static final int LAST_N = 1;
+
+  /**
+   * Only the last received message of each kind is kept in full. A summary record (see
+   * MessageSummary) is kept for every received message, up to an optional limit.
+   */
+  public static final int SUMMARY = 2;
+
+  /**
+   * Only the last received message of each kind is kept.
+   */
+  public static final int OFF = 3;
+
+  private static final MessageRetention FULL_RETENTION = new MessageRetention(FULL, 0);
+
+  private static final MessageRetention OFF_RETENTION = new MessageRetention(OFF, 1);
+
+  private final int mode;
+
+  private final int limit;
+
+  private MessageRetention(int mode, int limit) {
+    this.mode = mode;
+    this.limit = limit;
+  }
+
+  /**
+   * Returns the retention that keeps every received message in full.
+   */
+  public static MessageRetention full() {
+    return FULL_RETENTION;
+  }
+
+  /**
+   * Returns a retention that keeps the last count received messages of each kind in full.
+   *
+   * @param count the number of messages to keep, at least 1.
+   */
+  public static MessageRetention lastN(int count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("count must be at least 1");
+    }
+    return new MessageRetention(LAST_N, count);
+  }
+
+  /**
+   * Returns a retention that keeps a summary record of every received message, and only the last
+   * message of each kind in full.
+   */
+  public static MessageRetention summary() {
+    return new MessageRetention(SUMMARY, 0);
+  }
+
+  /**
+   * Returns a retention that keeps a summary record of the last maxRecords received messages of
+   * each kind, and only the last message of each kind in full.
+   *
+   * @param maxRecords the number of summary records to keep, at least 1.
+   */
+  public static MessageRetention summary(int maxRecords) {
+    if (maxRecords < 1) {
+      throw new IllegalArgumentException("maxRecords must be at least 1");
+    }
+    return new MessageRetention(SUMMARY, maxRecords);
+  }
+
+  /**
+   * Returns the retention that keeps only the last received message of each kind.
+   */
+  public static MessageRetention off() {
+    return OFF_RETENTION;
+  }
+
+  /**
+   * Returns the retention mode: FULL, LAST_N, SUMMARY or OFF.
+   */
+  public int getMode() {
+    return mode;
+  }
+
+  /**
+   * Returns the number of messages kept in full (LAST_N) or of summary records kept (SUMMARY), 0
+   * meaning no limit.
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * Returns the number of messages of each kind kept in full, 0 meaning no limit.
+   */
+  int getFullLimit() {
+    switch (mode) {
+      case FULL:
+        return 0;
+      case LAST_N:
+        return limit;
+      default:
+        return 1;
+    }
+  }
+
+  public String toString() {
+    switch (mode) {
+      case FULL:
+        return "full";
+      case LAST_N:
+        return "last " + limit;
+      case SUMMARY:
+        return limit == 0 ? "summary" : "summary, last " + limit;
+      default:
+        return "off";
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cafesip.sipunit;
+
+import javax.sip.header.CSeqHeader;
+import javax.sip.message.Message;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * This class is a summary record of a received SIP message, as kept with the SUMMARY message
+ * retention (see MessageRetention). It holds the method, the status code for a response, the CSeq
+ * sequence number and the time of reception, but none of the message itself.
+ *
+ */
+public class MessageSummary {
+
+  private final String method;
+
+  private final int statusCode;
+
+  private final long cseq;
+
+  private final long timestamp;
+
+  protected MessageSummary(SipMessage message) {
+    Message msg = message.getMessage();
+    CSeqHeader cseqHdr = (msg == null ? null : (CSeqHeader) msg.getHeader(CSeqHeader.NAME));
+
+    if (msg instanceof Request) {
+      method = ((Request) msg).getMethod();
+      statusCode = -1;
+    } else {
+      method = (cseqHdr == null ? null : cseqHdr.getMethod());
+      statusCode = (msg instanceof Response ? ((Response) msg).getStatusCode() : -1);
+    }
+
+    cseq = (cseqHdr == null ? -1 : cseqHdr.getSeqNumber());
+    timestamp = System.currentTimeMillis();
+  }
+
+  /**
+   * Returns the method of the request, or for a response the method of the request it answers
+   * (from the CSeq header).
+   */
+  public String getMethod() {
+    return method;
+  }
+
+  /**
+   * Returns the status code of the response, or -1 for a request.
+   */
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  /**
+   * Indicates if this is the summary of a request.
+   */
+  public boolean isRequest() {
+    return statusCode == -1;
+  }
+
+  /**
+   * Returns the CSeq sequence number of the message, or -1 if it had no CSeq header.
+   */
+  public long getCSeq() {
+    return cseq;
+  }
+
+  /**
+   * Returns the time at which the message was recorded, in milliseconds since the epoch.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public String toString() {
+    return (isRequest() ? method : (statusCode + " (" + method + ")")) + " CSeq " + cseq + " at "
+        + timestamp;
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.cafesip.sipunit;
+
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * A NOTIFY received and processed on behalf of a test program that gets them from
+ * EventSubscriber.notifications(): the request, the response sent in reply to it, and the state of
+ * the subscription right after it was processed. The NOTIFY is processed (and replied to) as if the
+ * test program had called processNotify() and replyToNotify() on it.
+ * 
+ */
+public class NotifyEvent {
+
+  private final EventSubscriber subscriber;
+
+  private final Request request;
+
+  private final Response response;
+
+  private final String errorMessage;
+
+  private final String subscriptionState;
+
+  private final String terminationReason;
+
+  private final int timeLeft;
+
+  private final Object content;
+
+  NotifyEvent(EventSubscriber subscriber, Request request, Response response,
+      String errorMessage, Object content) {
+    this.subscriber = subscriber;
+    this.request = request;
+    this.response = response;
+    this.errorMessage = errorMessage;
+    this.subscriptionState = subscriber.subscriptionState;
+    this.terminationReason = subscriber.getTerminationReason();
+    this.timeLeft = subscriber.getTimeLeft();
+    this.content = content;
+  }
+
+  /**
+   * Returns the subscription the NOTIFY was received for.
+   */
+  public EventSubscriber getSubscriber() {
+    return subscriber;
+  }
+
+  /**
+   * Returns the NOTIFY received.
+   */
+  public Request getRequest() {
+    return request;
+  }
+
+  /**
+   * Returns the response sent in reply to the NOTIFY, or null if none could be created.
+   */
+  public Response getResponse() {
+    return response;
+  }
+
+  /**
+   * Returns the status code of the response sent in reply to the NOTIFY - 200 if the NOTIFY was
+   * valid and its content taken in, or -1 if no response could be created.
+   */
+  public int getStatusCode() {
+    return response == null ? -1 : response.getStatusCode();
+  }
+
+  /**
+   * Returns what was wrong with the NOTIFY, or an empty string if nothing.
+   */
+  public String getErrorMessage() {
+    return errorMessage;
+  }
+
+  /**
+   * Returns the subscription state (active, pending or terminated) after the NOTIFY.
+   */
+  public String getSubscriptionState() {
+    return subscriptionState;
+  }
+
+  /**
+   * Returns the termination reason if the subscription is terminated, null otherwise.
+   */
+  public String getTerminationReason() {
+    return terminationReason;
+  }
+
+  /**
+   * Returns the number of seconds left in the subscription after the NOTIFY.
+   */
+  public int getTimeLeft() {
+    return timeLeft;
+  }
+
+  /**
+   * Returns true if the NOTIFY ended the subscription - it is then the last one.
+   */
+  public boolean isTerminated() {
+    return "terminated".equalsIgnoreCase(subscriptionState);
+  }
+
+  /**
+   * Returns a copy of the event information of the subscription after the NOTIFY, taken before
+   * any later NOTIFY is processed: the same as PresenceSubscriber.getPresenceDevices() for a
+   * presence subscription, ResourceListSubscriber.getResources() for a resource list subscription,
+   * or null for the other event packages.
+   */
+  public Object getContent() {
+    return content;
+  }
+
+  public String toString() {
+    return request.getMethod() + " " + subscriber.getTargetUri() + " -> " + getStatusCode() + ", "
+        + subscriptionState + (errorMessage.length() > 0 ? ", " + errorMessage : "");
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+/**
+ * Interfaces for the asynchronous, flow-controlled delivery of received NOTIFY messages - see
+ * EventSubscriber.notifications(). They have the same methods and contract as
+ * java.util.concurrent.Flow (and Reactive Streams), which SipUnit can't use while it runs on Java
+ * 8: an adapter to either one is a matter of forwarding each call.
+ * 
+ */
+public final class NotifyFlow {
+
+  private NotifyFlow() {}
+
+  /**
+   * A source of items for one Subscriber at a time.
+   */
+  @FunctionalInterface
+  public static interface Publisher<T> {
+
+    /**
+     * Adds the given Subscriber, which is then called with onSubscribe(), or with onError() if it
+     * can't be added.
+     */
+    public void subscribe(Subscriber<? super T> subscriber);
+  }
+
+  /**
+   * A receiver of items, which it asks for with Subscription.request(). The methods of a Subscriber
+   * are never called concurrently.
+   */
+  public static interface Subscriber<T> {
+
+    /**
+     * Called first, with the Subscription to ask for items with.
+     */
+    public void onSubscribe(Subscription subscription);
+
+    /**
+     * Called with the next item, once for each item asked for.
+     */
+    public void onNext(T item);
+
+    /**
+     * Called when the Publisher fails or the Subscription is misused, after which nothing else is
+     * called.
+     */
+    public void onError(Throwable throwable);
+
+    /**
+     * Called when there are no more items, after which nothing else is called.
+     */
+    public void onComplete();
+  }
+
+  /**
+   * The link between a Publisher and a Subscriber.
+   */
+  public static interface Subscription {
+
+    /**
+     * Asks for up to n more items to be given to onNext().
+     * 
+     * @param n greater than 0 - otherwise onError() is called with an IllegalArgumentException.
+     */
+    public void request(long n);
+
+    /**
+     * Stops the delivery of items, which may take a while to take effect.
+     */
+    public void cancel();
+  }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EventObject;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sip.ResponseEvent;
+import javax.sip.TimeoutEvent;
+
+/**
+ * This class generates a storm of NOTIFY messages at a target rate over subscription dialogs
+ * already set up by PresenceNotifySender objects (ie, after processSubscribe() and the SUBSCRIBE
+ * response), to stress test the watcher side - SipUnit's own PresenceSubscriber, a presence client
+ * or a proxy in between. Like CallLoadGenerator, it is an open-loop generator: each NOTIFY is sent
+ * at its scheduled time whether or not the earlier ones have been answered, and its latency is
+ * measured from that time to its final response.
+ *
+ * <p>
+ * The NOTIFYs go to the senders in turn and their bodies are taken in turn from the templates
+ * added, in which "${entity}" is replaced by the URI of the sender (the presentity) and "${seq}" by
+ * the number of the NOTIFY, so that each differs from the last. Each NOTIFY is created from its
+ * dialog, which takes care of the CSeq. A sender whose NOTIFY gets a 481 response (the watcher no
+ * longer knows the subscription) is sent no more NOTIFYs, as a notifier would do.
+ *
+ * <pre>
+ * NotifyLoadGenerator storm = new NotifyLoadGenerator();
+ * storm.addSender(buddy1).addSender(buddy2);
+ * storm.addBody(openTemplate).addBody(closedTemplate);
+ * storm.setRate(500.0);
+ * storm.start(10000);
+ * storm.awaitCompletion(20000);
+ * LOG.info(&quot;{}&quot;, storm);
+ * </pre>
+ *
+ */
+public class NotifyLoadGenerator {
+
+  private static final Logger LOG = LoggerFactory.getLogger(NotifyLoadGenerator.class);
+
+  private final ArrayList<PresenceNotifySender> senders = new ArrayList<>();
+
+  private final ArrayList<String> bodies = new ArrayList<>();
+
+  private volatile double rate = 1.0;
+
+  private volatile int timeLeft = 3600;
+
+  // the senders that got a 481
+  private final ConcurrentHashMap<PresenceNotifySender, Boolean> gone = new ConcurrentHashMap<>();
+
+  private final LatencyHistogram responseLatency = new LatencyHistogram();
+
+  private final LatencyHistogram startLag = new LatencyHistogram();
+
+  private final AtomicLong sent = new AtomicLong();
+
+  private final AtomicLong succeeded = new AtomicLong();
+
+  private final AtomicLong noSubscription = new AtomicLong();
+
+  private final AtomicLong rejected = new AtomicLong();
+
+  private final AtomicLong timedOut = new AtomicLong();
+
+  private final AtomicLong failed = new AtomicLong();
+
+  private final AtomicInteger outstanding = new AtomicInteger();
+
+  private final Object idleBlock = new Object();
+
+  private Thread generator; // guarded by idleBlock
+
+  private volatile boolean stopped;
+
+  /**
+   * Adds a sender whose subscription dialog is to get NOTIFYs.
+   *
+   * @param sender a PresenceNotifySender that has received and answered a SUBSCRIBE.
+   */
+  public synchronized NotifyLoadGenerator addSender(PresenceNotifySender sender) {
+    senders.add(sender);
+    return this;
+  }
+
+  /**
+   * Adds a NOTIFY body template, in which "${entity}" stands for the URI of the sender and "${seq}"
+   * for the number of the NOTIFY.
+   */
+  public synchronized NotifyLoadGenerator addBody(String template) {
+    bodies.add(template);
+    return this;
+  }
+
+  /**
+   * Sends NOTIFYs at the given fixed rate, counting all the senders together.
+   *
+   * @param nps NOTIFYs per second, greater than 0.
+   */
+  public NotifyLoadGenerator setRate(double nps) {
+    if ((nps > 0.0) == false) {
+      throw new IllegalArgumentException("rate must be greater than 0");
+    }
+    rate = nps;
+    return this;
+  }
+
+  /**
+   * Sets the expiry in seconds put in the Subscription-State header of the NOTIFYs. The default is
+   * 3600.
+   */
+  public NotifyLoadGenerator setTimeLeft(int seconds) {
+    timeLeft = seconds;
+    return this;
+  }
+
+  /**
+   * Starts sending NOTIFYs for the given time. This is a non-blocking call, the NOTIFYs are sent by
+   * a thread of this object - see awaitCompletion() and stop().
+   *
+   * @param durationMillis how long to send NOTIFYs for, in milliseconds.
+   * @throws IllegalStateException if no sender or body has been added or the generator is already
+   *         running.
+   */
+  public void start(long durationMillis) {
+    final long duration = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+    final PresenceNotifySender[] to;
+    final String[] templates;
+
+    synchronized (this) {
+      if (senders.isEmpty()) {
+        throw new IllegalStateException("no sender added");
+      }
+      if (bodies.isEmpty()) {
+        throw new IllegalStateException("no body added");
+      }
+      to = senders.toArray(new PresenceNotifySender[senders.size()]);
+      templates = bodies.toArray(new String[bodies.size()]);
+    }
+
+    synchronized (idleBlock) {
+      if (generator != null) {
+        throw new IllegalStateException("already running");
+      }
+
+      stopped = false;
+      generator = new Thread(() -> generate(duration, to, templates), "SipUnit NOTIFY load");
+      generator.setDaemon(true);
+      generator.start();
+    }
+  }
+
+  /**
+   * Stops sending NOTIFYs. Those sent still have their responses counted.
+   */
+  public void stop() {
+    stopped = true;
+    synchronized (idleBlock) {
+      if (generator != null) {
+        LockSupport.unpark(generator);
+      }
+    }
+  }
+
+  /**
+   * Waits until NOTIFYs are no longer sent and those sent have all had a final response or timed
+   * out. This is a blocking call.
+   *
+   * @param timeout The maximum amount of time to wait, in milliseconds.
+   * @return true if done, false if the wait timed out.
+   */
+  public boolean awaitCompletion(long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+
+    synchronized (idleBlock) {
+      while ((generator != null) || (outstanding.get() > 0)) {
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0) {
+          return false;
+        }
+        idleBlock.wait(left);
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns the latency from the scheduled send time of each NOTIFY to its final response.
+   */
+  public LatencyHistogram getResponseLatency() {
+    return responseLatency;
+  }
+
+  /**
+   * Returns the delay between the scheduled and actual send time of each NOTIFY.
+   */
+  public LatencyHistogram getStartLag() {
+    return startLag;
+  }
+
+  /**
+   * Returns the number of NOTIFYs sent.
+   */
+  public long getSent() {
+    return sent.get();
+  }
+
+  /**
+   * Returns the number of NOTIFYs that got a 2xx response.
+   */
+  public long getSucceeded() {
+    return succeeded.get();
+  }
+
+  /**
+   * Returns the number of NOTIFYs that got a 481 (Call/Transaction Does Not Exist) response.
+   */
+  public long getNoSubscription() {
+    return noSubscription.get();
+  }
+
+  /**
+   * Returns the 481 responses as a share of the final responses, between 0.0 and 1.0.
+   */
+  public double getNoSubscriptionRate() {
+    long answered = succeeded.get() + noSubscription.get() + rejected.get();
+    return answered == 0 ? 0.0 : (double) noSubscription.get() / answered;
+  }
+
+  /**
+   * Returns the number of NOTIFYs that got a final response other than 2xx or 481.
+   */
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  /**
+   * Returns the number of NOTIFYs that got no final response.
+   */
+  public long getTimedOut() {
+    return timedOut.get();
+  }
+
+  /**
+   * Returns the number of NOTIFYs that couldn't be sent.
+   */
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * Returns the number of NOTIFYs awaiting a final response.
+   */
+  public int getOutstanding() {
+    return outstanding.get();
+  }
+
+  /**
+   * Sets the counters and histograms back to 0.
+   */
+  public void reset() {
+    sent.set(0);
+    succeeded.set(0);
+    noSubscription.set(0);
+    rejected.set(0);
+    timedOut.set(0);
+    failed.set(0);
+    responseLatency.reset();
+    startLag.reset();
+  }
+
+  public String toString() {
+    return "sent=" + getSent() + ", 2xx=" + getSucceeded() + ", 481=" + getNoSubscription()
+        + ", other=" + getRejected() + ", timed out=" + getTimedOut() + ", failed=" + getFailed()
+        + ", outstanding=" + getOutstanding() + ", response latency: " + responseLatency
+        + ", start lag: " + startLag;
+  }
+
+  private void generate(long duration, PresenceNotifySender[] to, String[] templates) {
+    try {
+      String[] entities = new String[to.length];
+      for (int i = 0; i < to.length; i++) {
+        entities[i] = to[i].phone.getAddress().getURI().toString();
+      }
+
+      long origin = System.nanoTime();
+      long count = 1;
+      long next = (long) (1.0E9 / rate); // relative to origin
+      int sender = 0;
+
+      while ((stopped == false) && (next < duration)) {
+        long wait = next - (System.nanoTime() - origin);
+        if (wait > 0) {
+          LockSupport.parkNanos(wait);
+          continue;
+        }
+
+        int skipped = 0;
+        while (gone.containsKey(to[sender]) && (skipped++ < to.length)) {
+          sender = (sender + 1) % to.length;
+        }
+        if (skipped > to.length) {
+          LOG.trace("NOTIFY load generator stopped, all the subscriptions are gone");
+          break;
+        }
+
+        // late or not, the NOTIFY keeps its scheduled send time
+        String body = templates[(int) ((count - 1) % templates.length)]
+            .replace("${entity}", entities[sender]).replace("${seq}", Long.toString(count));
+        send(to[sender], body, origin + next);
+
+        sender = (sender + 1) % to.length;
+        next = (long) (++count * 1.0E9 / rate);
+      }
+    } catch (Exception ex) {
+      LOG.error("NOTIFY load generator stopped: " + ex.getClass().getName() + ": "
+          + ex.getMessage(), ex);
+    } finally {
+      synchronized (idleBlock) {
+        generator = null;
+        idleBlock.notifyAll();
+      }
+    }
+  }
+
+  private void send(PresenceNotifySender sender, String body, long scheduled) {
+    startLag.record(System.nanoTime() - scheduled);
+    outstanding.incrementAndGet();
+
+    if (sender.sendNotify(body, timeLeft, new Pending(sender, scheduled)) == null) {
+      LOG.trace("NOTIFY load generator couldn't send a NOTIFY: {}", sender.getErrorMessage());
+      failed.incrementAndGet();
+      notifyEnded();
+      return;
+    }
+
+    sent.incrementAndGet();
+  }
+
+  private void notifyEnded() {
+    synchronized (idleBlock) {
+      if (outstanding.decrementAndGet() == 0) {
+        idleBlock.notifyAll();
+      }
+    }
+  }
+
+  /*
+   * A NOTIFY awaiting its final response - the listener of its transaction, called on the SIP
+   * stack thread
+   */
+  private class Pending extends TransactionListener {
+    final PresenceNotifySender sender;
+
+    final long scheduled;
+
+    Pending(PresenceNotifySender sender, long scheduled) {
+      this.sender = sender;
+      this.scheduled = scheduled;
+    }
+
+    public void processEvent(EventObject event) {
+      if (event instanceof ResponseEvent) {
+        int status = ((ResponseEvent) event).getResponse().getStatusCode();
+        if ((status < 200) || (end() == false)) {
+          return;
+        }
+
+        responseLatency.record(System.nanoTime() - scheduled);
+
+        if (status < 300) {
+          succeeded.incrementAndGet();
+        } else if (status == SipResponse.CALL_OR_TRANSACTION_DOES_NOT_EXIST) {
+          noSubscription.incrementAndGet();
+          gone.put(sender, Boolean.TRUE);
+        } else {
+          rejected.incrementAndGet();
+        }
+      } else if (event instanceof TimeoutEvent) {
+        if (end() == false) {
+          return;
+        }
+        timedOut.incrementAndGet();
+      } else {
+        return;
+      }
+
+      notifyEnded();
+    }
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.cafesip.sipunit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sip.RequestEvent;
+
+/**
+ * FOR INTERNAL USE ONLY. A test class doesn't use this class.
+ *
+ * <p>
+ * This class delivers the NOTIFYs received for an EventSubscriber to the NotifyFlow.Subscriber
+ * given to EventSubscriber.notifications(), as NotifyEvents. A NOTIFY is held unanswered in a
+ * bounded buffer until the subscriber has asked for it, then processed, replied to and given to
+ * onNext() - so a slow consumer shows up as a slow watcher to the notifier, which is SIP's own
+ * backpressure. A NOTIFY received while the buffer is full is rejected with a 503 response.
+ *
+ * <p>
+ * Delivery is done by whichever thread finds it has something to deliver - the SIP stack thread
+ * (the phone's event loop in event-loop mode) when a NOTIFY arrives, or the thread calling
+ * request() - one at a time.
+ *
+ */
+class NotifyStream implements NotifyFlow.Subscription {
+
+  private static final Logger LOG = LoggerFactory.getLogger(NotifyStream.class);
+
+  private final EventSubscriber owner;
+
+  private final NotifyFlow.Subscriber<? super NotifyEvent> subscriber;
+
+  private final int capacity;
+
+  private final ArrayDeque<RequestEvent> buffer = new ArrayDeque<>(); // guarded by itself
+
+  private final AtomicLong demand = new AtomicLong();
+
+  private final AtomicInteger wip = new AtomicInteger(); // drain() calls in progress or missed
+
+  private volatile boolean cancelled; // set with the buffer lock held
+
+  private volatile Throwable error; // set by a bad request(), reported by drain()
+
+  NotifyStream(EventSubscriber owner, NotifyFlow.Subscriber<? super NotifyEvent> subscriber,
+      int capacity) {
+    this.owner = owner;
+    this.subscriber = subscriber;
+    this.capacity = capacity;
+  }
+
+  /**
+   * Takes a received NOTIFY for delivery.
+   *
+   * @return false if this stream is cancelled, in which case the NOTIFY is left to the caller.
+   */
+  boolean offer(RequestEvent event) {
+    boolean full;
+    synchronized (buffer) {
+      if (cancelled) {
+        return false;
+      }
+
+      full = (buffer.size() >= capacity);
+      if (full == false) {
+        buffer.addLast(event);
+      }
+    }
+
+    if (full) {
+      EventSubscriber.sendResponse(owner.parent, event, SipResponse.SERVICE_UNAVAILABLE,
+          "Notification buffer full");
+      LOG.trace("NOTIFY for {} rejected, notification buffer full", owner.getTargetUri());
+      return true;
+    }
+
+    drain();
+    return true;
+  }
+
+  /**
+   * Takes a NOTIFY received before the stream was set up, regardless of the buffer size.
+   */
+  void offerBeforeStart(RequestEvent event) {
+    synchronized (buffer) {
+      buffer.addLast(event);
+    }
+  }
+
+  /**
+   * Returns the NOTIFYs received but not delivered yet, emptying the buffer - for the owner to
+   * queue them for waitNotify() when the stream is cancelled.
+   */
+  List<RequestEvent> takeBuffered() {
+    synchronized (buffer) {
+      List<RequestEvent> events = new ArrayList<>(buffer);
+      buffer.clear();
+      return events;
+    }
+  }
+
+  public void request(long n) {
+    if (n <= 0) {
+      error = new IllegalArgumentException("request() must be called with n > 0, was " + n);
+    } else {
+      long r;
+      long u;
+      do {
+        r = demand.get();
+        u = r + n;
+        if (u < 0) {
+          u = Long.MAX_VALUE; // unbounded
+        }
+      } while (demand.compareAndSet(r, u) == false);
+    }
+
+    drain();
+  }
+
+  public void cancel() {
+    synchronized (buffer) {
+      if (cancelled) {
+        return;
+      }
+      cancelled = true; // no more NOTIFYs get into the buffer
+    }
+
+    owner.streamCancelled(this);
+  }
+
+  void drain() {
+    if (wip.getAndIncrement() != 0) {
+      return; // the thread in there will go round again
+    }
+
+    int missed = 1;
+    do {
+      while (cancelled == false) {
+        if (error != null) {
+          cancel();
+          subscriber.onError(error);
+          return;
+        }
+
+        if (demand.get() == 0) {
+          break;
+        }
+
+        RequestEvent event;
+        synchronized (buffer) {
+          event = buffer.pollFirst();
+        }
+        if (event == null) {
+          break;
+        }
+
+        if (demand.get() != Long.MAX_VALUE) {
+          demand.decrementAndGet();
+        }
+
+        NotifyEvent notify = owner.processStreamedNotify(event);
+        try {
+          subscriber.onNext(notify);
+        } catch (Throwable t) {
+          LOG.error("Notification subscriber failed in onNext(), cancelling: "
+              + t.getClass().getName() + ": " + t.getMessage(), t);
+          cancel();
+          return;
+        }
+
+        if (notify.isTerminated()) {
+          cancel();
+          subscriber.onComplete();
+          return;
+        }
+      }
+
+      missed = wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.cafesip.sipunit.presenceparser.pidf.Contact;
+import org.cafesip.sipunit.presenceparser.pidf.Note;
+import org.cafesip.sipunit.presenceparser.pidf.Presence;
+import org.cafesip.sipunit.presenceparser.pidf.Tuple;
+
+/**
+ * FOR INTERNAL USE ONLY. A test class doesn't use this class.
+ *
+ * <p>
+ * This class parses PIDF (application/pidf+xml, RFC 3863) documents for PresenceSubscriber, with
+ * either of two parsers (see SipStack.setPidfParser()):
+ * <ul>
+ * <li>PIDF_PARSER_JAXB - the JAXB 1.0 classes generated from conf/presence-pidf.xsd. Creating the
+ * JAXB context is expensive (it loads and introspects the generated classes), so it is created once
+ * and shared by all the subscribers; an Unmarshaller, which is not thread-safe, is created once per
+ * thread and reused for every document parsed on that thread. The object graph is then copied into
+ * PresenceDeviceInfo and PresenceNote objects.
+ * <li>PIDF_PARSER_STAX - a streaming (StAX) parser that creates the PresenceDeviceInfo and
+ * PresenceNote objects directly while reading the body, in one pass.
+ * </ul>
+ * Both give the same result. Elements that aren't part of PIDF - extensions, or unknown elements in
+ * the PIDF namespace - are skipped, their content included, and don't make the document invalid.
+ *
+ * <p>
+ * Partial notification (application/pidf-diff+xml, RFC 5262) documents are always read with the
+ * streaming parser, by parseDiff(): either the full state (pidf-full) or a patch (RFC 5261 add,
+ * replace and remove operations) at the level of the tuples and the top-level notes. The same goes
+ * for the resource list meta-information (application/rlmi+xml, RFC 4662) root of the NOTIFY bodies
+ * of a resource list subscription, read by parseRlmi().
+ *
+ */
+class PidfParser {
+
+  static final String PACKAGE = "org.cafesip.sipunit.presenceparser.pidf";
+
+  static final String NAMESPACE = "urn:ietf:params:xml:ns:pidf";
+
+  static final String DIFF_NAMESPACE = "urn:ietf:params:xml:ns:pidf-diff";
+
+  static final String RLMI_NAMESPACE = "urn:ietf:params:xml:ns:rlmi";
+
+  static final int ADD = 0;
+
+  static final int REPLACE = 1;
+
+  static final int REMOVE = 2;
+
+  // [/](*|[prefix:]presence)/[prefix:]tuple[@id='id'] - the 2nd group is the tuple ID
+  private static final Pattern TUPLE_SELECTOR = Pattern.compile(
+      "/?(?:\\*|(?:[\\w.-]+:)?presence)/(?:[\\w.-]+:)?tuple\\[@id=(['\"])(.+?)\\1\\]");
+
+  // [/](*|[prefix:]presence)
+  private static final Pattern ROOT_SELECTOR = Pattern.compile("/?(?:\\*|(?:[\\w.-]+:)?presence)");
+
+  private static volatile JAXBContext context;
+
+  private static final ThreadLocal<Unmarshaller> unmarshallers = new ThreadLocal<>();
+
+  private static DatatypeFactory datatypes; // guarded by PidfParser.class
+
+  private PidfParser() {}
+
+  /**
+   * Parses a PIDF document.
+   *
+   * @param body the document.
+   * @param parser SipStack.PIDF_PARSER_JAXB or SipStack.PIDF_PARSER_STAX.
+   * @return the content of the document.
+   * @throws Exception if the document can't be parsed.
+   */
+  static Document parse(byte[] body, int parser) throws Exception {
+    if (parser == SipStack.PIDF_PARSER_STAX) {
+      return parseStax(body);
+    }
+    return parseJaxb(body);
+  }
+
+  /**
+   * Parses a partial notification (pidf-diff) document.
+   *
+   * @param body the document.
+   * @return the full state or the patch of the document.
+   * @throws Exception if the document can't be parsed or has an operation that isn't supported.
+   */
+  static Diff parseDiff(byte[] body) throws Exception {
+    XMLStreamReader reader = StaxReaders.create(body);
+    try {
+      reader.nextTag();
+      if (DIFF_NAMESPACE.equals(reader.getNamespaceURI()) == false) {
+        throw new XMLStreamException("unexpected root element " + reader.getName());
+      }
+
+      Diff diff = new Diff();
+      String version = reader.getAttributeValue(null, "version");
+      if (version == null) {
+        throw new XMLStreamException("no version in " + reader.getLocalName());
+      }
+      diff.version = Long.parseLong(version.trim());
+
+      if (reader.getLocalName().equals("pidf-full")) {
+        diff.full = parsePresence(reader);
+        return diff;
+      }
+
+      if (reader.getLocalName().equals("patch") == false) {
+        throw new XMLStreamException("unexpected root element " + reader.getName());
+      }
+
+      diff.operations = new ArrayList<>();
+      while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+        if (DIFF_NAMESPACE.equals(reader.getNamespaceURI()) == false) {
+          StaxReaders.skip(reader);
+          continue;
+        }
+
+        Operation op = new Operation();
+        String name = reader.getLocalName();
+        String sel = StaxReaders.collapse(reader.getAttributeValue(null, "sel"));
+        if (sel == null) {
+          throw new XMLStreamException(name + " without sel");
+        }
+
+        if (name.equals("add")) {
+          if (ROOT_SELECTOR.matcher(sel).matches() == false) {
+            throw new XMLStreamException("unsupported add selector " + sel);
+          }
+          op.type = ADD;
+          op.prepend = "prepend".equals(reader.getAttributeValue(null, "pos"));
+        } else if (name.equals("replace") || name.equals("remove")) {
+          Matcher m = TUPLE_SELECTOR.matcher(sel);
+          if (m.matches() == false) {
+            throw new XMLStreamException("unsupported " + name + " selector " + sel);
+          }
+          op.type = name.equals("replace") ? REPLACE : REMOVE;
+          op.tupleId = m.group(2);
+        } else {
+          throw new XMLStreamException("unknown patch operation " + name);
+        }
+
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+          if (isPidf(reader, "tuple")) {
+            op.tuples.add(parseTuple(reader));
+          } else if (isPidf(reader, "note") && (op.type == ADD)) {
+            op.notes.add(parseNote(reader));
+          } else {
+            StaxReaders.skip(reader);
+          }
+        }
+
+        if ((op.type == REPLACE) && (op.tuples.size() != 1)) {
+          throw new XMLStreamException("replace of tuple " + op.tupleId + " with "
+              + op.tuples.size() + " tuples");
+        }
+        diff.operations.add(op);
+      }
+
+      return diff;
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Parses a resource list meta-information (RLMI) document. Names are skipped.
+   *
+   * @param body the document.
+   * @return the list and its resources, in document order.
+   * @throws Exception if the document can't be parsed.
+   */
+  static Rlmi parseRlmi(byte[] body) throws Exception {
+    XMLStreamReader reader = StaxReaders.create(body);
+    try {
+      reader.nextTag();
+      if (isRlmi(reader, "list") == false) {
+        throw new XMLStreamException("unexpected root element " + reader.getName());
+      }
+
+      Rlmi rlmi = new Rlmi();
+      rlmi.uri = StaxReaders.collapse(reader.getAttributeValue(null, "uri"));
+      String version = reader.getAttributeValue(null, "version");
+      String fullState = StaxReaders.collapse(reader.getAttributeValue(null, "fullState"));
+      if ((rlmi.uri == null) || (version == null) || (fullState == null)) {
+        throw new XMLStreamException("list without uri, version or fullState");
+      }
+      rlmi.version = Long.parseLong(version.trim());
+      rlmi.fullState = fullState.equals("true") || fullState.equals("1");
+
+      while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+        if (isRlmi(reader, "resource") == false) {
+          StaxReaders.skip(reader);
+          continue;
+        }
+
+        Resource res = new Resource();
+        res.uri = StaxReaders.collapse(reader.getAttributeValue(null, "uri"));
+        if (res.uri == null) {
+          throw new XMLStreamException("resource without uri");
+        }
+
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+          if (isRlmi(reader, "instance")) {
+            String state = StaxReaders.collapse(reader.getAttributeValue(null, "state"));
+            String cid = StaxReaders.collapse(reader.getAttributeValue(null, "cid"));
+            if (state == null) {
+              throw new XMLStreamException("instance of " + res.uri + " without state");
+            }
+
+            // the instance with content, if any, gives the state of the resource
+            if ((res.state == null) || ((res.cid == null) && (cid != null))) {
+              res.state = state;
+              res.reason = StaxReaders.collapse(reader.getAttributeValue(null, "reason"));
+              res.cid = cid;
+            }
+            StaxReaders.skip(reader);
+          } else {
+            StaxReaders.skip(reader);
+          }
+        }
+
+        rlmi.resources.add(res);
+      }
+
+      return rlmi;
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Returns the JAXB context of the PIDF classes, creating it on first use.
+   */
+  static JAXBContext getContext() throws JAXBException {
+    JAXBContext ctx = context;
+    if (ctx == null) {
+      synchronized (PidfParser.class) {
+        ctx = context;
+        if (ctx == null) {
+          ctx = JAXBContext.newInstance(PACKAGE);
+          context = ctx;
+        }
+      }
+    }
+    return ctx;
+  }
+
+  private static Document parseJaxb(byte[] body) throws JAXBException {
+    Unmarshaller parser = unmarshallers.get();
+    if (parser == null) {
+      parser = getContext().createUnmarshaller();
+      parser.setEventHandler(event -> event.getMessage().startsWith("Unexpected element"));
+      unmarshallers.set(parser);
+    }
+
+    Presence presence = (Presence) parser.unmarshal(new ByteArrayInputStream(body));
+
+    Document doc = new Document();
+    doc.entity = presence.getEntity();
+
+    if (presence.getTuple() != null) {
+      Iterator<?> i = presence.getTuple().iterator();
+      while (i.hasNext()) {
+        Tuple t = (Tuple) i.next();
+
+        PresenceDeviceInfo dev = new PresenceDeviceInfo();
+        dev.setBasicStatus(t.getStatus().getBasic());
+
+        Contact contact = t.getContact();
+        if (contact != null) {
+          if (contact.getPriority() != null) {
+            dev.setContactPriority(contact.getPriority().doubleValue());
+          }
+          dev.setContactValue(contact.getValue());
+        }
+
+        dev.setDeviceExtensions(t.getAny());
+        dev.setId(t.getId());
+        dev.setStatusExtensions(t.getStatus().getAny());
+        dev.setTimestamp(t.getTimestamp());
+
+        List<PresenceNote> notes = new ArrayList<>();
+        if (t.getNote() != null) {
+          Iterator<?> j = t.getNote().iterator();
+          while (j.hasNext()) {
+            Note n = (Note) j.next();
+            notes.add(new PresenceNote(n.getLang(), n.getValue()));
+          }
+        }
+        dev.setDeviceNotes(notes);
+
+        doc.devices.put(t.getId(), dev);
+      }
+    }
+
+    if (presence.getNote() != null) {
+      Iterator<?> i = presence.getNote().iterator();
+      while (i.hasNext()) {
+        Note n = (Note) i.next();
+        doc.notes.add(new PresenceNote(n.getLang(), n.getValue()));
+      }
+    }
+
+    if (presence.getAny() != null) {
+      doc.extensions.addAll((Collection<?>) presence.getAny());
+    }
+
+    return doc;
+  }
+
+  private static Document parseStax(byte[] body) throws XMLStreamException {
+    XMLStreamReader reader = StaxReaders.create(body);
+    try {
+      reader.nextTag();
+      if (isPidf(reader, "presence") == false) {
+        throw new XMLStreamException("unexpected root element " + reader.getName());
+      }
+
+      return parsePresence(reader);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Reads the content of a presence (or pidf-full) element, the reader being on its start tag.
+   */
+  private static Document parsePresence(XMLStreamReader reader) throws XMLStreamException {
+    Document doc = new Document();
+    doc.entity = StaxReaders.collapse(reader.getAttributeValue(null, "entity"));
+
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (isPidf(reader, "tuple")) {
+        PresenceDeviceInfo dev = parseTuple(reader);
+        doc.devices.put(dev.getId(), dev);
+      } else if (isPidf(reader, "note")) {
+        doc.notes.add(parseNote(reader));
+      } else {
+        StaxReaders.skip(reader);
+      }
+    }
+
+    return doc;
+  }
+
+  private static PresenceDeviceInfo parseTuple(XMLStreamReader reader) throws XMLStreamException {
+    PresenceDeviceInfo dev = new PresenceDeviceInfo();
+    dev.setId(reader.getAttributeValue(null, "id"));
+
+    List<PresenceNote> notes = new ArrayList<>();
+    boolean status = false;
+
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (isPidf(reader, "status")) {
+        status = true;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+          if (isPidf(reader, "basic")) {
+            dev.setBasicStatus(StaxReaders.collapse(reader.getElementText()));
+          } else {
+            StaxReaders.skip(reader);
+          }
+        }
+      } else if (isPidf(reader, "contact")) {
+        String priority = reader.getAttributeValue(null, "priority");
+        if (priority != null) {
+          dev.setContactPriority(Double.parseDouble(priority.trim()));
+        }
+        dev.setContactValue(StaxReaders.collapse(reader.getElementText()));
+      } else if (isPidf(reader, "note")) {
+        notes.add(parseNote(reader));
+      } else if (isPidf(reader, "timestamp")) {
+        dev.setTimestamp(parseDateTime(reader.getElementText().trim()));
+      } else {
+        StaxReaders.skip(reader);
+      }
+    }
+
+    if (status == false) {
+      throw new XMLStreamException("tuple " + dev.getId() + " has no status");
+    }
+
+    dev.setDeviceNotes(notes);
+    dev.setDeviceExtensions(new ArrayList<>());
+    dev.setStatusExtensions(new ArrayList<>());
+    return dev;
+  }
+
+  private static PresenceNote parseNote(XMLStreamReader reader) throws XMLStreamException {
+    String lang = reader.getAttributeValue(XMLConstants.XML_NS_URI, "lang");
+    return new PresenceNote(lang, reader.getElementText());
+  }
+
+  private static boolean isPidf(XMLStreamReader reader, String name) {
+    return name.equals(reader.getLocalName()) && NAMESPACE.equals(reader.getNamespaceURI());
+  }
+
+  private static boolean isRlmi(XMLStreamReader reader, String name) {
+    return name.equals(reader.getLocalName()) && RLMI_NAMESPACE.equals(reader.getNamespaceURI());
+  }
+
+  private static Calendar parseDateTime(String value) throws XMLStreamException {
+    synchronized (PidfParser.class) {
+      try {
+        if (datatypes == null) {
+          datatypes = DatatypeFactory.newInstance();
+        }
+        return datatypes.newXMLGregorianCalendar(value).toGregorianCalendar();
+      } catch (DatatypeConfigurationException | IllegalArgumentException e) {
+        throw new XMLStreamException("invalid timestamp " + value + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * The content of a pidf-diff document: the full state, or the operations of a patch.
+   */
+  static class Diff {
+    long version;
+
+    Document full; // null for a patch
+
+    List<Operation> operations;
+  }
+
+  /**
+   * One operation of a pidf-diff patch: an add of tuples and notes to the presence element, or a
+   * replace or remove of the tuple with the given ID.
+   */
+  static class Operation {
+    int type;
+
+    String tupleId;
+
+    boolean prepend;
+
+    final List<PresenceDeviceInfo> tuples = new ArrayList<>();
+
+    final List<PresenceNote> notes = new ArrayList<>();
+  }
+
+  /**
+   * The content of an RLMI document.
+   */
+  static class Rlmi {
+    String uri;
+
+    long version;
+
+    boolean fullState;
+
+    final List<Resource> resources = new ArrayList<>();
+  }
+
+  /**
+   * One resource of an RLMI document. The state, reason and cid (Content-ID of the body part
+   * holding the resource's state, without the angle brackets) are those of its instance, null if
+   * it has none.
+   */
+  static class Resource {
+    String uri;
+
+    String state;
+
+    String reason;
+
+    String cid;
+  }
+
+  /**
+   * The content of a PIDF document.
+   */
+  static class Document {
+    String entity;
+
+    final HashMap<String, PresenceDeviceInfo> devices = new HashMap<>();
+
+    final ArrayList<PresenceNote> notes = new ArrayList<>();
+
+    final ArrayList<Object> extensions = new ArrayList<>();
+  }
+}
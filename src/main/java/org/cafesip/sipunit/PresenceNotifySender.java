@@ -21,11 +21,13 @@ import org.slf4j.LoggerFactory;
 
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.EventObject;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.sip.Dialog;
 import javax.sip.RequestEvent;
@@ -87,6 +89,16 @@ public class PresenceNotifySender implements MessageListener {
 
   protected List<SipResponse> receivedResponses;
 
+  /*
+   * Handles the SUBSCRIBE (and REFER) requests as the phone receives them
+   */
+  protected final RequestListener requestListener = event -> receiveRequest((RequestEvent) event);
+
+  private final Object expectLock = new Object();
+
+  // what this object is armed for, guarded by expectLock
+  private Expectation expected;
+
   /**
    * A constructor for this class. This object immediately starts listening for a SUBSCRIBE request.
    * 
@@ -95,9 +107,9 @@ public class PresenceNotifySender implements MessageListener {
   public PresenceNotifySender(SipPhone phone) {
     this.phone = phone;
     phone.setLoopback(true);
-    phone.listenRequestMessage();
     receivedRequests = Collections.synchronizedList(new ArrayList<SipRequest>());
     receivedResponses = Collections.synchronizedList(new ArrayList<SipResponse>());
+    phone.addRequestListener(Request.SUBSCRIBE, requestListener);
   }
 
   /**
@@ -105,12 +117,19 @@ public class PresenceNotifySender implements MessageListener {
    * 
    */
   public void dispose() {
+    synchronized (expectLock) {
+      cancel(expected);
+      expected = null;
+    }
+
+    phone.removeRequestListener(Request.SUBSCRIBE, requestListener);
+    phone.removeRequestListener(Request.REFER, requestListener);
     phone.dispose();
   }
 
   /**
-   * This method waits for up to 10 seconds to receive a SUBSCRIBE and if received, it sends an OK
-   * response.
+   * Same as processSubscribe(10000, SipResponse.OK, null): the next SUBSCRIBE received within 10
+   * seconds is answered with an OK response.
    * 
    */
   public void processSubscribe() {
@@ -118,12 +137,15 @@ public class PresenceNotifySender implements MessageListener {
   }
 
   /**
-   * This method starts a thread that waits for up to 'timeout' milliseconds to receive a SUBSCRIBE
-   * and if received, it sends a response with 'statusCode' and 'reasonPhrase' (if not null). This
-   * method waits 500 ms before returning to allow the thread to get started and begin waiting for
-   * an incoming SUBSCRIBE. This method adds 500ms to the given timeout to account for this delay.
+   * This method arms this object to handle the next SUBSCRIBE received within 'timeout'
+   * milliseconds: when it arrives, a response with
+   * 'statusCode' and 'reasonPhrase' (if not null) is sent. This method returns right away - the
+   * SUBSCRIBE is handled as it is received, on the phone's event loop in event-loop mode (see
+   * SipStack.setEventLoops()) or else on a thread pool shared by the SipPhones, so a test
+   * may run many notify senders without a thread each. If no SUBSCRIBE is received in time,
+   * getErrorMessage() tells so.
    * 
-   * @param timeout - number of milliseconds to wait for the SUBSCRIBE
+   * @param timeout - number of milliseconds to wait for the SUBSCRIBE, 0 to wait indefinitely
    * @param statusCode - use in the response to the SUBSCRIBE
    * @param reasonPhrase - if not null, use in the SUBSCRIBE response
    */
@@ -139,103 +161,152 @@ public class PresenceNotifySender implements MessageListener {
    * &gt;= 0. (b) this method takes an EventHeader for overriding what would normally/correctly be
    * sent back in the respone (same as what was received in the request).
    */
-  public void processSubscribe(long timeout, int statusCode, String reasonPhrase,
-      int overrideDuration, EventHeader overrideEvent) {
+  public void processSubscribe(long timeout, final int statusCode, final String reasonPhrase,
+      final int overrideDuration, final EventHeader overrideEvent) {
     setErrorMessage("");
 
-    PhoneB b = new PhoneB(timeout + 500, statusCode, reasonPhrase, overrideDuration, overrideEvent);
-    b.start();
+    expectRequest(Request.SUBSCRIBE, timeout, (inc_req, trans) -> {
+      Request req = inc_req.getRequest();
+
+      int duration = 3600;
+      ExpiresHeader exp = (ExpiresHeader) req.getHeader(ExpiresHeader.NAME);
+      if (exp != null) {
+        duration = exp.getExpires();
+      }
+      if (overrideDuration > -1) {
+        duration = overrideDuration;
+      }
+
+      // save event header
+      if (overrideEvent != null) {
+        eventHeader = overrideEvent;
+      } else {
+        eventHeader = (EventHeader) req.getHeader(EventHeader.NAME).clone();
+      }
+
+      return sendResponse(trans, statusCode, reasonPhrase, toTag, req, duration);
+    });
   }
 
-  class PhoneB extends Thread {
-    long timeout;
+  /**
+   * Arms this object to handle the next request of the given method received within the given
+   * time (0 for no limit), replacing what was armed before. The handler is called with the dialog
+   * lock held, the server transaction created and the to-tag set; it sends the response and
+   * returns the dialog, or null on failure.
+   */
+  protected void expectRequest(final String method, long timeout, RequestHandler handler) {
+    final Expectation expectation = new Expectation(method, handler);
+
+    synchronized (expectLock) {
+      cancel(expected);
+      expected = expectation;
+      if (timeout > 0) {
+        expectation.timer = getScheduler().schedule(() -> expire(expectation), timeout,
+            TimeUnit.MILLISECONDS);
+      }
+    }
+  }
 
-    int statusCode;
+  private void expire(Expectation expectation) {
+    synchronized (expectLock) {
+      if (expected != expectation) {
+        return; // handled or replaced in the meantime
+      }
+      expected = null;
+    }
 
-    String reasonPhrase;
+    setErrorMessage(
+        "The maximum amount of time to wait for a " + expectation.method + " has elapsed.");
+  }
 
-    int overrideDuration;
+  /*
+   * Called on the SIP stack thread (or the phone's event loop) for each SUBSCRIBE or REFER received
+   * by the phone.
+   */
+  private void receiveRequest(final RequestEvent inc_req) {
+    receivedRequests.add(new SipRequest(inc_req));
+
+    final Expectation expectation;
+    synchronized (expectLock) {
+      expectation = expected;
+      if ((expectation == null)
+          || !expectation.method.equals(inc_req.getRequest().getMethod())) {
+        return; // not armed for it
+      }
 
-    EventHeader overrideEvent;
+      cancel(expectation);
+      expected = null;
+    }
 
-    public PhoneB(long timeout, int statusCode, String reasonPhrase, int overrideDuration,
-        EventHeader overrideEvent) {
-      this.timeout = timeout;
-      this.statusCode = statusCode;
-      this.reasonPhrase = reasonPhrase;
-      this.overrideDuration = overrideDuration;
-      this.overrideEvent = overrideEvent;
+    if (phone.getEventLoop() != null) {
+      handleRequest(inc_req, expectation.handler);
+      return;
     }
 
-    public void run() {
-      try {
-        phone.unlistenRequestMessage(); // clear out request queue
-        phone.listenRequestMessage();
-
-        RequestEvent inc_req = phone.waitRequest(timeout);
-        while (inc_req != null) {
-          receivedRequests.add(new SipRequest(inc_req));
-          Request req = inc_req.getRequest();
-          if (req.getMethod().equals(Request.SUBSCRIBE) == false) {
-            inc_req = phone.waitRequest(timeout);
-            continue;
-          }
+    getScheduler().execute(() -> handleRequest(inc_req, expectation.handler));
+  }
 
-          try {
-            synchronized (dialogLock) {
-              ServerTransaction trans = inc_req.getServerTransaction();
-              if (trans == null) {
-                trans = phone.getParent().getSipProvider().getNewServerTransaction(req);
-              }
-
-              if (toTag == null) {
-                toTag = new Long(Calendar.getInstance().getTimeInMillis()).toString();
-              }
-
-              int duration = 3600;
-              ExpiresHeader exp = (ExpiresHeader) req.getHeader(ExpiresHeader.NAME);
-              if (exp != null) {
-                duration = exp.getExpires();
-              }
-              if (overrideDuration > -1) {
-                duration = overrideDuration;
-              }
-
-              // enable auth challenge handling
-              phone.enableAuthorization(((CallIdHeader) req.getHeader(CallIdHeader.NAME)).getCallId());
-
-              // save event header
-              if (overrideEvent != null) {
-                eventHeader = overrideEvent;
-              } else {
-                eventHeader = (EventHeader) req.getHeader(EventHeader.NAME).clone();
-              }
-
-              dialog = sendResponse(trans, statusCode, reasonPhrase, toTag, req, duration);
-
-              if (dialog == null) {
-                phone.clearAuthorizations(
-                    ((CallIdHeader) req.getHeader(CallIdHeader.NAME)).getCallId());
-                return;
-              }
-            }
-
-            LOG.trace("Sent response to SUBSCRIBE");
-            return;
-          } catch (Throwable e) {
-            setErrorMessage("Throwable: " + e.getClass().getName() + ": " + e.getMessage());
-            return;
-          }
+  private static void cancel(Expectation expectation) {
+    if ((expectation != null) && (expectation.timer != null)) {
+      expectation.timer.cancel(false);
+    }
+  }
+
+  private void handleRequest(RequestEvent inc_req, RequestHandler handler) {
+    Request req = inc_req.getRequest();
+    String callId = ((CallIdHeader) req.getHeader(CallIdHeader.NAME)).getCallId();
+
+    try {
+      synchronized (dialogLock) {
+        ServerTransaction trans = inc_req.getServerTransaction();
+        if (trans == null) {
+          trans = phone.getParent().getSipProvider().getNewServerTransaction(req);
         }
 
-        setErrorMessage(phone.getErrorMessage());
-        return;
-      } catch (Exception e) {
-        setErrorMessage("Exception: " + e.getClass().getName() + ": " + e.getMessage());
-      } catch (Throwable t) {
-        setErrorMessage("Throwable: " + t.getClass().getName() + ": " + t.getMessage());
-        return;
+        if (toTag == null) {
+          toTag = phone.generateNewTag();
+        }
+
+        // enable auth challenge handling
+        phone.enableAuthorization(callId);
+
+        dialog = handler.handle(inc_req, trans);
+        if (dialog == null) {
+          phone.clearAuthorizations(callId);
+          return;
+        }
       }
+
+      LOG.trace("Sent response to {}", req.getMethod());
+    } catch (Throwable e) {
+      setErrorMessage("Throwable: " + e.getClass().getName() + ": " + e.getMessage());
+    }
+  }
+
+  private ScheduledExecutorService getScheduler() {
+    return EventLoop.getScheduler(phone);
+  }
+
+  /**
+   * Handles a request this object has been armed for - see expectRequest().
+   */
+  protected interface RequestHandler {
+    Dialog handle(RequestEvent requestEvent, ServerTransaction transaction) throws Exception;
+  }
+
+  /*
+   * A request this object is armed for
+   */
+  private static class Expectation {
+    final String method;
+
+    final RequestHandler handler;
+
+    ScheduledFuture<?> timer; // guarded by expectLock
+
+    Expectation(String method, RequestHandler handler) {
+      this.method = method;
+      this.handler = handler;
     }
   }
 
@@ -371,60 +442,103 @@ public class PresenceNotifySender implements MessageListener {
       }
 
       try {
-        Request req = dialog.createRequest(Request.NOTIFY);
-
-        EventHeader ehdr = eventHdr;
-        if (ehdr == null) {
-          if (eventHeader != null) {
-            ehdr = phone.getParent().getHeaderFactory().createEventHeader(eventHeader.getEventType());
-            if (eventHeader.getEventId() != null) {
-              ehdr.setEventId(eventHeader.getEventId());
-            }
-          } else {
-            ehdr = phone.getParent().getHeaderFactory().createEventHeader(getEventType());
-          }
-        }
-        req.setHeader(ehdr);
+        return sendNotify(createNotify(subscriptionState, termReason, body, timeLeft, eventHdr,
+            ssHdr, accHdr, ctHdr), viaProxy);
+      } catch (Exception e) {
+        setErrorMessage(e.getClass().getName() + ": " + e.getMessage());
+      }
 
-        SubscriptionStateHeader hdr = ssHdr;
-        if (hdr == null) {
-          hdr = phone.getParent().getHeaderFactory().createSubscriptionStateHeader(subscriptionState);
+    }
+    return false;
 
-          if (subscriptionState.equalsIgnoreCase(SubscriptionStateHeader.TERMINATED)) {
-            hdr.setReasonCode(termReason);
-          } else if (timeLeft != -1) {
-            hdr.setExpires(timeLeft);
-          }
-        }
-        req.setHeader(hdr);
+  }
 
-        AcceptHeader accept = accHdr;
-        if (accept == null) {
-          accept = phone.getParent().getHeaderFactory().createAcceptHeader(getPackageContentType(),
-              getPackageContentSubType());
-        }
-        req.setHeader(accept);
+  /**
+   * Sends a NOTIFY with the given body and an active subscription state on the dialog, the response
+   * going to the given listener instead of this object - for NotifyLoadGenerator, which keeps the
+   * responses to itself. The request isn't kept as the last sent NOTIFY.
+   * 
+   * @return the transaction, or null if the NOTIFY couldn't be sent (see getErrorMessage()).
+   */
+  SipTransaction sendNotify(String body, int timeLeft, MessageListener listener) {
+    synchronized (dialogLock) {
+      if (dialog == null) {
+        setErrorMessage("Can't send notify, haven't received a request");
+        return null;
+      }
 
-        // now for the body
-        ContentTypeHeader ct_hdr = ctHdr;
-        if (ct_hdr == null) {
-          ct_hdr = phone.getParent().getHeaderFactory()
-              .createContentTypeHeader(getPackageContentType(), getPackageContentSubType());
+      try {
+        Request req = createNotify(SubscriptionStateHeader.ACTIVE, null, body, timeLeft, null, null,
+            null, null);
+        phone.addAuthorizations(((CallIdHeader) req.getHeader(CallIdHeader.NAME)).getCallId(), req);
+
+        SipTransaction transaction = phone.sendRequestWithTransaction(req, false, dialog, listener);
+        if (transaction == null) {
+          setErrorMessage(phone.getErrorMessage());
         }
+        return transaction;
+      } catch (Exception e) {
+        setErrorMessage(e.getClass().getName() + ": " + e.getMessage());
+      }
+    }
 
-        req.setContent(body, ct_hdr);
+    return null;
+  }
 
-        req.setContentLength(
-            phone.getParent().getHeaderFactory().createContentLengthHeader(body.length()));
+  /*
+   * Creates a NOTIFY on the dialog - see sendNotify() for the parameters. Called with the dialog
+   * lock held.
+   */
+  private Request createNotify(String subscriptionState, String termReason, String body,
+      int timeLeft, EventHeader eventHdr, SubscriptionStateHeader ssHdr, AcceptHeader accHdr,
+      ContentTypeHeader ctHdr) throws Exception {
+    Request req = dialog.createRequest(Request.NOTIFY);
 
-        return sendNotify(req, viaProxy);
-      } catch (Exception e) {
-        setErrorMessage(e.getClass().getName() + ": " + e.getMessage());
+    EventHeader ehdr = eventHdr;
+    if (ehdr == null) {
+      if (eventHeader != null) {
+        ehdr = phone.getParent().getHeaderFactory().createEventHeader(eventHeader.getEventType());
+        if (eventHeader.getEventId() != null) {
+          ehdr.setEventId(eventHeader.getEventId());
+        }
+      } else {
+        ehdr = phone.getParent().getHeaderFactory().createEventHeader(getEventType());
       }
+    }
+    req.setHeader(ehdr);
+
+    SubscriptionStateHeader hdr = ssHdr;
+    if (hdr == null) {
+      hdr = phone.getParent().getHeaderFactory().createSubscriptionStateHeader(subscriptionState);
 
+      if (subscriptionState.equalsIgnoreCase(SubscriptionStateHeader.TERMINATED)) {
+        hdr.setReasonCode(termReason);
+      } else if (timeLeft != -1) {
+        hdr.setExpires(timeLeft);
+      }
     }
-    return false;
+    req.setHeader(hdr);
 
+    AcceptHeader accept = accHdr;
+    if (accept == null) {
+      accept = phone.getParent().getHeaderFactory().createAcceptHeader(getPackageContentType(),
+          getPackageContentSubType());
+    }
+    req.setHeader(accept);
+
+    // now for the body
+    ContentTypeHeader ct_hdr = ctHdr;
+    if (ct_hdr == null) {
+      ct_hdr = phone.getParent().getHeaderFactory()
+          .createContentTypeHeader(getPackageContentType(), getPackageContentSubType());
+    }
+
+    req.setContent(body, ct_hdr);
+
+    req.setContentLength(
+        phone.getParent().getHeaderFactory().createContentLengthHeader(body.length()));
+
+    return req;
   }
 
   /**
@@ -504,10 +618,9 @@ public class PresenceNotifySender implements MessageListener {
         }
 
         if (dialog == null) {
-          req.setHeader(phone.getParent().getHeaderFactory()
-              .createCallIdHeader("somecallid-" + (System.currentTimeMillis() % 3600000)));
+          req.setHeader(phone.getNewCallIdHeader());
 
-          toTag = new Long(Calendar.getInstance().getTimeInMillis()).toString();
+          toTag = phone.generateNewTag();
           FromHeader from_header =
               phone.getParent().getHeaderFactory().createFromHeader(phone.getAddress(), toTag);
           req.setHeader(from_header);
@@ -19,27 +19,16 @@ package org.cafesip.sipunit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import javax.sip.header.AcceptHeader;
 import javax.sip.header.ContentTypeHeader;
 import javax.sip.header.EventHeader;
 import javax.sip.message.Request;
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.bind.ValidationEvent;
-import javax.xml.bind.ValidationEventHandler;
-
-import org.cafesip.sipunit.presenceparser.pidf.Contact;
-import org.cafesip.sipunit.presenceparser.pidf.Note;
-import org.cafesip.sipunit.presenceparser.pidf.Presence;
-import org.cafesip.sipunit.presenceparser.pidf.Tuple;
 
 /**
  * The PresenceSubscriber class represents a buddy from a SipPhone buddy list or a single-shot
@@ -86,6 +75,12 @@ public class PresenceSubscriber extends EventSubscriber {
    */
   private ArrayList<Object> presenceExtensions = new ArrayList<>();
 
+  /*
+   * Version of the partial notification (pidf-diff) state, -1 if no full state has been received in
+   * a pidf-diff document
+   */
+  private long pidfVersion = -1;
+
   /**
    * A constructor for this class. Used internally by SipUnit. Test programs should call the
    * SipPhone.addBuddy() or fetchPresenceInfo() method to create a subscription.
@@ -98,6 +93,13 @@ public class PresenceSubscriber extends EventSubscriber {
     super(uri, parent);
   }
 
+  /*
+   * For a resource of a list subscription - see ResourceListSubscriber.
+   */
+  PresenceSubscriber(String uri, ResourceListSubscriber list) throws ParseException {
+    super(uri, list);
+  }
+
   /**
    * This method is the same as EventSubscriber.createSubscribeMessage() except there's no need for
    * the caller to supply the eventType parameter.
@@ -111,7 +113,23 @@ public class PresenceSubscriber extends EventSubscriber {
    * @return a SUBSCRIBE request
    */
   public Request createSubscribeMessage(int duration, String eventId) {
-    return super.createSubscribeMessage(duration, eventId, "presence");
+    Request req = super.createSubscribeMessage(duration, eventId, "presence");
+    if ((req == null) || (parent.isPresencePartialNotification() == false)) {
+      return req;
+    }
+
+    try {
+      req.removeHeader(AcceptHeader.NAME);
+      req.addHeader(parent.getHeaderFactory().createAcceptHeader("application", "pidf+xml"));
+      req.addHeader(parent.getHeaderFactory().createAcceptHeader("application", "pidf-diff+xml"));
+    } catch (Exception ex) {
+      setReturnCode(SipSession.EXCEPTION_ENCOUNTERED);
+      setException(ex);
+      setErrorMessage("Exception: " + ex.getClass().getName() + ": " + ex.getMessage());
+      return null;
+    }
+
+    return req;
   }
 
   protected boolean expiresResponseHeaderApplicable() {
@@ -145,6 +163,9 @@ public class PresenceSubscriber extends EventSubscriber {
     if (ct.getContentType().equals("application") == false) {
       throw new SubscriptionError(SipResponse.UNSUPPORTED_MEDIA_TYPE,
           "received NOTIFY body with unsupported content type = " + ct.getContentType());
+    } else if (ct.getContentSubType().equals("pidf-diff+xml")) {
+      updatePartialEventInfo(bodyBytes);
+      return;
     } else if (ct.getContentSubType().equals("pidf+xml") == false) {
       throw new SubscriptionError(SipResponse.UNSUPPORTED_MEDIA_TYPE,
           "received NOTIFY body with unsupported content subtype = " + ct.getContentSubType());
@@ -153,85 +174,139 @@ public class PresenceSubscriber extends EventSubscriber {
     // parse and get info from the xml body
 
     try {
-      Unmarshaller parser =
-          JAXBContext.newInstance("org.cafesip.sipunit.presenceparser.pidf").createUnmarshaller();
-      parser.setEventHandler(new ValidationEventHandler() {
-        public boolean handleEvent(ValidationEvent arg0) {
-          if (arg0.getMessage().startsWith("Unexpected element")) {
-            return true;
-          }
-
-          return false;
-        }
-      });
-      Presence doc = (Presence) parser.unmarshal(new ByteArrayInputStream(bodyBytes));
+      PidfParser.Document doc =
+          PidfParser.parse(bodyBytes, parent.getParent().getPidfParser());
 
       // is it the correct presentity?
 
-      if (!targetUri.equals(doc.getEntity())) {
+      if (!targetUri.equals(doc.entity)) {
         throw new SubscriptionError(SipResponse.BAD_REQUEST,
-            "received NOTIFY body with wrong presentity = " + doc.getEntity());
+            "received NOTIFY body with wrong presentity = " + doc.entity);
       }
 
       // finally, update our presence information
 
-      devices.clear();
-      if (doc.getTuple() != null) {
-        Iterator<?> i = doc.getTuple().iterator();
-        while (i.hasNext()) {
-          Tuple t = (Tuple) i.next();
-
-          PresenceDeviceInfo dev = new PresenceDeviceInfo();
-          dev.setBasicStatus(t.getStatus().getBasic());
-
-          Contact contact = t.getContact();
-          if (contact != null) {
-            if (contact.getPriority() != null) {
-              dev.setContactPriority(contact.getPriority().doubleValue());
-            }
-            dev.setContactValue(contact.getValue());
-          }
+      setPresenceInfo(doc);
+      pidfVersion = -1;
 
-          dev.setDeviceExtensions(t.getAny());
-          dev.setId(t.getId());
-          dev.setStatusExtensions(t.getStatus().getAny());
-          dev.setTimestamp(t.getTimestamp());
-
-          List<PresenceNote> notes = new ArrayList<>();
-          if (t.getNote() != null) {
-            Iterator<?> j = t.getNote().iterator();
-            while (j.hasNext()) {
-              Note n = (Note) j.next();
-              notes.add(new PresenceNote(n.getLang(), n.getValue()));
-            }
-          }
-          dev.setDeviceNotes(notes);
+      LOG.trace("Successfully processed NOTIFY message body for Subscription to " + targetUri);
+    } catch (Exception e) {
+      throw new SubscriptionError(SipResponse.BAD_REQUEST,
+          "NOTIFY body parsing error : " + e.getMessage());
+    }
 
-          devices.put(t.getId(), dev);
-        }
+    return;
+  }
+
+  /*
+   * Handles a partial notification (RFC 5262/5263) body: either the full state, which replaces the
+   * current presence information, or a patch of the next version, which is applied to it. The
+   * patch operations are checked against the current state before anything is changed, so that a
+   * bad patch leaves the presence information as it was.
+   */
+  private void updatePartialEventInfo(byte[] bodyBytes) throws SubscriptionError {
+    PidfParser.Diff diff;
+    try {
+      diff = PidfParser.parseDiff(bodyBytes);
+    } catch (Exception e) {
+      throw new SubscriptionError(SipResponse.BAD_REQUEST,
+          "NOTIFY body parsing error : " + e.getMessage());
+    }
+
+    if (diff.full != null) {
+      if (!targetUri.equals(diff.full.entity)) {
+        throw new SubscriptionError(SipResponse.BAD_REQUEST,
+            "received NOTIFY body with wrong presentity = " + diff.full.entity);
       }
 
-      presenceNotes.clear();
-      if (doc.getNote() != null) {
-        Iterator<?> i = doc.getNote().iterator();
-        while (i.hasNext()) {
-          Note n = (Note) i.next();
-          presenceNotes.add(new PresenceNote(n.getLang(), n.getValue()));
+      setPresenceInfo(diff.full);
+      pidfVersion = diff.version;
+
+      LOG.trace("Processed full state NOTIFY body version {} for Subscription to {}", pidfVersion,
+          targetUri);
+      return;
+    }
+
+    if (pidfVersion < 0) {
+      throw new SubscriptionError(SipResponse.BAD_REQUEST,
+          "received a partial NOTIFY body before the full state");
+    }
+
+    if (diff.version != pidfVersion + 1) {
+      throw new SubscriptionError(SipResponse.BAD_REQUEST,
+          "received a partial NOTIFY body out of sequence, version = " + diff.version
+              + ", expected " + (pidfVersion + 1));
+    }
+
+    // the devices changed by the patch, value = null for a removed device
+    HashMap<String, PresenceDeviceInfo> changes = new HashMap<>();
+    ArrayList<PresenceNote> prependedNotes = new ArrayList<>();
+    ArrayList<PresenceNote> appendedNotes = new ArrayList<>();
+
+    for (PidfParser.Operation op : diff.operations) {
+      if (op.type == PidfParser.ADD) {
+        for (PresenceDeviceInfo dev : op.tuples) {
+          if (patchedDevice(changes, dev.getId()) != null) {
+            throw new SubscriptionError(SipResponse.BAD_REQUEST,
+                "received a partial NOTIFY body adding existing tuple " + dev.getId());
+          }
+          changes.put(dev.getId(), dev);
         }
+
+        (op.prepend ? prependedNotes : appendedNotes).addAll(op.notes);
+        continue;
       }
 
-      presenceExtensions.clear();
-      if (doc.getAny() != null) {
-        presenceExtensions.addAll((Collection<?>) doc.getAny());
+      if (patchedDevice(changes, op.tupleId) == null) {
+        throw new SubscriptionError(SipResponse.BAD_REQUEST,
+            "received a partial NOTIFY body for unknown tuple " + op.tupleId);
+      }
+      changes.put(op.tupleId, null);
+
+      if (op.type == PidfParser.REPLACE) {
+        PresenceDeviceInfo dev = op.tuples.get(0);
+        if (patchedDevice(changes, dev.getId()) != null) {
+          throw new SubscriptionError(SipResponse.BAD_REQUEST,
+              "received a partial NOTIFY body replacing tuple " + op.tupleId
+                  + " with existing tuple " + dev.getId());
+        }
+        changes.put(dev.getId(), dev);
       }
+    }
 
-      LOG.trace("Successfully processed NOTIFY message body for Subscription to " + targetUri);
-    } catch (Exception e) {
-      throw new SubscriptionError(SipResponse.BAD_REQUEST,
-          "NOTIFY body parsing error : " + e.getMessage());
+    for (Map.Entry<String, PresenceDeviceInfo> change : changes.entrySet()) {
+      if (change.getValue() == null) {
+        devices.remove(change.getKey());
+      } else {
+        devices.put(change.getKey(), change.getValue());
+      }
     }
 
-    return;
+    presenceNotes.addAll(0, prependedNotes);
+    presenceNotes.addAll(appendedNotes);
+
+    pidfVersion = diff.version;
+
+    LOG.trace("Applied partial NOTIFY body version {} ({} tuples changed) for Subscription to {}",
+        pidfVersion, changes.size(), targetUri);
+  }
+
+  /*
+   * Replaces the presence information with that of the given document.
+   */
+  void setPresenceInfo(PidfParser.Document doc) {
+    devices.clear();
+    devices.putAll(doc.devices);
+
+    presenceNotes.clear();
+    presenceNotes.addAll(doc.notes);
+
+    presenceExtensions.clear();
+    presenceExtensions.addAll(doc.extensions);
+  }
+
+  private PresenceDeviceInfo patchedDevice(HashMap<String, PresenceDeviceInfo> changes, String id) {
+    return changes.containsKey(id) ? changes.get(id) : devices.get(id);
   }
 
   protected AcceptHeader getUnsupportedMediaAcceptHeader() throws ParseException {
@@ -249,6 +324,24 @@ public class PresenceSubscriber extends EventSubscriber {
     return new HashMap<>(devices);
   }
 
+  /**
+   * Returns getPresenceDevices().
+   */
+  protected Object getNotifyContent() {
+    return getPresenceDevices();
+  }
+
+  /**
+   * Gets the version of the presence information received in partial notification
+   * (application/pidf-diff+xml) NOTIFY bodies - see SipPhone.setPresencePartialNotification().
+   * 
+   * @return the version of the last full state or patch applied, or -1 if the presence information
+   *         doesn't come from a partial notification full state.
+   */
+  public long getPidfDiffVersion() {
+    return pidfVersion;
+  }
+
   /**
    * Gets the list of notes pertaining to this Subscription as received in the last NOTIFY message
    * (at the top 'presence' element level).
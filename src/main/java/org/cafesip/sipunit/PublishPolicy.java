@@ -0,0 +1,180 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.cafesip.sipunit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class describes how the publications (RFC 3903) of a SipPhone are kept alive, so that a test
+ * can hold thousands of EventPublisher objects against an event state compositor without driving
+ * their refreshes itself. A policy is put into effect by calling SipPhone.setPublishPolicy().
+ * 
+ * <p>
+ * With a policy in effect, the SipPhone refreshes each publication that holds an entity-tag before
+ * it expires, with a PUBLISH that has no body and carries the entity-tag in a SIP-If-Match header.
+ * If the compositor answers 412 Conditional Request Failed - it has lost the publication - the
+ * full state is published again at once, without a SIP-If-Match header. If it answers 423 Interval
+ * Too Brief, the PUBLISH is sent again at once with the duration of its Min-Expires header, which
+ * the publication keeps from then on (RFC 3903). A refresh that fails otherwise is retried after a
+ * short delay, and the state is published again if the publication
+ * expires meanwhile. Refreshes are sent from one scheduler thread per SipPhone (or its event loop,
+ * see SipStack.setEventLoops()), whatever the number of publications.
+ * 
+ * <p>
+ * The refreshes of all the publications are counted by this object - see the getXyz() counter
+ * methods, getConditionalFailureRate() and getRefreshLatency(). A policy object may be shared by
+ * several SipPhones, in which case the counters are the totals for all of them.
+ * 
+ */
+public class PublishPolicy {
+
+  private volatile long refreshInterval = 0;
+
+  private final AtomicLong refreshesSent = new AtomicLong();
+
+  private final AtomicLong refreshesSucceeded = new AtomicLong();
+
+  private final AtomicLong conditionalFailures = new AtomicLong();
+
+  private final AtomicLong republishes = new AtomicLong();
+
+  private final AtomicLong intervalsTooBrief = new AtomicLong();
+
+  private final AtomicLong refreshFailures = new AtomicLong();
+
+  private final LatencyHistogram refreshLatency = new LatencyHistogram();
+
+  /**
+   * Sets the time between the refreshes of a publication, in milliseconds. The default, 0,
+   * refreshes a publication a third of its granted expiry time or 32 seconds before it expires,
+   * whichever is less. A fixed interval shorter than the expiry time is useful to load a
+   * compositor with refreshes.
+   */
+  public void setRefreshInterval(long refreshInterval) {
+    if (refreshInterval < 0) {
+      throw new IllegalArgumentException("refresh interval must not be negative");
+    }
+    this.refreshInterval = refreshInterval;
+  }
+
+  public long getRefreshInterval() {
+    return refreshInterval;
+  }
+
+  /**
+   * Returns the number of refreshes (PUBLISH requests without a body) sent.
+   */
+  public long getRefreshesSent() {
+    return refreshesSent.get();
+  }
+
+  /**
+   * Returns the number of refreshes sent that got a 2xx response.
+   */
+  public long getRefreshesSucceeded() {
+    return refreshesSucceeded.get();
+  }
+
+  /**
+   * Returns the number of refreshes sent that got a 412 Conditional Request Failed response.
+   */
+  public long getConditionalFailures() {
+    return conditionalFailures.get();
+  }
+
+  /**
+   * Returns the number of times the full state of a publication has been published again, after a
+   * 412 response or the expiry of the publication.
+   */
+  public long getRepublishes() {
+    return republishes.get();
+  }
+
+  /**
+   * Returns the number of refreshes and republications sent that got a 423 Interval Too Brief
+   * response, and were sent again with a longer duration.
+   */
+  public long getIntervalsTooBrief() {
+    return intervalsTooBrief.get();
+  }
+
+  /**
+   * Returns the number of refreshes and republications sent that got an error response other than
+   * 412 or 423 with a usable Min-Expires header, or no response, or couldn't be sent.
+   */
+  public long getRefreshFailures() {
+    return refreshFailures.get();
+  }
+
+  /**
+   * Returns the proportion of the refreshes sent that got a 412 response, from 0.0 to 1.0.
+   */
+  public double getConditionalFailureRate() {
+    long sent = getRefreshesSent();
+    return sent == 0 ? 0.0 : (double) getConditionalFailures() / sent;
+  }
+
+  /**
+   * Returns the time from sending each refresh to receiving its 2xx response.
+   */
+  public LatencyHistogram getRefreshLatency() {
+    return refreshLatency;
+  }
+
+  /**
+   * Sets all the counters and the refresh latency histogram back to 0.
+   */
+  public void resetCounters() {
+    refreshesSent.set(0);
+    refreshesSucceeded.set(0);
+    conditionalFailures.set(0);
+    republishes.set(0);
+    intervalsTooBrief.set(0);
+    refreshFailures.set(0);
+    refreshLatency.reset();
+  }
+
+  public String toString() {
+    return "refreshes sent=" + getRefreshesSent() + ", succeeded=" + getRefreshesSucceeded()
+        + ", 412=" + getConditionalFailures() + ", republished=" + getRepublishes()
+        + ", 423=" + getIntervalsTooBrief()
+        + ", failures=" + getRefreshFailures() + ", refresh latency: " + refreshLatency;
+  }
+
+  protected void refreshSent() {
+    refreshesSent.incrementAndGet();
+  }
+
+  protected void refreshSucceeded() {
+    refreshesSucceeded.incrementAndGet();
+  }
+
+  protected void conditionalFailure() {
+    conditionalFailures.incrementAndGet();
+  }
+
+  protected void republished() {
+    republishes.incrementAndGet();
+  }
+
+  protected void intervalTooBrief() {
+    intervalsTooBrief.incrementAndGet();
+  }
+
+  protected void refreshFailed() {
+    refreshFailures.incrementAndGet();
+  }
+}
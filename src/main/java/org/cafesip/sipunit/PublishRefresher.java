@@ -0,0 +1,304 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.cafesip.sipunit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EventObject;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.sip.ResponseEvent;
+import javax.sip.TimeoutEvent;
+import javax.sip.header.MinExpiresHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * FOR INTERNAL USE ONLY. A test class doesn't use this class.
+ *
+ * <p>
+ * This class carries out a PublishPolicy for a SipPhone. EventPublisher calls it each time a
+ * publication gets a 2xx response, and it schedules the next refresh of the publication. The
+ * refreshes are sent from the scheduler threads shared by the SipPhones, or from the phone's event
+ * loop in event-loop mode (see SipStack.setEventLoops()), without waiting for their responses:
+ * these are given to a listener of the transaction on the SIP stack thread.
+ *
+ * <p>
+ * The PUBLISH requests of the test program (EventPublisher.publish(), refresh() and unpublish())
+ * hold off the refreshes of their publication: they wait for the refresh outstanding, if any, to
+ * complete, so as to send the entity-tag it got back, and no refresh is sent until they are done.
+ * Otherwise two requests with the same SIP-If-Match would race and one would get a 412.
+ *
+ */
+class PublishRefresher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PublishRefresher.class);
+
+  private final SipPhone phone;
+
+  private final PublishPolicy policy;
+
+  private final ScheduledExecutorService scheduler;
+
+  private final Set<EventPublisher> publishers = ConcurrentHashMap.newKeySet();
+
+  private volatile boolean stopped; // the responses to refreshes sent may still come in
+
+  PublishRefresher(SipPhone phone, PublishPolicy policy) {
+    this.phone = phone;
+    this.policy = policy;
+    scheduler = EventLoop.getScheduler(phone);
+  }
+
+  PublishPolicy getPolicy() {
+    return policy;
+  }
+
+  void shutdown() {
+    stopped = true;
+    for (EventPublisher pub : publishers) {
+      synchronized (pub) {
+        cancelPending(pub);
+      }
+    }
+    publishers.clear();
+  }
+
+  /**
+   * Schedules the next refresh of the given publication, which has just got a 2xx response.
+   */
+  void schedule(EventPublisher pub) {
+    synchronized (pub) {
+      if (pub.ended || (pub.etag == null)) {
+        return;
+      }
+
+      long delay = policy.getRefreshInterval();
+      if (delay == 0) {
+        long expiry = TimeUnit.SECONDS.toMillis(pub.grantedExpires);
+        delay = expiry - Math.min(TimeUnit.SECONDS.toMillis(32), expiry / 3);
+      }
+
+      schedule(pub, delay);
+    }
+  }
+
+  /**
+   * Stops refreshing the given publication, when it is removed.
+   */
+  void cancel(EventPublisher pub) {
+    synchronized (pub) {
+      cancelPending(pub);
+    }
+    publishers.remove(pub);
+  }
+
+  // called with the publisher's monitor held
+  private void schedule(EventPublisher pub, long delay) {
+    if (stopped || (pub.held > 0)) {
+      return; // the test program's PUBLISH reschedules when done
+    }
+
+    cancelPending(pub);
+    publishers.add(pub);
+    pub.pending = scheduler.schedule(() -> refresh(pub), delay, TimeUnit.MILLISECONDS);
+  }
+
+  /*
+   * Sends a refresh, or the full state again if the publication has been lost
+   */
+  private void refresh(EventPublisher pub) {
+    String ifMatch;
+    String body;
+    int expires;
+    int generation;
+    synchronized (pub) {
+      pub.pending = null;
+      if (pub.ended || stopped || (pub.held > 0)) {
+        return;
+      }
+
+      ifMatch = pub.etag;
+      body = (ifMatch == null) ? pub.body : null;
+      expires = pub.expires;
+      generation = pub.generation;
+      if ((ifMatch == null) && (body == null)) {
+        return; // unpublished
+      }
+      pub.refreshing++;
+    }
+
+    Request req;
+    try {
+      req = pub.createPublish(body, expires, ifMatch);
+    } catch (Exception ex) {
+      LOG.error("Publish refresher: error creating PUBLISH for " + pub.getUri() + ": "
+          + ex.getClass().getName() + ": " + ex.getMessage(), ex);
+      failed(pub, generation);
+      completed(pub);
+      return;
+    }
+
+    if (ifMatch == null) {
+      policy.republished();
+    } else {
+      policy.refreshSent();
+    }
+
+    Pending listener = new Pending(pub, ifMatch != null, expires, generation);
+    if (phone.sendRequestWithTransaction(req, phone.getProxyHost() != null, null,
+        listener) == null) {
+      LOG.trace("Publish refresher couldn't send a PUBLISH for {}: {}", pub.getUri(),
+          phone.getErrorMessage());
+      failed(pub, generation);
+      completed(pub);
+    }
+  }
+
+  private void responded(Pending sent, Response response) {
+    EventPublisher pub = sent.pub;
+    int status;
+    synchronized (pub) {
+      if (pub.ended || (pub.generation != sent.generation)) {
+        return;
+      }
+      status = pub.published(response, sent.expires);
+    }
+
+    if (status / 100 == 2) {
+      if (sent.refresh) {
+        policy.refreshSucceeded();
+        policy.getRefreshLatency().record(System.nanoTime() - sent.sentAt);
+      }
+      schedule(pub);
+      return;
+    }
+
+    if (sent.refresh && (status == SipResponse.CONDITIONAL_REQUEST_FAILED)) {
+      // the compositor has lost the publication, publish the full state again
+      policy.conditionalFailure();
+      synchronized (pub) {
+        if (pub.generation == sent.generation) {
+          schedule(pub, 0);
+        }
+      }
+      return;
+    }
+
+    if (status == SipResponse.INTERVAL_TOO_BRIEF) {
+      // send it again at once with the shortest duration the compositor accepts
+      MinExpiresHeader minExpires = (MinExpiresHeader) response.getHeader(MinExpiresHeader.NAME);
+      if ((minExpires != null) && (minExpires.getExpires() > sent.expires)) {
+        policy.intervalTooBrief();
+        synchronized (pub) {
+          if (pub.generation == sent.generation) {
+            pub.expires = Math.max(pub.expires, minExpires.getExpires());
+            schedule(pub, 0);
+          }
+        }
+        return;
+      }
+    }
+
+    LOG.trace("Publish refresher got {} to a PUBLISH for {}", status, pub.getUri());
+    failed(pub, sent.generation);
+  }
+
+  /*
+   * Retries a failed refresh after a short delay, within the time left before the publication
+   * expires, or publishes the full state again once it has expired
+   */
+  private void failed(EventPublisher pub, int generation) {
+    policy.refreshFailed();
+
+    long retry = 1000 + ThreadLocalRandom.current().nextLong(1000);
+    synchronized (pub) {
+      if (pub.ended || (pub.generation != generation)) {
+        return;
+      }
+
+      long left = TimeUnit.NANOSECONDS.toMillis(pub.expiresAt - System.nanoTime());
+      if (left <= 0) {
+        pub.etag = null;
+      } else {
+        retry = Math.min(left / 2, retry);
+      }
+
+      schedule(pub, retry);
+    }
+  }
+
+  // called with the publisher's monitor held
+  static void cancelPending(EventPublisher pub) {
+    if (pub.pending != null) {
+      pub.pending.cancel(false);
+      pub.pending = null;
+    }
+  }
+
+  /*
+   * Lets the test program's PUBLISH waiting in EventPublisher.hold() go, once the outcome of the
+   * refresh has been applied
+   */
+  private static void completed(EventPublisher pub) {
+    synchronized (pub) {
+      pub.refreshing--;
+      pub.notifyAll();
+    }
+  }
+
+  /*
+   * A PUBLISH awaiting its final response - the listener of its transaction, called on the SIP
+   * stack thread
+   */
+  private class Pending extends TransactionListener {
+    final EventPublisher pub;
+
+    final boolean refresh; // false for the full state published again
+
+    final int expires;
+
+    final int generation;
+
+    final long sentAt = System.nanoTime();
+
+    Pending(EventPublisher pub, boolean refresh, int expires, int generation) {
+      this.pub = pub;
+      this.refresh = refresh;
+      this.expires = expires;
+      this.generation = generation;
+    }
+
+    public void processEvent(EventObject event) {
+      if (event instanceof ResponseEvent) {
+        Response response = ((ResponseEvent) event).getResponse();
+        if ((response.getStatusCode() >= 200) && end()) {
+          responded(this, response);
+          completed(pub);
+        }
+      } else if ((event instanceof TimeoutEvent) && end()) {
+        LOG.trace("Publish refresher got no response to a PUBLISH for {}", pub.getUri());
+        failed(pub, generation);
+        completed(pub);
+      }
+    }
+  }
+}
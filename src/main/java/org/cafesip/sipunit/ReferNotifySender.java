@@ -20,13 +20,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.text.ParseException;
-import java.util.Calendar;
 
-import javax.sip.RequestEvent;
-import javax.sip.ServerTransaction;
 import javax.sip.header.AcceptHeader;
 import javax.sip.header.AllowEventsHeader;
-import javax.sip.header.CallIdHeader;
 import javax.sip.header.ContentTypeHeader;
 import javax.sip.header.EventHeader;
 import javax.sip.header.Header;
@@ -61,6 +57,7 @@ public class ReferNotifySender extends PresenceNotifySender {
    */
   public ReferNotifySender(SipPhone userb) {
     super(userb);
+    userb.addRequestListener(Request.REFER, requestListener);
   }
 
   /**
@@ -72,12 +69,12 @@ public class ReferNotifySender extends PresenceNotifySender {
   }
 
   /**
-   * This method starts a thread that waits for up to 'timeout' milliseconds to receive a REFER and
-   * if received, it sends a response with 'statusCode' and 'reasonPhrase' (if not null). This
-   * method waits 500 ms before returning to allow the thread to get started and begin waiting for
-   * an incoming REFER. This method adds 500ms to the given timeout to account for this delay.
+   * This method arms this object to handle the next REFER received within 'timeout' milliseconds:
+   * when it arrives, a response with 'statusCode' and 'reasonPhrase' (if not null) is sent. This
+   * method returns right away - see PresenceNotifySender.processSubscribe() for how the REFER is
+   * handled.
    * 
-   * @param timeout - number of milliseconds to wait for the request
+   * @param timeout - number of milliseconds to wait for the request, 0 to wait indefinitely
    * @param statusCode - use in the response to the request
    * @param reasonPhrase - if not null, use in the response
    */
@@ -92,105 +89,31 @@ public class ReferNotifySender extends PresenceNotifySender {
    * an EventHeader for overriding what would normally/correctly be sent back in the response
    * (normally same as what was received in the request).
    */
-  public void processRefer(long timeout, int statusCode, String reasonPhrase, int duration,
-      EventHeader overrideEvent) {
+  public void processRefer(long timeout, final int statusCode, final String reasonPhrase,
+      final int duration, final EventHeader overrideEvent) {
     setErrorMessage("");
 
-    PhoneB b = new PhoneB(timeout + 500, statusCode, reasonPhrase, duration, overrideEvent);
-    b.start();
-  }
-
-  class PhoneB extends Thread {
-    long timeout;
-
-    int statusCode;
-
-    String reasonPhrase;
-
-    int duration;
-
-    EventHeader overrideEvent;
-
-    public PhoneB(long timeout, int statusCode, String reasonPhrase, int duration,
-        EventHeader overrideEvent) {
-      this.timeout = timeout;
-      this.statusCode = statusCode;
-      this.reasonPhrase = reasonPhrase;
-      this.duration = duration;
-      this.overrideEvent = overrideEvent;
-    }
-
-    public void run() {
-      try {
-        phone.unlistenRequestMessage(); // clear out request queue
-        phone.listenRequestMessage();
-
-        RequestEvent inc_req = phone.waitRequest(timeout);
-        while (inc_req != null) {
-          receivedRequests.add(new SipRequest(inc_req));
-          Request req = inc_req.getRequest();
-          if (req.getMethod().equals(Request.REFER) == false) {
-            inc_req = phone.waitRequest(timeout);
-            continue;
-          }
+    expectRequest(Request.REFER, timeout, (inc_req, trans) -> {
+      Request req = inc_req.getRequest();
 
-          try {
-            synchronized (dialogLock) {
-              ServerTransaction trans = inc_req.getServerTransaction();
-              if (trans == null) {
-                trans = phone.getParent().getSipProvider().getNewServerTransaction(req);
-              }
-
-              if (toTag == null) {
-                toTag = new Long(Calendar.getInstance().getTimeInMillis()).toString();
-              }
-
-              // enable auth challenge handling
-              phone.enableAuthorization(((CallIdHeader) req.getHeader(CallIdHeader.NAME)).getCallId());
-
-              // save event header
-              if (overrideEvent != null) {
-                eventHeader = overrideEvent;
-              } else {
-                eventHeader = (EventHeader) req.getHeader(EventHeader.NAME).clone();
-              }
-
-              dialog = sendResponse(trans, statusCode, reasonPhrase, toTag, req, duration);
-
-              if (dialog == null) {
-                phone.clearAuthorizations(
-                    ((CallIdHeader) req.getHeader(CallIdHeader.NAME)).getCallId());
-                return;
-              }
-            }
-
-            LOG.trace("Sent response to REFER");
-            return;
-          } catch (Throwable e) {
-            setErrorMessage("Throwable: " + e.getClass().getName() + ": " + e.getMessage());
-            return;
-          }
-        }
-
-        setErrorMessage(phone.getErrorMessage());
-        return;
-      } catch (Exception e) {
-        setErrorMessage("Exception: " + e.getClass().getName() + ": " + e.getMessage());
-      } catch (Throwable t) {
-        setErrorMessage("Throwable: " + t.getClass().getName() + ": " + t.getMessage());
-        return;
+      // save event header
+      if (overrideEvent != null) {
+        eventHeader = overrideEvent;
+      } else {
+        eventHeader = (EventHeader) req.getHeader(EventHeader.NAME).clone();
       }
-    }
+
+      return sendResponse(trans, statusCode, reasonPhrase, toTag, req, duration);
+    });
   }
 
   /**
-   * This method starts a thread that waits for up to 'timeout' milliseconds to receive a REFER and
-   * if received, it sends NOTIFY with the given notify parms and 500ms later, it sends a response
-   * with 'statusCode' and 'reasonPhrase' (if not null). This method waits 500 ms before returning
-   * to allow the thread to get started and begin waiting for an incoming REFER. This method adds
-   * 1000ms to the given timeout to account for these delays.
+   * This method arms this object to handle the next REFER received within 'timeout' milliseconds:
+   * when it arrives, a NOTIFY with the given notify parms is sent and then a response with
+   * 'statusCode' and 'reasonPhrase' (if not null). This method returns right away - see
+   * PresenceNotifySender.processSubscribe() for how the REFER is handled.
    * 
-   * @param timeout - number of milliseconds to wait for the request
+   * @param timeout - number of milliseconds to wait for the request, 0 to wait indefinitely
    * @param statusCode - use in the response to the request
    * @param reasonPhrase - if not null, use in the response
    * @param notifySubscriptionState
@@ -198,110 +121,29 @@ public class ReferNotifySender extends PresenceNotifySender {
    * @param notifyBody
    * @param notifyTimeLeft
    */
-  public void processReferSendNotifyBeforeResponse(long timeout, int statusCode,
-      String reasonPhrase, String notifySubscriptionState, String notifyTermReason,
-      String notifyBody, int notifyTimeLeft) {
+  public void processReferSendNotifyBeforeResponse(long timeout, final int statusCode,
+      final String reasonPhrase, final String notifySubscriptionState,
+      final String notifyTermReason, final String notifyBody, final int notifyTimeLeft) {
     setErrorMessage("");
 
-    PhoneB2 b = new PhoneB2(timeout + 1000, statusCode, reasonPhrase, notifySubscriptionState,
-        notifyTermReason, notifyBody, notifyTimeLeft);
-    b.start();
-  }
-
-  class PhoneB2 extends Thread {
-    long timeout;
-
-    int statusCode;
-
-    String reasonPhrase;
-
-    String notifySubscriptionState;
-
-    String notifyTermReason;
-
-    String notifyBody;
-
-    int notifyTimeLeft;
-
-    public PhoneB2(long timeout, int statusCode, String reasonPhrase,
-        String notifySubscriptionState, String notifyTermReason, String notifyBody,
-        int notifyTimeLeft) {
-      this.timeout = timeout;
-      this.statusCode = statusCode;
-      this.reasonPhrase = reasonPhrase;
-      this.notifySubscriptionState = notifySubscriptionState;
-      this.notifyTermReason = notifyTermReason;
-      this.notifyBody = notifyBody;
-      this.notifyTimeLeft = notifyTimeLeft;
-    }
-
-    public void run() {
-      try {
-        phone.unlistenRequestMessage(); // clear out request queue
-        phone.listenRequestMessage();
+    expectRequest(Request.REFER, timeout, (inc_req, trans) -> {
+      Request req = inc_req.getRequest();
 
-        RequestEvent inc_req = phone.waitRequest(timeout);
-        while (inc_req != null) {
-          receivedRequests.add(new SipRequest(inc_req));
-          Request req = inc_req.getRequest();
-          if (req.getMethod().equals(Request.REFER) == false) {
-            inc_req = phone.waitRequest(timeout);
-            continue;
-          }
+      // save original event header
+      eventHeader = (EventHeader) req.getHeader(EventHeader.NAME).clone();
 
-          try {
-            synchronized (dialogLock) {
-              ServerTransaction trans = inc_req.getServerTransaction();
-              if (trans == null) {
-                trans = phone.getParent().getSipProvider().getNewServerTransaction(req);
-              }
-
-              if (toTag == null) {
-                toTag = new Long(Calendar.getInstance().getTimeInMillis()).toString();
-              }
-
-              // enable auth challenge handling
-              phone.enableAuthorization(((CallIdHeader) req.getHeader(CallIdHeader.NAME)).getCallId());
-
-              // save original event header
-              eventHeader = (EventHeader) req.getHeader(EventHeader.NAME).clone();
-
-              // send the NOTIFY before sending the REFER response
-              Request notifyRequest = inc_req.getDialog().createRequest(SipRequest.NOTIFY);
-              notifyRequest = addNotifyHeaders(notifyRequest, null, null, notifySubscriptionState,
-                  notifyTermReason, notifyBody, notifyTimeLeft);
-              notifyRequest.addHeader((Header) eventHeader.clone());
-              if (sendNotify(notifyRequest, false) == false) {
-                return;
-              }
-
-              // now send the REFER response
-              dialog = sendResponse(trans, statusCode, reasonPhrase, toTag, req, -1);
-
-              if (dialog == null) {
-                phone.clearAuthorizations(
-                    ((CallIdHeader) req.getHeader(CallIdHeader.NAME)).getCallId());
-                return;
-              }
-            }
-
-            LOG.trace("Sent response to REFER");
-            return;
-          } catch (Throwable e) {
-            setErrorMessage("Throwable: " + e.getClass().getName() + ": " + e.getMessage());
-            return;
-          }
-        }
-
-        setErrorMessage(phone.getErrorMessage());
-        return;
-      } catch (Exception e) {
-        setErrorMessage("Exception: " + e.getClass().getName() + ": " + e.getMessage());
-      } catch (Throwable t) {
-        setErrorMessage("Throwable: " + t.getClass().getName() + ": " + t.getMessage());
-        return;
+      // send the NOTIFY before sending the REFER response
+      Request notifyRequest = inc_req.getDialog().createRequest(SipRequest.NOTIFY);
+      notifyRequest = addNotifyHeaders(notifyRequest, null, null, notifySubscriptionState,
+          notifyTermReason, notifyBody, notifyTimeLeft);
+      notifyRequest.addHeader((Header) eventHeader.clone());
+      if (sendNotify(notifyRequest, false) == false) {
+        return null;
       }
-    }
+
+      // now send the REFER response
+      return sendResponse(trans, statusCode, reasonPhrase, toTag, req, -1);
+    });
   }
 
   /**
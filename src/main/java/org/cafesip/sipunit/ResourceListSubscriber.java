@@ -0,0 +1,464 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.cafesip.sipunit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sip.header.AcceptHeader;
+import javax.sip.header.ContentTypeHeader;
+import javax.sip.header.EventHeader;
+import javax.sip.header.ProxyAuthorizationHeader;
+import javax.sip.header.SubscriptionStateHeader;
+import javax.sip.message.Request;
+
+/**
+ * The ResourceListSubscriber class represents a presence subscription to a resource list (RFC
+ * 4662) - a URI standing for a list of presentities, such as a buddy list stored on a presence
+ * server. A single SUBSCRIBE dialog, refresh cycle and NOTIFY stream carries the presence of every
+ * resource in the list, instead of one of each per buddy as with SipPhone.addBuddy(). A
+ * subscription is created by calling SipPhone.subscribeResourceList().
+ *
+ * <p>
+ * The SUBSCRIBE requests carry "Supported: eventlist" and accept multipart/related,
+ * application/rlmi+xml and application/pidf+xml. Each received NOTIFY body is a multipart/related
+ * document whose root is the resource list meta-information (RLMI) and whose other parts are the
+ * PIDF documents of the resources referenced by it. Processing a NOTIFY (processNotify()) fans the
+ * content out into one PresenceSubscriber object per resource, obtained with getResources() or
+ * getResource(): its subscription state is that of the resource's instance in the RLMI document
+ * (pending if it has none) and its presence information (getPresenceDevices(), etc.) that of the
+ * resource's PIDF part. These objects only hold state - they don't send requests.
+ *
+ * <p>
+ * A full state notification replaces the list of resources. A partial one, which must carry the
+ * next RLMI version, updates the resources it lists and leaves the others as they are. A NOTIFY
+ * that can't be applied as a whole is rejected and leaves the state unchanged. Nested resource
+ * lists (multipart/related parts within the body) are not supported.
+ *
+ * <p>
+ * Like other subscriber objects, operation-invoking methods of this class return an object or true
+ * if successful. In case of an error or caller-specified timeout, a null object or a false is
+ * returned. The getErrorMessage(), getReturnCode() and getException() methods may be used for
+ * further diagnostics.
+ *
+ */
+public class ResourceListSubscriber extends EventSubscriber {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ResourceListSubscriber.class);
+
+  /*
+   * The resources of the list in RLMI document order, indexed by URI
+   */
+  private LinkedHashMap<String, PresenceSubscriber> resources = new LinkedHashMap<>();
+
+  private long listVersion = -1;
+
+  /**
+   * A constructor for this class. Used internally by SipUnit. Test programs should call
+   * SipPhone.subscribeResourceList() to create a list subscription.
+   */
+  public ResourceListSubscriber(String listUri, SipPhone parent) throws ParseException {
+    super(listUri, parent);
+  }
+
+  /**
+   * Removes this object from the SipPhone resource list subscriptions. No check is done. You should
+   * unsubscribe() before calling this method.
+   */
+  public void dispose() {
+    parent.removeResourceList(this);
+  }
+
+  /**
+   * This method is the same as EventSubscriber.createSubscribeMessage() except there's no need for
+   * the caller to supply the eventType parameter, and the eventlist extension headers are added.
+   *
+   * @param duration the duration in seconds to put in the SUBSCRIBE message.
+   * @param eventId the event "id" to use in the SUBSCRIBE message, or null for no event "id"
+   *        parameter.
+   * @return a SUBSCRIBE request
+   */
+  public Request createSubscribeMessage(int duration, String eventId) {
+    Request req = super.createSubscribeMessage(duration, eventId, "presence");
+    if (req == null) {
+      return null;
+    }
+
+    try {
+      req.setHeader(parent.getHeaderFactory().createSupportedHeader("eventlist"));
+
+      req.removeHeader(AcceptHeader.NAME);
+      req.addHeader(parent.getHeaderFactory().createAcceptHeader("application", "pidf+xml"));
+      req.addHeader(parent.getHeaderFactory().createAcceptHeader("application", "rlmi+xml"));
+      req.addHeader(parent.getHeaderFactory().createAcceptHeader("multipart", "related"));
+    } catch (Exception ex) {
+      setReturnCode(SipSession.EXCEPTION_ENCOUNTERED);
+      setException(ex);
+      setErrorMessage("Exception: " + ex.getClass().getName() + ": " + ex.getMessage());
+      return null;
+    }
+
+    return req;
+  }
+
+  protected boolean expiresResponseHeaderApplicable() {
+    return true;
+  }
+
+  protected void checkEventType(EventHeader receivedHdr) throws SubscriptionError {
+    String event = receivedHdr.getEventType();
+    if (event.equals("presence") == false) {
+      throw new SubscriptionError(SipResponse.BAD_EVENT,
+          "received a resource list event header containing unknown event = " + event);
+    }
+  }
+
+  protected void updateEventInfo(Request request) throws SubscriptionError {
+    byte[] bodyBytes = request.getRawContent();
+    if (bodyBytes == null) {
+      return;
+    }
+
+    ContentTypeHeader ct = (ContentTypeHeader) request.getHeader(ContentTypeHeader.NAME);
+    if (ct == null) {
+      throw new SubscriptionError(SipResponse.BAD_REQUEST,
+          "NOTIFY body has bytes but no content type header was received");
+    }
+
+    if ((ct.getContentType().equalsIgnoreCase("multipart") == false)
+        || (ct.getContentSubType().equalsIgnoreCase("related") == false)) {
+      throw new SubscriptionError(SipResponse.UNSUPPORTED_MEDIA_TYPE,
+          "received resource list NOTIFY body with unsupported content type = "
+              + ct.getContentType() + '/' + ct.getContentSubType());
+    }
+
+    String boundary = unquote(ct.getParameter("boundary"));
+    if (boundary == null) {
+      throw new SubscriptionError(SipResponse.BAD_REQUEST,
+          "received multipart NOTIFY body without boundary");
+    }
+
+    List<Part> parts = parseMultipart(bodyBytes, boundary);
+    if (parts.isEmpty()) {
+      throw new SubscriptionError(SipResponse.BAD_REQUEST,
+          "received multipart NOTIFY body without parts");
+    }
+
+    // the root is the start part, or the first one
+    HashMap<String, Part> partsById = new HashMap<>();
+    for (Part part : parts) {
+      if (part.id != null) {
+        partsById.put(part.id, part);
+      }
+    }
+
+    String start = unquote(ct.getParameter("start"));
+    Part root = start == null ? parts.get(0) : partsById.get(stripAngleBrackets(start));
+    if ((root == null) || (root.type.equals("application/rlmi+xml") == false)) {
+      throw new SubscriptionError(SipResponse.BAD_REQUEST,
+          "received resource list NOTIFY body without RLMI root part");
+    }
+
+    PidfParser.Rlmi rlmi;
+    try {
+      rlmi = PidfParser.parseRlmi(root.body);
+    } catch (Exception e) {
+      throw new SubscriptionError(SipResponse.BAD_REQUEST,
+          "NOTIFY RLMI parsing error : " + e.getMessage());
+    }
+
+    if (!targetUri.equals(rlmi.uri)) {
+      throw new SubscriptionError(SipResponse.BAD_REQUEST,
+          "received NOTIFY body for wrong resource list = " + rlmi.uri);
+    }
+
+    if (rlmi.fullState ? (rlmi.version <= listVersion) : (rlmi.version != listVersion + 1)) {
+      throw new SubscriptionError(SipResponse.BAD_REQUEST,
+          "received resource list NOTIFY body out of sequence, version = " + rlmi.version
+              + ", last = " + listVersion);
+    }
+
+    // check and parse everything before changing anything
+
+    List<Update> updates = new ArrayList<>(rlmi.resources.size());
+    for (PidfParser.Resource res : rlmi.resources) {
+      Update update = new Update();
+      update.resource = res;
+      update.member = resources.get(res.uri);
+
+      if (update.member == null) {
+        try {
+          update.member = new PresenceSubscriber(res.uri, this);
+        } catch (ParseException e) {
+          throw new SubscriptionError(SipResponse.BAD_REQUEST,
+              "received resource list NOTIFY body with invalid resource uri = " + res.uri);
+        }
+      }
+
+      if (res.cid != null) {
+        Part part = partsById.get(res.cid);
+        if (part == null) {
+          throw new SubscriptionError(SipResponse.BAD_REQUEST,
+              "received resource list NOTIFY body without the part of resource " + res.uri);
+        }
+
+        if (part.type.equals("application/pidf+xml") == false) {
+          throw new SubscriptionError(SipResponse.UNSUPPORTED_MEDIA_TYPE,
+              "received resource list NOTIFY body with unsupported content type = " + part.type
+                  + " for resource " + res.uri);
+        }
+
+        try {
+          update.document = PidfParser.parse(part.body, parent.getParent().getPidfParser());
+        } catch (Exception e) {
+          throw new SubscriptionError(SipResponse.BAD_REQUEST,
+              "NOTIFY body parsing error for resource " + res.uri + " : " + e.getMessage());
+        }
+
+        if (!res.uri.equals(update.document.entity)) {
+          throw new SubscriptionError(SipResponse.BAD_REQUEST,
+              "received NOTIFY body with wrong presentity = " + update.document.entity
+                  + " for resource " + res.uri);
+        }
+      }
+
+      updates.add(update);
+    }
+
+    // now apply it
+
+    LinkedHashMap<String, PresenceSubscriber> updated =
+        rlmi.fullState ? new LinkedHashMap<String, PresenceSubscriber>() : resources;
+
+    for (Update update : updates) {
+      PidfParser.Resource res = update.resource;
+      update.member.setResourceState(
+          res.state == null ? SubscriptionStateHeader.PENDING : res.state, res.reason);
+      if (update.document != null) {
+        update.member.setPresenceInfo(update.document);
+      }
+      updated.put(res.uri, update.member);
+    }
+
+    resources = updated;
+    listVersion = rlmi.version;
+
+    LOG.trace("Processed {} resource list NOTIFY body version {} ({} resources) for {}",
+        rlmi.fullState ? "full state" : "partial", listVersion, updates.size(), targetUri);
+  }
+
+  protected AcceptHeader getUnsupportedMediaAcceptHeader() throws ParseException {
+    return parent.getHeaderFactory().createAcceptHeader("multipart", "related");
+  }
+
+  /**
+   * Gets the resources of the list, as received in the NOTIFY messages so far.
+   *
+   * @return a map of the URI of each resource to the PresenceSubscriber object holding its
+   *         subscription state and presence information, in the order of the last full state
+   *         notification (resources added by partial notifications come last).
+   */
+  public Map<String, PresenceSubscriber> getResources() {
+    return new LinkedHashMap<>(resources);
+  }
+
+  /**
+   * Returns getResources().
+   */
+  protected Object getNotifyContent() {
+    return getResources();
+  }
+
+  /**
+   * Gets the given resource of the list - see getResources().
+   *
+   * @param uri the URI of the resource (ie, sip:bob@nist.gov).
+   * @return the PresenceSubscriber object of the resource, or null if it isn't in the list.
+   */
+  public PresenceSubscriber getResource(String uri) {
+    return resources.get(uri);
+  }
+
+  /**
+   * Gets the version of the RLMI document last applied.
+   *
+   * @return the version, or -1 if no resource list NOTIFY body has been received yet.
+   */
+  public long getListVersion() {
+    return listVersion;
+  }
+
+  /**
+   * This method initiates a SUBSCRIBE/NOTIFY sequence for the purpose of refreshing this
+   * subscription. It is the same as ReferSubscriber.refresh(duration, eventId, timeout) - see that
+   * javadoc.
+   *
+   * @param duration the duration in seconds to put in the SUBSCRIBE message and reset the
+   *        subscription time left to. If it is 0, this is an unsubscribe.
+   * @param timeout The maximum amount of time to wait for a SUBSCRIBE response, in milliseconds.
+   *        Use a value of 0 to wait indefinitely.
+   * @return true if the refresh operation is successful so far, false otherwise.
+   */
+  public boolean refresh(int duration, long timeout) {
+    Request req = createSubscribeMessage(duration, getEventId());
+
+    if (req == null) {
+      return false;
+    }
+
+    req.removeHeader(ProxyAuthorizationHeader.NAME);
+
+    return refreshSubscription(req, timeout, parent.getProxyHost() != null);
+  }
+
+  /**
+   * This method is the same as refresh(duration, timeout) except that the SUBSCRIBE duration sent
+   * will be however much time is left on the current subscription.
+   */
+  public boolean refresh(long timeout) {
+    return refresh(getTimeLeft(), timeout);
+  }
+
+  /**
+   * This method initiates a SUBSCRIBE/NOTIFY sequence to terminate the subscription unless the
+   * subscription is already terminated. It is the same as ReferSubscriber.unsubscribe(eventId,
+   * timeout) - see that javadoc.
+   *
+   * @param timeout The maximum amount of time to wait for a SUBSCRIBE response, in milliseconds.
+   *        Use a value of 0 to wait indefinitely.
+   * @return true if the unsubscribe operation is successful so far or wasn't needed, false
+   *         otherwise.
+   */
+  public boolean unsubscribe(long timeout) {
+    initErrorInfo();
+
+    Request req = createSubscribeMessage(0, getEventId());
+
+    if (req == null) {
+      return false;
+    }
+
+    req.removeHeader(ProxyAuthorizationHeader.NAME);
+
+    return endSubscription(req, timeout, parent.getProxyHost() != null, "Unsubscribe");
+  }
+
+  /*
+   * Splits a multipart body (RFC 2046) into its parts. The body is handled as ISO-8859-1 text so
+   * that the part bodies keep their bytes as they are.
+   */
+  private static List<Part> parseMultipart(byte[] body, String boundary) throws SubscriptionError {
+    String text = new String(body, StandardCharsets.ISO_8859_1);
+    String delimiter = "--" + boundary;
+
+    int pos = text.indexOf(delimiter);
+    if (pos < 0) {
+      throw new SubscriptionError(SipResponse.BAD_REQUEST,
+          "received multipart NOTIFY body without boundary " + boundary);
+    }
+
+    List<Part> parts = new ArrayList<>();
+    while (true) {
+      pos += delimiter.length();
+      if (text.startsWith("--", pos)) {
+        return parts; // close delimiter
+      }
+
+      int start = text.indexOf("\r\n", pos);
+      int end = start < 0 ? -1 : text.indexOf("\r\n" + delimiter, start);
+      if (end < 0) {
+        throw new SubscriptionError(SipResponse.BAD_REQUEST,
+            "received multipart NOTIFY body without close delimiter");
+      }
+
+      parts.add(parsePart(text.substring(start + 2, end)));
+      pos = end + 2;
+    }
+  }
+
+  private static Part parsePart(String text) {
+    Part part = new Part();
+
+    int headersEnd = text.startsWith("\r\n") ? 0 : text.indexOf("\r\n\r\n");
+    if (headersEnd < 0) {
+      headersEnd = text.length();
+    }
+
+    for (String line : text.substring(0, headersEnd).split("\r\n")) {
+      int colon = line.indexOf(':');
+      if (colon < 0) {
+        continue;
+      }
+
+      String name = line.substring(0, colon).trim();
+      String value = line.substring(colon + 1).trim();
+      if (name.equalsIgnoreCase("Content-Type")) {
+        int semicolon = value.indexOf(';');
+        part.type = (semicolon < 0 ? value : value.substring(0, semicolon)).trim().toLowerCase();
+      } else if (name.equalsIgnoreCase("Content-ID")) {
+        part.id = stripAngleBrackets(value);
+      }
+    }
+
+    int bodyStart = Math.min(text.length(), headersEnd + (headersEnd == 0 ? 2 : 4));
+    part.body = text.substring(bodyStart).getBytes(StandardCharsets.ISO_8859_1);
+    return part;
+  }
+
+  private static String unquote(String value) {
+    if ((value != null) && (value.length() >= 2) && value.startsWith("\"") && value.endsWith("\"")) {
+      return value.substring(1, value.length() - 1);
+    }
+    return value;
+  }
+
+  private static String stripAngleBrackets(String value) {
+    if (value.startsWith("<") && value.endsWith(">")) {
+      return value.substring(1, value.length() - 1);
+    }
+    return value;
+  }
+
+  /**
+   * One part of a multipart body. The type is the lower case type/subtype, without parameters.
+   */
+  private static class Part {
+    String type = "text/plain";
+
+    String id;
+
+    byte[] body;
+  }
+
+  /**
+   * The new state of one resource, checked and ready to be applied.
+   */
+  private static class Update {
+    PidfParser.Resource resource;
+
+    PresenceSubscriber member;
+
+    PidfParser.Document document;
+  }
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EventObject;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.TimeoutEvent;
+import javax.sip.header.CSeqHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * This class is one run of a CallScenario on its own SipCall, as started by
+ * ScenarioRunner.start(). The SipCall hands the responses, timeouts and in-dialog requests it
+ * receives to the run (on the SIP stack thread), which queues them and carries on with its steps on
+ * a ScenarioRunner thread. The steps of one run are never carried out by two threads at once.
+ * 
+ * <p>
+ * A test program uses this object to find out the outcome of the run - isDone(), isSuccessful(),
+ * getFailureReason() - and to look at the messages exchanged, through getCall().
+ * 
+ */
+public class ScenarioRun {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ScenarioRun.class);
+
+  private static final int CONTINUE = 0;
+
+  private static final int WAIT = 1;
+
+  private final ScenarioRunner runner;
+
+  private final CallScenario.Step[] steps;
+
+  private final long timeout;
+
+  private final SipCall call;
+
+  private final Consumer<ScenarioRun> whenDone;
+
+  // received events and timer ticks, handed over from other threads
+  private final ConcurrentLinkedQueue<Object> inbox = new ConcurrentLinkedQueue<>();
+
+  private final AtomicInteger wip = new AtomicInteger();
+
+  private final CountDownLatch done = new CountDownLatch(1);
+
+  // the state below is only used by the thread carrying out the steps
+
+  private final ArrayList<Object> pending = new ArrayList<>();
+
+  private int next;
+
+  private boolean waiting;
+
+  private int waitToken;
+
+  private boolean timedOut;
+
+  private String lastSentMethod;
+
+  private RequestEvent lastRequest;
+
+  private volatile int lastStatusCode = -1;
+
+  private volatile boolean successful;
+
+  private volatile String failureReason;
+
+  private final long startTime = System.currentTimeMillis();
+
+  private volatile long endTime;
+
+  ScenarioRun(ScenarioRunner runner, SipPhone phone, CallScenario.Step[] steps, long timeout,
+      Consumer<ScenarioRun> whenDone) {
+    this.runner = runner;
+    this.steps = steps;
+    this.timeout = timeout;
+    this.whenDone = whenDone;
+    call = phone.createSipCall();
+  }
+
+  /**
+   * Returns the SipCall of this run, for its message history, dialog, etc. The call is disposed of
+   * when the run ends.
+   */
+  public SipCall getCall() {
+    return call;
+  }
+
+  /**
+   * Indicates if this run has ended, successfully or not.
+   */
+  public boolean isDone() {
+    return done.getCount() == 0;
+  }
+
+  /**
+   * Indicates if this run has ended successfully.
+   */
+  public boolean isSuccessful() {
+    return successful;
+  }
+
+  /**
+   * Returns why this run failed, or null if it hasn't.
+   */
+  public String getFailureReason() {
+    return failureReason;
+  }
+
+  /**
+   * Returns the status code of the last response received by an expect step, or -1 if none.
+   */
+  public int getLastStatusCode() {
+    return lastStatusCode;
+  }
+
+  /**
+   * Returns how long this run took, in milliseconds, or has taken so far if it hasn't ended.
+   */
+  public long getDuration() {
+    long end = endTime;
+    return (end == 0 ? System.currentTimeMillis() : end) - startTime;
+  }
+
+  /**
+   * Waits for this run to end. This is a blocking call, for a test program that wants to check the
+   * outcome of a particular run.
+   * 
+   * @param timeout The maximum amount of time to wait, in milliseconds.
+   * @return true if the run has ended, false if it is still going on.
+   */
+  public boolean await(long timeout) throws InterruptedException {
+    return done.await(timeout, TimeUnit.MILLISECONDS);
+  }
+
+  public String toString() {
+    return "call " + call.getCallId() + ": "
+        + (isDone() ? (successful ? "successful" : "failed - " + failureReason) : "in progress")
+        + ", last status " + lastStatusCode;
+  }
+
+  void start() {
+    call.setScenarioRun(this);
+    schedule();
+  }
+
+  /**
+   * Called by the SipCall, on the SIP stack thread, for each response, timeout or in-dialog request
+   * received.
+   */
+  void eventReceived(EventObject event) {
+    inbox.add(event);
+    schedule();
+  }
+
+  private void schedule() {
+    if (wip.getAndIncrement() == 0) {
+      runner.execute(this::drain);
+    }
+  }
+
+  private void drain() {
+    int missed = 1;
+    do {
+      try {
+        advance();
+      } catch (Exception ex) {
+        LOG.error("Scenario run " + call.getCallId() + " failed: " + ex.getClass().getName()
+            + ": " + ex.getMessage(), ex);
+        finish(false, "exception: " + ex.getClass().getName() + ": " + ex.getMessage());
+      }
+      missed = wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private void advance() {
+    Object o;
+    while ((o = inbox.poll()) != null) {
+      if (o instanceof Tick) {
+        if (((Tick) o).token == waitToken) {
+          timedOut = true;
+        }
+      } else {
+        pending.add(o);
+      }
+    }
+
+    while (isDone() == false) {
+      if (next >= steps.length) {
+        finish(true, null);
+        return;
+      }
+
+      if (execute(steps[next]) == WAIT) {
+        return;
+      }
+    }
+  }
+
+  private int execute(CallScenario.Step step) {
+    switch (step.kind) {
+      case CallScenario.INVITE:
+        dropResponses(Request.INVITE);
+        return sent(call.initiateOutgoingCall(step.text, step.route), Request.INVITE);
+
+      case CallScenario.MESSAGE:
+        dropResponses(Request.MESSAGE);
+        return sent(call.initiateOutgoingMessage(step.text, step.route, step.body),
+            Request.MESSAGE);
+
+      case CallScenario.REGISTER:
+        dropResponses(Request.REGISTER);
+        return sent(call.sendRegistration(step.text, step.statusCode), Request.REGISTER);
+
+      case CallScenario.ACK:
+        return sent(call.sendInviteOkAck(), null);
+
+      case CallScenario.BYE:
+        dropResponses(Request.BYE);
+        return sent(call.disconnect(), Request.BYE);
+
+      case CallScenario.CANCEL:
+        dropResponses(Request.CANCEL);
+        return sent(call.sendCancel() != null, Request.CANCEL);
+
+      case CallScenario.RESPOND:
+        if (lastRequest == null) {
+          return fail("no request to respond to");
+        }
+        if (call.getParent().sendReply(lastRequest, step.statusCode, null, null, null,
+            -1) == null) {
+          return fail("couldn't send " + step.statusCode + ": "
+              + call.getParent().getErrorMessage());
+        }
+        next++;
+        return CONTINUE;
+
+      case CallScenario.EXPECT_RESPONSE:
+      case CallScenario.EXPECT_FINAL_RESPONSE:
+        return expectResponse(step);
+
+      case CallScenario.EXPECT_REQUEST:
+        return expectRequest(step.text);
+
+      case CallScenario.PAUSE:
+      case CallScenario.PAUSE_EXPONENTIAL:
+        if (startWait(step.kind == CallScenario.PAUSE ? step.millis
+            : (long) (-Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * step.millis))) {
+          return WAIT;
+        }
+        if (timedOut == false) {
+          return WAIT;
+        }
+        endWait();
+        next++;
+        return CONTINUE;
+
+      case CallScenario.ON_STATUS:
+        next = (lastStatusCode == step.statusCode ? step.target : next + 1);
+        return CONTINUE;
+
+      case CallScenario.JUMP:
+        next = step.target;
+        return CONTINUE;
+
+      case CallScenario.END:
+        finish(true, null);
+        return WAIT;
+
+      default: // CallScenario.FAIL
+        return fail(step.text);
+    }
+  }
+
+  private int sent(boolean ok, String method) {
+    if (ok == false) {
+      return fail("couldn't send " + (method == null ? "ACK" : method) + ": " + call.format());
+    }
+
+    if (method != null) {
+      lastSentMethod = method;
+    }
+    next++;
+    return CONTINUE;
+  }
+
+  private int expectResponse(CallScenario.Step step) {
+    String method = (step.text == null ? lastSentMethod : step.text);
+    boolean anyFinal = (step.kind == CallScenario.EXPECT_FINAL_RESPONSE);
+
+    Iterator<Object> i = pending.iterator();
+    while (i.hasNext()) {
+      Object o = i.next();
+
+      if (o instanceof TimeoutEvent) {
+        i.remove();
+        return fail("no response to "
+            + ((TimeoutEvent) o).getClientTransaction().getRequest().getMethod());
+      }
+
+      if ((o instanceof ResponseEvent) == false) {
+        continue;
+      }
+
+      Response response = ((ResponseEvent) o).getResponse();
+      CSeqHeader cseq = (CSeqHeader) response.getHeader(CSeqHeader.NAME);
+      if ((cseq == null) || (cseq.getMethod().equals(method) == false)) {
+        continue;
+      }
+
+      i.remove();
+
+      int status = response.getStatusCode();
+      if ((anyFinal == false) && (status == step.statusCode)) {
+        return expected(status);
+      }
+
+      if ((status < 200) || (status == Response.UNAUTHORIZED)
+          || (status == Response.PROXY_AUTHENTICATION_REQUIRED)) {
+        continue; // provisional, or a challenge the SipCall answers by itself
+      }
+
+      if (anyFinal) {
+        return expected(status);
+      }
+
+      lastStatusCode = status;
+      return fail("expected " + step.statusCode + " for " + method + ", got " + status);
+    }
+
+    return awaitMessage();
+  }
+
+  private int expectRequest(String method) {
+    Iterator<Object> i = pending.iterator();
+    while (i.hasNext()) {
+      Object o = i.next();
+      if ((o instanceof RequestEvent)
+          && ((RequestEvent) o).getRequest().getMethod().equals(method)) {
+        i.remove();
+        lastRequest = (RequestEvent) o;
+        endWait();
+        next++;
+        return CONTINUE;
+      }
+    }
+
+    return awaitMessage();
+  }
+
+  private int expected(int status) {
+    lastStatusCode = status;
+    endWait();
+    next++;
+    return CONTINUE;
+  }
+
+  private int awaitMessage() {
+    if (startWait(timeout) || (timedOut == false)) {
+      return WAIT;
+    }
+
+    CallScenario.Step step = steps[next];
+    return fail("timeout waiting for "
+        + (step.kind == CallScenario.EXPECT_REQUEST ? step.text : "response"));
+  }
+
+  /**
+   * Starts the timer of a wait step the first time it is executed.
+   * 
+   * @return true if the timer has just been started.
+   */
+  private boolean startWait(long millis) {
+    if (waiting) {
+      return false;
+    }
+
+    waiting = true;
+    timedOut = false;
+    final Tick tick = new Tick(++waitToken);
+    runner.schedule(() -> {
+      inbox.add(tick);
+      schedule();
+    }, millis);
+    return true;
+  }
+
+  private void endWait() {
+    waiting = false;
+    timedOut = false;
+    waitToken++; // a timer still to fire is ignored
+  }
+
+  /**
+   * Drops the responses left over for the given method - retransmissions and responses to an
+   * earlier request - before a new request with that method is sent.
+   */
+  private void dropResponses(String method) {
+    Iterator<Object> i = pending.iterator();
+    while (i.hasNext()) {
+      Object o = i.next();
+      if (o instanceof ResponseEvent) {
+        CSeqHeader cseq =
+            (CSeqHeader) ((ResponseEvent) o).getResponse().getHeader(CSeqHeader.NAME);
+        if ((cseq != null) && cseq.getMethod().equals(method)) {
+          i.remove();
+        }
+      }
+    }
+  }
+
+  private int fail(String reason) {
+    finish(false, reason);
+    return WAIT;
+  }
+
+  private void finish(boolean success, String reason) {
+    if (isDone()) {
+      return;
+    }
+
+    successful = success;
+    failureReason = reason;
+    endTime = System.currentTimeMillis();
+
+    call.setScenarioRun(null);
+    pending.clear();
+    inbox.clear();
+    call.dispose();
+
+    if (success == false) {
+      LOG.trace("Scenario run failed: {}", this);
+    }
+
+    done.countDown();
+
+    if (whenDone != null) {
+      try {
+        whenDone.accept(this);
+      } catch (Exception ex) {
+        LOG.error("Scenario run " + call.getCallId() + ": exception in completion callback: "
+            + ex.getClass().getName() + ": " + ex.getMessage(), ex);
+      }
+    }
+
+    runner.runEnded(this);
+  }
+
+  private static class Tick {
+    final int token;
+
+    Tick(int token) {
+      this.token = token;
+    }
+  }
+}
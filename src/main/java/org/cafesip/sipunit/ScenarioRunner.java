@@ -0,0 +1,191 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * This class runs CallScenario objects on a small pool of threads, for as many concurrent calls as
+ * needed. Each call to start() creates a SipCall on the given SipPhone and carries out the scenario
+ * on it as an event-driven state machine (see ScenarioRun): a pool thread is only used while a run
+ * sends a message or handles a received one, so the number of calls in progress isn't limited by
+ * the number of threads.
+ * 
+ * <p>
+ * The runs started are counted by this object - see the getXyz() counter methods. A test program
+ * typically starts its runs, calls awaitIdle() and then checks the counters or the individual
+ * ScenarioRun objects. Call shutdown() when done with the runner.
+ * 
+ */
+public class ScenarioRunner {
+
+  private final ScheduledExecutorService executor;
+
+  private final AtomicLong runsStarted = new AtomicLong();
+
+  private final AtomicLong runsSucceeded = new AtomicLong();
+
+  private final AtomicLong runsFailed = new AtomicLong();
+
+  private final AtomicInteger runsActive = new AtomicInteger();
+
+  private final Object idleBlock = new Object();
+
+  /**
+   * A constructor for this class.
+   * 
+   * @param threads the number of threads carrying out the scenario steps, at least 1.
+   */
+  public ScenarioRunner(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be at least 1");
+    }
+
+    final AtomicInteger count = new AtomicInteger();
+    executor = Executors.newScheduledThreadPool(threads, r -> {
+      Thread t = new Thread(r, "SipUnit scenario " + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Starts a run of the given scenario on a new SipCall of the given SipPhone. This is a
+   * non-blocking call, the scenario is carried out by the runner threads.
+   * 
+   * @param phone the SipPhone making the call.
+   * @param scenario the steps of the call.
+   * @return the ScenarioRun object giving the outcome of the run once it has ended.
+   * @throws IllegalArgumentException if the scenario refers to an undefined label.
+   */
+  public ScenarioRun start(SipPhone phone, CallScenario scenario) {
+    return start(phone, scenario, null);
+  }
+
+  /**
+   * The same as start(phone, scenario), with the given callback called once the run has ended -
+   * on a runner thread, so it should return quickly.
+   * 
+   * @param whenDone called with the run when it has ended, or null.
+   */
+  public ScenarioRun start(SipPhone phone, CallScenario scenario,
+      Consumer<ScenarioRun> whenDone) {
+    ScenarioRun run =
+        new ScenarioRun(this, phone, scenario.compile(), scenario.getTimeout(), whenDone);
+
+    runsStarted.incrementAndGet();
+    runsActive.incrementAndGet();
+    run.start();
+    return run;
+  }
+
+  /**
+   * Waits until no run is in progress. This is a blocking call.
+   * 
+   * @param timeout The maximum amount of time to wait, in milliseconds.
+   * @return true if no run is in progress, false if the wait timed out.
+   */
+  public boolean awaitIdle(long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+
+    synchronized (idleBlock) {
+      while (runsActive.get() > 0) {
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0) {
+          return false;
+        }
+        idleBlock.wait(left);
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns the number of runs started.
+   */
+  public long getRunsStarted() {
+    return runsStarted.get();
+  }
+
+  /**
+   * Returns the number of runs ended successfully.
+   */
+  public long getRunsSucceeded() {
+    return runsSucceeded.get();
+  }
+
+  /**
+   * Returns the number of runs ended as failed.
+   */
+  public long getRunsFailed() {
+    return runsFailed.get();
+  }
+
+  /**
+   * Returns the number of runs in progress.
+   */
+  public int getRunsActive() {
+    return runsActive.get();
+  }
+
+  /**
+   * Stops the runner threads. Runs in progress don't go any further.
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  public String toString() {
+    return "started=" + getRunsStarted() + ", succeeded=" + getRunsSucceeded() + ", failed="
+        + getRunsFailed() + ", active=" + getRunsActive();
+  }
+
+  void execute(Runnable task) {
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      // shut down, the run doesn't go any further
+    }
+  }
+
+  void schedule(Runnable task, long millis) {
+    try {
+      executor.schedule(task, millis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // shut down, the run doesn't go any further
+    }
+  }
+
+  void runEnded(ScenarioRun run) {
+    if (run.isSuccessful()) {
+      runsSucceeded.incrementAndGet();
+    } else {
+      runsFailed.incrementAndGet();
+    }
+
+    synchronized (idleBlock) {
+      if (runsActive.decrementAndGet() == 0) {
+        idleBlock.notifyAll();
+      }
+    }
+  }
+}
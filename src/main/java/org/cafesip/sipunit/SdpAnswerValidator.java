@@ -0,0 +1,266 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class checks an SDP answer against the offer it answers, following the offer/answer rules
+ * of RFC 3264. It is used by SipAssert.assertSdpAnswerValid() and can be called directly to get the
+ * list of problems found. The checks are:
+ * <ul>
+ * <li>the answer has v=, o= and s= lines,
+ * <li>the answer has as many m= lines as the offer, with the same media type and transport
+ * protocol, in the same order,
+ * <li>a stream rejected in the offer (port 0) is rejected in the answer,
+ * <li>an accepted stream only lists formats that are in the offer - dynamic RTP payload types are
+ * matched by their a=rtpmap encoding name rather than by number,
+ * <li>an accepted stream has a connection address, at the session or media level,
+ * <li>the direction of an accepted stream is compatible with the offer's (for example, an offered
+ * sendonly stream is answered recvonly or inactive).
+ * </ul>
+ * 
+ */
+public class SdpAnswerValidator {
+
+  private SdpAnswerValidator() {}
+
+  /**
+   * Checks an SDP answer against its offer.
+   * 
+   * @param offer the SDP offer.
+   * @param answer the SDP answer.
+   * @return the problems found, an empty list if the answer is valid.
+   */
+  public static List<String> validate(String offer, String answer) {
+    List<String> errors = new ArrayList<>();
+
+    Description off;
+    Description ans;
+    try {
+      off = new Description(offer);
+    } catch (IllegalArgumentException e) {
+      errors.add("offer: " + e.getMessage());
+      return errors;
+    }
+    try {
+      ans = new Description(answer);
+    } catch (IllegalArgumentException e) {
+      errors.add("answer: " + e.getMessage());
+      return errors;
+    }
+
+    for (String type : new String[] {"v=", "o=", "s="}) {
+      if (ans.lines.contains(type) == false) {
+        errors.add("answer has no " + type + " line");
+      }
+    }
+
+    if (ans.media.size() != off.media.size()) {
+      errors.add("answer has " + ans.media.size() + " m= lines, offer has " + off.media.size());
+      return errors;
+    }
+
+    for (int i = 0; i < off.media.size(); i++) {
+      Media o = off.media.get(i);
+      Media a = ans.media.get(i);
+      String m = "m= line " + (i + 1) + ": ";
+
+      if (o.type.equals(a.type) == false) {
+        errors.add(m + "media " + a.type + " answers " + o.type);
+      }
+      if (o.proto.equalsIgnoreCase(a.proto) == false) {
+        errors.add(m + "protocol " + a.proto + " answers " + o.proto);
+      }
+
+      if (o.port == 0) {
+        if (a.port != 0) {
+          errors.add(m + "stream rejected in the offer has port " + a.port + " in the answer");
+        }
+        continue;
+      }
+      if (a.port == 0) {
+        continue; // rejected by the answerer
+      }
+
+      if (a.formats.isEmpty()) {
+        errors.add(m + "accepted stream has no format");
+      }
+      for (String fmt : a.formats) {
+        if (o.hasFormat(fmt, a) == false) {
+          errors.add(m + "format " + a.describe(fmt) + " isn't in the offer");
+        }
+      }
+
+      if ((a.connection == false) && (ans.connection == false)) {
+        errors.add(m + "accepted stream has no c= line");
+      }
+
+      String od = o.direction != null ? o.direction : off.direction;
+      String ad = a.direction != null ? a.direction : ans.direction;
+      if (compatible(od, ad) == false) {
+        errors.add(m + ad + " answers " + od);
+      }
+    }
+
+    return errors;
+  }
+
+  private static boolean compatible(String offered, String answered) {
+    switch (offered) {
+      case "sendonly":
+        return answered.equals("recvonly") || answered.equals("inactive");
+      case "recvonly":
+        return answered.equals("sendonly") || answered.equals("inactive");
+      case "inactive":
+        return answered.equals("inactive");
+      default:
+        return true;
+    }
+  }
+
+  private static String direction(String line) {
+    switch (line) {
+      case "a=sendrecv":
+      case "a=sendonly":
+      case "a=recvonly":
+      case "a=inactive":
+        return line.substring(2);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * The parts of a session description looked at by the checks.
+   */
+  private static class Description {
+    final ArrayList<String> lines = new ArrayList<>(); // line types seen at session level
+
+    final ArrayList<Media> media = new ArrayList<>();
+
+    boolean connection;
+
+    String direction = "sendrecv";
+
+    Description(String sdp) {
+      if (sdp == null) {
+        throw new IllegalArgumentException("no session description");
+      }
+
+      Media current = null;
+      for (String line : SdpTemplate.lines(sdp)) {
+        if ((line.length() < 2) || (line.charAt(1) != '=')) {
+          throw new IllegalArgumentException("malformed line: " + line);
+        }
+
+        if (line.startsWith("m=")) {
+          current = new Media(line);
+          media.add(current);
+        } else if (current == null) {
+          lines.add(line.substring(0, 2));
+          if (line.startsWith("c=")) {
+            connection = true;
+          } else if (direction(line) != null) {
+            direction = direction(line);
+          }
+        } else if (line.startsWith("c=")) {
+          current.connection = true;
+        } else if (line.startsWith("a=rtpmap:")) {
+          int space = line.indexOf(' ');
+          int slash = line.indexOf('/', space);
+          if (space != -1) {
+            current.rtpmap.put(line.substring(9, space), line.substring(space + 1,
+                slash == -1 ? line.length() : slash).toLowerCase());
+          }
+        } else if (direction(line) != null) {
+          current.direction = direction(line);
+        }
+      }
+    }
+  }
+
+  /**
+   * The parts of a media description looked at by the checks.
+   */
+  private static class Media {
+    final String type;
+
+    final int port;
+
+    final String proto;
+
+    final ArrayList<String> formats = new ArrayList<>();
+
+    final HashMap<String, String> rtpmap = new HashMap<>();
+
+    boolean connection;
+
+    String direction;
+
+    Media(String line) {
+      // m=<media> <port>[/<number of ports>] <proto> <fmt> ...
+      String[] fields = line.substring(2).split(" ");
+      if (fields.length < 3) {
+        throw new IllegalArgumentException("malformed m= line: " + line);
+      }
+
+      type = fields[0];
+      int count = fields[1].indexOf('/');
+      try {
+        port = Integer.parseInt(count == -1 ? fields[1] : fields[1].substring(0, count));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("malformed m= line: " + line);
+      }
+      proto = fields[2];
+      for (int i = 3; i < fields.length; i++) {
+        formats.add(fields[i]);
+      }
+    }
+
+    /**
+     * Tells if this (offered) stream has the given format of an answered stream.
+     */
+    boolean hasFormat(String fmt, Media answered) {
+      String encoding = answered.rtpmap.get(fmt);
+      if ((encoding == null) || (isDynamic(fmt) == false)) {
+        return formats.contains(fmt);
+      }
+
+      for (String offered : formats) {
+        if (encoding.equals(rtpmap.get(offered))) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    String describe(String fmt) {
+      String encoding = rtpmap.get(fmt);
+      return encoding == null ? fmt : fmt + " (" + encoding + ")";
+    }
+
+    private static boolean isDynamic(String fmt) {
+      try {
+        int pt = Integer.parseInt(fmt);
+        return (pt >= 96) && (pt <= 127);
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+  }
+}
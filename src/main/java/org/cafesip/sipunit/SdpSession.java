@@ -0,0 +1,114 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import java.util.Arrays;
+
+/**
+ * This class holds the SDP state of one call: the session ID, the current session version and the
+ * media ports allocated for it. It produces the call's offers and answers from its SdpTemplate -
+ * each body it produces gets the next session version, as required for a changed session
+ * description. The ports go back to the allocator when release() is called, which must be done
+ * when the call is over. An SdpSession is obtained from SdpTemplate.newSession().
+ * 
+ */
+public class SdpSession {
+
+  private final SdpTemplate template;
+
+  private final MediaPortAllocator allocator;
+
+  private final String address;
+
+  private final long sessionId;
+
+  private int[] ports;
+
+  private long version;
+
+  SdpSession(SdpTemplate template, MediaPortAllocator allocator, String address, int[] ports,
+      long sessionId) {
+    this.template = template;
+    this.allocator = allocator;
+    this.address = address;
+    this.ports = ports;
+    this.sessionId = sessionId;
+  }
+
+  /**
+   * Returns an SDP offer for this call, with the next session version.
+   * 
+   * @throws IllegalStateException if release() has been called.
+   */
+  public synchronized String createOffer() {
+    checkPorts();
+    return template.render(sessionId, ++version, address, ports);
+  }
+
+  /**
+   * Returns an SDP answer to the given offer for this call, with the next session version. The
+   * streams rejected by the offer are rejected in the answer.
+   * 
+   * @throws IllegalArgumentException if the offer doesn't have as many m= lines as the template.
+   * @throws IllegalStateException if release() has been called.
+   */
+  public synchronized String createAnswer(String offer) {
+    checkPorts();
+    return template.createAnswer(offer, sessionId, ++version, address, ports);
+  }
+
+  /**
+   * Gives the ports of this call back to the allocator. Calling it again has no effect.
+   */
+  public synchronized void release() {
+    if (ports != null) {
+      allocator.release(ports);
+      ports = null;
+    }
+  }
+
+  /**
+   * Returns the ports of the m= lines of this call, or null if they have been released.
+   */
+  public synchronized int[] getPorts() {
+    return ports == null ? null : ports.clone();
+  }
+
+  public long getSessionId() {
+    return sessionId;
+  }
+
+  /**
+   * Returns the session version of the last body produced, 0 if none yet.
+   */
+  public synchronized long getVersion() {
+    return version;
+  }
+
+  public String getAddress() {
+    return address;
+  }
+
+  public String toString() {
+    return "session " + sessionId + " version " + getVersion() + " ports "
+        + Arrays.toString(getPorts());
+  }
+
+  private void checkPorts() {
+    if (ports == null) {
+      throw new IllegalStateException("the ports of this session have been released");
+    }
+  }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class produces the SDP offers and answers of concurrent calls from a single template, by
+ * substituting the per-call fields of a session description: the session ID and version of the
+ * o= line, the connection address of the o= and c= lines and the port of each m= line. The
+ * template is an ordinary session description, parsed once; producing an SDP body is then a
+ * matter of appending pre-built text, without parsing or formatting.
+ * 
+ * <pre>
+ * SdpTemplate template = SdpTemplate.parse(&quot;v=0\r\n&quot; + &quot;o=- 0 0 IN IP4 127.0.0.1\r\n&quot;
+ *     + &quot;s=-\r\n&quot; + &quot;c=IN IP4 127.0.0.1\r\n&quot; + &quot;t=0 0\r\n&quot;
+ *     + &quot;m=audio 0 RTP/AVP 0 8 101\r\n&quot; + &quot;a=rtpmap:101 telephone-event/8000\r\n&quot;);
+ * MediaPortAllocator ports = new MediaPortAllocator(20000, 29999);
+ * 
+ * SdpSession sdp = template.newSession(ports, &quot;192.0.2.4&quot;);
+ * callA.initiateOutgoingCall(..., sdp.createOffer(), &quot;application&quot;, &quot;sdp&quot;, null, null);
+ * ...
+ * sdp.release();
+ * </pre>
+ * 
+ * <p>
+ * An answer is produced from a template with the same number of m= lines as the offer, in the same
+ * order, by createAnswer(): the streams rejected by the offer (port 0) are rejected in the answer.
+ * See SdpAnswerValidator for checking an answer against its offer.
+ * 
+ * <p>
+ * A template is immutable and may be used by any number of threads.
+ * 
+ */
+public class SdpTemplate {
+
+  private static final int SESSION_ID = 0;
+
+  private static final int VERSION = 1;
+
+  private static final int ADDRESS = 2;
+
+  private static final int PORT = 3; // PORT + n for the port of the m= line n
+
+  private static final AtomicLong sessionIds = new AtomicLong(System.currentTimeMillis());
+
+  // text[i] is appended before the field slot[i]; text[slot.length] ends the body
+  private final String[] text;
+
+  private final int[] slot;
+
+  private final int mediaCount;
+
+  private final int length;
+
+  private SdpTemplate(String[] text, int[] slot, int mediaCount) {
+    this.text = text;
+    this.slot = slot;
+    this.mediaCount = mediaCount;
+
+    int total = 0;
+    for (String t : text) {
+      total += t.length();
+    }
+    length = total + slot.length * 16;
+  }
+
+  /**
+   * Parses a session description into a template. Lines may end with CRLF or LF; the bodies
+   * produced end their lines with CRLF.
+   * 
+   * @param sdp a session description with an o= line and at least one m= line. The values of the
+   *        substituted fields are ignored.
+   * @return the template.
+   * @throws IllegalArgumentException if the session description is malformed.
+   */
+  public static SdpTemplate parse(String sdp) {
+    ArrayList<String> text = new ArrayList<>();
+    ArrayList<Integer> slot = new ArrayList<>();
+    StringBuilder buf = new StringBuilder();
+    int media = 0;
+    boolean origin = false;
+
+    for (String line : lines(sdp)) {
+      if (line.startsWith("o=")) {
+        // o=<username> <sess-id> <sess-version> <nettype> <addrtype> <unicast-address>
+        String[] fields = line.substring(2).split(" ");
+        if (fields.length != 6) {
+          throw new IllegalArgumentException("malformed o= line: " + line);
+        }
+        buf.append("o=").append(fields[0]).append(' ');
+        field(text, slot, buf, SESSION_ID);
+        buf.append(' ');
+        field(text, slot, buf, VERSION);
+        buf.append(' ').append(fields[3]).append(' ').append(fields[4]).append(' ');
+        field(text, slot, buf, ADDRESS);
+        origin = true;
+      } else if (line.startsWith("c=")) {
+        // c=<nettype> <addrtype> <connection-address>[/<ttl>]
+        String[] fields = line.substring(2).split(" ");
+        if (fields.length != 3) {
+          throw new IllegalArgumentException("malformed c= line: " + line);
+        }
+        buf.append("c=").append(fields[0]).append(' ').append(fields[1]).append(' ');
+        field(text, slot, buf, ADDRESS);
+        int ttl = fields[2].indexOf('/');
+        if (ttl != -1) {
+          buf.append(fields[2].substring(ttl));
+        }
+      } else if (line.startsWith("m=")) {
+        // m=<media> <port>[/<number of ports>] <proto> <fmt> ...
+        String[] fields = line.substring(2).split(" ", 3);
+        if (fields.length != 3) {
+          throw new IllegalArgumentException("malformed m= line: " + line);
+        }
+        buf.append("m=").append(fields[0]).append(' ');
+        field(text, slot, buf, PORT + media++);
+        int count = fields[1].indexOf('/');
+        if (count != -1) {
+          buf.append(fields[1].substring(count));
+        }
+        buf.append(' ').append(fields[2]);
+      } else {
+        buf.append(line);
+      }
+      buf.append("\r\n");
+    }
+
+    if ((origin == false) || (media == 0)) {
+      throw new IllegalArgumentException("session description without o= or m= line");
+    }
+
+    text.add(buf.toString());
+
+    int[] slots = new int[slot.size()];
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = slot.get(i);
+    }
+    return new SdpTemplate(text.toArray(new String[text.size()]), slots, media);
+  }
+
+  /**
+   * Returns the number of m= lines of this template, which is the number of ports of a body.
+   */
+  public int getMediaCount() {
+    return mediaCount;
+  }
+
+  /**
+   * Produces a session description from this template.
+   * 
+   * @param sessionId the session ID of the o= line.
+   * @param version the session version of the o= line.
+   * @param address the address of the o= and c= lines.
+   * @param ports the port of each m= line, in order.
+   * @return the session description.
+   * @throws IllegalArgumentException if the number of ports isn't getMediaCount().
+   */
+  public String render(long sessionId, long version, String address, int... ports) {
+    if (ports.length != mediaCount) {
+      throw new IllegalArgumentException(
+          "expected " + mediaCount + " ports, got " + ports.length);
+    }
+
+    StringBuilder buf = new StringBuilder(length + address.length() * 2);
+    for (int i = 0; i < slot.length; i++) {
+      buf.append(text[i]);
+      switch (slot[i]) {
+        case SESSION_ID:
+          buf.append(sessionId);
+          break;
+        case VERSION:
+          buf.append(version);
+          break;
+        case ADDRESS:
+          buf.append(address);
+          break;
+        default:
+          buf.append(ports[slot[i] - PORT]);
+          break;
+      }
+    }
+    return buf.append(text[slot.length]).toString();
+  }
+
+  /**
+   * Produces an answer to the given offer from this template: the same as render() except that the
+   * streams rejected by the offer (port 0) get port 0.
+   * 
+   * @throws IllegalArgumentException if the offer doesn't have getMediaCount() m= lines.
+   */
+  public String createAnswer(String offer, long sessionId, long version, String address,
+      int... ports) {
+    int[] offered = mediaPorts(offer);
+    if (offered.length != mediaCount) {
+      throw new IllegalArgumentException("offer has " + offered.length + " m= lines, expected "
+          + mediaCount);
+    }
+
+    int[] answered = ports.clone();
+    for (int i = 0; i < offered.length; i++) {
+      if (offered[i] == 0) {
+        answered[i] = 0;
+      }
+    }
+    return render(sessionId, version, address, answered);
+  }
+
+  /**
+   * Creates the SDP state of one call using this template: a new session ID and the ports of its
+   * m= lines, allocated from the given allocator.
+   * 
+   * @param allocator where to allocate the ports from.
+   * @param address the address of the o= and c= lines.
+   * @return the SdpSession, or null if the allocator is out of ports.
+   */
+  public SdpSession newSession(MediaPortAllocator allocator, String address) {
+    int[] ports = allocator.allocate(mediaCount);
+    if (ports == null) {
+      return null;
+    }
+    return new SdpSession(this, allocator, address, ports, sessionIds.incrementAndGet());
+  }
+
+  /**
+   * Returns the port of each m= line of a session description, in order.
+   */
+  static int[] mediaPorts(String sdp) {
+    ArrayList<Integer> ports = new ArrayList<>();
+    for (String line : lines(sdp)) {
+      if (line.startsWith("m=")) {
+        String[] fields = line.substring(2).split(" ", 3);
+        int count = fields.length < 2 ? -1 : fields[1].indexOf('/');
+        try {
+          ports.add(Integer.parseInt(count == -1 ? fields[1] : fields[1].substring(0, count)));
+        } catch (RuntimeException e) {
+          throw new IllegalArgumentException("malformed m= line: " + line);
+        }
+      }
+    }
+
+    int[] result = new int[ports.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = ports.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * Splits a session description into its non-empty lines, without the line ends.
+   */
+  static ArrayList<String> lines(String sdp) {
+    ArrayList<String> lines = new ArrayList<>();
+    int start = 0;
+    while (start < sdp.length()) {
+      int end = sdp.indexOf('\n', start);
+      if (end == -1) {
+        end = sdp.length();
+      }
+
+      String line = sdp.substring(start, (end > start) && (sdp.charAt(end - 1) == '\r') ? end - 1
+          : end).trim();
+      if (line.length() > 0) {
+        lines.add(line);
+      }
+      start = end + 1;
+    }
+    return lines;
+  }
+
+  private static void field(ArrayList<String> text, ArrayList<Integer> slot, StringBuilder buf,
+      int kind) {
+    text.add(buf.toString());
+    slot.add(kind);
+    buf.setLength(0);
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import java.util.concurrent.ScheduledFuture;
+
+import javax.sip.ClientTransaction;
+import javax.sip.Dialog;
+import javax.sip.header.ContentTypeHeader;
+
+/**
+ * This class is the session timer (RFC 4028) of one call, as negotiated when the call was set up
+ * under a SessionTimerPolicy: the session interval, which side refreshes the session and how the
+ * refreshes went. A test program gets it from SipCall.getSessionTimer().
+ * 
+ * <p>
+ * The state other than the latency histogram is guarded by this object's monitor; it is updated
+ * by the SipPhone's session timer scheduler and the SIP stack thread.
+ * 
+ */
+public class SessionTimer {
+
+  private final String callId;
+
+  private final boolean uac;
+
+  private final LatencyHistogram refreshLatency = new LatencyHistogram();
+
+  Dialog dialog;
+
+  int interval;
+
+  boolean refresher;
+
+  long refreshesSent;
+
+  long refreshesReceived;
+
+  long refreshFailures;
+
+  boolean expired;
+
+  boolean ended;
+
+  long expiresAt; // System.nanoTime()
+
+  ScheduledFuture<?> pending;
+
+  ClientTransaction refreshTransaction;
+
+  long refreshSentAt;
+
+  long awaitedAck = -1; // CSeq of a re-INVITE refresh answered, until its ACK
+
+  // the session description sent by the SipPhone when the call was set up, if any - offered again
+  // in the re-INVITE refreshes and given as the answer to the offer of a refresh received
+  ContentTypeHeader descriptionType;
+
+  byte[] description;
+
+  SessionTimer(String callId, boolean uac, Dialog dialog, int interval, boolean refresher) {
+    this.callId = callId;
+    this.uac = uac;
+    this.dialog = dialog;
+    this.interval = interval;
+    this.refresher = refresher;
+  }
+
+  public String getCallId() {
+    return callId;
+  }
+
+  /**
+   * Indicates if the SipPhone made the call (true) or answered it (false).
+   */
+  public boolean isUac() {
+    return uac;
+  }
+
+  /**
+   * Returns the session interval currently in effect, in seconds.
+   */
+  public synchronized int getInterval() {
+    return interval;
+  }
+
+  /**
+   * Indicates if the SipPhone refreshes the session (true) or the far end does (false).
+   */
+  public synchronized boolean isRefresher() {
+    return refresher;
+  }
+
+  public synchronized long getRefreshesSent() {
+    return refreshesSent;
+  }
+
+  public synchronized long getRefreshesReceived() {
+    return refreshesReceived;
+  }
+
+  /**
+   * Returns the number of refreshes sent that got an error response or no response, or couldn't be
+   * sent.
+   */
+  public synchronized long getRefreshFailures() {
+    return refreshFailures;
+  }
+
+  /**
+   * Indicates if the call was ended because the session expired.
+   */
+  public synchronized boolean isExpired() {
+    return expired;
+  }
+
+  /**
+   * Indicates if the session is still being kept alive (the call hasn't ended).
+   */
+  public synchronized boolean isActive() {
+    return ended == false;
+  }
+
+  /**
+   * Returns the time from sending each refresh to receiving its 2xx response.
+   */
+  public LatencyHistogram getRefreshLatency() {
+    return refreshLatency;
+  }
+
+  public synchronized String toString() {
+    return "call " + callId + ": interval " + interval + "s, "
+        + (refresher ? "local" : "remote") + " refresher, refreshes sent=" + refreshesSent
+        + ", received=" + refreshesReceived + ", failures=" + refreshFailures
+        + (expired ? ", expired" : (ended ? ", ended" : ""));
+  }
+}
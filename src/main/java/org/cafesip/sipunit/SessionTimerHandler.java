@@ -0,0 +1,741 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.sip.ClientTransaction;
+import javax.sip.Dialog;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipListener;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ContentTypeHeader;
+import javax.sip.header.Header;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.ToHeader;
+import javax.sip.message.Message;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * FOR INTERNAL USE ONLY. A test class doesn't use this class.
+ *
+ * <p>
+ * This class carries out a SessionTimerPolicy for a SipPhone. SipCall and UasCallHandler call it
+ * to add the session timer headers to the INVITEs and 200 OKs they send and to start the session
+ * timer of a call once it is set up; SipPhone.dispatchRequest() gives it the received requests
+ * first, so that it answers the refreshes of the calls it keeps alive, with the session
+ * description the call was set up with. The answers, refreshes, expiry checks and BYEs are sent
+ * from the scheduler threads shared by the SipPhones, or from the phone's event loop in event-loop
+ * mode (see SipStack.setEventLoops()). It is registered with the SipStack as a SipListener to get
+ * the responses to its refreshes, which no SipCall is waiting for.
+ *
+ */
+class SessionTimerHandler implements SipListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SessionTimerHandler.class);
+
+  static final String SESSION_EXPIRES = "Session-Expires";
+
+  static final String MIN_SE = "Min-SE";
+
+  private static final String TIMER = "timer";
+
+  private final SipPhone phone;
+
+  private final SessionTimerPolicy policy;
+
+  private final ScheduledExecutorService scheduler;
+
+  private final ConcurrentHashMap<String, SessionTimer> sessions = new ConcurrentHashMap<>();
+
+  SessionTimerHandler(SipPhone phone, SessionTimerPolicy policy) {
+    this.phone = phone;
+    this.policy = policy;
+
+    scheduler = EventLoop.getScheduler(phone);
+
+    phone.getParent().registerListener(this, phone);
+  }
+
+  SessionTimerPolicy getPolicy() {
+    return policy;
+  }
+
+  SessionTimer getSession(String callId) {
+    return sessions.get(callId);
+  }
+
+  void shutdown() {
+    phone.getParent().unregisterListener(this);
+    for (SessionTimer session : sessions.values()) {
+      synchronized (session) {
+        session.ended = true;
+        cancelPending(session);
+      }
+    }
+    sessions.clear();
+  }
+
+  /**
+   * Adds the session timer offer to an initial INVITE about to be sent.
+   */
+  void offer(Request invite) throws Exception {
+    String value = String.valueOf(policy.getSessionExpires());
+    if (policy.getRefresher() != SessionTimerPolicy.REFRESHER_ANY) {
+      value += ";refresher="
+          + (policy.getRefresher() == SessionTimerPolicy.REFRESHER_UAC ? "uac" : "uas");
+    }
+
+    HeaderFactory hdr_factory = phone.getHeaderFactory();
+    invite.setHeader(hdr_factory.createHeader(SESSION_EXPIRES, value));
+    invite.setHeader(hdr_factory.createHeader(MIN_SE, String.valueOf(policy.getMinSE())));
+    invite.addHeader(hdr_factory.createSupportedHeader(TIMER));
+  }
+
+  /**
+   * Returns the INVITE to send again after a 422 response to the given one, asking for the
+   * interval required by the far end, or null if the response doesn't say what it requires.
+   */
+  Request retry(Response response, Request invite) throws Exception {
+    policy.intervalTooSmall();
+
+    String minSE = timerValue(response, MIN_SE);
+    if (minSE == null) {
+      return null;
+    }
+
+    Request msg = (Request) invite.clone();
+    String[] params = value(invite, SESSION_EXPIRES).split(";", 2);
+    msg.setHeader(phone.getHeaderFactory().createHeader(SESSION_EXPIRES,
+        number(minSE) + (params.length > 1 ? ";" + params[1] : "")));
+    msg.setHeader(phone.getHeaderFactory().createHeader(MIN_SE, String.valueOf(number(minSE))));
+    return msg;
+  }
+
+  /**
+   * Indicates if the session interval offered by the given initial INVITE is below the policy
+   * minimum, in which case the INVITE must be rejected with reject422().
+   */
+  boolean isTooSmall(Request invite) {
+    String se = timerValue(invite, SESSION_EXPIRES);
+    return (se != null) && (number(se) < policy.getMinSE());
+  }
+
+  /**
+   * Sends the 422 response for an INVITE or refresh whose interval is too small.
+   */
+  void reject422(Request request, ServerTransaction tr) throws Exception {
+    Response response =
+        phone.getMessageFactory().createResponse(SipResponse.SESSION_INTERVAL_TOO_SMALL, request);
+    response.setHeader(
+        phone.getHeaderFactory().createHeader(MIN_SE, String.valueOf(policy.getMinSE())));
+    tr.sendResponse(response);
+    policy.intervalTooSmall();
+  }
+
+  /**
+   * Returns the headers to put in the 200 OK answering the given initial INVITE - added to the
+   * given list, which may be null - or the list as is if the INVITE doesn't offer a session timer.
+   */
+  ArrayList<Header> answer(Request invite, ArrayList<Header> headers) throws Exception {
+    int[] negotiated = negotiate(invite);
+    if (negotiated == null) {
+      return headers;
+    }
+
+    ArrayList<Header> list = (headers == null ? new ArrayList<Header>() : new ArrayList<>(headers));
+    list.add(phone.getHeaderFactory().createHeader(SESSION_EXPIRES,
+        negotiated[0] + ";refresher=" + (negotiated[1] == 1 ? "uac" : "uas")));
+    if (negotiated[1] == 1) {
+      list.add(phone.getHeaderFactory().createRequireHeader(TIMER));
+    }
+    return list;
+  }
+
+  /**
+   * Starts the session timer of a call answered with the headers given by answer(), if any. The
+   * headers and body the 200 OK was sent with give its session description, as for
+   * SipSession.putElements(): the body is sent if the headers include a Content-Type.
+   */
+  void answered(Request invite, Dialog dialog, List<Header> headers, String body) {
+    int[] negotiated = negotiate(invite);
+    if ((negotiated != null) && (dialog != null)) {
+      SessionTimer session = new SessionTimer(dialog.getCallId().getCallId(), false, dialog,
+          negotiated[0], negotiated[1] == 0);
+
+      if (headers != null) {
+        for (Header header : headers) {
+          if (header instanceof ContentTypeHeader) {
+            session.descriptionType = (ContentTypeHeader) header;
+            session.description = (body == null ? "" : body).getBytes();
+          }
+        }
+      }
+
+      start(session);
+    }
+  }
+
+  /**
+   * Starts the session timer of a call made by the SipPhone, as given by the 200 OK answering it,
+   * unless it's already started. The session description of the call is that of the given local
+   * message - the ACK if it carries one, otherwise the INVITE.
+   */
+  void established(Dialog dialog, Response ok, Message local) {
+    String se = timerValue(ok, SESSION_EXPIRES);
+    if ((se == null) || (dialog == null)) {
+      return; // the far end doesn't do session timers
+    }
+
+    String callId = dialog.getCallId().getCallId();
+    if (sessions.containsKey(callId)) {
+      return;
+    }
+
+    SessionTimer session =
+        new SessionTimer(callId, true, dialog, number(se), "uac".equals(refresher(se)));
+
+    byte[] description = (local == null ? null : local.getRawContent());
+    if ((description != null) && (description.length > 0)) {
+      session.descriptionType = (ContentTypeHeader) local.getHeader(ContentTypeHeader.NAME);
+      session.description = description;
+    }
+
+    start(session);
+  }
+
+  /**
+   * Stops the session timer of a call that has ended.
+   */
+  void ended(String callId) {
+    SessionTimer session = sessions.remove(callId);
+    if (session != null) {
+      synchronized (session) {
+        session.ended = true;
+        cancelPending(session);
+      }
+    }
+  }
+
+  /**
+   * Handles the given request if it is a refresh of a session kept alive here or the ACK of one.
+   * A BYE ends the session but is left for someone else to handle.
+   *
+   * @return true if the request has been taken, false if it is for someone else.
+   */
+  boolean handle(RequestEvent event) {
+    Request request = event.getRequest();
+    CallIdHeader callIdHdr = (CallIdHeader) request.getHeader(CallIdHeader.NAME);
+    if (callIdHdr == null) {
+      return false;
+    }
+
+    SessionTimer session = sessions.get(callIdHdr.getCallId());
+    if (session == null) {
+      return false;
+    }
+
+    String method = request.getMethod();
+
+    if (method.equals(Request.BYE)) {
+      ended(session.getCallId());
+      return false;
+    }
+
+    if (method.equals(Request.ACK)) {
+      long seq = ((CSeqHeader) request.getHeader(CSeqHeader.NAME)).getSeqNumber();
+      synchronized (session) {
+        if (session.awaitedAck == seq) {
+          session.awaitedAck = -1;
+          return true;
+        }
+      }
+      return false;
+    }
+
+    if ((method.equals(Request.UPDATE) == false) && (method.equals(Request.INVITE) == false)) {
+      return false;
+    }
+
+    String se = value(request, SESSION_EXPIRES);
+    if ((se == null) || (((ToHeader) request.getHeader(ToHeader.NAME)).getTag() == null)) {
+      return false; // not a session refresh
+    }
+
+    byte[] offer = request.getRawContent();
+    synchronized (session) {
+      if ((offer != null) && (offer.length > 0) && (session.description == null)) {
+        return false; // an offer, with no session description to answer it here
+      }
+    }
+
+    // answered from the scheduler, not under the SipPhone's request lock
+    scheduler.execute(() -> answerRefresh(session, event, se));
+    return true;
+  }
+
+  /*
+   * Answers a refresh received, with the session description of the call if the refresh carries an
+   * offer or is an offerless re-INVITE (RFC 3264: the 2xx must then carry the offer)
+   */
+  private void answerRefresh(SessionTimer session, RequestEvent event, String se) {
+    Request request = event.getRequest();
+    String method = request.getMethod();
+
+    try {
+      ServerTransaction tr = event.getServerTransaction();
+      if (tr == null) {
+        tr = phone.getParent().getSipProvider().getNewServerTransaction(request);
+      }
+
+      if (number(se) < 0) {
+        tr.sendResponse(phone.getMessageFactory().createResponse(Response.BAD_REQUEST, request));
+        return;
+      }
+
+      if (number(se) < policy.getMinSE()) {
+        reject422(request, tr);
+        return;
+      }
+
+      // the sender of a refresh is the UAC of its transaction
+      int interval = Math.max(Math.min(number(se), policy.getSessionExpires()),
+          policy.getMinSE());
+      boolean local = "uas".equals(refresher(se));
+
+      Response response = phone.getMessageFactory().createResponse(Response.OK, request);
+      response.setHeader(phone.getHeaderFactory().createHeader(SESSION_EXPIRES,
+          interval + ";refresher=" + (local ? "uas" : "uac")));
+      response.addHeader(phone.getHeaderFactory().createRequireHeader(TIMER));
+      response.addHeader(phone.getContactInfo(request).getContactHeader());
+
+      byte[] offer = request.getRawContent();
+      boolean answer = (offer != null) && (offer.length > 0);
+
+      synchronized (session) {
+        if (method.equals(Request.INVITE)) {
+          session.awaitedAck = ((CSeqHeader) request.getHeader(CSeqHeader.NAME)).getSeqNumber();
+        }
+        session.interval = interval;
+        session.refresher = local;
+        session.refreshesReceived++;
+
+        if ((session.description != null) && (answer || method.equals(Request.INVITE))) {
+          response.setContent(session.description, session.descriptionType);
+        }
+      }
+
+      tr.sendResponse(response);
+      policy.refreshReceived();
+      schedule(session);
+    } catch (Exception ex) {
+      LOG.error("Session timer: error answering refresh for call " + session.getCallId() + ": "
+          + ex.getClass().getName() + ": " + ex.getMessage(), ex);
+    }
+  }
+
+  public void processResponse(ResponseEvent event) {
+    ClientTransaction ct = event.getClientTransaction();
+    Response response = event.getResponse();
+    SessionTimer session = find(ct, response);
+    if ((session == null) || (response.getStatusCode() < 200)) {
+      return;
+    }
+
+    int status = response.getStatusCode();
+    long latency;
+    synchronized (session) {
+      session.refreshTransaction = null;
+      latency = System.nanoTime() - session.refreshSentAt;
+    }
+
+    if (status / 100 == 2) {
+      try {
+        if (ct.getRequest().getMethod().equals(Request.INVITE)) {
+          long seq = ((CSeqHeader) response.getHeader(CSeqHeader.NAME)).getSeqNumber();
+          session.dialog.sendAck(session.dialog.createAck(seq));
+        }
+      } catch (Exception ex) {
+        LOG.error("Session timer: couldn't ACK refresh for call " + session.getCallId() + ": "
+            + ex.getClass().getName() + ": " + ex.getMessage(), ex);
+      }
+
+      session.getRefreshLatency().record(latency);
+      policy.getRefreshLatency().record(latency);
+
+      String se = timerValue(response, SESSION_EXPIRES);
+      synchronized (session) {
+        if (se != null) {
+          session.interval = number(se);
+          session.refresher = "uac".equals(refresher(se));
+        }
+      }
+      schedule(session);
+      return;
+    }
+
+    if (status == SipResponse.SESSION_INTERVAL_TOO_SMALL) {
+      policy.intervalTooSmall();
+      String minSE = timerValue(response, MIN_SE);
+      if (minSE != null) {
+        synchronized (session) {
+          session.interval = Math.max(session.interval, number(minSE));
+        }
+        scheduler.execute(() -> refresh(session));
+        return;
+      }
+    }
+
+    refreshFailed(session, status);
+  }
+
+  public void processTimeout(TimeoutEvent event) {
+    ClientTransaction ct = event.getClientTransaction();
+    if (ct == null) {
+      return;
+    }
+
+    SessionTimer session = find(ct, ct.getRequest());
+    if (session != null) {
+      synchronized (session) {
+        session.refreshTransaction = null;
+      }
+      refreshFailed(session, Response.REQUEST_TIMEOUT);
+    }
+  }
+
+  public void processDialogTerminated(DialogTerminatedEvent event) {
+    Dialog dialog = event.getDialog();
+    SessionTimer session = sessions.get(dialog.getCallId().getCallId());
+    if ((session != null) && (session.dialog == dialog)) {
+      ended(session.getCallId());
+    }
+  }
+
+  public void processRequest(RequestEvent event) {
+    // requests are given by SipPhone.dispatchRequest()
+  }
+
+  public void processIOException(IOExceptionEvent event) {}
+
+  public void processTransactionTerminated(TransactionTerminatedEvent event) {}
+
+  private void start(SessionTimer session) {
+    if (sessions.putIfAbsent(session.getCallId(), session) != null) {
+      return;
+    }
+
+    policy.sessionStarted();
+    schedule(session);
+  }
+
+  /**
+   * Schedules the next refresh if the SipPhone is the refresher, or the expiry check otherwise,
+   * for a session just set up or refreshed.
+   */
+  private void schedule(SessionTimer session) {
+    synchronized (session) {
+      if (session.ended) {
+        return;
+      }
+
+      cancelPending(session);
+
+      long interval = TimeUnit.SECONDS.toMillis(session.interval);
+      session.expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(interval);
+
+      if (session.refresher) {
+        session.pending =
+            scheduler.schedule(() -> refresh(session), interval / 2, TimeUnit.MILLISECONDS);
+      } else {
+        // RFC 4028: the BYE is sent a third of the interval or 32 seconds before expiry
+        long margin = Math.min(TimeUnit.SECONDS.toMillis(32), interval / 3);
+        session.pending =
+            scheduler.schedule(() -> expire(session), interval - margin, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  private void refresh(SessionTimer session) {
+    Request request;
+    synchronized (session) {
+      if (session.ended || (session.refreshTransaction != null)) {
+        return;
+      }
+
+      session.pending = null;
+
+      try {
+        request = session.dialog.createRequest(policy.getRefreshMethod());
+        request.setHeader(phone.getHeaderFactory().createHeader(SESSION_EXPIRES,
+            session.interval + ";refresher=uac"));
+        request.setHeader(phone.getHeaderFactory().createHeader(MIN_SE,
+            String.valueOf(policy.getMinSE())));
+        request.addHeader(phone.getHeaderFactory().createSupportedHeader(TIMER));
+        request.setHeader(phone.getContactInfo(request).getContactHeader());
+        if ((session.description != null) && request.getMethod().equals(Request.INVITE)) {
+          request.setContent(session.description, session.descriptionType);
+        }
+        phone.addAuthorizations(session.getCallId(), request);
+
+        session.refreshTransaction = phone.getParent().getSipProvider()
+            .getNewClientTransaction(request);
+        phone.pin(session.refreshTransaction);
+        session.refreshSentAt = System.nanoTime();
+        session.refreshesSent++;
+      } catch (Exception ex) {
+        LOG.error("Session timer: couldn't create refresh for call " + session.getCallId() + ": "
+            + ex.getClass().getName() + ": " + ex.getMessage(), ex);
+        request = null;
+      }
+    }
+
+    if (request == null) {
+      refreshFailed(session, -1);
+      return;
+    }
+
+    policy.refreshSent();
+
+    try {
+      session.dialog.sendRequest(session.refreshTransaction);
+    } catch (Exception ex) {
+      LOG.error("Session timer: couldn't send refresh for call " + session.getCallId() + ": "
+          + ex.getClass().getName() + ": " + ex.getMessage(), ex);
+      synchronized (session) {
+        session.refreshTransaction = null;
+      }
+      refreshFailed(session, -1);
+    }
+  }
+
+  /**
+   * Counts a failed refresh and tries again before the session expires, or ends the call if the
+   * far end says the dialog is gone or doesn't answer.
+   */
+  private void refreshFailed(SessionTimer session, int status) {
+    policy.refreshFailed();
+
+    long left;
+    synchronized (session) {
+      session.refreshFailures++;
+      if (session.ended) {
+        return;
+      }
+      left = TimeUnit.NANOSECONDS.toMillis(session.expiresAt - System.nanoTime());
+    }
+
+    if (status == Response.CALL_OR_TRANSACTION_DOES_NOT_EXIST) {
+      ended(session.getCallId());
+      return;
+    }
+
+    if ((status == Response.REQUEST_TIMEOUT) || (left <= 0)) {
+      scheduler.execute(() -> expire(session));
+      return;
+    }
+
+    // 491 Request Pending and the like: try again shortly, well within the time left
+    long delay = Math.min(left / 2, 1000 + ThreadLocalRandom.current().nextLong(1000));
+    synchronized (session) {
+      cancelPending(session);
+      session.pending = scheduler.schedule(() -> refresh(session), delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Ends the call of a session that wasn't refreshed in time.
+   */
+  private void expire(SessionTimer session) {
+    synchronized (session) {
+      if (session.ended) {
+        return;
+      }
+      session.expired = true;
+    }
+
+    ended(session.getCallId());
+    policy.sessionExpired();
+    LOG.trace("Session timer: session expired: {}", session);
+
+    UasCallHandler handler = phone.getUasCallHandler();
+    if ((handler != null) && handler.hangup(session.getCallId())) {
+      return;
+    }
+
+    try {
+      Request bye = session.dialog.createRequest(Request.BYE);
+      phone.addAuthorizations(session.getCallId(), bye);
+      ClientTransaction ct = phone.getParent().getSipProvider().getNewClientTransaction(bye);
+      phone.pin(ct);
+      session.dialog.sendRequest(ct);
+    } catch (Exception ex) {
+      LOG.error("Session timer: couldn't send BYE for expired call " + session.getCallId() + ": "
+          + ex.getClass().getName() + ": " + ex.getMessage(), ex);
+    }
+  }
+
+  /**
+   * Returns the session whose pending refresh is the given transaction, or null.
+   */
+  private SessionTimer find(ClientTransaction ct, Message message) {
+    if (ct == null) {
+      return null;
+    }
+
+    CallIdHeader callIdHdr = (CallIdHeader) message.getHeader(CallIdHeader.NAME);
+    if (callIdHdr == null) {
+      return null;
+    }
+
+    SessionTimer session = sessions.get(callIdHdr.getCallId());
+    if (session == null) {
+      return null;
+    }
+
+    synchronized (session) {
+      return (session.refreshTransaction == ct ? session : null);
+    }
+  }
+
+  /**
+   * Works out the session interval and refresher for an incoming initial INVITE.
+   *
+   * @return {interval, 1 if the caller refreshes or 0 if the SipPhone does}, or null if the INVITE
+   *         doesn't offer a session timer.
+   */
+  private int[] negotiate(Request invite) {
+    String se = timerValue(invite, SESSION_EXPIRES);
+    if (se == null) {
+      return null;
+    }
+
+    int minSE = policy.getMinSE();
+    String requestMin = timerValue(invite, MIN_SE);
+    if (requestMin != null) {
+      minSE = Math.max(minSE, number(requestMin));
+    }
+    int interval = Math.max(Math.min(number(se), policy.getSessionExpires()), minSE);
+
+    String refresher = refresher(se);
+    if (refresher == null) {
+      switch (policy.getRefresher()) {
+        case SessionTimerPolicy.REFRESHER_UAC:
+          refresher = "uac";
+          break;
+        case SessionTimerPolicy.REFRESHER_UAS:
+          refresher = "uas";
+          break;
+        default:
+          refresher = (supportsTimer(invite) ? "uac" : "uas");
+          break;
+      }
+    }
+
+    return new int[] {interval, "uac".equals(refresher) ? 1 : 0};
+  }
+
+  private static boolean supportsTimer(Request request) {
+    ListIterator<?> i = request.getHeaders("Supported");
+    while ((i != null) && i.hasNext()) {
+      if (i.next().toString().contains(TIMER)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void cancelPending(SessionTimer session) {
+    if (session.pending != null) {
+      session.pending.cancel(false);
+      session.pending = null;
+    }
+  }
+
+  /**
+   * Returns the value of the given header of a message, parameters included, or null if the
+   * message doesn't have the header.
+   */
+  static String value(Message message, String name) {
+    Header header = message.getHeader(name);
+    if (header == null) {
+      return null;
+    }
+
+    String text = header.toString();
+    return text.substring(text.indexOf(':') + 1).trim();
+  }
+
+  /**
+   * Returns the value of the given Session-Expires or Min-SE header of a received message, or null
+   * if the message doesn't have the header or if the header is malformed, which is then ignored.
+   */
+  private static String timerValue(Message message, String name) {
+    String text = value(message, name);
+    if ((text != null) && (number(text) < 0)) {
+      LOG.trace("Session timer: ignoring malformed {} header: {}", name, text);
+      return null;
+    }
+    return text;
+  }
+
+  /**
+   * Returns the delta-seconds at the start of a Session-Expires or Min-SE header value, or -1 if
+   * the value doesn't start with delta-seconds.
+   */
+  static int number(String value) {
+    int end = value.indexOf(';');
+    String delta = (end == -1 ? value : value.substring(0, end)).trim();
+    if (delta.isEmpty() || (delta.chars().allMatch(Character::isDigit) == false)) {
+      return -1;
+    }
+
+    try {
+      return Integer.parseInt(delta);
+    } catch (NumberFormatException e) {
+      return -1; // too large
+    }
+  }
+
+  /**
+   * Returns the refresher parameter of a Session-Expires header value, or null if there is none.
+   */
+  static String refresher(String value) {
+    for (String param : value.split(";")) {
+      String[] pair = param.trim().split("=", 2);
+      if ((pair.length == 2) && pair[0].trim().equalsIgnoreCase("refresher")) {
+        return pair[1].trim().toLowerCase();
+      }
+    }
+    return null;
+  }
+}
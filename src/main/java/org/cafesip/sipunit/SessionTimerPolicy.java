@@ -0,0 +1,246 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sip.message.Request;
+
+/**
+ * This class describes how the calls of a SipPhone use session timers (RFC 4028), so that long
+ * calls - soak tests running for hours - are kept alive by periodic session refreshes without the
+ * test driving them. A policy is put into effect by calling SipPhone.setSessionTimerPolicy().
+ * 
+ * <p>
+ * With a policy in effect, the SipPhone:
+ * <ul>
+ * <li>offers a session timer in the initial INVITEs it sends (Session-Expires, Min-SE and
+ * Supported: timer headers), and sends the INVITE again with a larger interval if the far end
+ * answers 422 Session Interval Too Small,
+ * <li>accepts a session timer offered in an incoming INVITE when answering it with 200 OK - with
+ * SipCall.sendIncomingCallResponse() or a UasCallPolicy - choosing the refresher if the caller
+ * didn't, and rejects an interval below its minimum with 422 when answering with a UasCallPolicy,
+ * <li>once the call is set up, sends a refresh (UPDATE by default, or re-INVITE) every half
+ * interval if it is the refresher, and answers the refreshes from the far end otherwise,
+ * <li>ends the call with a BYE if the session expires without a refresh.
+ * </ul>
+ * Refreshes are sent from one scheduler thread per SipPhone, whatever the number of calls. Incoming
+ * refreshes are answered by the SipPhone and don't reach SipCall.waitForReinvite().
+ * 
+ * <p>
+ * The refreshes of all the calls are counted by this object - see the getXyz() counter methods and
+ * getRefreshLatency(). The figures for one call are given by SipCall.getSessionTimer(). A policy
+ * object may be shared by several SipPhones, in which case the counters are the totals for all of
+ * them.
+ * 
+ */
+public class SessionTimerPolicy {
+
+  /**
+   * The refresher is left to the far end when making a call, and chosen as recommended by RFC 4028
+   * (the caller if it supports session timers) when answering one.
+   */
+  public static final int REFRESHER_ANY = 0;
+
+  /**
+   * The calling party refreshes the session.
+   */
+  public static final int REFRESHER_UAC = 1;
+
+  /**
+   * The called party refreshes the session.
+   */
+  public static final int REFRESHER_UAS = 2;
+
+  private volatile int sessionExpires = 1800;
+
+  private volatile int minSE = 90;
+
+  private volatile int refresher = REFRESHER_ANY;
+
+  private volatile String refreshMethod = Request.UPDATE;
+
+  private final AtomicLong sessionsStarted = new AtomicLong();
+
+  private final AtomicLong refreshesSent = new AtomicLong();
+
+  private final AtomicLong refreshesReceived = new AtomicLong();
+
+  private final AtomicLong refreshFailures = new AtomicLong();
+
+  private final AtomicLong sessionsExpired = new AtomicLong();
+
+  private final AtomicLong intervalsTooSmall = new AtomicLong();
+
+  private final LatencyHistogram refreshLatency = new LatencyHistogram();
+
+  /**
+   * Sets the session interval requested in the INVITEs sent and the largest accepted when
+   * answering, in seconds. The default is 1800.
+   * 
+   * <p>
+   * RFC 4028 doesn't allow less than 90 seconds; smaller values are accepted here for short tests
+   * between SipUnit user agents.
+   */
+  public void setSessionExpires(int sessionExpires) {
+    if (sessionExpires < 1) {
+      throw new IllegalArgumentException("session interval must be at least 1 second");
+    }
+    this.sessionExpires = sessionExpires;
+  }
+
+  /**
+   * Sets the smallest session interval accepted, in seconds (the Min-SE header). The default is 90.
+   */
+  public void setMinSE(int minSE) {
+    if (minSE < 1) {
+      throw new IllegalArgumentException("minimum session interval must be at least 1 second");
+    }
+    this.minSE = minSE;
+  }
+
+  /**
+   * Sets which side should refresh the session: REFRESHER_ANY (the default), REFRESHER_UAC or
+   * REFRESHER_UAS. When making a call, the choice is requested from the far end, which may
+   * override it when none is requested.
+   */
+  public void setRefresher(int refresher) {
+    if ((refresher < REFRESHER_ANY) || (refresher > REFRESHER_UAS)) {
+      throw new IllegalArgumentException(
+          "refresher must be REFRESHER_ANY, REFRESHER_UAC or REFRESHER_UAS");
+    }
+    this.refresher = refresher;
+  }
+
+  /**
+   * Sets the method of the refreshes sent, SipRequest.UPDATE (the default) or SipRequest.INVITE.
+   */
+  public void setRefreshMethod(String refreshMethod) {
+    if ((Request.UPDATE.equals(refreshMethod) || Request.INVITE.equals(refreshMethod)) == false) {
+      throw new IllegalArgumentException("refresh method must be UPDATE or INVITE");
+    }
+    this.refreshMethod = refreshMethod;
+  }
+
+  public int getSessionExpires() {
+    return sessionExpires;
+  }
+
+  public int getMinSE() {
+    return minSE;
+  }
+
+  public int getRefresher() {
+    return refresher;
+  }
+
+  public String getRefreshMethod() {
+    return refreshMethod;
+  }
+
+  /**
+   * Returns the number of calls set up with a session timer.
+   */
+  public long getSessionsStarted() {
+    return sessionsStarted.get();
+  }
+
+  /**
+   * Returns the number of refreshes sent.
+   */
+  public long getRefreshesSent() {
+    return refreshesSent.get();
+  }
+
+  /**
+   * Returns the number of refreshes received from the far end and answered.
+   */
+  public long getRefreshesReceived() {
+    return refreshesReceived.get();
+  }
+
+  /**
+   * Returns the number of refreshes sent that got an error response or no response, or couldn't be
+   * sent.
+   */
+  public long getRefreshFailures() {
+    return refreshFailures.get();
+  }
+
+  /**
+   * Returns the number of calls ended because their session expired.
+   */
+  public long getSessionsExpired() {
+    return sessionsExpired.get();
+  }
+
+  /**
+   * Returns the number of 422 Session Interval Too Small responses sent or received.
+   */
+  public long getIntervalsTooSmall() {
+    return intervalsTooSmall.get();
+  }
+
+  /**
+   * Returns the time from sending each refresh to receiving its 2xx response.
+   */
+  public LatencyHistogram getRefreshLatency() {
+    return refreshLatency;
+  }
+
+  /**
+   * Sets all the counters and the refresh latency histogram back to 0.
+   */
+  public void resetCounters() {
+    sessionsStarted.set(0);
+    refreshesSent.set(0);
+    refreshesReceived.set(0);
+    refreshFailures.set(0);
+    sessionsExpired.set(0);
+    intervalsTooSmall.set(0);
+    refreshLatency.reset();
+  }
+
+  public String toString() {
+    return "sessions=" + getSessionsStarted() + ", refreshes sent=" + getRefreshesSent()
+        + ", refreshes received=" + getRefreshesReceived() + ", failures=" + getRefreshFailures()
+        + ", expired=" + getSessionsExpired() + ", 422=" + getIntervalsTooSmall()
+        + ", refresh latency: " + refreshLatency;
+  }
+
+  protected void sessionStarted() {
+    sessionsStarted.incrementAndGet();
+  }
+
+  protected void refreshSent() {
+    refreshesSent.incrementAndGet();
+  }
+
+  protected void refreshReceived() {
+    refreshesReceived.incrementAndGet();
+  }
+
+  protected void refreshFailed() {
+    refreshFailures.incrementAndGet();
+  }
+
+  protected void sessionExpired() {
+    sessionsExpired.incrementAndGet();
+  }
+
+  protected void intervalTooSmall() {
+    intervalsTooSmall.incrementAndGet();
+  }
+}
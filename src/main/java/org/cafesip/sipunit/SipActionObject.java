@@ -22,6 +22,10 @@ package org.cafesip.sipunit;
  * success or failure, and in the case of failure, the reason for failure. This interface is
  * primarily used by SipTestCase/SipAssert.
  * 
+ * <p>
+ * A SipPhone and its SipAor objects can be used from several threads at once: for them, these
+ * methods give the result of the last operation performed by the calling thread.
+ * 
  * @author Becky McElroy
  * 
  */
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sip.address.Address;
+import javax.sip.address.SipURI;
+import javax.sip.message.Request;
+
+/**
+ * This class represents an additional address of record (a "virtual user") hosted by a SipPhone.
+ * It is used when a test needs to simulate a large number of users and creating a full SipPhone
+ * for each one would cost too much memory. An object of this class is created by calling
+ * SipPhone.createAor().
+ *
+ * <p>
+ * A SipAor has its own address of record, contact, credentials list, registration Call-ID and
+ * CSeq sequence, and last registration request. Everything else - the SIP stack listener
+ * registration, the Via headers, the transaction and request dispatch structures, the
+ * authorization cache, the subscription lists - is shared with the hosting SipPhone. Requests
+ * addressed to a SipAor's contact are accepted by the hosting SipPhone and handled the same way as
+ * requests addressed to the SipPhone itself (ie, SipCall.waitForIncomingCall() on a call created
+ * from the SipAor or from the SipPhone).
+ *
+ * <p>
+ * As with the other SipUnit objects, if an operation fails, call getErrorMessage(),
+ * getReturnCode() and/or getException() on this object to find out why.
+ *
+ */
+public class SipAor implements SipActionObject {
+
+  private SipPhone parent;
+
+  private Address address;
+
+  private String registrationId; // registration call ID
+
+  private final AtomicLong cseqNumber = new AtomicLong();
+
+  private SipContact contactInfo;
+
+  private Hashtable<String, Credential> credentials;
+
+  private volatile Request lastRegistrationRequest;
+
+  // the outcome of the last operation, per calling thread (see ErrorInfo)
+  private final ErrorInfo errorInfo = new ErrorInfo();
+
+  protected SipAor(SipPhone parent, Address address, SipContact contactInfo,
+      String registrationId) {
+    this.parent = parent;
+    this.address = address;
+    this.contactInfo = contactInfo;
+    this.registrationId = registrationId;
+  }
+
+  /**
+   * This method is the same as SipPhone.register(user, password, contact, expiry, timeout) except
+   * that the REGISTER is sent for this address of record, using this object's contact, credentials
+   * list, registration Call-ID and CSeq.
+   *
+   * @return false if registration fails or an error is encountered, true otherwise. In case of
+   *         false, call getErrorMessage(), getReturnCode() and/or getException() methods to find
+   *         out why.
+   */
+  public boolean register(String user, String password, String contact, int expiry,
+      long timeout) {
+    boolean status = parent.register(this, user, password, contact, expiry, timeout);
+    copyErrorInfo();
+    return status;
+  }
+
+  /**
+   * This method is the same as the basic register() method except for the Request-URI used in the
+   * outgoing REGISTER message. See SipPhone.register(requestUri, user, password, contact, expiry,
+   * timeout).
+   *
+   * @return false if registration fails or an error is encountered, true otherwise.
+   */
+  public boolean register(SipURI requestUri, String user, String password, String contact,
+      int expiry, long timeout) {
+    boolean status =
+        parent.register(this, requestUri, user, password, contact, expiry, timeout);
+    copyErrorInfo();
+    return status;
+  }
+
+  /**
+   * This method performs the SIP unregistration process for this address of record. See
+   * SipPhone.unregister(contact, timeout).
+   *
+   * @return true if the unregistration succeeded or no unregistration was needed, false otherwise.
+   */
+  public boolean unregister(String contact, long timeout) {
+    boolean status = parent.unregister(this, contact, timeout);
+    copyErrorInfo();
+    return status;
+  }
+
+  /**
+   * This method creates a SipCall object for this address of record. The call is owned by the
+   * hosting SipPhone (it is disposed of when the SipPhone is) but uses this object's address as the
+   * From address, this object's contact as the Contact header and this object's credentials list
+   * when responding to authentication challenges. See SipPhone.createSipCall().
+   *
+   * @return A SipCall object.
+   */
+  public SipCall createSipCall() {
+    return parent.createSipCall(this);
+  }
+
+  /**
+   * This method adds a new credential to this address of record's credentials list or updates an
+   * existing credential in the list. The list is separate from the hosting SipPhone's.
+   *
+   * @param c the credential to be added/updated.
+   */
+  public void addUpdateCredential(Credential c) {
+    synchronized (this) {
+      if (credentials == null) {
+        credentials = new Hashtable<>(1);
+      }
+
+      credentials.put(c.getRealm(), c);
+    }
+  }
+
+  /**
+   * This method removes a credential from this address of record's credentials list.
+   *
+   * @param realm the realm associated with the credential to be removed.
+   */
+  public void removeCredential(String realm) {
+    Map<String, Credential> creds = getCredentials();
+    if (creds != null) {
+      creds.remove(realm);
+    }
+  }
+
+  /**
+   * Returns the address of record of this virtual user.
+   */
+  public Address getAddress() {
+    return address;
+  }
+
+  /**
+   * Returns the address of record of this virtual user as a String, for example sip:bob@nist.gov.
+   */
+  public String getUri() {
+    return address.getURI().toString();
+  }
+
+  /**
+   * Returns the contact information currently in effect for this virtual user. See
+   * SipPhone.getContactInfo().
+   */
+  public SipContact getContactInfo() {
+    synchronized (this) {
+      return contactInfo;
+    }
+  }
+
+  /**
+   * Returns the SipPhone hosting this address of record.
+   */
+  public SipPhone getParent() {
+    return parent;
+  }
+
+  protected void setContactInfo(SipContact contactInfo) {
+    synchronized (this) {
+      this.contactInfo = contactInfo;
+    }
+  }
+
+  protected Map<String, Credential> getCredentials() {
+    synchronized (this) {
+      return credentials;
+    }
+  }
+
+  protected String getRegistrationId() {
+    return registrationId;
+  }
+
+  protected long nextCSeqNumber() {
+    return cseqNumber.incrementAndGet();
+  }
+
+  protected Request getLastRegistrationRequest() {
+    return lastRegistrationRequest;
+  }
+
+  protected void setLastRegistrationRequest(Request lastRegistrationRequest) {
+    this.lastRegistrationRequest = lastRegistrationRequest;
+  }
+
+  private void copyErrorInfo() {
+    // the parent's outcome is that of this thread's operation, just completed
+    errorInfo.setReturnCode(parent.getReturnCode());
+    errorInfo.setErrorMessage(parent.getErrorMessage());
+    errorInfo.setException(parent.getException());
+  }
+
+  /*
+   * @see org.cafesip.sipunit.SipActionObject#getErrorMessage()
+   */
+  public String getErrorMessage() {
+    return errorInfo.getErrorMessage();
+  }
+
+  /*
+   * @see org.cafesip.sipunit.SipActionObject#getException()
+   */
+  public Throwable getException() {
+    return errorInfo.getException();
+  }
+
+  /*
+   * @see org.cafesip.sipunit.SipActionObject#getReturnCode()
+   */
+  public int getReturnCode() {
+    return errorInfo.getReturnCode();
+  }
+
+  /*
+   * @see org.cafesip.sipunit.SipActionObject#format()
+   */
+  public String format() {
+    int returnCode = getReturnCode();
+    String errorMessage = getErrorMessage();
+    if (SipSession.isInternal(returnCode) == true) {
+      return SipSession.statusCodeDescription.get(new Integer(returnCode))
+          + (errorMessage.length() > 0 ? (": " + errorMessage) : "");
+    } else {
+      return "Status code received from network = " + returnCode + ", "
+          + SipResponse.statusCodeDescription.get(new Integer(returnCode))
+          + (errorMessage.length() > 0 ? (": " + errorMessage) : "");
+    }
+  }
+}
@@ -24,15 +24,12 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.concurrent.Callable;
 
-import javax.sip.header.CSeqHeader;
 import javax.sip.header.Header;
-import javax.sip.message.Request;
 
 import com.jayway.awaitility.core.ConditionTimeoutException;
 
@@ -301,15 +298,7 @@ public class SipAssert {
    * @return true if a received response matches the given statusCode
    */
   public static boolean responseReceived(int statusCode, MessageListener messageListener) {
-    ArrayList<SipResponse> responses = messageListener.getAllReceivedResponses();
-
-    for (SipResponse r : responses) {
-      if (statusCode == r.getStatusCode()) {
-        return true;
-      }
-    }
-
-    return false;
+    return messageListener.findMostRecentResponse(statusCode) != null;
   }
 
   /**
@@ -331,24 +320,7 @@ public class SipAssert {
 
   private static boolean responseReceived(int statusCode, String method, long sequenceNumber,
       MessageListener obj) {
-    List<SipResponse> responses = obj.getAllReceivedResponses();
-
-    Iterator<SipResponse> i = responses.iterator();
-    while (i.hasNext()) {
-      SipResponse resp = i.next();
-      if (resp.getStatusCode() == statusCode) {
-        CSeqHeader hdr = (CSeqHeader) resp.getMessage().getHeader(CSeqHeader.NAME);
-        if (hdr != null) {
-          if (hdr.getMethod().equals(method)) {
-            if (hdr.getSeqNumber() == sequenceNumber) {
-              return true;
-            }
-          }
-        }
-      }
-    }
-
-    return false;
+    return obj.findMostRecentResponse(statusCode, method, sequenceNumber) != null;
   }
 
   /**
@@ -445,19 +417,7 @@ public class SipAssert {
   }
 
   private static boolean requestReceived(String method, MessageListener obj) {
-    List<SipRequest> requests = obj.getAllReceivedRequests();
-
-    Iterator<SipRequest> i = requests.iterator();
-    while (i.hasNext()) {
-      Request req = (Request) i.next().getMessage();
-      if (req != null) {
-        if (req.getMethod().equals(method)) {
-          return true;
-        }
-      }
-    }
-
-    return false;
+    return obj.findMostRecentRequest(method) != null;
   }
 
   /**
@@ -476,24 +436,7 @@ public class SipAssert {
   }
 
   private static boolean requestReceived(String method, long sequenceNumber, MessageListener obj) {
-    List<SipRequest> requests = obj.getAllReceivedRequests();
-
-    Iterator<SipRequest> i = requests.iterator();
-    while (i.hasNext()) {
-      Request req = (Request) i.next().getMessage();
-      if (req != null) {
-        CSeqHeader hdr = (CSeqHeader) req.getHeader(CSeqHeader.NAME);
-        if (hdr != null) {
-          if (hdr.getMethod().equals(method)) {
-            if (hdr.getSeqNumber() == sequenceNumber) {
-              return true;
-            }
-          }
-        }
-      }
-    }
-
-    return false;
+    return obj.findMostRecentRequest(method, sequenceNumber) != null;
   }
 
   /**
@@ -745,6 +688,38 @@ public class SipAssert {
     assertTrue(true);
   }
 
+  /**
+   * Asserts that the given SDP answer is a valid answer to the given SDP offer, as checked by
+   * SdpAnswerValidator. If the assertion fails, the problems found are included in the failure
+   * output.
+   * 
+   * @param offer the SDP offer.
+   * @param answer the SDP answer.
+   */
+  public static void assertSdpAnswerValid(String offer, String answer) {
+    assertSdpAnswerValid(null, offer, answer);
+  }
+
+  /**
+   * Asserts that the given SDP answer is a valid answer to the given SDP offer, as checked by
+   * SdpAnswerValidator. Assertion failure output includes the given message text along with the
+   * problems found.
+   * 
+   * @param msg message text to include if the assertion fails.
+   * @param offer the SDP offer.
+   * @param answer the SDP answer.
+   */
+  public static void assertSdpAnswerValid(String msg, String offer, String answer) {
+    StringBuffer buf = new StringBuffer(msg == null ? "Invalid SDP answer" : msg);
+    List<String> errors = SdpAnswerValidator.validate(offer, answer);
+    for (String error : errors) {
+      buf.append(" : ");
+      buf.append(error);
+    }
+
+    assertEquals(buf.toString(), 0, errors.size());
+  }
+
   /**
    * Asserts that the given Subscription has not encountered any errors while processing received
    * subscription responses and received NOTIFY requests. If the assertion fails, the encountered
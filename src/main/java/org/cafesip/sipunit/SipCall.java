@@ -23,9 +23,10 @@ import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EventObject;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 
+import javax.sip.ClientTransaction;
 import javax.sip.Dialog;
 import javax.sip.DialogState;
 import javax.sip.RequestEvent;
@@ -84,13 +85,21 @@ public class SipCall implements SipActionObject, MessageListener {
 
   private static final Logger LOG = LoggerFactory.getLogger(SipCall.class);
 
+  // the most time sendInviteOkAck()/sendReinviteOkAck() wait for the dialog to take the 2xx into
+  // account, in milliseconds
+  private static final long ACK_READY_TIMEOUT = 500;
+
   private SipPhone parent;
 
-  private int returnCode = -1;
+  // The fields below that are written by the SIP stack thread (asynchronous response handling, see
+  // processEvent()) and read by the test thread are volatile so that they can be read without
+  // locking.
+
+  private volatile int returnCode = -1;
 
-  private String errorMessage = "";
+  private volatile String errorMessage = "";
 
-  private Throwable exception;
+  private volatile Throwable exception;
 
   private Address myAddress;
 
@@ -100,21 +109,35 @@ public class SipCall implements SipActionObject, MessageListener {
 
   private CallIdHeader callId;
 
-  private SipTransaction transaction;
+  private volatile SipTransaction transaction;
 
-  private List<SipResponse> receivedResponses;
+  private MessageHistory<SipResponse> receivedResponses;
 
-  private List<SipRequest> receivedRequests;
+  private MessageHistory<SipRequest> receivedRequests;
 
   private List<String> allReceivedMessagesContent;
 
   private Request messageRequest;
 
-  private Dialog dialog;
+  private volatile Dialog dialog;
+
+  private volatile boolean callAnswered;
+
+  private volatile boolean messageDelivered;
+
+  private SipAor aor; // null if this call uses the SipPhone's own address of record
+
+  // in-dialog requests handed to this call by the SipPhone (see SipPhone.dispatchRequest()), once
+  // this call is listening and owns its Call-ID
+  private LinkedList<RequestEvent> reqEvents = new LinkedList<>();
 
-  private boolean callAnswered;
+  private BlockObject reqBlock = new BlockObject();
 
-  private boolean messageDelivered;
+  private volatile boolean listening;
+
+  private volatile ScenarioRun scenarioRun; // non-null while a CallScenario drives this call
+
+  private final CallTimeline timeline;
 
   /**
    * A constructor for this class.
@@ -125,11 +148,24 @@ public class SipCall implements SipActionObject, MessageListener {
     this.parent = phone;
     this.myAddress = myAddress;
 
-    receivedResponses = Collections.synchronizedList(new ArrayList<SipResponse>());
-    receivedRequests = Collections.synchronizedList(new ArrayList<SipRequest>());
+    MessageRetention retention = phone.getParent().getDefaultMessageRetention();
+    receivedResponses = new MessageHistory<>(retention);
+    receivedRequests = new MessageHistory<>(retention);
+
+    timeline = new CallTimeline(phone.getLatencyStats(), phone.getParent().getLatencyStats());
+    timeline.setLimit(retention.getFullLimit());
     allReceivedMessagesContent = Collections.synchronizedList(new ArrayList<String>());
   }
 
+  /**
+   * A constructor for this class, for a call on behalf of an address of record hosted by the given
+   * SipPhone (see SipPhone.createAor()).
+   */
+  protected SipCall(SipPhone phone, SipAor aor) {
+    this(phone, aor.getAddress());
+    this.aor = aor;
+  }
+
   /**
    * This method releases all resources associated with this SipCall. This SipCall object must not
    * be used again after calling the dispose() method. BYE is sent to the far end if the call dialog
@@ -157,7 +193,9 @@ public class SipCall implements SipActionObject, MessageListener {
     }
 
     if (callId != null) {
+      endSessionTimer();
       parent.clearAuthorizations(callId.getCallId());
+      parent.unregisterCall(this, callId.getCallId());
     }
 
     parent.dropCall(this);
@@ -188,7 +226,7 @@ public class SipCall implements SipActionObject, MessageListener {
    * @return true unless an error is encountered, in which case false is returned.
    */
   public boolean listenForAck() {
-    return parent.listenRequestMessage();
+    return listen();
   }
 
   /**
@@ -199,7 +237,7 @@ public class SipCall implements SipActionObject, MessageListener {
    * @return true unless an error is encountered, in which case false is returned.
    */
   public boolean listenForDisconnect() {
-    return parent.listenRequestMessage();
+    return listen();
   }
 
   /**
@@ -210,7 +248,7 @@ public class SipCall implements SipActionObject, MessageListener {
    * @return true unless an error is encountered, in which case false is returned.
    */
   public boolean listenForIncomingCall() {
-    return parent.listenRequestMessage();
+    return listen();
   }
 
   /**
@@ -221,7 +259,7 @@ public class SipCall implements SipActionObject, MessageListener {
    * @return true unless an error is encountered, in which case false is returned.
    */
   public boolean listenForReinvite() {
-    return parent.listenRequestMessage();
+    return listen();
   }
 
   /**
@@ -232,7 +270,19 @@ public class SipCall implements SipActionObject, MessageListener {
    * @return true unless an error is encountered, in which case false is returned.
    */
   public boolean listenForMessage() {
-    return parent.listenRequestMessage();
+    return listen();
+  }
+
+  /**
+   * Start listening for in-dialog requests such as INFO or UPDATE. This is a non-blocking call.
+   * Starting from the time this method is called, any received request(s) for this call are
+   * collected. After calling this method, call waitForRequest() to process the first request of a
+   * given method received since calling this method.
+   * 
+   * @return true unless an error is encountered, in which case false is returned.
+   */
+  public boolean listenForRequests() {
+    return listen();
   }
 
   /**
@@ -247,6 +297,11 @@ public class SipCall implements SipActionObject, MessageListener {
    * @return true unless an error is encountered, in which case false is returned.
    */
   public boolean stopListeningForRequests() {
+    listening = false;
+    synchronized (reqBlock) {
+      reqEvents.clear();
+    }
+
     return parent.unlistenRequestMessage();
 
     // TODO: probably need several versions of unlistenRequestMessage(), to
@@ -292,13 +347,9 @@ public class SipCall implements SipActionObject, MessageListener {
   public boolean waitForDisconnect(long timeout) {
     initErrorInfo();
 
-    RequestEvent event = parent.waitRequest(timeout);
+    RequestEvent event = waitRequest(timeout);
 
     if (event == null) {
-      setReturnCode(parent.getReturnCode());
-      setErrorMessage(parent.getErrorMessage());
-      setException(parent.getException());
-
       return false;
     }
 
@@ -306,13 +357,9 @@ public class SipCall implements SipActionObject, MessageListener {
     receivedRequests.add(new SipRequest(event));
 
     while (request.getMethod().equals(Request.BYE) == false) {
-      event = parent.waitRequest(timeout); // TODO, adjust
+      event = waitRequest(timeout); // TODO, adjust
 
       if (event == null) {
-        setReturnCode(parent.getReturnCode());
-        setErrorMessage(parent.getErrorMessage());
-        setException(parent.getException());
-
         return false;
       }
 
@@ -381,18 +428,16 @@ public class SipCall implements SipActionObject, MessageListener {
 
     receivedRequests.clear();
     receivedResponses.clear();
+    timeline.clear();
     transaction = null;
     dialog = null;
     myTag = null;
     callAnswered = false;
+    setCallId(null); // the INVITE comes through the SipPhone
 
-    RequestEvent event = parent.waitRequest(timeout);
+    RequestEvent event = waitRequest(timeout);
 
     if (event == null) {
-      setReturnCode(parent.getReturnCode());
-      setErrorMessage(parent.getErrorMessage());
-      setException(parent.getException());
-
       return false;
     }
 
@@ -400,13 +445,9 @@ public class SipCall implements SipActionObject, MessageListener {
     receivedRequests.add(new SipRequest(event));
 
     while (request.getMethod().equals(Request.INVITE) == false) {
-      event = parent.waitRequest(timeout); // TODO, adjust timeout
+      event = waitRequest(timeout); // TODO, adjust timeout
 
       if (event == null) {
-        setReturnCode(parent.getReturnCode());
-        setErrorMessage(parent.getErrorMessage());
-        setException(parent.getException());
-
         return false;
       }
 
@@ -433,7 +474,7 @@ public class SipCall implements SipActionObject, MessageListener {
     transaction = new SipTransaction();
     transaction.setServerTransaction(tr);
 
-    callId = (CallIdHeader) request.getHeader(CallIdHeader.NAME);
+    setCallId((CallIdHeader) request.getHeader(CallIdHeader.NAME));
     parent.enableAuthorization(callId.getCallId());
 
     cseq = (CSeqHeader) request.getHeader(CSeqHeader.NAME);
@@ -477,13 +518,9 @@ public class SipCall implements SipActionObject, MessageListener {
   public boolean waitForAck(long timeout) {
     initErrorInfo();
 
-    RequestEvent event = parent.waitRequest(timeout);
+    RequestEvent event = waitRequest(timeout);
 
     if (event == null) {
-      setReturnCode(parent.getReturnCode());
-      setErrorMessage(parent.getErrorMessage());
-      setException(parent.getException());
-
       return false;
     }
 
@@ -491,13 +528,9 @@ public class SipCall implements SipActionObject, MessageListener {
     receivedRequests.add(new SipRequest(event));
 
     while (request.getMethod().equals(Request.ACK) == false) {
-      event = parent.waitRequest(timeout); // TODO, adjust
+      event = waitRequest(timeout); // TODO, adjust
 
       if (event == null) {
-        setReturnCode(parent.getReturnCode());
-        setErrorMessage(parent.getErrorMessage());
-        setException(parent.getException());
-
         return false;
       }
 
@@ -558,13 +591,9 @@ public class SipCall implements SipActionObject, MessageListener {
   public boolean waitForMessage(long timeout) {
     initErrorInfo();
 
-    RequestEvent event = parent.waitRequest(timeout);
+    RequestEvent event = waitRequest(timeout);
 
     if (event == null) {
-      setReturnCode(parent.getReturnCode());
-      setErrorMessage(parent.getErrorMessage());
-      setException(parent.getException());
-
       return false;
     }
 
@@ -575,19 +604,15 @@ public class SipCall implements SipActionObject, MessageListener {
       setLastReceivedMessageRequest(request);
       // Try to get the content of the message, if there is no content ignore it
       try {
-        allReceivedMessagesContent.add(new String(request.getRawContent()));
+        addReceivedMessageContent(new String(request.getRawContent()));
       } catch (Exception e) {
       }
     }
 
     while (request.getMethod().equals(Request.MESSAGE) == false) {
-      event = parent.waitRequest(timeout); // TODO, adjust
+      event = waitRequest(timeout); // TODO, adjust
 
       if (event == null) {
-        setReturnCode(parent.getReturnCode());
-        setErrorMessage(parent.getErrorMessage());
-        setException(parent.getException());
-
         return false;
       }
 
@@ -598,7 +623,7 @@ public class SipCall implements SipActionObject, MessageListener {
         setLastReceivedMessageRequest(request);
         // Try to get the content of the message, if there is no content ignore it
         try {
-          allReceivedMessagesContent.add(new String(request.getRawContent()));
+          addReceivedMessageContent(new String(request.getRawContent()));
         } catch (Exception e) {
         }
       }
@@ -710,6 +735,7 @@ public class SipCall implements SipActionObject, MessageListener {
 
     if (parent.sendReply(transaction, statusCode, reasonPhrase, myTag, null, expires,
         additionalHeaders, replaceHeaders, body) != null) {
+      responseSent(transaction, statusCode);
       dialog = transaction.getServerTransaction().getDialog();
       if (statusCode == SipResponse.OK) {
         // callAnswered = true;
@@ -822,7 +848,7 @@ public class SipCall implements SipActionObject, MessageListener {
       // Check if we are in a dialog
       if (dialog == null) {
         // create a new Call-ID
-        callId = parent.getNewCallIdHeader();
+        setCallId(parent.getNewCallIdHeader());
         cseq = hdr_factory.createCSeqHeader(cseq == null ? 1 : (cseq.getSeqNumber() + 1), method);
         myTag = parent.generateNewTag();
 
@@ -869,17 +895,14 @@ public class SipCall implements SipActionObject, MessageListener {
         msg.addHeader(hdr_factory.createRouteHeader(route_address));
       }
 
-      // send the message
-      synchronized (this) // needed for asynchronous response -
-      // processEvent()
-      {
-        transaction = parent.sendRequestWithTransaction(msg, viaProxy, dialog, null,
-            additionalHeaders, replaceHeaders, body);
-      }
+      // send the message - a scenario run gets the response through processEvent()
+      SipTransaction trans = sendInTransaction(msg, viaProxy, dialog,
+          (scenarioRun == null ? null : this), additionalHeaders, replaceHeaders, body);
 
-      if (transaction != null) {
+      if (trans != null) {
+        requestSent(trans);
         SipStack.dumpMessage("MESSAGE after sending out through stack",
-            transaction.getClientTransaction().getRequest());
+            trans.getClientTransaction().getRequest());
         return true;
       }
 
@@ -1016,12 +1039,31 @@ public class SipCall implements SipActionObject, MessageListener {
       myTag = parent.generateNewTag();
     }
 
+    SessionTimerHandler timers = parent.getSessionTimerHandler();
+    if ((statusCode == SipResponse.OK) && (timers != null)) {
+      try {
+        replaceHeaders =
+            timers.answer(transaction.getServerTransaction().getRequest(), replaceHeaders);
+      } catch (Exception ex) {
+        setReturnCode(SipSession.EXCEPTION_ENCOUNTERED);
+        setException(ex);
+        setErrorMessage("Exception: " + ex.getClass().getName() + ": " + ex.getMessage());
+        return false;
+      }
+    }
+
     if (parent.sendReply(transaction, statusCode, reasonPhrase, myTag,
-        (Address) parent.getContactInfo().getContactHeader().getAddress().clone(), expires,
+        (Address) getContactInfo().getContactHeader().getAddress().clone(), expires,
         additionalHeaders, replaceHeaders, body) != null) {
+      responseSent(transaction, statusCode);
       dialog = transaction.getServerTransaction().getDialog();
       if (statusCode == SipResponse.OK) {
         callAnswered = true;
+
+        if (timers != null) {
+          timers.answered(transaction.getServerTransaction().getRequest(), dialog,
+              additionalHeaders, body);
+        }
       }
 
       return true;
@@ -1084,6 +1126,95 @@ public class SipCall implements SipActionObject, MessageListener {
     }
   }
 
+  /**
+   * The waitForRequest() method waits for an in-dialog request of the given method - INFO or
+   * UPDATE, for example - addressed to this call to be received from the network. Call this method
+   * after calling a listenForXyz() method, such as listenForRequests(). While this call is
+   * listening, the INFO and UPDATE requests of its dialog are given to it, not to the SipPhone's
+   * waitRequest(), so that concurrent calls of a SipPhone each get their own.
+   * 
+   * <p>
+   * This method blocks until one of the following occurs: 1) A request of the given method has been
+   * received on the current dialog. In this case, a non-null SipTransaction object is returned. The
+   * getLastReceivedRequest() method can be called to get information about the received request.
+   * Use the method respondToRequest() for sending a response to it. 2) The wait timeout period
+   * specified by the parameter to this method expires. Null is returned in this case. 3) An error
+   * occurs. Null is returned in this case.
+   * 
+   * <p>
+   * Any requests of other methods received for this call are collected while waiting and can be
+   * seen by calling getAllReceivedRequests() once this method returns.
+   * 
+   * @param method the method of the request to wait for (ie, SipRequest.INFO).
+   * @param timeout The maximum amount of time to wait, in milliseconds. Use a value of 0 to wait
+   *        indefinitely.
+   * @return null in the case of wait timeout or error; call getReturnCode() and/or
+   *         getErrorMessage() and, if applicable, getException() for further diagnostics. A
+   *         SipTransaction object is returned if a request was received, to be passed to
+   *         respondToRequest().
+   */
+  public SipTransaction waitForRequest(String method, long timeout) {
+    initErrorInfo();
+
+    if (dialog == null) {
+      setReturnCode(SipSession.INVALID_OPERATION);
+      setErrorMessage((String) SipSession.statusCodeDescription.get(new Integer(returnCode))
+          + " - dialog hasn't been created, can't wait for " + method);
+      return null;
+    }
+
+    RequestEvent event;
+    do {
+      event = waitRequest(timeout); // TODO, adjust timeout
+
+      if (event == null) {
+        return null;
+      }
+
+      receivedRequests.add(new SipRequest(event));
+    } while (event.getRequest().getMethod().equals(method) == false);
+
+    ServerTransaction tr = event.getServerTransaction();
+    if (tr == null) {
+      try {
+        tr = parent.getParent().getSipProvider().getNewServerTransaction(event.getRequest());
+      } catch (Exception ex) {
+        setReturnCode(SipSession.EXCEPTION_ENCOUNTERED);
+        setErrorMessage("Exception: " + ex.getClass().getName() + ": " + ex.getMessage());
+        setException(ex);
+
+        return null;
+      }
+    }
+
+    SipTransaction siptrans = new SipTransaction();
+    siptrans.setServerTransaction(tr);
+
+    return siptrans;
+  }
+
+  /**
+   * This method sends a response to a request received by waitForRequest().
+   * 
+   * @param siptrans This is the object that was returned by method waitForRequest().
+   * @param statusCode The status code of the response to send (may use SipResponse constants).
+   * @param reasonPhrase If not null, the reason phrase to send.
+   * @return true if the response was successfully sent, false otherwise.
+   */
+  public boolean respondToRequest(SipTransaction siptrans, int statusCode, String reasonPhrase) {
+    initErrorInfo();
+    if (parent.sendReply(siptrans, statusCode, reasonPhrase, myTag, null, -1) != null) {
+      responseSent(siptrans, statusCode);
+      return true;
+    }
+
+    setReturnCode(parent.getReturnCode());
+    setException(parent.getException());
+    setErrorMessage("respondToRequest() - " + parent.getErrorMessage());
+
+    return false;
+  }
+
   /**
    * The waitForReinvite() method waits for a RE-INVITE request addressed to this user agent to be
    * received from the network. Call this method after calling the listenForReinvite() method.
@@ -1120,13 +1251,9 @@ public class SipCall implements SipActionObject, MessageListener {
       return null;
     }
 
-    RequestEvent event = parent.waitRequest(timeout);
+    RequestEvent event = waitRequest(timeout);
 
     if (event == null) {
-      setReturnCode(parent.getReturnCode());
-      setErrorMessage(parent.getErrorMessage());
-      setException(parent.getException());
-
       return null;
     }
 
@@ -1134,13 +1261,9 @@ public class SipCall implements SipActionObject, MessageListener {
     receivedRequests.add(new SipRequest(event));
 
     while (request.getMethod().equals(Request.INVITE) == false) {
-      event = parent.waitRequest(timeout); // TODO, adjust timeout
+      event = waitRequest(timeout); // TODO, adjust timeout
 
       if (event == null) {
-        setReturnCode(parent.getReturnCode());
-        setErrorMessage(parent.getErrorMessage());
-        setException(parent.getException());
-
         return null;
       }
 
@@ -1282,7 +1405,7 @@ public class SipCall implements SipActionObject, MessageListener {
     try {
       ContactHeader contact_hdr = null;
       if (newContact == null) {
-        contact_hdr = (ContactHeader) parent.getContactInfo().getContactHeader().clone();
+        contact_hdr = (ContactHeader) getContactInfo().getContactHeader().clone();
       } else {
         contact_hdr = parent.updateContactInfo(newContact, displayName);
       }
@@ -1301,6 +1424,8 @@ public class SipCall implements SipActionObject, MessageListener {
         return false;
       }
 
+      responseSent(siptrans, statusCode);
+
       return true;
     } catch (Exception ex) {
       setException(ex);
@@ -1334,6 +1459,7 @@ public class SipCall implements SipActionObject, MessageListener {
   public boolean respondToDisconnect(int statusCode, String reasonPhrase) {
     initErrorInfo();
     if (parent.sendReply(transaction, statusCode, reasonPhrase, myTag, null, -1) != null) {
+      responseSent(transaction, statusCode);
       return true;
     }
 
@@ -1375,6 +1501,7 @@ public class SipCall implements SipActionObject, MessageListener {
     initErrorInfo();
     if (parent.sendReply(transaction, statusCode, reasonPhrase, myTag, null, -1, additionalHeaders,
         replaceHeaders, body) != null) {
+      responseSent(transaction, statusCode);
       return true;
     }
 
@@ -1429,6 +1556,7 @@ public class SipCall implements SipActionObject, MessageListener {
     initErrorInfo();
     if (parent.sendReply(transaction, statusCode, reasonPhrase, myTag, null, -1, body, contentType,
         contentSubType, additionalHeaders, replaceHeaders) != null) {
+      responseSent(transaction, statusCode);
       return true;
     }
 
@@ -1561,6 +1689,7 @@ public class SipCall implements SipActionObject, MessageListener {
     dialog = null;
     receivedResponses.clear();
     receivedRequests.clear();
+    timeline.clear();
     callAnswered = false;
 
     toUri = toUri.trim();
@@ -1580,7 +1709,7 @@ public class SipCall implements SipActionObject, MessageListener {
       }
 
       // create a new Call-ID
-      callId = parent.getNewCallIdHeader();
+      setCallId(parent.getNewCallIdHeader());
       parent.enableAuthorization(callId.getCallId());
 
       String method = Request.INVITE;
@@ -1611,7 +1740,12 @@ public class SipCall implements SipActionObject, MessageListener {
       Request msg = parent.getMessageFactory().createRequest(request_uri, method, callId, cseq,
           from_header, to_header, via_headers, max_forwards);
 
-      msg.addHeader((ContactHeader) parent.getContactInfo().getContactHeader().clone());
+      msg.addHeader((ContactHeader) getContactInfo().getContactHeader().clone());
+
+      SessionTimerHandler timers = parent.getSessionTimerHandler();
+      if (timers != null) {
+        timers.offer(msg);
+      }
 
       // create and add the RouteHeader if needed
       boolean viaProxy = true;
@@ -1630,16 +1764,13 @@ public class SipCall implements SipActionObject, MessageListener {
       }
 
       // send the message
-      synchronized (this) // needed for asynchronous response -
-      // processEvent()
-      {
-        transaction = parent.sendRequestWithTransaction(msg, viaProxy, null, respListener,
-            additionalHeaders, replaceHeaders, body);
-      }
+      SipTransaction trans = sendInTransaction(msg, viaProxy, null, respListener,
+          additionalHeaders, replaceHeaders, body);
 
-      if (transaction != null) {
+      if (trans != null) {
+        requestSent(trans);
         SipStack.dumpMessage("INVITE after sending out through stack",
-            transaction.getClientTransaction().getRequest());
+            trans.getClientTransaction().getRequest());
         return true;
       }
 
@@ -1711,13 +1842,10 @@ public class SipCall implements SipActionObject, MessageListener {
       msg.setHeader(cseq);
 
       // send the message
-      synchronized (this) // needed for asynchronous response -
-      // processEvent()
-      {
-        transaction = parent.sendRequestWithTransaction(msg, false, null, respListener);
-      }
+      SipTransaction trans = sendInTransaction(msg, false, null, respListener, null, null, null);
 
-      if (transaction != null) {
+      if (trans != null) {
+        requestSent(trans);
         return true;
       }
 
@@ -1813,22 +1941,16 @@ public class SipCall implements SipActionObject, MessageListener {
       if (newContact != null) {
         req.setHeader(parent.updateContactInfo(newContact, displayName));
       } else {
-        req.setHeader((ContactHeader) parent.getContactInfo().getContactHeader().clone());
+        req.setHeader((ContactHeader) getContactInfo().getContactHeader().clone());
       }
 
       SipStack.dumpMessage("We have created this RE-INVITE", req);
 
-      SipTransaction siptrans;
-      synchronized (this) // needed for asynchronous response -
-      // processEvent(), although we're not using that here now.
-      // Change there would be needed because that uses attribute
-      // 'transaction'
-      {
-        siptrans = parent.sendRequestWithTransaction(req, false, dialog, additionalHeaders,
-            replaceHeaders, body);
-      }
+      SipTransaction siptrans = parent.sendRequestWithTransaction(req, false, dialog,
+          additionalHeaders, replaceHeaders, body);
 
       if (siptrans != null) {
+        requestSent(siptrans);
         cseq = (CSeqHeader) req.getHeader(CSeqHeader.NAME);
         return siptrans;
       }
@@ -1950,10 +2072,7 @@ public class SipCall implements SipActionObject, MessageListener {
     }
 
     try {
-      Thread.sleep(100); // TODO - investigate more. why needed? if so,
-      // use OK timestamp here
-
-      Request ack = dialog.createAck(
+      Request ack = createAck(transaction,
           ((CSeqHeader) this.getLastReceivedResponse().getMessage().getHeader(CSeqHeader.NAME))
               .getSeqNumber());
       parent.addAuthorizations(callId.getCallId(), ack);
@@ -1961,6 +2080,14 @@ public class SipCall implements SipActionObject, MessageListener {
 
       SipStack.dumpMessage("Sending the ACK", ack);
       dialog.sendAck(ack);
+      timeline.sent(ack);
+
+      SessionTimerHandler timers = parent.getSessionTimerHandler();
+      if (timers != null) {
+        byte[] ackBody = ack.getRawContent();
+        timers.established(dialog, (Response) getLastReceivedResponse().getMessage(),
+            ((ackBody != null) && (ackBody.length > 0)) ? ack : transaction.getRequest());
+      }
 
       return true;
     } catch (Exception ex) {
@@ -2066,9 +2193,7 @@ public class SipCall implements SipActionObject, MessageListener {
     }
 
     try {
-      Thread.sleep(10); // TODO - needed here? see sendInviteOkAck().
-
-      Request ack = dialog.createAck(
+      Request ack = createAck(siptrans,
           ((CSeqHeader) this.getLastReceivedResponse().getMessage().getHeader(CSeqHeader.NAME))
               .getSeqNumber());
 
@@ -2076,6 +2201,7 @@ public class SipCall implements SipActionObject, MessageListener {
       parent.putElements(ack, additionalHeaders, replaceHeaders, body);
 
       dialog.sendAck(ack);
+      timeline.sent(ack);
 
       return true;
     } catch (Exception ex) {
@@ -2340,14 +2466,12 @@ public class SipCall implements SipActionObject, MessageListener {
       Request bye = dialog.createRequest(Request.BYE);
       parent.addAuthorizations(callId.getCallId(), bye);
 
-      synchronized (this) {
-        // needed for asynchronous response -
-        // processEvent()
-        transaction = parent.sendRequestWithTransaction(bye, false, dialog, this, additionalHeaders,
-            replaceHeaders, body);
-      }
+      SipTransaction trans =
+          sendInTransaction(bye, false, dialog, this, additionalHeaders, replaceHeaders, body);
 
-      if (transaction != null) {
+      if (trans != null) {
+        requestSent(trans);
+        endSessionTimer();
         return true;
       }
 
@@ -2423,6 +2547,209 @@ public class SipCall implements SipActionObject, MessageListener {
     return parent;
   }
 
+  /**
+   * This method returns the hosted address of record this call was created for (see
+   * SipAor.createSipCall()).
+   *
+   * @return The SipAor, or null if this call uses its SipPhone's own address of record.
+   */
+  public SipAor getAor() {
+    return aor;
+  }
+
+  /**
+   * Creates the ACK for the 2xx response to the INVITE with the given CSeq number, sent in the
+   * given transaction. The SIP stack updates the dialog with the 2xx before delivering the 2xx, so
+   * the ACK is created once SipSession has been handed the final response of the transaction - in
+   * the usual case, that happened before the test program saw the 2xx and there is no wait.
+   * Otherwise the wait lasts at most ACK_READY_TIMEOUT milliseconds, then the stack reports what's
+   * wrong with the dialog.
+   */
+  private Request createAck(SipTransaction trans, long cseqNumber) throws Exception {
+    if ((trans != null) && (trans.awaitFinalResponse(ACK_READY_TIMEOUT) == false)) {
+      LOG.trace("no final response delivered for the INVITE yet, creating the ACK anyway");
+    }
+
+    return dialog.createAck(cseqNumber);
+  }
+
+  private boolean listen() {
+    listening = true;
+    if (callId != null) {
+      parent.routeQueuedRequests(this, callId.getCallId());
+    }
+
+    return parent.listenRequestMessage();
+  }
+
+  protected boolean isListening() {
+    return listening;
+  }
+
+  /**
+   * FOR INTERNAL USE ONLY. Queues an in-dialog request received for this call.
+   */
+  protected void queueRequest(RequestEvent request) {
+    timeline.received(request.getRequest());
+
+    ScenarioRun run = scenarioRun;
+    if (run != null) {
+      receivedRequests.add(new SipRequest(request));
+      run.eventReceived(request);
+      return;
+    }
+
+    synchronized (reqBlock) {
+      reqEvents.addLast(request);
+      reqBlock.notifyEvent();
+    }
+  }
+
+  /**
+   * Returns the session timer of this call, if it was set up with one under the SipPhone's
+   * SessionTimerPolicy (see SipPhone.setSessionTimerPolicy()).
+   *
+   * @return the call's SessionTimer object, or null if the call has no session timer running.
+   */
+  public SessionTimer getSessionTimer() {
+    SessionTimerHandler timers = parent.getSessionTimerHandler();
+    return ((timers == null) || (callId == null)) ? null : timers.getSession(callId.getCallId());
+  }
+
+  /**
+   * Returns the signalling timeline of this call: the time each message was sent or received, and
+   * the post-dial delay, answer time, ACK latency and BYE round trip derived from them.
+   */
+  public CallTimeline getTimeline() {
+    return timeline;
+  }
+
+  /**
+   * FOR INTERNAL USE ONLY. Sends a REGISTER for this call's address of record (see
+   * SipPhone.register()), with the responses handed to this call like those of its other requests
+   * and any authentication challenge answered by it. Used by CallScenario.register() steps.
+   *
+   * @return true if the request was sent, false otherwise (error info is set).
+   */
+  boolean sendRegistration(String contact, int expiry) {
+    initErrorInfo();
+
+    try {
+      Request msg = parent.createRegistration(aor, null, contact, expiry);
+      if (msg != null) {
+        SipTransaction trans = sendInTransaction(msg, false, null, this, null, null, null);
+        if (trans != null) {
+          requestSent(trans);
+          return true;
+        }
+      }
+
+      setReturnCode(parent.getReturnCode());
+      setErrorMessage(parent.getErrorMessage());
+      setException(parent.getException());
+      return false;
+    } catch (Exception ex) {
+      setReturnCode(SipSession.EXCEPTION_ENCOUNTERED);
+      setException(ex);
+      setErrorMessage("Exception: " + ex.getClass().getName() + ": " + ex.getMessage());
+      return false;
+    }
+  }
+
+  private void requestSent(SipTransaction trans) {
+    timeline.sent(trans.getClientTransaction().getRequest());
+  }
+
+  private void responseSent(SipTransaction trans, int statusCode) {
+    timeline.sent(statusCode, trans.getServerTransaction().getRequest());
+  }
+
+  /**
+   * FOR INTERNAL USE ONLY. Hands the responses, timeouts and in-dialog requests received for this
+   * call to the given scenario run instead of queueing the requests for waitForXyz(), or stops
+   * doing so if null.
+   */
+  void setScenarioRun(ScenarioRun run) {
+    scenarioRun = run;
+    listening = (run != null);
+  }
+
+  /*
+   * Sends the request in a new client transaction, which is stored in attribute 'transaction'
+   * before the request goes out. A challenge processed on the SIP stack thread (see processEvent())
+   * sends the request again and stores the new transaction; the sending thread must not overwrite
+   * it afterwards with the one it sent.
+   */
+  private SipTransaction sendInTransaction(Request msg, boolean viaProxy, Dialog dlg,
+      MessageListener respListener, ArrayList<Header> additionalHeaders,
+      ArrayList<Header> replaceHeaders, String body) {
+    SipTransaction trans = parent.sendRequestWithTransaction(msg, viaProxy, dlg, respListener,
+        additionalHeaders, replaceHeaders, body, sent -> transaction = sent);
+    if (trans == null) {
+      transaction = null;
+    }
+
+    return trans;
+  }
+
+  private void setCallId(CallIdHeader id) {
+    if (callId != null) {
+      parent.unregisterCall(this, callId.getCallId());
+    }
+
+    callId = id;
+
+    if (callId != null) {
+      parent.registerCall(this, callId.getCallId());
+    }
+  }
+
+  /**
+   * Waits for the next request for this call. If this call is listening and owns its Call-ID, the
+   * request comes from this call's own queue, which holds only requests for this call. Otherwise
+   * it comes from the SipPhone request queue, as before calls were indexed by Call-ID.
+   */
+  private RequestEvent waitRequest(long timeout) {
+    if ((listening == false) || (callId == null)
+        || (parent.getCall(callId.getCallId()) != this)) {
+      RequestEvent event = parent.waitRequest(timeout);
+      if (event == null) {
+        setReturnCode(parent.getReturnCode());
+        setErrorMessage(parent.getErrorMessage());
+        setException(parent.getException());
+      } else {
+        timeline.received(event.getRequest());
+      }
+
+      return event;
+    }
+
+    synchronized (reqBlock) {
+      if (reqEvents.isEmpty()) {
+        try {
+          reqBlock.waitForEvent(timeout);
+        } catch (Exception ex) {
+          setException(ex);
+          setErrorMessage("Exception: " + ex.getClass().getName() + ": " + ex.getMessage());
+          setReturnCode(SipSession.EXCEPTION_ENCOUNTERED);
+          return null;
+        }
+      }
+
+      if (reqEvents.isEmpty()) {
+        setReturnCode(SipSession.TIMEOUT_OCCURRED);
+        setErrorMessage("The maximum amount of time to wait for a request message has elapsed.");
+        return null;
+      }
+
+      return reqEvents.removeFirst();
+    }
+  }
+
+  private SipContact getContactInfo() {
+    return aor == null ? parent.getContactInfo() : aor.getContactInfo();
+  }
+
   /**
    * This method returns the dialog associated with this call leg.
    * 
@@ -2544,13 +2871,7 @@ public class SipCall implements SipActionObject, MessageListener {
    * 
    */
   public SipResponse getLastReceivedResponse() {
-    synchronized (receivedResponses) {
-      if (receivedResponses.isEmpty()) {
-        return null;
-      }
-
-      return (SipResponse) receivedResponses.get(receivedResponses.size() - 1);
-    }
+    return receivedResponses.getLast();
   }
 
   /**
@@ -2564,13 +2885,7 @@ public class SipCall implements SipActionObject, MessageListener {
    * 
    */
   public SipRequest getLastReceivedRequest() {
-    synchronized (receivedRequests) {
-      if (receivedRequests.isEmpty()) {
-        return null;
-      }
-
-      return (SipRequest) receivedRequests.get(receivedRequests.size() - 1);
-    }
+    return receivedRequests.getLast();
   }
 
   /**
@@ -2580,10 +2895,14 @@ public class SipCall implements SipActionObject, MessageListener {
    * <p>
    * See also SipCall methods getLastReceivedResponse(), findMostRecentResponse(statuscode).
    * 
+   * <p>
+   * Only the responses kept by this call's message retention are returned - see
+   * setMessageRetention().
+   * 
    * @return ArrayList of zero or more SipResponse objects.
    */
   public ArrayList<SipResponse> getAllReceivedResponses() {
-    return new ArrayList<>(receivedResponses);
+    return receivedResponses.getAll();
   }
 
   /**
@@ -2592,10 +2911,14 @@ public class SipCall implements SipActionObject, MessageListener {
    * <p>
    * See also SipCall method getLastReceivedRequest().
    * 
+   * <p>
+   * Only the requests kept by this call's message retention are returned - see
+   * setMessageRetention().
+   * 
    * @return ArrayList of zero or more SipRequest objects.
    */
   public ArrayList<SipRequest> getAllReceivedRequests() {
-    return new ArrayList<>(receivedRequests);
+    return receivedRequests.getAll();
   }
 
   /**
@@ -2603,12 +2926,84 @@ public class SipCall implements SipActionObject, MessageListener {
    * 
    * See also SipCall method getLastReceivedMessageRequest().
    * 
+   * <p>
+   * Only the contents of the MESSAGE requests kept by this call's message retention are returned -
+   * see setMessageRetention().
+   * 
    * @return ArrayList of zero or more String objects.
    */
   public List<String> getAllReceivedMessagesContent() {
     return allReceivedMessagesContent;
   }
 
+  private void addReceivedMessageContent(String content) {
+    synchronized (allReceivedMessagesContent) {
+      allReceivedMessagesContent.add(content);
+      trimReceivedMessagesContent();
+    }
+  }
+
+  private void trimReceivedMessagesContent() {
+    int limit = receivedRequests.getRetention().getFullLimit();
+    if (limit > 0) {
+      while (allReceivedMessagesContent.size() > limit) {
+        allReceivedMessagesContent.remove(0);
+      }
+    }
+  }
+
+  /**
+   * Sets how much of the messages received on this call is kept - see MessageRetention. This
+   * applies to the messages already received as well as the ones to come. The initial retention
+   * of a call is the SipStack's default message retention, which is to keep everything unless
+   * changed by SipStack.setDefaultMessageRetention().
+   * 
+   * <p>
+   * Whatever the retention, the last request and the last response received are kept, so
+   * getLastReceivedRequest() and getLastReceivedResponse() and the call operations that depend on
+   * them are not affected.
+   * 
+   * @param retention the retention to use, or null for MessageRetention.full().
+   */
+  public void setMessageRetention(MessageRetention retention) {
+    receivedResponses.setRetention(retention);
+    receivedRequests.setRetention(retention);
+    timeline.setLimit(receivedRequests.getRetention().getFullLimit());
+
+    synchronized (allReceivedMessagesContent) {
+      trimReceivedMessagesContent();
+    }
+  }
+
+  /**
+   * Returns the message retention currently in effect for this call - see setMessageRetention().
+   */
+  public MessageRetention getMessageRetention() {
+    return receivedRequests.getRetention();
+  }
+
+  /**
+   * Returns the summary records of the requests received on this call, oldest first. Records are
+   * kept only with the SUMMARY message retention - see setMessageRetention(); otherwise the
+   * returned list is empty.
+   * 
+   * @return List of zero or more MessageSummary objects.
+   */
+  public List<MessageSummary> getReceivedRequestSummaries() {
+    return receivedRequests.getSummaries();
+  }
+
+  /**
+   * Returns the summary records of the responses received on this call, oldest first. Records are
+   * kept only with the SUMMARY message retention - see setMessageRetention(); otherwise the
+   * returned list is empty.
+   * 
+   * @return List of zero or more MessageSummary objects.
+   */
+  public List<MessageSummary> getReceivedResponseSummaries() {
+    return receivedResponses.getSummaries();
+  }
+
   /**
    * This method returns the last MESSAGE request received on this call.
    * 
@@ -2667,8 +3062,9 @@ public class SipCall implements SipActionObject, MessageListener {
   // (nonblocking) response
   // handling
   {
-    synchronized (this) {
-    } // wail til message sending has finished (transaction attribute set)
+    // Attribute 'transaction' is set before the request goes out (see sendInTransaction()), but
+    // everything about the sent request is taken from the event's client transaction, which the
+    // SIP stack always provides and which is the one this event is for.
 
     if (event instanceof ResponseEvent) {
       processResponse((ResponseEvent) event);
@@ -2676,6 +3072,11 @@ public class SipCall implements SipActionObject, MessageListener {
       processTimeout((TimeoutEvent) event);
     }
 
+    ScenarioRun run = scenarioRun;
+    if (run != null) {
+      run.eventReceived(event);
+    }
+
     // note, requests don't come through here, they are handled via the
     // listen/waitFor methods.
   }
@@ -2700,14 +3101,15 @@ public class SipCall implements SipActionObject, MessageListener {
 
   private void processResponse(ResponseEvent responseEvent) {
     Response resp = responseEvent.getResponse();
+    timeline.received(resp);
     receivedResponses.add(new SipResponse(responseEvent));
     LOG.trace("Asynchronous response received: {}", resp);
 
-    if (transaction == null) {
+    ClientTransaction ct = responseEvent.getClientTransaction();
+    if (ct == null) {
       setReturnCode(SipSession.INTERNAL_ERROR);
       setErrorMessage((String) SipSession.statusCodeDescription.get(new Integer(returnCode))
-          + " Unexpected null transaction, received response: " + resp.toString() + "\n"
-          + " for sent request: " + responseEvent.getClientTransaction().getRequest().toString());
+          + " Unexpected null transaction, received response: " + resp.toString());
 
       LOG.error(getErrorMessage());
       return;
@@ -2715,22 +3117,22 @@ public class SipCall implements SipActionObject, MessageListener {
 
     setReturnCode(resp.getStatusCode());
 
-    String req_type = transaction.getClientTransaction().getRequest().getMethod();
+    String req_type = ct.getRequest().getMethod();
     if (req_type.equals(Request.INVITE)) {
-      processInviteResponse(resp);
+      processInviteResponse(resp, ct);
     } else {
-      processNonInviteResponse(resp);
+      processNonInviteResponse(resp, ct);
     }
 
     return;
   }
 
-  private void processNonInviteResponse(Response resp) {
+  private void processNonInviteResponse(Response resp, ClientTransaction ct) {
     if (returnCode / 100 == 1) {
       return; // provisional response, keep waiting
     }
 
-    Request req = getSentRequest();
+    Request req = ct.getRequest();
 
     if ((returnCode == Response.UNAUTHORIZED)
         || (returnCode == Response.PROXY_AUTHENTICATION_REQUIRED)) {
@@ -2742,8 +3144,8 @@ public class SipCall implements SipActionObject, MessageListener {
     }
   }
 
-  private void processInviteResponse(Response resp) {
-    dialog = transaction.getClientTransaction().getDialog();
+  private void processInviteResponse(Response resp, ClientTransaction ct) {
+    dialog = ct.getDialog();
 
     if (returnCode / 100 == 1) {
       return; // provisional response, keep waiting
@@ -2753,11 +3155,11 @@ public class SipCall implements SipActionObject, MessageListener {
       callAnswered = true;
     } else if ((returnCode == Response.UNAUTHORIZED)
         || (returnCode == Response.PROXY_AUTHENTICATION_REQUIRED)) {
-      Request msg = getSentRequest();
+      Request msg = ct.getRequest();
 
       // modify the request to include user authorization info
 
-      msg = parent.processAuthChallenge(resp, msg);
+      msg = parent.processAuthChallenge(resp, msg, aor);
       if (msg == null) {
         setReturnCode(parent.getReturnCode());
         setErrorMessage(parent.getErrorMessage());
@@ -2770,13 +3172,50 @@ public class SipCall implements SipActionObject, MessageListener {
         // error info already set
         LOG.error(getErrorMessage());
       }
+    } else if ((returnCode == SipResponse.SESSION_INTERVAL_TOO_SMALL)
+        && (parent.getSessionTimerHandler() != null)) {
+      if (retrySessionInterval(resp, ct.getRequest(), this) == false) {
+        LOG.error(getErrorMessage());
+      }
+    }
+  }
+
+  /**
+   * Sends the INVITE again with the session interval asked for by a 422 Session Interval Too
+   * Small response, as RFC 4028 requires.
+   *
+   * @return true if the INVITE was sent again, false otherwise (error info is set).
+   */
+  private boolean retrySessionInterval(Response resp, Request sentmsg,
+      MessageListener respListener) {
+    SessionTimerHandler timers = parent.getSessionTimerHandler();
+    try {
+      Request msg = timers.retry(resp, sentmsg);
+      if (msg == null) {
+        setErrorMessage("Session interval too small, and no Min-SE in the response");
+        return false;
+      }
+
+      return reInitiateOutgoingCall(msg, respListener);
+    } catch (Exception ex) {
+      setReturnCode(SipSession.EXCEPTION_ENCOUNTERED);
+      setException(ex);
+      setErrorMessage("Exception: " + ex.getClass().getName() + ": " + ex.getMessage());
+      return false;
+    }
+  }
+
+  private void endSessionTimer() {
+    SessionTimerHandler timers = parent.getSessionTimerHandler();
+    if (timers != null) {
+      timers.ended(callId.getCallId());
     }
   }
 
   private void authorizeResend(Response resp, Request sentmsg) {
     // modify the request to include user authorization info and resend
 
-    Request msg = parent.processAuthChallenge(resp, sentmsg);
+    Request msg = parent.processAuthChallenge(resp, sentmsg, aor);
     if (msg == null) {
       setReturnCode(parent.getReturnCode());
       setErrorMessage(parent.getErrorMessage());
@@ -2787,13 +3226,11 @@ public class SipCall implements SipActionObject, MessageListener {
 
     try {
       // send the message
-      synchronized (this) {
-        // needed for asynchronous response -
-        // processEvent()
-        transaction = parent.sendRequestWithTransaction(msg, false, dialog, this);
-      }
+      SipTransaction trans = sendInTransaction(msg, false, dialog, this, null, null, null);
 
-      if (transaction == null) {
+      if (trans != null) {
+        requestSent(trans);
+      } else {
         setReturnCode(parent.getReturnCode());
         setErrorMessage(parent.getErrorMessage());
         setException(parent.getException());
@@ -2891,7 +3328,7 @@ public class SipCall implements SipActionObject, MessageListener {
 
         // modify the request to include user authorization info
 
-        msg = parent.processAuthChallenge((Response) getLastReceivedResponse().getMessage(), msg);
+        msg = parent.processAuthChallenge((Response) getLastReceivedResponse().getMessage(), msg, aor);
         if (msg == null) {
           return false;
         }
@@ -2904,6 +3341,18 @@ public class SipCall implements SipActionObject, MessageListener {
           return false;
         }
 
+        continue;
+      } else if ((returnCode == SipResponse.SESSION_INTERVAL_TOO_SMALL)
+          && (parent.getSessionTimerHandler() != null)) {
+        if (retrySessionInterval((Response) getLastReceivedResponse().getMessage(),
+            getSentRequest(), null) == false) {
+          return false;
+        }
+
+        if (waitOutgoingCallResponse(timeout) == false) {
+          return false;
+        }
+
         continue;
       } else {
         setErrorMessage("Call was not answered, got this instead: " + returnCode);
@@ -2946,7 +3395,7 @@ public class SipCall implements SipActionObject, MessageListener {
         Request msg = getSentRequest();
 
         Response resp = (Response) getLastReceivedResponse().getMessage();
-        msg = parent.processAuthChallenge(resp, msg);
+        msg = parent.processAuthChallenge(resp, msg, aor);
 
         if (msg == null) {
           return false;
@@ -2965,23 +3414,50 @@ public class SipCall implements SipActionObject, MessageListener {
   }
 
   /**
-   * Finds the last received response with status code matching the given parameter.
+   * Finds the last received response with status code matching the given parameter. The lookup is
+   * made in an index of the responses kept by this call's message retention (see
+   * setMessageRetention()), without copying or scanning them.
    * 
    * @param statusCode Indicates the type of response to return.
    * @return SipResponse object or null, if not found.
    */
   public SipResponse findMostRecentResponse(int statusCode) {
-    List<SipResponse> responses = getAllReceivedResponses();
+    return receivedResponses.findLast(statusCode);
+  }
 
-    ListIterator<SipResponse> i = responses.listIterator(responses.size());
-    while (i.hasPrevious()) {
-      SipResponse resp = i.previous();
-      if (resp.getStatusCode() == statusCode) {
-        return resp;
-      }
-    }
+  /**
+   * Finds the last received response with the given status code, CSeq method and CSeq sequence
+   * number.
+   * 
+   * @param statusCode the status code to look for.
+   * @param method the CSeq method to look for (SipRequest.INVITE, etc.).
+   * @param sequenceNumber the CSeq sequence number to look for.
+   * @return SipResponse object or null, if not found.
+   */
+  public SipResponse findMostRecentResponse(int statusCode, String method, long sequenceNumber) {
+    return receivedResponses.findLast(statusCode, method, sequenceNumber);
+  }
 
-    return null;
+  /**
+   * Finds the last request received on this call with the given method.
+   * 
+   * @param method the request method to look for (SipRequest.BYE, etc.).
+   * @return SipRequest object or null, if not found.
+   */
+  public SipRequest findMostRecentRequest(String method) {
+    return receivedRequests.findLast(method);
+  }
+
+  /**
+   * Finds the last request received on this call with the given CSeq method and CSeq sequence
+   * number.
+   * 
+   * @param method the CSeq method to look for (SipRequest.BYE, etc.).
+   * @param sequenceNumber the CSeq sequence number to look for.
+   * @return SipRequest object or null, if not found.
+   */
+  public SipRequest findMostRecentRequest(String method, long sequenceNumber) {
+    return receivedRequests.findLast(method, sequenceNumber);
   }
 
   /**
@@ -3051,17 +3527,11 @@ public class SipCall implements SipActionObject, MessageListener {
 
       SipStack.dumpMessage("We have created this CANCEL", req);
 
-      SipTransaction siptrans;
-      synchronized (this)// needed for asynchronous response -
-      // processEvent(), although we're not using that here now.
-      // Change there would be needed because that uses attribute
-      // 'transaction'
-      {
-        siptrans = parent.sendRequestWithTransaction(req, false, null, additionalHeaders,
-            replaceHeaders, body);
-      }
+      SipTransaction siptrans = parent.sendRequestWithTransaction(req, false, null,
+          additionalHeaders, replaceHeaders, body);
 
       if (siptrans != null) {
+        requestSent(siptrans);
         return siptrans;
       }
 
@@ -3135,7 +3605,7 @@ public class SipCall implements SipActionObject, MessageListener {
    * @return true unless an error is encountered, in which case false is returned.
    */
   public boolean listenForCancel() {
-    return parent.listenRequestMessage();
+    return listen();
   }
 
   /**
@@ -3176,13 +3646,9 @@ public class SipCall implements SipActionObject, MessageListener {
       return null;
     }
 
-    RequestEvent event = parent.waitRequest(timeout);
+    RequestEvent event = waitRequest(timeout);
 
     if (event == null) {
-      setReturnCode(parent.getReturnCode());
-      setErrorMessage(parent.getErrorMessage());
-      setException(parent.getException());
-
       return null;
     }
 
@@ -3197,13 +3663,9 @@ public class SipCall implements SipActionObject, MessageListener {
 
     while ((request.getMethod().equals(Request.CANCEL) == false)
         || (branchId.equals(transaction.getServerTransaction().getBranchId()) == false)) {
-      event = parent.waitRequest(timeout); // TODO, adjust timeout
+      event = waitRequest(timeout); // TODO, adjust timeout
 
       if (event == null) {
-        setReturnCode(parent.getReturnCode());
-        setErrorMessage(parent.getErrorMessage());
-        setException(parent.getException());
-
         return null;
       }
 
@@ -3301,6 +3763,8 @@ public class SipCall implements SipActionObject, MessageListener {
         return false;
       }
 
+      responseSent(siptrans, statusCode);
+
       return true;
     } catch (Exception ex) {
       setException(ex);
@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.ListIterator;
 
+import javax.sip.header.CSeqHeader;
 import javax.sip.header.Header;
 import javax.sip.message.Message;
 
@@ -61,6 +62,19 @@ public class SipMessage {
     return message.getHeaders(header);
   }
 
+  /**
+   * Indicates if this message has a CSeq header with the given method and sequence number.
+   */
+  boolean hasCSeq(String method, long sequenceNumber) {
+    if (message == null) {
+      return false;
+    }
+
+    CSeqHeader hdr = (CSeqHeader) message.getHeader(CSeqHeader.NAME);
+    return (hdr != null) && hdr.getMethod().equals(method)
+        && (hdr.getSeqNumber() == sequenceNumber);
+  }
+
   /**
    * Obtains the underlying javax.sip.message.Message object. Knowledge of JAIN-SIP API is required.
    * 
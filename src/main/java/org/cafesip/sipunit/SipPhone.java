@@ -30,6 +30,11 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.sip.Dialog;
 import javax.sip.InvalidArgumentException;
@@ -92,16 +97,34 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
 
   public static final int DEFAULT_SUBSCRIBE_DURATION = 3600;
 
-  private CSeqHeader cseq;
+  public static final int DEFAULT_PUBLISH_DURATION = 3600;
 
-  private Request lastRegistrationRequest;
+  // CSeq sequence number of this SipPhone's registrations, incremented atomically so that
+  // concurrent register()/unregister() calls never send the same number
+  private final AtomicLong cseqNumber = new AtomicLong();
+
+  private volatile Request lastRegistrationRequest;
 
   private Hashtable<String, Credential> credentials = new Hashtable<>();
 
-  private Hashtable<String, LinkedHashMap<String, AuthorizationHeader>> authorizations =
-      new Hashtable<>();
+  // each per-Call-ID list is guarded by its own monitor
+  private Map<String, LinkedHashMap<String, AuthorizationHeader>> authorizations =
+      new ConcurrentHashMap<>();
+
+  private Set<SipCall> callList = ConcurrentHashMap.newKeySet();
+
+  // Calls of this SipPhone by Call-ID, for handing received in-dialog requests directly to the
+  // owning SipCall instead of the SipPhone-wide request queue. A SipCall has exactly one Call-ID
+  // at a time (dialogs forked from it share it), so no dialog ID key is needed.
+  private Map<String, SipCall> callsByCallId = new ConcurrentHashMap<>();
+
+  private volatile UasCallHandler uasCallHandler;
+
+  private volatile SessionTimerHandler sessionTimerHandler;
 
-  private ArrayList<SipCall> callList = new ArrayList<>();
+  private volatile PublishRefresher publishRefresher;
+
+  private final CallLatencyStats latencyStats = new CallLatencyStats();
 
   private Hashtable<String, PresenceSubscriber> buddyList = new Hashtable<>();
 
@@ -126,6 +149,28 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
 
   private List<ReferSubscriber> refererList = new ArrayList<>();
 
+  private List<ResourceListSubscriber> resourceLists = new ArrayList<>();
+
+  private List<ConferenceSubscriber> conferences = new ArrayList<>();
+
+  private List<DialogInfoSubscriber> dialogInfoSubscriptions = new ArrayList<>();
+
+  private List<EventPublisher> publishers = new ArrayList<>();
+
+  private volatile boolean presencePartialNotification;
+
+  // All of the above subscriptions (buddy, retired/fetched buddy, refer and resource list), indexed
+  // by Call-ID and local tag for routing received NOTIFY requests.
+  private SubscriptionIndex subscriptions = new SubscriptionIndex();
+
+  // Additional addresses of record hosted by this SipPhone (see createAor()), key = AOR URI.
+  private Map<String, SipAor> aors = new ConcurrentHashMap<>();
+
+  // The same, key = the hosted AOR's current contact URI reduced to the parts destMatch() compares
+  // (see contactKey()). Used for matching inbound Request-URIs without scanning; no two hosted
+  // AORs may have the same contact.
+  private Map<String, SipAor> aorContacts = new ConcurrentHashMap<>();
+
   protected SipPhone(SipStack stack, String host, String proto, int port, String me, boolean acceptTrafficOnEphemeralPorts)
           throws ParseException, InvalidArgumentException {
     super(stack, host, proto, port, me, acceptTrafficOnEphemeralPorts);
@@ -211,6 +256,11 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
    *         out why.
    */
   public boolean register(String user, String password, String contact, int expiry, long timeout) {
+    return register(null, user, password, contact, expiry, timeout);
+  }
+
+  protected boolean register(SipAor aor, String user, String password, String contact,
+      int expiry, long timeout) {
     AddressFactory addrFactory = parent.getAddressFactory();
     SipURI requestUri = null;
 
@@ -221,7 +271,7 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
         requestUri.setTransportParam(proxyProto);
       }
 
-      return register(requestUri, user, password, contact, expiry, timeout);
+      return register(aor, requestUri, user, password, contact, expiry, timeout);
     } catch (Exception ex) {
       setReturnCode(EXCEPTION_ENCOUNTERED);
       setException(ex);
@@ -241,82 +291,27 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
    */
   public boolean register(SipURI requestUri, String user, String password, String contact,
       int expiry, long timeout) {
+    return register(null, requestUri, user, password, contact, expiry, timeout);
+  }
+
+  /**
+   * Registers the given hosted address of record, or this SipPhone's own address of record if the
+   * aor parameter is null. See register(requestUri, user, password, contact, expiry, timeout).
+   */
+  protected boolean register(SipAor aor, SipURI requestUri, String user, String password,
+      String contact, int expiry, long timeout) {
     initErrorInfo();
 
     try {
-      AddressFactory addr_factory = parent.getAddressFactory();
-      HeaderFactory hdr_factory = parent.getHeaderFactory();
-
-      if (requestUri == null) {
-        requestUri = addr_factory.createSipURI(null, ((SipURI) (myAddress.getURI())).getHost());
-        requestUri.setPort(((SipURI) (myAddress.getURI())).getPort());
-        if (((SipURI) (myAddress.getURI())).getTransportParam() != null) {
-          requestUri.setTransportParam(((SipURI) (myAddress.getURI())).getTransportParam());
-        }
-      }
-
-      String method = Request.REGISTER;
-
-      ToHeader to_header = hdr_factory.createToHeader(myAddress, null);
-      FromHeader from_header = hdr_factory.createFromHeader(myAddress, generateNewTag());
-
-      CallIdHeader callid_header = hdr_factory.createCallIdHeader(myRegistrationId);
-
-      cseq = hdr_factory.createCSeqHeader(cseq == null ? 1 : (cseq.getSeqNumber() + 1), method);
-
-      MaxForwardsHeader max_forwards = hdr_factory.createMaxForwardsHeader(MAX_FORWARDS_DEFAULT);
-
-      if (contact != null) {
-        URI uri = addr_factory.createURI(contact);
-        if (uri.isSipURI() == false) {
-          setReturnCode(INVALID_ARGUMENT);
-          setErrorMessage("URI " + contact + " is not a Sip URI");
-          return false;
-        }
-
-        Address contact_address = addr_factory.createAddress(uri);
-        ContactHeader hdr = hdr_factory.createContactHeader(contact_address);
-        hdr.setExpires(expiry);
-
-        synchronized (contactLock) {
-          contactInfo = new SipContact();
-          contactInfo.setContactHeader(hdr);
-        }
-      }
-
-      List<ViaHeader> via_headers = getViaHeaders();
-
-      Request msg = parent.getMessageFactory().createRequest(requestUri, method, callid_header,
-          cseq, from_header, to_header, via_headers, max_forwards);
-
-      msg.addHeader(contactInfo.getContactHeader()); // use
-      // setHeader()?
-
-      if (expiry > 0) {
-        ExpiresHeader expires = hdr_factory.createExpiresHeader(expiry);
-        msg.setExpires(expires);
+      Request msg = createRegistration(aor, requestUri, contact, expiry);
+      if (msg == null) {
+        return false;
       }
 
-      // include any auth information for this User Agent's registration
-      // if any exists
-
-      Map<String, AuthorizationHeader> auth_list =
-          getAuthorizations().get(myRegistrationId);
-      if (auth_list != null) {
-        List<AuthorizationHeader> auth_headers =
-            new ArrayList<>(auth_list.values());
-        Iterator<AuthorizationHeader> i = auth_headers.iterator();
-        while (i.hasNext()) {
-          AuthorizationHeader auth = i.next();
-          msg.addHeader(auth);
-        }
-      } else {
-        // create the auth list entry for this phone's registrations
-        enableAuthorization(myRegistrationId);
-      }
+      SipContact reg_contact = (aor == null ? contactInfo : aor.getContactInfo());
 
       // send the REGISTRATION request and get the response
-      Response response = sendRegistrationMessage(msg, user, password, timeout);
+      Response response = sendRegistrationMessage(aor, msg, user, password, timeout);
       if (response == null) {
         return false;
       }
@@ -335,8 +330,8 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
           // for now just save this agent's info
 
           ContactHeader hdr = (ContactHeader) contacts.next();
-          if (hdr.getAddress().getURI().toString().equals(contactInfo.getURI()) == true) {
-            contactInfo.setContactHeader(hdr);
+          if (hdr.getAddress().getURI().toString().equals(reg_contact.getURI()) == true) {
+            reg_contact.setContactHeader(hdr);
             break;
           }
         }
@@ -351,6 +346,95 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
     }
   }
 
+  /**
+   * Builds a REGISTER request for the given hosted address of record, or this SipPhone's own
+   * address of record if the aor parameter is null, as register() sends it - see
+   * register(requestUri, user, password, contact, expiry, timeout). The contact, if not null,
+   * becomes the contact of the address of record.
+   *
+   * @return the request, or null if the contact is not a SIP URI (error info is set).
+   */
+  protected Request createRegistration(SipAor aor, SipURI requestUri, String contact, int expiry)
+      throws ParseException, InvalidArgumentException {
+    AddressFactory addr_factory = parent.getAddressFactory();
+    HeaderFactory hdr_factory = parent.getHeaderFactory();
+
+    Address address = (aor == null ? myAddress : aor.getAddress());
+    String registrationId = (aor == null ? myRegistrationId : aor.getRegistrationId());
+
+    if (requestUri == null) {
+      requestUri = addr_factory.createSipURI(null, ((SipURI) (address.getURI())).getHost());
+      requestUri.setPort(((SipURI) (address.getURI())).getPort());
+      if (((SipURI) (address.getURI())).getTransportParam() != null) {
+        requestUri.setTransportParam(((SipURI) (address.getURI())).getTransportParam());
+      }
+    }
+
+    String method = Request.REGISTER;
+
+    ToHeader to_header = hdr_factory.createToHeader(address, null);
+    FromHeader from_header = hdr_factory.createFromHeader(address, generateNewTag());
+
+    CallIdHeader callid_header = hdr_factory.createCallIdHeader(registrationId);
+
+    CSeqHeader reg_cseq = hdr_factory.createCSeqHeader(nextRegistrationCSeq(aor), method);
+
+    MaxForwardsHeader max_forwards = hdr_factory.createMaxForwardsHeader(MAX_FORWARDS_DEFAULT);
+
+    if (contact != null) {
+      URI uri = addr_factory.createURI(contact);
+      if (uri.isSipURI() == false) {
+        setReturnCode(INVALID_ARGUMENT);
+        setErrorMessage("URI " + contact + " is not a Sip URI");
+        return null;
+      }
+
+      Address contact_address = addr_factory.createAddress(uri);
+      ContactHeader hdr = hdr_factory.createContactHeader(contact_address);
+      hdr.setExpires(expiry);
+
+      SipContact new_contact = new SipContact();
+      new_contact.setContactHeader(hdr);
+
+      if (aor == null) {
+        synchronized (contactLock) {
+          contactInfo = new_contact;
+        }
+      } else if (updateAorContact(aor, new_contact) == false) {
+        setReturnCode(INVALID_ARGUMENT);
+        setErrorMessage("Contact " + contact
+            + " is already the contact of another address of record hosted by this SipPhone");
+        return null;
+      }
+    }
+
+    SipContact reg_contact = (aor == null ? contactInfo : aor.getContactInfo());
+
+    List<ViaHeader> via_headers = getViaHeaders();
+
+    Request msg = parent.getMessageFactory().createRequest(requestUri, method, callid_header,
+        reg_cseq, from_header, to_header, via_headers, max_forwards);
+
+    msg.addHeader(reg_contact.getContactHeader()); // use
+    // setHeader()?
+
+    if (expiry > 0) {
+      ExpiresHeader expires = hdr_factory.createExpiresHeader(expiry);
+      msg.setExpires(expires);
+    }
+
+    // include any auth information for this User Agent's registration
+    // if any exists
+
+    // (the auth list entry for this phone's registrations is created by the first one, and
+    // kept if another thread's registration already created it)
+    getAuthorizations().putIfAbsent(registrationId,
+        new LinkedHashMap<String, AuthorizationHeader>());
+    addAuthorizations(registrationId, msg);
+
+    return msg;
+  }
+
   /**
    * This method is equivalent to the register(String user, String password, String contact, int
    * expiry, long timeout) method except with no authorization parameters specified. Call this
@@ -382,8 +466,19 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
    * @return true if the unregistration succeeded or no unregistration was needed, false otherwise.
    */
   public boolean unregister(String contact, long timeout) {
+    return unregister(null, contact, timeout);
+  }
+
+  /**
+   * Unregisters the given hosted address of record, or this SipPhone's own address of record if the
+   * aor parameter is null. See unregister(contact, timeout).
+   */
+  protected boolean unregister(SipAor aor, String contact, long timeout) {
     initErrorInfo();
 
+    Request lastRegistrationRequest =
+        (aor == null ? this.lastRegistrationRequest : aor.getLastRegistrationRequest());
+
     // TODO - need to support multiple server(s)/registrations
     // simultaneously?
     // then return registration() object to user (w/lastregrequest) and
@@ -400,9 +495,8 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
       ExpiresHeader expires = parent.getHeaderFactory().createExpiresHeader(0);
       msg.setExpires(expires);
 
-      cseq.setSeqNumber(cseq.getSeqNumber() + 1);
-      cseq.setMethod(Request.REGISTER);
-      msg.setHeader(cseq);
+      msg.setHeader(
+          parent.getHeaderFactory().createCSeqHeader(nextRegistrationCSeq(aor), Request.REGISTER));
 
       // set contact header
 
@@ -421,17 +515,21 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
       }
 
       // send the REGISTRATION request and get the response
-      Response response = sendRegistrationMessage(msg, null, null, 30000);
+      Response response = sendRegistrationMessage(aor, msg, null, null, 30000);
       if (response == null) {
         return false;
       }
 
       // clear out authorizations accumulated for this Call-ID
-      clearAuthorizations(myRegistrationId);
+      clearAuthorizations(aor == null ? myRegistrationId : aor.getRegistrationId());
 
       // should we drop any calls in progress?
 
-      lastRegistrationRequest = null;
+      if (aor == null) {
+        this.lastRegistrationRequest = null;
+      } else {
+        aor.setLastRegistrationRequest(null);
+      }
 
       return true;
     } catch (Exception ex) {
@@ -442,8 +540,10 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
 
   }
 
-  private Response sendRegistrationMessage(Request msg, String user, String password,
+  private Response sendRegistrationMessage(SipAor aor, Request msg, String user, String password,
       long timeout) {
+    Map<String, Credential> credentials = (aor == null ? this.credentials : aor.getCredentials());
+
     SipTransaction trans = sendRequestWithTransaction(msg, false, null);
 
     // get the response
@@ -485,15 +585,15 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
           || (status_code == Response.PROXY_AUTHENTICATION_REQUIRED)) {
         // modify the request to include user authorization info
 
-        msg = processAuthChallenge(response, msg, user, password);
+        msg = processAuthChallenge(response, msg, user, password, credentials);
         if (msg == null) {
           return null;
         }
 
         try {
           // bump up the cseq number
-          cseq.setSeqNumber(cseq.getSeqNumber() + 1);
-          msg.setHeader(cseq);
+          msg.setHeader(parent.getHeaderFactory().createCSeqHeader(nextRegistrationCSeq(aor),
+              msg.getMethod()));
         } catch (Exception ex) {
           setReturnCode(EXCEPTION_ENCOUNTERED);
           setErrorMessage("Exception: " + ex.getClass().getName() + ": " + ex.getMessage());
@@ -531,7 +631,11 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
       }
     }
 
-    lastRegistrationRequest = msg;
+    if (aor == null) {
+      lastRegistrationRequest = msg;
+    } else {
+      aor.setLastRegistrationRequest(msg);
+    }
 
     return response;
   }
@@ -567,6 +671,24 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
    */
   public Request processAuthChallenge(Response response, Request req_msg, String username,
       String password) {
+    return processAuthChallenge(response, req_msg, username, password, credentials);
+  }
+
+  /**
+   * This method is the same as the other processAuthChallenge() without the user/password option,
+   * except that the given hosted address of record's credentials list is used instead of this
+   * SipPhone's. If aor is null, this SipPhone's credentials list is used.
+   */
+  protected Request processAuthChallenge(Response response, Request req_msg, SipAor aor) {
+    if (aor == null) {
+      return processAuthChallenge(response, req_msg, null, null, credentials);
+    }
+
+    return processAuthChallenge(response, req_msg, null, null, aor.getCredentials());
+  }
+
+  private Request processAuthChallenge(Response response, Request req_msg, String username,
+      String password, Map<String, Credential> credentials) {
     initErrorInfo();
 
     ListIterator<?> challenges = null;
@@ -629,7 +751,7 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
       String passwd = password;
 
       // check credentials list for this realm entry
-      Credential credential = (Credential) credentials.get(realm);
+      Credential credential = (credentials == null ? null : credentials.get(realm));
 
       if (credential != null) {
         uname = credential.getUser();
@@ -652,7 +774,9 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
         // there
 
         if (credential != null) {
-          authorization_list.put(realm, authorization);
+          synchronized (authorization_list) {
+            authorization_list.put(realm, authorization);
+          }
         }
 
         // Add/replace this authorization header in the message
@@ -697,39 +821,455 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
     // headers - if
     // same, return null
 
-    return msg;
+    return msg;
+
+  }
+
+  /**
+   * This method is the same as the other processAuthChallenge() without the user/password option.
+   */
+  public Request processAuthChallenge(Response response, Request req_msg) {
+    return processAuthChallenge(response, req_msg, null, null);
+  }
+
+  /**
+   * This method is used to create a SipCall object for handling one leg of a call. That is, it
+   * represents an outgoing call leg or an incoming call leg. In a telephone call, there are two
+   * call legs. The outgoing call leg is the connection from the phone making the call to the
+   * telephone network. The incoming call leg is a connection from the telephone network to the
+   * phone being called. For a SIP call, the outbound leg is the user agent originating the call and
+   * the inbound leg is the user agent receiving the call. The test program can use this method to
+   * create a SipCall object for handling an incoming call leg or an outgoing call leg. This method
+   * can be called multiple times to create multiple call legs on the same SipPhone object, and the
+   * call legs can be driven concurrently from different threads.
+   *
+   * @return A SipCall object unless an error is encountered.
+   */
+  public SipCall createSipCall() {
+    initErrorInfo();
+
+    SipCall call = new SipCall(this, myAddress);
+
+    callList.add(call);
+
+    return call;
+  }
+
+  protected SipCall createSipCall(SipAor aor) {
+    initErrorInfo();
+
+    SipCall call = new SipCall(this, aor);
+
+    callList.add(call);
+
+    return call;
+  }
+
+  /**
+   * This method creates an additional address of record (a "virtual user") hosted by this
+   * SipPhone. The returned SipAor has its own contact, credentials list, registration Call-ID and
+   * CSeq but shares this SipPhone's SIP stack registration, Via headers, transaction and request
+   * dispatch structures. Use it instead of creating many SipPhones when a test needs to simulate a
+   * large number of users. Requests addressed to the SipAor's contact are accepted and handled by
+   * this SipPhone.
+   *
+   * <p>
+   * The SipAor's contact defaults to user@hostname, as for a SipPhone, until a registration with a
+   * different contact is done via SipAor.register(). Requests are routed to a hosted address of
+   * record by its contact, so the contact must be unique: creating an address of record whose
+   * default contact is already that of this SipPhone or of another hosted address of record (ie,
+   * sip:carol@a.com and sip:carol@b.com) fails, as does registering such a contact.
+   *
+   * @param uri the address of record, in name@host format (ie, sip:bob@nist.gov).
+   * @return the SipAor object, or null if the URI is invalid or already hosted by this SipPhone, or
+   *         if its default contact is already in use. In that case, call getErrorMessage(),
+   *         getReturnCode() and/or getException() to find out why.
+   */
+  public SipAor createAor(String uri) {
+    initErrorInfo();
+
+    try {
+      uri = uri.trim();
+
+      StringTokenizer tokens = new StringTokenizer(uri, "@");
+      if (tokens.countTokens() != 2) {
+        setReturnCode(INVALID_ARGUMENT);
+        setErrorMessage("The uri parameter must be in name@host format");
+        return null;
+      }
+
+      tokens.nextToken();
+      String host = tokens.nextToken();
+
+      URI aor_uri = parent.getAddressFactory().createURI(uri);
+      if (aor_uri.isSipURI() == false) {
+        setReturnCode(UNSUPPORTED_URI_SCHEME);
+        setErrorMessage("URI " + uri + " is not a Sip URI");
+        return null;
+      }
+
+      if (uri.equals(me) || aors.containsKey(uri)) {
+        setReturnCode(INVALID_ARGUMENT);
+        setErrorMessage("URI " + uri + " is already hosted by this SipPhone");
+        return null;
+      }
+
+      Address address = parent.getAddressFactory().createAddress(aor_uri);
+      SipContact contact = new SipContact();
+      contact.setContactHeader(createDefaultContactHeader(address));
+
+      String key = contactKey(contact);
+      if (key.equals(contactKey(getContactInfo()))) {
+        setReturnCode(INVALID_ARGUMENT);
+        setErrorMessage("The default contact of URI " + uri + " is this SipPhone's contact");
+        return null;
+      }
+
+      SipAor aor = new SipAor(this, address, contact, generateRegistrationId(host));
+      if (aorContacts.putIfAbsent(key, aor) != null) {
+        setReturnCode(INVALID_ARGUMENT);
+        setErrorMessage("The default contact of URI " + uri
+            + " is already the contact of another address of record hosted by this SipPhone");
+        return null;
+      }
+      aors.put(uri, aor);
+      parent.addRoute(uri, this);
+
+      return aor;
+    } catch (Exception ex) {
+      setReturnCode(EXCEPTION_ENCOUNTERED);
+      setException(ex);
+      setErrorMessage("Exception: " + ex.getClass().getName() + ": " + ex.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * This method removes a hosted address of record from this SipPhone. No unregistration is done,
+   * call SipAor.unregister() first if needed.
+   *
+   * @param aor the SipAor to remove.
+   */
+  public void removeAor(SipAor aor) {
+    aors.remove(aor.getUri());
+    parent.removeRoute(aor.getUri(), this);
+    aorContacts.remove(contactKey(aor.getContactInfo()), aor);
+  }
+
+  /**
+   * Returns the hosted address of record object for the given URI.
+   *
+   * @param uri the address of record (ie, sip:bob@nist.gov) previously passed to createAor().
+   * @return the SipAor object, or null if this SipPhone doesn't host the given URI.
+   */
+  public SipAor getAor(String uri) {
+    return aors.get(uri.trim());
+  }
+
+  /**
+   * Returns the number of additional addresses of record hosted by this SipPhone.
+   */
+  public int getAorCount() {
+    return aors.size();
+  }
+
+  /**
+   * Replaces the contact of the given hosted address of record.
+   *
+   * @return false if the contact is already that of another hosted address of record, in which
+   *         case nothing is changed.
+   */
+  protected boolean updateAorContact(SipAor aor, SipContact contact) {
+    String key = contactKey(contact);
+
+    synchronized (aor) {
+      String current = contactKey(aor.getContactInfo());
+      if (key.equals(current) == false) {
+        if (aorContacts.putIfAbsent(key, aor) != null) {
+          return false;
+        }
+        aorContacts.remove(current, aor);
+      }
+
+      aor.setContactInfo(contact);
+      return true;
+    }
+  }
+
+  private static String contactKey(SipContact contact) {
+    return contactKey((SipURI) contact.getContactHeader().getAddress().getURI());
+  }
+
+  /*
+   * The scheme, user, host and port of a SIP URI - the parts destMatch() compares, other than the
+   * user password
+   */
+  private static String contactKey(SipURI uri) {
+    String user = uri.getUser();
+    return uri.getScheme().toLowerCase() + ':' + (user == null ? "" : user) + '@'
+        + uri.getHost().toLowerCase() + ':' + uri.getPort();
+  }
+
+  protected boolean isHostedContact(SipURI requestUri) {
+    return getHostedAor(requestUri) != null;
+  }
+
+  private SipAor getHostedAor(SipURI requestUri) {
+    if (aorContacts.isEmpty()) {
+      return null;
+    }
+
+    SipAor aor = aorContacts.get(contactKey(requestUri));
+    if (aor == null) {
+      return null;
+    }
+
+    if (destMatch((SipURI) aor.getContactInfo().getContactHeader().getAddress().getURI(),
+        requestUri) == false) {
+      return null;
+    }
+
+    return aor;
+  }
+
+  /**
+   * Returns the contact information in effect for the user agent the given received request is
+   * addressed to: the hosted address of record whose contact is the Request-URI, if any, or else
+   * this SipPhone.
+   */
+  protected SipContact getContactInfo(Request request) {
+    if (request.getRequestURI() instanceof SipURI) {
+      SipAor aor = getHostedAor((SipURI) request.getRequestURI());
+      if (aor != null) {
+        return aor.getContactInfo();
+      }
+    }
+
+    return getContactInfo();
+  }
+
+  /**
+   * This method puts a UAS call-handling policy into effect for this SipPhone. From then on, this
+   * SipPhone answers incoming calls by itself, as described by the policy - the ringing delay, the
+   * answer or reject decision, the hold time and which side hangs up - without any test thread
+   * involvement. Initial INVITEs are no longer given to SipCall.waitForIncomingCall() nor to
+   * waitRequest(), and neither are the subsequent requests of those calls. The outcome of the calls
+   * is counted by the UasCallPolicy object.
+   *
+   * <p>
+   * Calling this method again replaces the policy; calls in progress under the previous one are
+   * abandoned. Passing null turns call handling back over to the test program.
+   *
+   * @param policy the policy to apply, or null for none.
+   */
+  public void setUasCallPolicy(UasCallPolicy policy) {
+    UasCallHandler previous;
+
+    synchronized (getRequestLock()) {
+      previous = uasCallHandler;
+      uasCallHandler = policy == null ? null : new UasCallHandler(this, policy);
+    }
+
+    if (previous != null) {
+      previous.shutdown();
+    }
+  }
+
+  /**
+   * Returns the UAS call-handling policy in effect for this SipPhone.
+   *
+   * @return the UasCallPolicy passed to setUasCallPolicy(), or null if there is none.
+   */
+  public UasCallPolicy getUasCallPolicy() {
+    UasCallHandler handler = uasCallHandler;
+    return handler == null ? null : handler.getPolicy();
+  }
+
+  /**
+   * This method puts a session timer (RFC 4028) policy into effect for this SipPhone. From then on,
+   * the calls this SipPhone makes or answers negotiate a session timer, and the sessions of those
+   * set up with one are refreshed or answered and timed out by the SipPhone by itself, as described
+   * by the policy. Refreshes received for those calls are no longer given to
+   * SipCall.waitForReinvite() nor to waitRequest().
+   *
+   * <p>
+   * Calling this method again replaces the policy; the sessions of calls in progress under the
+   * previous one are no longer kept alive. Passing null turns session timers off.
+   *
+   * @param policy the policy to apply, or null for none.
+   */
+  public void setSessionTimerPolicy(SessionTimerPolicy policy) {
+    SessionTimerHandler previous;
+
+    synchronized (getRequestLock()) {
+      previous = sessionTimerHandler;
+      sessionTimerHandler = policy == null ? null : new SessionTimerHandler(this, policy);
+    }
+
+    if (previous != null) {
+      previous.shutdown();
+    }
+  }
+
+  /**
+   * Returns the session timer policy in effect for this SipPhone.
+   *
+   * @return the SessionTimerPolicy passed to setSessionTimerPolicy(), or null if there is none.
+   */
+  public SessionTimerPolicy getSessionTimerPolicy() {
+    SessionTimerHandler handler = sessionTimerHandler;
+    return handler == null ? null : handler.getPolicy();
+  }
+
+  SessionTimerHandler getSessionTimerHandler() {
+    return sessionTimerHandler;
+  }
+
+  /**
+   * This method puts a publication refresh policy into effect for this SipPhone. From then on, the
+   * publications of this SipPhone's EventPublisher objects are refreshed by the SipPhone by itself
+   * before they expire, and published again when the compositor has lost them, as described by the
+   * policy. The publications already in effect are refreshed from their next refresh() or
+   * publish() on.
+   *
+   * <p>
+   * Calling this method again replaces the policy. Passing null turns the automatic refreshes off.
+   *
+   * @param policy the policy to apply, or null for none.
+   */
+  public void setPublishPolicy(PublishPolicy policy) {
+    PublishRefresher previous;
+
+    synchronized (getRequestLock()) {
+      previous = publishRefresher;
+      publishRefresher = policy == null ? null : new PublishRefresher(this, policy);
+    }
+
+    if (previous != null) {
+      previous.shutdown();
+    }
+  }
+
+  /**
+   * Returns the publication refresh policy in effect for this SipPhone.
+   *
+   * @return the PublishPolicy passed to setPublishPolicy(), or null if there is none.
+   */
+  public PublishPolicy getPublishPolicy() {
+    PublishRefresher refresher = publishRefresher;
+    return refresher == null ? null : refresher.getPolicy();
+  }
+
+  PublishRefresher getPublishRefresher() {
+    return publishRefresher;
+  }
+
+  UasCallHandler getUasCallHandler() {
+    return uasCallHandler;
+  }
+
+  /**
+   * Returns the call setup and teardown latencies measured on the calls of this SipPhone (see
+   * SipCall.getTimeline()).
+   */
+  public CallLatencyStats getLatencyStats() {
+    return latencyStats;
+  }
+
+  protected boolean isHostedAor(String uri) {
+    return aors.containsKey(uri);
+  }
+
+  /**
+   * Gets the SipCall that currently owns the given Call-ID.
+   *
+   * @param callId the Call-ID of interest.
+   * @return the SipCall, or null if no SipCall of this SipPhone is using the Call-ID.
+   */
+  public SipCall getCall(String callId) {
+    return callsByCallId.get(callId);
+  }
+
+  protected boolean registerCall(SipCall call, String callId) {
+    synchronized (getRequestLock()) {
+      SipCall owner = callsByCallId.putIfAbsent(callId, call);
+      if ((owner != null) && (owner != call)) {
+        // another call of this phone has it (ie, phone calling itself) - the second one
+        // keeps using the phone's request queue
+        return false;
+      }
+
+      routeQueuedRequests(call, callId);
+      return true;
+    }
+  }
+
+  protected void unregisterCall(SipCall call, String callId) {
+    callsByCallId.remove(callId, call);
+  }
+
+  /**
+   * Moves already queued requests for the given call's Call-ID from this SipPhone's request queue
+   * to the call's own, if the call is listening.
+   */
+  protected void routeQueuedRequests(SipCall call, String callId) {
+    synchronized (getRequestLock()) {
+      if ((call.isListening() == false) || (callsByCallId.get(callId) != call)) {
+        return;
+      }
+
+      for (RequestEvent event : removeQueuedRequests(callId)) {
+        call.queueRequest(event);
+      }
+    }
+  }
+
+  protected boolean dispatchRequest(RequestEvent request) {
+    SessionTimerHandler timers = sessionTimerHandler;
+    if ((timers != null) && timers.handle(request)) {
+      return true;
+    }
+
+    UasCallHandler handler = uasCallHandler;
+    if ((handler != null) && handler.handle(request)) {
+      return true;
+    }
+
+    if (callsByCallId.isEmpty() || (isCallRequest(request.getRequest()) == false)) {
+      return false;
+    }
+
+    CallIdHeader hdr = (CallIdHeader) request.getRequest().getHeader(CallIdHeader.NAME);
+    if (hdr == null) {
+      return false;
+    }
 
-  }
+    SipCall call = callsByCallId.get(hdr.getCallId());
+    if ((call == null) || (call.isListening() == false)) {
+      return false;
+    }
 
-  /**
-   * This method is the same as the other processAuthChallenge() without the user/password option.
-   */
-  public Request processAuthChallenge(Response response, Request req_msg) {
-    return processAuthChallenge(response, req_msg, null, null);
+    call.queueRequest(request);
+    return true;
   }
 
-  /**
-   * This method is used to create a SipCall object for handling one leg of a call. That is, it
-   * represents an outgoing call leg or an incoming call leg. In a telephone call, there are two
-   * call legs. The outgoing call leg is the connection from the phone making the call to the
-   * telephone network. The incoming call leg is a connection from the telephone network to the
-   * phone being called. For a SIP call, the outbound leg is the user agent originating the call and
-   * the inbound leg is the user agent receiving the call. The test program can use this method to
-   * create a SipCall object for handling an incoming call leg or an outgoing call leg. Currently,
-   * only one SipCall object is supported per SipPhone. In future, when more than one SipCall per
-   * SipPhone is supported, this method can be called multiple times to create multiple call legs on
-   * the same SipPhone object.
-   *
-   * @return A SipCall object unless an error is encountered.
-   */
-  public SipCall createSipCall() {
-    initErrorInfo();
+  protected boolean isCallRequest(Request request) {
+    String method = request.getMethod();
 
-    SipCall call = new SipCall(this, myAddress);
+    if (method.equals(Request.INVITE)) {
+      // re-INVITE only, an initial INVITE is for whichever call is waiting for one
+      return ((ToHeader) request.getHeader(ToHeader.NAME)).getTag() != null;
+    }
 
-    callList.add(call);
+    // only what a SipCall waitForXyz() method consumes - anything else stays in the SipPhone queue
+    // for the test program to get with waitRequest()
+    return method.equals(Request.ACK) || method.equals(Request.BYE)
+        || method.equals(Request.CANCEL) || method.equals(Request.MESSAGE)
+        || method.equals(Request.INFO) || method.equals(Request.UPDATE);
+  }
 
-    return call;
+  private long nextRegistrationCSeq(SipAor aor) {
+    return (aor == null ? cseqNumber.incrementAndGet() : aor.nextCSeqNumber());
   }
 
   protected void dropCall(SipCall call) {
@@ -1071,12 +1611,21 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
     this.removeRequestListener(Request.NOTIFY, this);
 
     // drop calls
-    while (!callList.isEmpty()) {
-      ((SipCall) callList.get(0)).dispose();
+    for (SipCall call : new ArrayList<>(callList)) {
+      call.dispose();
     }
 
     unregister(contactInfo.getContactHeader().getAddress().getURI().clone().toString(), 15000);
 
+    subscriptions.clear();
+    aors.clear();
+    aorContacts.clear();
+    callsByCallId.clear();
+
+    setUasCallPolicy(null);
+    setSessionTimerPolicy(null);
+    setPublishPolicy(null);
+
     super.dispose();
   }
 
@@ -1176,8 +1725,10 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
   protected void addAuthorizations(String call_id, Request msg) {
     Map<String, AuthorizationHeader> auth_list = getAuthorizations().get(call_id);
     if (auth_list != null) {
-      List<AuthorizationHeader> auth_headers =
-          new ArrayList<>(auth_list.values());
+      List<AuthorizationHeader> auth_headers;
+      synchronized (auth_list) {
+        auth_headers = new ArrayList<>(auth_list.values());
+      }
       Iterator<AuthorizationHeader> i = auth_headers.iterator();
       while (i.hasNext()) {
         AuthorizationHeader auth = i.next();
@@ -1235,7 +1786,6 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
 
   private void processRequestEvent(RequestEvent requestEvent) {
     Request request = requestEvent.getRequest();
-    Dialog d = requestEvent.getDialog();
 
     if (request.getMethod().equals(Request.NOTIFY) == false) {
       EventSubscriber.sendResponse(this, requestEvent, SipResponse.SERVER_INTERNAL_ERROR,
@@ -1267,27 +1817,23 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
       return;
     }
 
-    if (event.getEventType().equals("presence")) {
-      PresenceSubscriber subs = getBuddyInfo(from.getAddress().getURI().toString());
+    String eventType = event.getEventType();
+    if (eventType.equals("presence") || eventType.equals("refer")
+        || eventType.equals("dialog")) {
+      // match on Call-ID, To tag and Event header (type and id)
+      EventSubscriber subs = subscriptions.find(request);
       if (subs != null) {
-        if (subs.messageForMe(request) == true) {
-          subs.processEvent(requestEvent);
-          return;
-        }
-      }
-    } else if (event.getEventType().equals("refer")) {
-      if (d != null) {
-        List<ReferSubscriber> refers = getRefererInfoByDialog(d.getDialogId());
-        for (ReferSubscriber s : refers) {
-          if (s.messageForMe(request) == true) {
-            s.processEvent(requestEvent);
-            return;
-          }
-        }
+        subs.processEvent(requestEvent);
+        return;
       }
     } else if (event.getEventType().equals("conference")) {
-        // just return so that the test can use waitRequest()
-        return;
+      EventSubscriber subs = subscriptions.find(request);
+      if (subs != null) {
+        subs.processEvent(requestEvent);
+      }
+
+      // otherwise just return so that the test can use waitRequest()
+      return;
     } else {
       String error =
           "Received a NOTIFY request with unrecognized event header : " + event.getEventType();
@@ -1318,12 +1864,14 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
   private void distributeEventError(String err)
   // to all the Subscriptions - test program will need to see the error
   {
-    List<EventSubscriber> subscriptions =
-        new ArrayList<EventSubscriber>(getBuddyList().values());
-    subscriptions.addAll(new ArrayList<>(getRetiredBuddies().values()));
-    subscriptions.addAll(getRefererList());
-
-    for (EventSubscriber s : subscriptions) {
+    List<EventSubscriber> all = new ArrayList<EventSubscriber>(getBuddyList().values());
+    all.addAll(new ArrayList<>(getRetiredBuddies().values()));
+    all.addAll(getRefererList());
+    all.addAll(getResourceLists());
+    all.addAll(getConferences());
+    all.addAll(getDialogInfoSubscriptions());
+
+    for (EventSubscriber s : all) {
       s.addEventError(err);
     }
   }
@@ -1401,13 +1949,19 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
         synchronized (buddyList) {
           buddyList.put(uri, sub);
         }
+        subscriptions.add(sub);
 
         if (sub.startSubscription(req, timeout, proxyHost != null) == true) {
+          PresenceSubscriber old;
           synchronized (buddyList) {
-            buddyTerminatedList.remove(uri); // in case it was
+            old = buddyTerminatedList.remove(uri); // in case it was
             // there
             // from before
           }
+
+          if (old != null) {
+            subscriptions.remove(old);
+          }
           return sub;
         }
       }
@@ -1421,8 +1975,13 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
       setErrorMessage("Exception: " + e.getClass().getName() + ": " + e.getMessage());
     }
 
+    PresenceSubscriber sub;
     synchronized (buddyList) {
-      buddyList.remove(uri);
+      sub = buddyList.remove(uri);
+    }
+
+    if (sub != null) {
+      subscriptions.remove(sub);
     }
     return null;
   }
@@ -1539,9 +2098,15 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
       }
 
       PresenceSubscriber sub = new PresenceSubscriber(uri, this);
+      PresenceSubscriber old;
       synchronized (buddyList) {
-        buddyTerminatedList.put(uri, sub);
+        old = buddyTerminatedList.put(uri, sub);
+      }
+
+      if (old != null) {
+        subscriptions.remove(old);
       }
+      subscriptions.add(sub);
 
       Request req = sub.createSubscribeMessage(0, eventId);
 
@@ -1553,6 +2118,7 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
         synchronized (buddyList) {
           buddyTerminatedList.remove(uri);
         }
+        subscriptions.remove(sub);
         return null;
       }
 
@@ -1569,8 +2135,13 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
       setErrorMessage("Exception: " + e.getClass().getName() + ": " + e.getMessage());
     }
 
+    PresenceSubscriber sub;
     synchronized (buddyList) {
-      buddyTerminatedList.remove(uri);
+      sub = buddyTerminatedList.remove(uri);
+    }
+
+    if (sub != null) {
+      subscriptions.remove(sub);
     }
     return null;
   }
@@ -1618,6 +2189,30 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
     }
   }
 
+  /**
+   * Sets whether presence subscriptions created by this SipPhone from now on (addBuddy(),
+   * fetchPresenceInfo()) ask for partial notification (RFC 5263). If so, the SUBSCRIBE requests
+   * carry "Accept: application/pidf+xml, application/pidf-diff+xml" and the presence server may
+   * send the changes only after the first, full state NOTIFY. The default is false.
+   *
+   * <p>
+   * PresenceSubscriber handles a received application/pidf-diff+xml body in either case, this only
+   * controls what is advertised to the server.
+   *
+   * @param presencePartialNotification true to advertise partial notification support.
+   */
+  public void setPresencePartialNotification(boolean presencePartialNotification) {
+    this.presencePartialNotification = presencePartialNotification;
+  }
+
+  /**
+   * Returns whether presence subscriptions ask for partial notification - see
+   * setPresencePartialNotification().
+   */
+  public boolean isPresencePartialNotification() {
+    return presencePartialNotification;
+  }
+
   /**
    * Returns a copy of the current buddy list on this SipPhone. These are the buddies that have been
    * added to the buddy list by the test program during the lifetime of this SipPhone object, that
@@ -1652,6 +2247,394 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
     return new Hashtable<>(buddyTerminatedList);
   }
 
+  /**
+   * This method starts a presence subscription to a resource list (RFC 4662) - a URI the presence
+   * server expands into a list of presentities, such as a buddy list. The state of every resource
+   * in the list is then carried by this one subscription: see ResourceListSubscriber. Unlike with
+   * addBuddy(), the resources are not put in the buddy list.
+   *
+   * <p>
+   * This method creates a SUBSCRIBE request message with "Supported: eventlist", sends it out, and
+   * waits for a response to be received, as addBuddy() does - see that javadoc for the outcomes. In
+   * the case of a positive response status code, the returned ResourceListSubscriber object is kept
+   * in this SipPhone's resource list subscriptions (see getResourceLists()) until its dispose()
+   * method is called. Your next step will be to call its processResponse() method to proceed with
+   * the SUBSCRIBE processing.
+   *
+   * @param listUri the URI of the resource list (ie, sip:amit-buddies@nist.gov).
+   * @param duration the duration in seconds to put in the SUBSCRIBE message.
+   * @param timeout The maximum amount of time to wait for a SUBSCRIBE response, in milliseconds.
+   *        Use a value of 0 to wait indefinitely.
+   * @return ResourceListSubscriber object representing the list subscription if the operation is
+   *         successful so far, null otherwise.
+   */
+  public ResourceListSubscriber subscribeResourceList(String listUri, int duration, long timeout) {
+    initErrorInfo();
+
+    try {
+      ResourceListSubscriber sub = new ResourceListSubscriber(listUri, this);
+      Request req = sub.createSubscribeMessage(duration, null);
+
+      if (req != null) {
+        synchronized (resourceLists) {
+          resourceLists.add(sub);
+        }
+        subscriptions.add(sub);
+
+        if (sub.startSubscription(req, timeout, proxyHost != null) == true) {
+          return sub;
+        }
+
+        removeResourceList(sub);
+      }
+
+      setReturnCode(sub.getReturnCode());
+      setErrorMessage(sub.getErrorMessage());
+      setException(sub.getException());
+    } catch (Exception e) {
+      setReturnCode(SipSession.EXCEPTION_ENCOUNTERED);
+      setException(e);
+      setErrorMessage("Exception: " + e.getClass().getName() + ": " + e.getMessage());
+    }
+
+    return null;
+  }
+
+  /**
+   * This method is the same as subscribeResourceList(listUri, duration, timeout) except that the
+   * duration is defaulted to the default period defined in the event package RFC (3600 seconds).
+   */
+  public ResourceListSubscriber subscribeResourceList(String listUri, long timeout) {
+    return subscribeResourceList(listUri, DEFAULT_SUBSCRIBE_DURATION, timeout);
+  }
+
+  /**
+   * Returns a copy of the list of resource list subscriptions of this SipPhone - see
+   * subscribeResourceList(). A given subscription in the list may be active or not - subscription
+   * termination does not automatically remove a subscription from this list (calling
+   * ResourceListSubscriber.dispose() does that).
+   *
+   * @return a list of ResourceListSubscriber objects or an empty list if there are none.
+   */
+  public List<ResourceListSubscriber> getResourceLists() {
+    synchronized (resourceLists) {
+      return new ArrayList<>(resourceLists);
+    }
+  }
+
+  protected boolean removeResourceList(ResourceListSubscriber list) {
+    subscriptions.remove(list);
+
+    synchronized (resourceLists) {
+      return resourceLists.remove(list);
+    }
+  }
+
+  /**
+   * This method starts a subscription to the conference event package (RFC 4575) of a conference
+   * focus, to track the roster of the conference: see ConferenceSubscriber.
+   *
+   * <p>
+   * This method creates a SUBSCRIBE request message with "Event: conference", sends it out, and
+   * waits for a response to be received, as addBuddy() does - see that javadoc for the outcomes. In
+   * the case of a positive response status code, the returned ConferenceSubscriber object is kept
+   * in this SipPhone's conference subscriptions (see getConferences()) until its dispose() method
+   * is called. Your next step will be to call its processResponse() method to proceed with the
+   * SUBSCRIBE processing.
+   *
+   * @param conferenceUri the URI of the conference (ie, sip:conference@example.com).
+   * @param duration the duration in seconds to put in the SUBSCRIBE message.
+   * @param timeout The maximum amount of time to wait for a SUBSCRIBE response, in milliseconds.
+   *        Use a value of 0 to wait indefinitely.
+   * @return ConferenceSubscriber object representing the conference subscription if the operation
+   *         is successful so far, null otherwise.
+   */
+  public ConferenceSubscriber subscribeConference(String conferenceUri, int duration,
+      long timeout) {
+    return subscribeDocument(() -> new ConferenceSubscriber(conferenceUri, this), duration,
+        timeout, conferences);
+  }
+
+  /**
+   * This method is the same as subscribeConference(conferenceUri, duration, timeout) except that
+   * the duration is defaulted to the default period defined in the event package RFC (3600
+   * seconds).
+   */
+  public ConferenceSubscriber subscribeConference(String conferenceUri, long timeout) {
+    return subscribeConference(conferenceUri, DEFAULT_SUBSCRIBE_DURATION, timeout);
+  }
+
+  /**
+   * Returns a copy of the list of conference subscriptions of this SipPhone - see
+   * subscribeConference(). A given subscription in the list may be active or not - subscription
+   * termination does not automatically remove a subscription from this list (calling
+   * ConferenceSubscriber.dispose() does that).
+   *
+   * @return a list of ConferenceSubscriber objects or an empty list if there are none.
+   */
+  public List<ConferenceSubscriber> getConferences() {
+    synchronized (conferences) {
+      return new ArrayList<>(conferences);
+    }
+  }
+
+  protected boolean removeConference(ConferenceSubscriber conference) {
+    subscriptions.remove(conference);
+
+    synchronized (conferences) {
+      return conferences.remove(conference);
+    }
+  }
+
+  /**
+   * This method starts a subscription to the dialog event package (RFC 4235) of a user agent or
+   * extension, to follow its calls as a busy lamp field does: see DialogInfoSubscriber.
+   *
+   * <p>
+   * This method creates a SUBSCRIBE request message with "Event: dialog", sends it out, and waits
+   * for a response to be received, as addBuddy() does - see that javadoc for the outcomes. In the
+   * case of a positive response status code, the returned DialogInfoSubscriber object is kept in
+   * this SipPhone's dialog subscriptions (see getDialogInfoSubscriptions()) until its dispose()
+   * method is called. Your next step will be to call its processResponse() method to proceed with
+   * the SUBSCRIBE processing.
+   *
+   * @param uri the URI of the extension to monitor (ie, sip:bob@nist.gov).
+   * @param duration the duration in seconds to put in the SUBSCRIBE message.
+   * @param timeout The maximum amount of time to wait for a SUBSCRIBE response, in milliseconds.
+   *        Use a value of 0 to wait indefinitely.
+   * @return DialogInfoSubscriber object representing the dialog subscription if the operation is
+   *         successful so far, null otherwise.
+   */
+  public DialogInfoSubscriber subscribeDialogInfo(String uri, int duration, long timeout) {
+    return subscribeDocument(() -> new DialogInfoSubscriber(uri, this), duration, timeout,
+        dialogInfoSubscriptions);
+  }
+
+  /*
+   * Starts the subscription of the subscriber given by the factory, as subscribeConference() and
+   * subscribeDialogInfo() do, keeping it in the given list of this SipPhone's subscriptions unless
+   * it fails.
+   */
+  private <T extends DocumentSubscriber> T subscribeDocument(Callable<T> factory, int duration,
+      long timeout, List<T> list) {
+    initErrorInfo();
+
+    try {
+      T sub = factory.call();
+      Request req = sub.createSubscribeMessage(duration, null);
+
+      if (req != null) {
+        synchronized (list) {
+          list.add(sub);
+        }
+        subscriptions.add(sub);
+
+        if (sub.startSubscription(req, timeout, proxyHost != null) == true) {
+          return sub;
+        }
+
+        sub.dispose();
+      }
+
+      setReturnCode(sub.getReturnCode());
+      setErrorMessage(sub.getErrorMessage());
+      setException(sub.getException());
+    } catch (Exception e) {
+      setReturnCode(SipSession.EXCEPTION_ENCOUNTERED);
+      setException(e);
+      setErrorMessage("Exception: " + e.getClass().getName() + ": " + e.getMessage());
+    }
+
+    return null;
+  }
+
+  /**
+   * This method is the same as subscribeDialogInfo(uri, duration, timeout) except that the
+   * duration is defaulted to the default period defined in the event package RFC (3600 seconds).
+   */
+  public DialogInfoSubscriber subscribeDialogInfo(String uri, long timeout) {
+    return subscribeDialogInfo(uri, DEFAULT_SUBSCRIBE_DURATION, timeout);
+  }
+
+  /**
+   * This method starts dialog event package subscriptions to many extensions at once, as an
+   * attendant console monitoring a range of extensions does. It is the same as calling
+   * subscribeDialogInfo(uri, duration, timeout) for each of the given URIs except that all the
+   * SUBSCRIBE requests are sent out before waiting for the responses, so the time taken is about
+   * that of the slowest response instead of the sum of them all.
+   *
+   * <p>
+   * The subscriptions that fail are left out of the returned map and of this SipPhone's dialog
+   * subscriptions; in that case, this object's getErrorMessage(), getReturnCode() and
+   * getException() give the outcome of the last one that failed. As with subscribeDialogInfo(),
+   * your next step will be to call processResponse() on each returned object.
+   *
+   * @param uris the URIs of the extensions to monitor.
+   * @param duration the duration in seconds to put in the SUBSCRIBE messages.
+   * @param timeout The maximum amount of time to wait for all the SUBSCRIBE responses, in
+   *        milliseconds. Use a value of 0 to wait indefinitely.
+   * @return a map of each given URI whose subscription is successful so far to its
+   *         DialogInfoSubscriber object, in the order given.
+   */
+  public Map<String, DialogInfoSubscriber> subscribeDialogInfo(List<String> uris, int duration,
+      long timeout) {
+    initErrorInfo();
+
+    LinkedHashMap<String, DialogInfoSubscriber> started = new LinkedHashMap<>();
+    for (String uri : uris) {
+      try {
+        DialogInfoSubscriber sub = new DialogInfoSubscriber(uri, this);
+        Request req = sub.createSubscribeMessage(duration, null);
+
+        if (req != null) {
+          synchronized (dialogInfoSubscriptions) {
+            dialogInfoSubscriptions.add(sub);
+          }
+          subscriptions.add(sub);
+
+          if (sub.sendSubscription(req, proxyHost != null) == true) {
+            started.put(uri, sub);
+            continue;
+          }
+
+          removeDialogInfoSubscription(sub);
+        }
+
+        setReturnCode(sub.getReturnCode());
+        setErrorMessage(sub.getErrorMessage());
+        setException(sub.getException());
+      } catch (Exception e) {
+        setReturnCode(SipSession.EXCEPTION_ENCOUNTERED);
+        setException(e);
+        setErrorMessage("Exception: " + e.getClass().getName() + ": " + e.getMessage());
+      }
+    }
+
+    long deadline = System.currentTimeMillis() + timeout;
+    Iterator<DialogInfoSubscriber> i = started.values().iterator();
+    while (i.hasNext()) {
+      DialogInfoSubscriber sub = i.next();
+      long left = timeout == 0 ? 0 : Math.max(1, deadline - System.currentTimeMillis());
+
+      if (sub.awaitSubscriptionStart(left) == false) {
+        i.remove();
+        removeDialogInfoSubscription(sub);
+
+        setReturnCode(sub.getReturnCode());
+        setErrorMessage(sub.getErrorMessage());
+        setException(sub.getException());
+      }
+    }
+
+    return started;
+  }
+
+  /**
+   * Returns a copy of the list of dialog subscriptions of this SipPhone - see
+   * subscribeDialogInfo(). A given subscription in the list may be active or not - subscription
+   * termination does not automatically remove a subscription from this list (calling
+   * DialogInfoSubscriber.dispose() does that).
+   *
+   * @return a list of DialogInfoSubscriber objects or an empty list if there are none.
+   */
+  public List<DialogInfoSubscriber> getDialogInfoSubscriptions() {
+    synchronized (dialogInfoSubscriptions) {
+      return new ArrayList<>(dialogInfoSubscriptions);
+    }
+  }
+
+  protected boolean removeDialogInfoSubscription(DialogInfoSubscriber sub) {
+    subscriptions.remove(sub);
+
+    synchronized (dialogInfoSubscriptions) {
+      return dialogInfoSubscriptions.remove(sub);
+    }
+  }
+
+  /**
+   * This method creates an EventPublisher object for publishing event state (RFC 3903) for the
+   * given resource, to be sent with its publish() method. Nothing is sent by this method. The
+   * EventPublisher is kept in this SipPhone's publishers (see getPublishers()) until its dispose()
+   * method is called.
+   *
+   * @param uri the URI of the resource whose state is published (ie, sip:becky@cafesip.org), which
+   *        is the request URI, From and To of the PUBLISH requests.
+   * @param eventType the event package of the state (ie, "presence").
+   * @param contentType the content type of the state (ie, "application").
+   * @param contentSubType the content sub-type of the state (ie, "pidf+xml").
+   * @return an EventPublisher object, or null if the URI is not valid. If null, call
+   *         getReturnCode(), getErrorMessage() and/or getException() for failure info.
+   */
+  public EventPublisher createPublisher(String uri, String eventType, String contentType,
+      String contentSubType) {
+    initErrorInfo();
+
+    try {
+      EventPublisher pub = new EventPublisher(this, uri, eventType, contentType, contentSubType);
+      synchronized (publishers) {
+        publishers.add(pub);
+      }
+      return pub;
+    } catch (Exception e) {
+      setReturnCode(SipSession.EXCEPTION_ENCOUNTERED);
+      setException(e);
+      setErrorMessage("Exception: " + e.getClass().getName() + ": " + e.getMessage());
+    }
+
+    return null;
+  }
+
+  /**
+   * This method publishes the presence state of a presentity: it creates an EventPublisher object
+   * for "Event: presence" with a PIDF body (application/pidf+xml) and calls its publish() method,
+   * blocking until the final response is received or the timeout elapses. The EventPublisher is
+   * then used to modify, refresh or remove the publication. With a PublishPolicy in effect (see
+   * setPublishPolicy()), the publication is refreshed by this SipPhone until it is removed.
+   *
+   * @param uri the URI of the presentity (ie, sip:becky@cafesip.org).
+   * @param body the PIDF document to publish.
+   * @param expires the requested duration of the publication in seconds.
+   * @param timeout The maximum amount of time to wait for the PUBLISH response, in milliseconds.
+   *        Use a value of 0 to wait indefinitely.
+   * @return the EventPublisher of the publication if a 2xx response has been received, null
+   *         otherwise. If null, call getReturnCode(), getErrorMessage() and/or getException() for
+   *         failure info.
+   */
+  public EventPublisher publish(String uri, String body, int expires, long timeout) {
+    EventPublisher pub = createPublisher(uri, "presence", "application", "pidf+xml");
+    if (pub == null) {
+      return null;
+    }
+
+    if (pub.publish(body, expires, timeout) == true) {
+      return pub;
+    }
+
+    pub.dispose();
+    setReturnCode(pub.getReturnCode());
+    setErrorMessage(pub.getErrorMessage());
+    setException(pub.getException());
+    return null;
+  }
+
+  /**
+   * Returns a copy of the list of EventPublisher objects of this SipPhone - see createPublisher()
+   * and publish(). A given publisher in the list may hold a publication or not.
+   *
+   * @return a list of EventPublisher objects or an empty list if there are none.
+   */
+  public List<EventPublisher> getPublishers() {
+    synchronized (publishers) {
+      return new ArrayList<>(publishers);
+    }
+  }
+
+  protected boolean removePublisher(EventPublisher pub) {
+    synchronized (publishers) {
+      return publishers.remove(pub);
+    }
+  }
+
   protected PresenceSubscriber retireBuddy(String uri) {
     PresenceSubscriber sub;
 
@@ -1660,8 +2643,13 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
     }
 
     if (sub != null) {
+      PresenceSubscriber old;
       synchronized (buddyList) {
-        buddyTerminatedList.put(uri, sub);
+        old = buddyTerminatedList.put(uri, sub);
+      }
+
+      if ((old != null) && (old != sub)) {
+        subscriptions.remove(old);
       }
     }
 
@@ -1669,6 +2657,8 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
   }
 
   protected boolean removeRefer(ReferSubscriber ref) {
+    subscriptions.remove(ref);
+
     synchronized (refererList) {
       return refererList.remove(ref);
     }
@@ -1918,6 +2908,7 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
         synchronized (refererList) {
           refererList.add(sub);
         }
+        subscriptions.add(sub);
 
         boolean viaProxy = (proxyHost != null) && (viaNonProxyRoute == null);
 
@@ -1940,6 +2931,7 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
       synchronized (refererList) {
         refererList.remove(sub);
       }
+      subscriptions.remove(sub);
     }
 
     return null;
@@ -2091,6 +3083,7 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
         synchronized (refererList) {
           refererList.add(sub);
         }
+        subscriptions.add(sub);
 
         if (sub.startSubscription(req, timeout, false, additionalHeaders, replaceHeaders,
             body) == true) {
@@ -2111,6 +3104,7 @@ public class SipPhone extends SipSession implements SipActionObject, RequestList
       synchronized (refererList) {
         refererList.remove(sub);
       }
+      subscriptions.remove(sub);
     }
 
     return null;
@@ -93,6 +93,8 @@ public class SipResponse extends SipMessage {
 
   public static final int GONE = 410;
 
+  public static final int CONDITIONAL_REQUEST_FAILED = 412;
+
   public static final int REQUEST_ENTITY_TOO_LARGE = 413;
 
   public static final int REQUEST_URI_TOO_LONG = 414;
@@ -105,6 +107,8 @@ public class SipResponse extends SipMessage {
 
   public static final int EXTENSION_REQUIRED = 421;
 
+  public static final int SESSION_INTERVAL_TOO_SMALL = 422;
+
   public static final int INTERVAL_TOO_BRIEF = 423;
 
   public static final int TEMPORARILY_UNAVAILABLE = 480;
@@ -192,12 +196,16 @@ public class SipResponse extends SipMessage {
         "Proxy Authentication Required");
     statusCodeDescription.put(new Integer(REQUEST_TIMEOUT), "Request Timeout");
     statusCodeDescription.put(new Integer(GONE), "Gone");
+    statusCodeDescription.put(new Integer(CONDITIONAL_REQUEST_FAILED),
+        "Conditional Request Failed");
     statusCodeDescription.put(new Integer(REQUEST_ENTITY_TOO_LARGE), "Request Entity Too Large");
     statusCodeDescription.put(new Integer(REQUEST_URI_TOO_LONG), "Request URI Too Long");
     statusCodeDescription.put(new Integer(UNSUPPORTED_MEDIA_TYPE), "Unsupported Media Type");
     statusCodeDescription.put(new Integer(UNSUPPORTED_URI_SCHEME), "Unsupported URI Scheme");
     statusCodeDescription.put(new Integer(BAD_EXTENSION), "Bad Extension");
     statusCodeDescription.put(new Integer(EXTENSION_REQUIRED), "Extension Required");
+    statusCodeDescription.put(new Integer(SESSION_INTERVAL_TOO_SMALL),
+        "Session Interval Too Small");
     statusCodeDescription.put(new Integer(INTERVAL_TOO_BRIEF), "Interval Too Brief");
     statusCodeDescription.put(new Integer(TEMPORARILY_UNAVAILABLE), "Temporarily Unavailable");
     statusCodeDescription.put(new Integer(CALL_OR_TRANSACTION_DOES_NOT_EXIST),
@@ -39,6 +39,7 @@ import javax.sip.address.AddressFactory;
 import javax.sip.address.SipURI;
 import javax.sip.address.URI;
 import javax.sip.header.AuthorizationHeader;
+import javax.sip.header.CallIdHeader;
 import javax.sip.header.ContactHeader;
 import javax.sip.header.ContentTypeHeader;
 import javax.sip.header.ExpiresHeader;
@@ -59,6 +60,10 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
 
 /**
  * Methods of this class provide the test program with low-level access to a SIP session. Instead of
@@ -146,11 +151,15 @@ public class SipSession implements SipListener, SipActionObject {
 
   // Class attributes
 
-  private int returnCode = -1;
+  // the outcome of the last operation, per calling thread (see ErrorInfo)
+  private final ErrorInfo errorInfo = new ErrorInfo();
 
-  private String errorMessage = "";
-
-  protected Throwable exception;
+  /**
+   * @deprecated The exception of the last operation of any thread, kept for subclasses. Use
+   *             getException(), which gives that of the calling thread's last operation.
+   */
+  @Deprecated
+  protected volatile Throwable exception;
 
   protected SipStack parent;
 
@@ -162,7 +171,7 @@ public class SipSession implements SipListener, SipActionObject {
 
   protected String myhost;
 
-  protected SipContact contactInfo;
+  protected volatile SipContact contactInfo;
 
   protected Object contactLock = new Object();
 
@@ -192,6 +201,9 @@ public class SipSession implements SipListener, SipActionObject {
 
   private boolean loopback;
 
+  // the event loop this session is pinned to, null unless the stack is in event-loop mode
+  private EventLoop eventLoop;
+
   private boolean supportRegisterRequests;
   private boolean passThroughRegisterRequests;
 
@@ -244,19 +256,8 @@ public class SipSession implements SipListener, SipActionObject {
 
     // default our local contact info, in case no Proxy/registration applies
     // (use user@hostname)
-    SipURI contact_uri = addr_factory.createSipURI(((SipURI) my_uri).getUser(), this.myhost);
-
-    contact_uri.setPort(parent.getSipProvider().getListeningPoints()[0].getPort());
-    contact_uri.setTransportParam(parent.getSipProvider().getListeningPoints()[0].getTransport());
-    contact_uri.setSecure(((SipURI) my_uri).isSecure());
-    contact_uri.setLrParam();
-
-    Address contact_address = addr_factory.createAddress(contact_uri);
-    contact_address.setDisplayName(myAddress.getDisplayName());
-    ContactHeader hdr = parent.getHeaderFactory().createContactHeader(contact_address);
-
     contactInfo = new SipContact();
-    contactInfo.setContactHeader(hdr);
+    contactInfo.setContactHeader(createDefaultContactHeader(myAddress));
 
     // determine and store my via header(s)
     ViaHeader via_header = parent.getHeaderFactory().createViaHeader(this.myhost,
@@ -268,9 +269,32 @@ public class SipSession implements SipListener, SipActionObject {
 
     // finally, register with the sip stack
     parent.registerListener(this);
+    eventLoop = parent.getEventLoop(this);
+    parent.addRoute(me, this);
   }
 
-  private void generateMyId(String host) {
+  /**
+   * Creates the default local contact (user@hostname) for the given address of record, for use when
+   * no Proxy/registration applies.
+   */
+  protected ContactHeader createDefaultContactHeader(Address address) throws ParseException {
+    SipURI aor_uri = (SipURI) address.getURI();
+    SipURI contact_uri = parent.getAddressFactory().createSipURI(aor_uri.getUser(), this.myhost);
+
+    contact_uri.setPort(parent.getSipProvider().getListeningPoints()[0].getPort());
+    contact_uri.setTransportParam(parent.getSipProvider().getListeningPoints()[0].getTransport());
+    contact_uri.setSecure(aor_uri.isSecure());
+    contact_uri.setLrParam();
+
+    Address contact_address = parent.getAddressFactory().createAddress(contact_uri);
+    contact_address.setDisplayName(address.getDisplayName());
+    return parent.getHeaderFactory().createContactHeader(contact_address);
+  }
+
+  /**
+   * Generates a new unique registration Call-ID value for the given host.
+   */
+  protected String generateRegistrationId(String host) {
     // This scheme of using random numbers to generate a
     // unique identifier has a small probability of
     // causing duplicate call ids.
@@ -279,7 +303,11 @@ public class SipSession implements SipListener, SipActionObject {
     long r = parent.getRandom().nextLong();
     r = (r < 0) ? 0 - r : r; // generate a positive number
 
-    myRegistrationId = r + "@" + host;
+    return r + "@" + host;
+  }
+
+  private void generateMyId(String host) {
+    myRegistrationId = generateRegistrationId(host);
   }
 
   /**
@@ -288,10 +316,10 @@ public class SipSession implements SipListener, SipActionObject {
    * @return A String tag ID
    */
   public String generateNewTag() {
-    // This scheme of using random numbers to generate a
-    // unique tag has a small probability of
-    // causing duplicate tags.
-    // TODO at some point, we may want to change it.
+    // A random number alone has a small probability of causing duplicate
+    // tags, which becomes real when thousands of dialogs are created (ie,
+    // many notify senders) - the stack's sequence number makes the tag
+    // unique within the stack, the random part across stacks.
 
     int r = parent.getRandom().nextInt();
     r = (r < 0) ? 0 - r : r; // generate a positive number
@@ -300,7 +328,7 @@ public class SipSession implements SipListener, SipActionObject {
     // from this
     // client? (for jiplet call identification purposes)
 
-    return Integer.toString(r);
+    return Integer.toString(r) + '.' + Long.toString(parent.nextTagSequence());
   }
 
   protected SipSession(SipStack stack, String proxyHost, String me)
@@ -338,6 +366,7 @@ public class SipSession implements SipListener, SipActionObject {
 
   public void setAcceptTrafficOnEphemeralPorts (boolean acceptTrafficOnEphemeralPorts) {
     this.acceptTrafficOnEphemeralPorts = acceptTrafficOnEphemeralPorts;
+    parent.updateRoutes();
   }
 
   public Request getLastReceivedOptionsRequest () {
@@ -348,6 +377,73 @@ public class SipSession implements SipListener, SipActionObject {
     this.errorRespondToOptions = errorRespondToOptions;
   }
 
+  /**
+   * Runs the given task on this SipSession's event loop, after the events already queued there, if
+   * the SipStack is in event-loop mode (see SipStack.setEventLoops()); otherwise, runs it right away
+   * on the calling thread. Code run on the event loop is never concurrent with the processing of
+   * this SipSession's events and must not call blocking methods such as waitRequest() or
+   * SipCall.waitForAnswer(). A RuntimeException thrown by the task is logged.
+   *
+   * @param task the task to run.
+   */
+  public void execute(Runnable task) {
+    if (eventLoop == null) {
+      task.run();
+      return;
+    }
+
+    eventLoop.execute(task);
+  }
+
+  /**
+   * This method is the same as execute() except that it returns the outcome of the task. In
+   * event-loop mode, the Future must not be waited on from the event loop itself.
+   *
+   * @param task the task to run.
+   * @return the Future of the task, already done if the stack isn't in event-loop mode.
+   */
+  public <T> Future<T> submit(Callable<T> task) {
+    FutureTask<T> future = new FutureTask<>(task);
+    if (eventLoop == null) {
+      future.run();
+    } else {
+      eventLoop.execute(future);
+    }
+    return future;
+  }
+
+  /**
+   * Indicates if the calling thread is the event loop this SipSession is pinned to (see
+   * SipStack.setEventLoops()).
+   *
+   * @return true if called from this session's event loop, false otherwise or if the stack isn't in
+   *         event-loop mode.
+   */
+  public boolean inEventLoop() {
+    return (eventLoop != null) && eventLoop.inThisLoop();
+  }
+
+  EventLoop getEventLoop() {
+    return eventLoop;
+  }
+
+  /**
+   * In event-loop mode, marks the given client transaction, and the dialog it has if not yet
+   * marked, as this session's: the SipStack then dispatches their responses, timeouts and
+   * in-dialog requests to this session's loop only.
+   */
+  void pin(ClientTransaction trans) {
+    if (eventLoop == null) {
+      return;
+    }
+
+    trans.setApplicationData(eventLoop);
+    Dialog dialog = trans.getDialog();
+    if ((dialog != null) && (dialog.getApplicationData() == null)) {
+      dialog.setApplicationData(eventLoop);
+    }
+  }
+
   /**
    * This method idles this SipSession. This SipSession object must not be used again after calling
    * the dispose() method.
@@ -412,9 +508,11 @@ public class SipSession implements SipListener, SipActionObject {
       my_uri.setPort(port);
 
       // update my via header
-      ViaHeader my_via = (ViaHeader) viaHeaders.get(0);
-      my_via.setHost(host);
-      my_via.setPort(port);
+      synchronized (viaHeaders) {
+        ViaHeader my_via = (ViaHeader) viaHeaders.get(0);
+        my_via.setHost(host);
+        my_via.setPort(port);
+      }
 
       // update my host
       myhost = host;
@@ -476,15 +574,17 @@ public class SipSession implements SipListener, SipActionObject {
       }
     } else if (!acceptTrafficOnEphemeralPorts) {
       //Check if destination match
-      if (destMatch((SipURI) my_contact_info.getContactHeader().getAddress().getURI(),
-              (SipURI) req_msg.getRequestURI()) == false) {
+      if ((destMatch((SipURI) my_contact_info.getContactHeader().getAddress().getURI(),
+              (SipURI) req_msg.getRequestURI()) == false)
+          && (isHostedContact((SipURI) req_msg.getRequestURI()) == false)) {
         if (!loopback) {
           LOG.trace("     skipping 'To' check, we're not loopback (see setLoopback())");
           return;
         }
 
         // check 'To' for a match
-        if (to.getAddress().getURI().toString().equals(me) == false) {
+        String to_uri = to.getAddress().getURI().toString();
+        if ((to_uri.equals(me) == false) && (isHostedAor(to_uri) == false)) {
           return;
         }
       }
@@ -521,6 +621,11 @@ public class SipSession implements SipListener, SipActionObject {
     }
 
     synchronized (reqBlock) {
+      if (dispatchRequest(request) == true) {
+        LOG.trace("request dispatched to its owner");
+        return;
+      }
+
       if (rcvRequests == false) {
         LOG.trace("not interested in blocking requests");
         return;
@@ -556,6 +661,9 @@ public class SipSession implements SipListener, SipActionObject {
       synchronized (respTransactions) {
         respTransactions.remove(trans);
       }
+
+      // the dialog has taken the response into account by now, see SipCall.createAck()
+      sip_trans.finalResponseReceived();
     }
 
     // check for listener handling
@@ -610,6 +718,75 @@ public class SipSession implements SipListener, SipActionObject {
     }
   }
 
+  /**
+   * Gives a subclass the chance to hand a received request directly to the object it belongs to
+   * (ie, a SipCall) instead of queueing it for waitRequest(). Called with the request queue lock
+   * held (see getRequestLock()). This implementation returns false.
+   *
+   * @param request the received request.
+   * @return true if the request has been dispatched and must not be queued, false otherwise.
+   */
+  protected boolean dispatchRequest(RequestEvent request) {
+    return false;
+  }
+
+  /**
+   * Returns the lock guarding the request queue used by waitRequest() and dispatchRequest().
+   */
+  protected Object getRequestLock() {
+    return reqBlock;
+  }
+
+  /**
+   * Indicates if the given request is one that dispatchRequest() may hand to a call rather than
+   * queue for waitRequest(). This implementation returns false.
+   */
+  protected boolean isCallRequest(Request request) {
+    return false;
+  }
+
+  /**
+   * Removes and returns the requests already queued for waitRequest() that carry the given Call-ID
+   * and that are call requests (see isCallRequest()).
+   *
+   * @param callId the Call-ID of interest.
+   * @return the removed requests, in the order received. The list is empty if there were none.
+   */
+  protected List<RequestEvent> removeQueuedRequests(String callId) {
+    List<RequestEvent> list = new ArrayList<>();
+
+    synchronized (reqBlock) {
+      Iterator<RequestEvent> i = reqEvents.iterator();
+      while (i.hasNext()) {
+        RequestEvent event = i.next();
+        CallIdHeader hdr = (CallIdHeader) event.getRequest().getHeader(CallIdHeader.NAME);
+        if ((hdr != null) && callId.equals(hdr.getCallId())
+            && isCallRequest(event.getRequest())) {
+          list.add(event);
+          i.remove();
+        }
+      }
+    }
+
+    return list;
+  }
+
+  /**
+   * Indicates if the given Request-URI is the contact of an additional address of record hosted by
+   * this session. This implementation returns false, see SipPhone.createAor().
+   */
+  protected boolean isHostedContact(SipURI requestUri) {
+    return false;
+  }
+
+  /**
+   * Indicates if the given URI is an additional address of record hosted by this session. This
+   * implementation returns false, see SipPhone.createAor().
+   */
+  protected boolean isHostedAor(String uri) {
+    return false;
+  }
+
   protected static boolean destMatch(SipURI uri1, SipURI uri2) {
     if (uri1.getScheme().equalsIgnoreCase(uri2.getScheme())) {
       if (uri1.getUser() != null) {
@@ -768,16 +945,16 @@ public class SipSession implements SipListener, SipActionObject {
    */
   private boolean addProxy(Request request) {
     if (proxyHost == null) {
-      errorMessage =
-          "Attempt to add Route header for proxy, but the proxy server was not specified for this SipPhone";
-      returnCode = INVALID_ARGUMENT;
+      setErrorMessage(
+          "Attempt to add Route header for proxy, but the proxy server was not specified for this SipPhone");
+      setReturnCode(INVALID_ARGUMENT);
       return false;
     }
 
     URI request_uri = request.getRequestURI();
     if (!request_uri.isSipURI()) {
-      errorMessage = "Only sip/sips routing URIs supported";
-      returnCode = INVALID_ARGUMENT;
+      setErrorMessage("Only sip/sips routing URIs supported");
+      setReturnCode(INVALID_ARGUMENT);
       return false;
     }
 
@@ -1044,6 +1221,18 @@ public class SipSession implements SipListener, SipActionObject {
   protected SipTransaction sendRequestWithTransaction(Request request, boolean viaProxy,
       Dialog dialog, MessageListener respListener, ArrayList<Header> additionalHeaders,
       ArrayList<Header> replaceHeaders, String body) {
+    return sendRequestWithTransaction(request, viaProxy, dialog, respListener, additionalHeaders,
+        replaceHeaders, body, null);
+  }
+
+  /**
+   * This method is the same as the previous one except that, if not null, the given callback is
+   * handed the new SipTransaction before the request is sent. The response listener, called on the
+   * SIP stack thread, may then rely on the caller already having the SipTransaction.
+   */
+  protected SipTransaction sendRequestWithTransaction(Request request, boolean viaProxy,
+      Dialog dialog, MessageListener respListener, ArrayList<Header> additionalHeaders,
+      ArrayList<Header> replaceHeaders, String body, Consumer<SipTransaction> beforeSend) {
     initErrorInfo();
 
     if (viaProxy == true) {
@@ -1068,6 +1257,7 @@ public class SipSession implements SipListener, SipActionObject {
       putElements(request, additionalHeaders, replaceHeaders, body);
 
       ClientTransaction trans = parent.getSipProvider().getNewClientTransaction(request);
+      pin(trans);
       SipTransaction sip_trans = new SipTransaction();
       sip_trans.setClientTransaction(trans);
       sip_trans.setBlock(respBlock);
@@ -1077,6 +1267,10 @@ public class SipSession implements SipListener, SipActionObject {
         respTransactions.put(trans, sip_trans);
       }
 
+      if (beforeSend != null) {
+        beforeSend.accept(sip_trans);
+      }
+
       try {
         if (dialog == null) {
           trans.sendRequest();
@@ -1852,11 +2046,18 @@ public class SipSession implements SipListener, SipActionObject {
    * agent's sip stack. But if the setPublicAddress() has been called on this object, the returned
    * value will reflect the most recent call to setPublicAddress().
    *
-   * @return an ArrayList containing a single element: the javax.sip.header.ViaHeader currently in
-   *         effect for this user agent.
+   * @return an ArrayList containing a single element: a copy of the javax.sip.header.ViaHeader
+   *         currently in effect for this user agent. Each call returns a new copy, since the SIP
+   *         stack sets the branch parameter of the Via header of each request sent.
    */
   public ArrayList<ViaHeader> getViaHeaders() {
-    return new ArrayList<>(viaHeaders);
+    ArrayList<ViaHeader> list = new ArrayList<>(viaHeaders.size());
+    synchronized (viaHeaders) {
+      for (ViaHeader via : viaHeaders) {
+        list.add((ViaHeader) via.clone());
+      }
+    }
+    return list;
   }
 
   /**
@@ -1875,21 +2076,21 @@ public class SipSession implements SipListener, SipActionObject {
    * @see org.cafesip.sipunit.SipActionObject#getErrorMessage()
    */
   public String getErrorMessage() {
-    return errorMessage;
+    return errorInfo.getErrorMessage();
   }
 
   /*
    * @see org.cafesip.sipunit.SipActionObject#getException()
    */
   public Throwable getException() {
-    return exception;
+    return errorInfo.getException();
   }
 
   /*
    * @see org.cafesip.sipunit.SipActionObject#getReturnCode()
    */
   public int getReturnCode() {
-    return returnCode;
+    return errorInfo.getReturnCode();
   }
 
   /**
@@ -1911,6 +2112,8 @@ public class SipSession implements SipListener, SipActionObject {
    * @see org.cafesip.sipunit.SipActionObject#format()
    */
   public String format() {
+    int returnCode = getReturnCode();
+    String errorMessage = getErrorMessage();
     if (SipSession.isInternal(returnCode) == true) {
       return SipSession.statusCodeDescription.get(new Integer(returnCode))
           + (errorMessage.length() > 0 ? (": " + errorMessage) : "");
@@ -1931,7 +2134,7 @@ public class SipSession implements SipListener, SipActionObject {
    * @param errorMessage The errorMessage to set.
    */
   protected void setErrorMessage(String errorMessage) {
-    this.errorMessage = errorMessage;
+    errorInfo.setErrorMessage(errorMessage);
   }
 
   protected void initErrorInfo() {
@@ -1944,6 +2147,7 @@ public class SipSession implements SipListener, SipActionObject {
    * @param exception The exception to set.
    */
   protected void setException(Throwable exception) {
+    errorInfo.setException(exception);
     this.exception = exception;
   }
 
@@ -1951,7 +2155,7 @@ public class SipSession implements SipListener, SipActionObject {
    * @param returnCode The returnCode to set.
    */
   protected void setReturnCode(int returnCode) {
-    this.returnCode = returnCode;
+    errorInfo.setReturnCode(returnCode);
   }
 
   protected void addRequestListener(String requestMethod, RequestListener listener) {
@@ -23,13 +23,24 @@ import gov.nist.javax.sip.ResponseEventExt;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.sip.ClientTransaction;
+import javax.sip.Dialog;
 import javax.sip.DialogTerminatedEvent;
 import javax.sip.IOExceptionEvent;
 import javax.sip.InvalidArgumentException;
@@ -42,10 +53,14 @@ import javax.sip.SipProvider;
 import javax.sip.TimeoutEvent;
 import javax.sip.TransactionTerminatedEvent;
 import javax.sip.address.AddressFactory;
+import javax.sip.address.SipURI;
+import javax.sip.address.URI;
 import javax.sip.header.HeaderFactory;
 import javax.sip.header.RecordRouteHeader;
 import javax.sip.header.RouteHeader;
+import javax.sip.header.ToHeader;
 import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
 
 /**
  * This class is the starting point for a SipUnit test. Before establishing any
@@ -81,7 +96,33 @@ public class SipStack implements SipListener {
 
     private Random random = new Random((new Date()).getTime());
 
-    private int retransmissions;
+    private final AtomicInteger retransmissions = new AtomicInteger();
+
+    private final AtomicLong tagSequence = new AtomicLong();
+
+    // null unless in event-loop mode, see setEventLoops()
+    private volatile EventLoop[] eventLoops;
+
+    private int nextEventLoop; // guarded by listeners
+
+    // in event-loop mode, the SipSessions by the address of record (phone or
+    // hosted AOR URI) they take the requests for; guarded by listeners
+    private final Map<String, List<SipSession>> owners = new HashMap<>();
+
+    // the event loop of each address of record whose requests can only be for
+    // the SipSessions of one loop, rebuilt from owners on each change and read
+    // by the dispatch without locking, see route()
+    private volatile Map<String, EventLoop> routes = Collections.emptyMap();
+
+    // true if a SipSession takes requests whatever their addressee (see
+    // SipSession.setAcceptTrafficOnEphemeralPorts()) - they then go to all loops
+    private volatile boolean requestsToAll;
+
+    private volatile MessageRetention defaultMessageRetention = MessageRetention.full();
+
+    private final CallLatencyStats latencyStats = new CallLatencyStats();
+
+    private volatile int pidfParser = PIDF_PARSER_JAXB;
 
     private static final Properties defaultProperties = new Properties();
 
@@ -133,6 +174,19 @@ public class SipStack implements SipListener {
 
     public static final String DEFAULT_PROTOCOL = PROTOCOL_UDP;
 
+    /**
+     * <code>PIDF_PARSER_JAXB</code> Specifies that presence (PIDF) NOTIFY
+     * bodies are parsed with the JAXB binding generated from the PIDF schema.
+     */
+    public static final int PIDF_PARSER_JAXB = 0;
+
+    /**
+     * <code>PIDF_PARSER_STAX</code> Specifies that presence (PIDF) NOTIFY
+     * bodies are parsed with a streaming (StAX) parser, which builds the
+     * PresenceDeviceInfo and PresenceNote objects directly in one pass.
+     */
+    public static final int PIDF_PARSER_STAX = 1;
+
     /**
      * A constructor for this class. Before establishing any SIP sessions,
      * instantiate this class. You may provide the parameters for SIP protocol
@@ -330,6 +384,13 @@ public class SipStack implements SipListener {
      * nethod on any SipPhones you've created using this sip stack.
      */
     public void dispose() {
+        EventLoop[] loops = eventLoops;
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                loop.shutdown();
+            }
+        }
+
         try {
             if (sipProvider.getListeningPoints().length > 0) {
                 sipStack.deleteListeningPoint(sipProvider.getListeningPoints()[0]);
@@ -347,6 +408,20 @@ public class SipStack implements SipListener {
      */
     public void processRequest(RequestEvent arg0) {
         LOG.trace("request received !");
+        EventLoop[] loops = eventLoops;
+        if (loops != null) {
+            EventLoop owner = route(arg0);
+            if (owner != null) {
+                owner.processRequest(arg0);
+                return;
+            }
+
+            for (EventLoop loop : loops) {
+                loop.processRequest(arg0);
+            }
+            return;
+        }
+
         synchronized (listeners) {
             Iterator<SipListener> iter = listeners.iterator();
             while (iter.hasNext() == true) {
@@ -361,10 +436,25 @@ public class SipStack implements SipListener {
      * FOR INTERNAL USE ONLY. Not to be used by a test program.
      */
     public void processResponse(ResponseEvent arg0) {
-        synchronized (listeners) {
-            if (((ResponseEventExt) arg0).isRetransmission()) {
-                retransmissions++;
+        if (((ResponseEventExt) arg0).isRetransmission()) {
+            retransmissions.incrementAndGet();
+        }
+
+        EventLoop[] loops = eventLoops;
+        if (loops != null) {
+            EventLoop owner = route(arg0.getClientTransaction());
+            if (owner != null) {
+                owner.processResponse(arg0);
+                return;
             }
+
+            for (EventLoop loop : loops) {
+                loop.processResponse(arg0);
+            }
+            return;
+        }
+
+        synchronized (listeners) {
             Iterator iter = listeners.iterator();
             while (iter.hasNext() == true) {
                 SipListener listener = (SipListener) iter.next();
@@ -377,6 +467,20 @@ public class SipStack implements SipListener {
      * FOR INTERNAL USE ONLY. Not to be used by a test program.
      */
     public void processTimeout(TimeoutEvent arg0) {
+        EventLoop[] loops = eventLoops;
+        if (loops != null) {
+            EventLoop owner = route(arg0.getClientTransaction());
+            if (owner != null) {
+                owner.processTimeout(arg0);
+                return;
+            }
+
+            for (EventLoop loop : loops) {
+                loop.processTimeout(arg0);
+            }
+            return;
+        }
+
         synchronized (listeners) {
             Iterator<SipListener> iter = listeners.iterator();
             while (iter.hasNext() == true) {
@@ -389,15 +493,296 @@ public class SipStack implements SipListener {
     protected void registerListener(SipListener listener) {
         synchronized (listeners) {
             listeners.addLast(listener);
+
+            EventLoop[] loops = eventLoops;
+            if (loops != null) {
+                loops[nextEventLoop++ % loops.length].add(listener);
+            }
+        }
+    }
+
+    /**
+     * Registers a listener that belongs to the given SipSession: in event-loop
+     * mode, its events are delivered on the session's event loop.
+     */
+    protected void registerListener(SipListener listener, SipSession owner) {
+        synchronized (listeners) {
+            listeners.addLast(listener);
+
+            EventLoop loop = getEventLoop(owner);
+            if (loop != null) {
+                loop.add(listener);
+            }
         }
     }
 
     protected void unregisterListener(SipListener listener) {
         synchronized (listeners) {
             listeners.remove(listener);
+
+            EventLoop loop = getEventLoop(listener);
+            if (loop != null) {
+                loop.remove(listener);
+            }
+
+            Iterator<List<SipSession>> i = owners.values().iterator();
+            while (i.hasNext()) {
+                List<SipSession> sessions = i.next();
+                sessions.remove(listener);
+                if (sessions.isEmpty()) {
+                    i.remove();
+                }
+            }
+            updateRoutes();
+        }
+    }
+
+    /**
+     * Records that the given SipSession takes the requests addressed to the
+     * given address of record, for the event-loop mode dispatch to send them
+     * to its loop only.
+     */
+    void addRoute(String uri, SipSession owner) {
+        synchronized (listeners) {
+            if (eventLoops == null) {
+                return;
+            }
+
+            List<SipSession> sessions = owners.get(uri);
+            if (sessions == null) {
+                sessions = new ArrayList<>(1);
+                owners.put(uri, sessions);
+            }
+            sessions.add(owner);
+            updateRoutes();
+        }
+    }
+
+    /**
+     * Undoes addRoute().
+     */
+    void removeRoute(String uri, SipSession owner) {
+        synchronized (listeners) {
+            List<SipSession> sessions = owners.get(uri);
+            if ((sessions != null) && sessions.remove(owner)) {
+                if (sessions.isEmpty()) {
+                    owners.remove(uri);
+                }
+                updateRoutes();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the routes from the owners. An address of record is routed
+     * only if all its SipSessions are on one loop, and so are those of any
+     * other address of record with the same user part: a SipSession also takes
+     * the requests whose Request-URI is its contact, user@host of the stack by
+     * default, whatever their 'To' address.
+     */
+    void updateRoutes() {
+        synchronized (listeners) {
+            if (eventLoops == null) {
+                return;
+            }
+
+            boolean toAll = false;
+            for (SipListener listener : listeners) {
+                if ((listener instanceof SipSession)
+                        && ((SipSession) listener).isAcceptTrafficOnEphemeralPorts()) {
+                    toAll = true;
+                }
+            }
+            requestsToAll = toAll;
+
+            Map<String, EventLoop> table = new HashMap<>();
+            Map<String, EventLoop> users = new HashMap<>();
+            Set<String> sharedUris = new HashSet<>();
+            Set<String> sharedUsers = new HashSet<>();
+            for (Map.Entry<String, List<SipSession>> entry : owners.entrySet()) {
+                String uri = entry.getKey();
+                String user = userOf(uri);
+                for (SipSession owner : entry.getValue()) {
+                    EventLoop loop = getEventLoop(owner);
+                    EventLoop other = table.putIfAbsent(uri, loop);
+                    if ((other != null) && (other != loop)) {
+                        sharedUris.add(uri);
+                    }
+                    other = users.putIfAbsent(user, loop);
+                    if ((other != null) && (other != loop)) {
+                        sharedUsers.add(user);
+                    }
+                }
+            }
+
+            table.keySet().removeIf(
+                    uri -> sharedUris.contains(uri) || sharedUsers.contains(userOf(uri)));
+            routes = table;
+        }
+    }
+
+    private String userOf(String uri) {
+        try {
+            URI parsed = addressFactory.createURI(uri);
+            if (parsed.isSipURI()) {
+                return ((SipURI) parsed).getUser();
+            }
+        } catch (ParseException e) {
+            // not routed by user
+        }
+        return uri;
+    }
+
+    /**
+     * Returns the event loop of the SipSessions a received request can be
+     * for, or null if it may be for SipSessions of several loops. A request
+     * in a dialog created by a SipSession (see SipSession.pin()) is for its
+     * loop. Otherwise the request is routed by its 'To' address of record,
+     * provided the Request-URI has the same user - a retargeted request goes
+     * to all the loops, as does a REGISTER.
+     */
+    private EventLoop route(RequestEvent event) {
+        Dialog dialog = event.getDialog();
+        if ((dialog != null) && (dialog.getApplicationData() instanceof EventLoop)) {
+            return (EventLoop) dialog.getApplicationData();
+        }
+
+        Request request = event.getRequest();
+        if (requestsToAll || request.getMethod().equals(Request.REGISTER)) {
+            return null;
+        }
+
+        ToHeader to = (ToHeader) request.getHeader(ToHeader.NAME);
+        if ((to == null) || (to.getAddress().getURI().isSipURI() == false)
+                || (request.getRequestURI().isSipURI() == false)) {
+            return null;
+        }
+
+        String user = ((SipURI) to.getAddress().getURI()).getUser();
+        if ((user == null)
+                || (user.equals(((SipURI) request.getRequestURI()).getUser()) == false)) {
+            return null;
+        }
+
+        return routes.get(to.getAddress().getURI().toString());
+    }
+
+    /**
+     * Returns the event loop of the SipSession that sent the given client
+     * transaction (see SipSession.pin()), or null if unknown.
+     */
+    private EventLoop route(ClientTransaction trans) {
+        if ((trans != null) && (trans.getApplicationData() instanceof EventLoop)) {
+            return (EventLoop) trans.getApplicationData();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the event loop the given listener is pinned to, or null if this
+     * stack isn't in event-loop mode.
+     */
+    EventLoop getEventLoop(SipListener listener) {
+        EventLoop[] loops = eventLoops;
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                if (loop.contains(listener)) {
+                    return loop;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This method puts this SipStack in event-loop mode. Each SipPhone created
+     * from then on is pinned to one of the given number of event-loop threads,
+     * in turn, and all the stack events for it - requests, responses and
+     * timeouts for its calls and subscriptions - are dispatched to it on that
+     * thread only, in the order the stack delivered them. The SIP stack threads
+     * just queue the events, instead of running every SipPhone's processing one
+     * after the other under a lock shared by the whole stack. The SipPhones'
+     * UAS call and session timer handling (see SipPhone.setUasCallPolicy() and
+     * setSessionTimerPolicy()) also run on the loop instead of on scheduler
+     * threads.
+     *
+     * <p>
+     * Each event is queued on the loop of the SipPhone it is for only: a
+     * response or timeout on the loop of the SipPhone that sent the request, a
+     * request in a dialog on the loop of the SipPhone that created the dialog,
+     * and any other request on the loop of the SipPhone (or hosted address of
+     * record, see SipPhone.addAor()) in its 'To' header. The few events whose
+     * SipPhone can't be told that way - a REGISTER, a request retargeted to
+     * another user, a request for an address of record hosted on several
+     * loops, or any request while a SipPhone accepts traffic on ephemeral
+     * ports - are queued on all the loops, as each SipPhone picks its own.
+     *
+     * <p>
+     * This mode is about event dispatch only. The test program's calls into the
+     * SipUnit API still run on its own threads and change the SipPhone's state
+     * there, so that state keeps the locks guarding it.
+     *
+     * <p>
+     * A test program can run its own code on a SipPhone's loop with
+     * SipPhone.execute(). Such code must not call the blocking methods of
+     * SipUnit (waitForAnswer(), waitRequest(), etc.), which would hold up the
+     * very events they are waiting for - they fail right away when called on an
+     * event-loop thread. The blocking methods may still be called from any other
+     * thread, as usual.
+     *
+     * <p>
+     * This method must be called before any SipPhone is created from this
+     * stack. The loops are stopped by dispose().
+     *
+     * @param count the number of event-loop threads, 1 or more. A few per
+     * processor is plenty.
+     * @throws IllegalStateException if a SipPhone has already been created or
+     * this method has already been called.
+     */
+    public void setEventLoops(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("event loop count must be 1 or more");
+        }
+
+        synchronized (listeners) {
+            if ((eventLoops != null) || (listeners.isEmpty() == false)) {
+                throw new IllegalStateException(
+                        "event loops must be set before any SipPhone is created");
+            }
+
+            EventLoop[] loops = new EventLoop[count];
+            for (int i = 0; i < count; i++) {
+                loops[i] = new EventLoop("SipUnit event loop " + i);
+            }
+            eventLoops = loops;
         }
     }
 
+    /**
+     * Returns the number of event-loop threads of this stack, 0 if it isn't in
+     * event-loop mode (see setEventLoops()).
+     */
+    public int getEventLoops() {
+        EventLoop[] loops = eventLoops;
+        return loops == null ? 0 : loops.length;
+    }
+
+    /**
+     * Returns the number of stack events dispatched and tasks run by the
+     * event-loop threads of this stack so far, 0 if it isn't in event-loop mode
+     * (see setEventLoops()).
+     */
+    public long getEventLoopTasks() {
+        EventLoop[] loops = eventLoops;
+        long tasks = 0;
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                tasks += loop.getCompletedTasks();
+            }
+        }
+        return tasks;
+    }
+
     /**
      * @return Returns the sipFactory.
      */
@@ -457,6 +842,14 @@ public class SipStack implements SipListener {
         return random;
     }
 
+    /**
+     * Returns the next number of a sequence kept by this stack, which makes the tags generated by
+     * the SipSessions of the stack unique.
+     */
+    long nextTagSequence() {
+        return tagSequence.incrementAndGet();
+    }
+
     /**
      * @param random The random to set.
      */
@@ -515,6 +908,59 @@ public class SipStack implements SipListener {
     }
 
     public int getRetransmissions() {
-        return retransmissions;
+        return retransmissions.get();
+    }
+
+    /**
+     * Sets the message retention given to the SipCall and EventSubscriber objects created from now
+     * on - see MessageRetention. Objects already created keep their own retention, which can be
+     * changed with their setMessageRetention() method. The default is MessageRetention.full(),
+     * every received message is kept.
+     *
+     * @param retention the retention to use, or null for MessageRetention.full().
+     */
+    public void setDefaultMessageRetention(MessageRetention retention) {
+        defaultMessageRetention = (retention == null ? MessageRetention.full() : retention);
+    }
+
+    /**
+     * Returns the message retention given to new SipCall and EventSubscriber objects - see
+     * setDefaultMessageRetention().
+     */
+    public MessageRetention getDefaultMessageRetention() {
+        return defaultMessageRetention;
+    }
+
+    /**
+     * Sets the parser used by the PresenceSubscribers of this stack's
+     * SipPhones for the PIDF bodies of the NOTIFYs they process -
+     * PIDF_PARSER_JAXB (the default) or PIDF_PARSER_STAX. Both give the same
+     * presence information; the streaming parser avoids building an
+     * intermediate object graph for each body, which counts when a test
+     * processes a large number of NOTIFYs. Elements unknown to PIDF are skipped
+     * by both.
+     *
+     * @param parser PIDF_PARSER_JAXB or PIDF_PARSER_STAX.
+     */
+    public void setPidfParser(int parser) {
+        if ((parser != PIDF_PARSER_JAXB) && (parser != PIDF_PARSER_STAX)) {
+            throw new IllegalArgumentException("parser must be PIDF_PARSER_JAXB or PIDF_PARSER_STAX");
+        }
+        pidfParser = parser;
+    }
+
+    /**
+     * Returns the parser used for PIDF NOTIFY bodies - see setPidfParser().
+     */
+    public int getPidfParser() {
+        return pidfParser;
+    }
+
+    /**
+     * Returns the call setup and teardown latencies measured on the calls of all the SipPhones of
+     * this stack (see SipCall.getTimeline()).
+     */
+    public CallLatencyStats getLatencyStats() {
+        return latencyStats;
     }
 }
@@ -18,6 +18,8 @@ package org.cafesip.sipunit;
 
 import java.util.EventObject;
 import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import javax.sip.ClientTransaction;
 import javax.sip.ServerTransaction;
 import javax.sip.message.Request;
@@ -50,6 +52,8 @@ public class SipTransaction {
 
   private ServerTransaction serverTransaction;
 
+  private final CountDownLatch finalResponse = new CountDownLatch(1);
+
   /**
    * A constructor for this class.
    * 
@@ -144,4 +148,27 @@ public class SipTransaction {
   protected void setClientListener(MessageListener clientListener) {
     this.clientListener = clientListener;
   }
+
+  /**
+   * Notes that the SIP stack has delivered a final response for this (client) transaction.
+   */
+  protected void finalResponseReceived() {
+    finalResponse.countDown();
+  }
+
+  /**
+   * Waits for the SIP stack to deliver a final response for this (client) transaction.
+   * 
+   * @param timeout The maximum amount of time to wait, in milliseconds.
+   * @return true if a final response has been delivered, false if the wait timed out or was
+   *         interrupted.
+   */
+  protected boolean awaitFinalResponse(long timeout) {
+    try {
+      return finalResponse.await(timeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
 }
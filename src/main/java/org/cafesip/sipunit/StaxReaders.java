@@ -0,0 +1,84 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import java.io.ByteArrayInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * FOR INTERNAL USE ONLY. A test class doesn't use this class.
+ *
+ * <p>
+ * This class holds what the streaming (StAX) parsers of event package bodies - PidfParser,
+ * ConferenceInfoParser and DialogInfoParser - have in common. The readers it creates come from one
+ * shared XMLInputFactory that is namespace aware, coalesces text and, since the bodies come from
+ * the network, supports neither DTDs nor external entities (no XXE).
+ *
+ */
+final class StaxReaders {
+
+  private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+  static {
+    inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+  }
+
+  private StaxReaders() {}
+
+  /**
+   * Creates a reader for the given document.
+   */
+  static XMLStreamReader create(byte[] body) throws XMLStreamException {
+    return inputFactory.createXMLStreamReader(new ByteArrayInputStream(body));
+  }
+
+  /**
+   * Skips the current element, content included.
+   */
+  static void skip(XMLStreamReader reader) throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+
+  /**
+   * Tells if the current element has the given name, in the given namespace or in none.
+   */
+  static boolean is(XMLStreamReader reader, String namespace, String name) {
+    String ns = reader.getNamespaceURI();
+    return name.equals(reader.getLocalName())
+        && ((ns == null) || ns.isEmpty() || namespace.equals(ns));
+  }
+
+  /**
+   * Removes the leading and trailing white space of an attribute or text value, if not null.
+   */
+  static String collapse(String value) {
+    return value == null ? null : value.trim();
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.EventHeader;
+import javax.sip.header.ToHeader;
+import javax.sip.message.Request;
+
+/**
+ * FOR INTERNAL USE ONLY. A test class doesn't use this class.
+ *
+ * <p>
+ * This class indexes the event subscriptions (presence, refer, etc.) of a SipPhone by the local
+ * half of their dialog identifier - the Call-ID and the local (From) tag of the SUBSCRIBE/REFER -
+ * so that an incoming NOTIFY can be routed to its EventSubscriber without scanning every
+ * subscription the SipPhone has. Per RFC 3265/6665, a NOTIFY matches a subscription if its Call-ID
+ * and To tag equal the Call-ID and From tag of the subscription request and its Event header (event
+ * type and "id" parameter) is the same. The first two are resolved here with a hash lookup; the
+ * Event header is then compared with that of the request sent by each of the few candidates
+ * sharing a Call-ID (ie, multiple REFERs in one dialog).
+ *
+ * <p>
+ * Lookups are lock-free and don't allocate. Each Call-ID maps to an immutable array of
+ * subscriptions which is replaced on the (comparatively rare) add and remove operations.
+ *
+ */
+class SubscriptionIndex {
+
+  private static final EventSubscriber[] NONE = new EventSubscriber[0];
+
+  private final ConcurrentHashMap<String, EventSubscriber[]> byCallId = new ConcurrentHashMap<>();
+
+  /**
+   * Adds the given subscription to the index. Adding a subscription that is already indexed has no
+   * effect.
+   */
+  void add(EventSubscriber sub) {
+    String key = sub.getCallIdValue();
+
+    synchronized (byCallId) {
+      EventSubscriber[] current = byCallId.get(key);
+      if (current == null) {
+        current = NONE;
+      }
+
+      for (EventSubscriber s : current) {
+        if (s == sub) {
+          return;
+        }
+      }
+
+      EventSubscriber[] updated = new EventSubscriber[current.length + 1];
+      System.arraycopy(current, 0, updated, 0, current.length);
+      updated[current.length] = sub;
+      byCallId.put(key, updated);
+    }
+  }
+
+  /**
+   * Removes the given subscription from the index.
+   *
+   * @return true if the subscription was found and removed, false otherwise.
+   */
+  boolean remove(EventSubscriber sub) {
+    String key = sub.getCallIdValue();
+
+    synchronized (byCallId) {
+      EventSubscriber[] current = byCallId.get(key);
+      if (current == null) {
+        return false;
+      }
+
+      int index = -1;
+      for (int i = 0; i < current.length; i++) {
+        if (current[i] == sub) {
+          index = i;
+          break;
+        }
+      }
+
+      if (index < 0) {
+        return false;
+      }
+
+      if (current.length == 1) {
+        byCallId.remove(key);
+        return true;
+      }
+
+      EventSubscriber[] updated = new EventSubscriber[current.length - 1];
+      System.arraycopy(current, 0, updated, 0, index);
+      System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+      byCallId.put(key, updated);
+      return true;
+    }
+  }
+
+  /**
+   * Finds the subscription that the given NOTIFY request belongs to.
+   *
+   * @param notify the received NOTIFY request.
+   * @return the matching EventSubscriber, or null if there is no matching subscription.
+   */
+  EventSubscriber find(Request notify) {
+    CallIdHeader callIdHdr = (CallIdHeader) notify.getHeader(CallIdHeader.NAME);
+    ToHeader toHdr = (ToHeader) notify.getHeader(ToHeader.NAME);
+    if ((callIdHdr == null) || (toHdr == null) || (callIdHdr.getCallId() == null)) {
+      return null;
+    }
+
+    String toTag = toHdr.getTag();
+    EventHeader eventHdr = (EventHeader) notify.getHeader(EventHeader.NAME);
+    if ((toTag == null) || (eventHdr == null)) {
+      return null;
+    }
+
+    EventSubscriber[] candidates = byCallId.get(callIdHdr.getCallId());
+    if (candidates == null) {
+      return null;
+    }
+
+    for (EventSubscriber s : candidates) {
+      if (toTag.equals(s.getLocalTag()) == false) {
+        continue;
+      }
+
+      Request sent = s.getLastSentRequest();
+      if ((sent != null) && eventHdr.equals(sent.getHeader(EventHeader.NAME))) {
+        return s;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the number of subscriptions currently indexed.
+   */
+  int size() {
+    int count = 0;
+    for (EventSubscriber[] subs : byCallId.values()) {
+      count += subs.length;
+    }
+    return count;
+  }
+
+  /**
+   * Removes all subscriptions from the index.
+   */
+  void clear() {
+    synchronized (byCallId) {
+      byCallId.clear();
+    }
+  }
+}
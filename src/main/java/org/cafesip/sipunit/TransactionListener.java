@@ -0,0 +1,61 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import java.util.ArrayList;
+
+/**
+ * FOR INTERNAL USE ONLY. A test class doesn't use this class.
+ *
+ * <p>
+ * This class is the base of the listeners of the transactions of requests sent without anyone
+ * waiting for their response - the refreshes of PublishRefresher and the NOTIFYs of
+ * NotifyLoadGenerator. Its processEvent() is called on the SIP stack thread, and end() makes sure
+ * only the first of a final response and a timeout is acted upon. No message is kept.
+ *
+ */
+abstract class TransactionListener implements MessageListener {
+
+  private boolean ended; // guarded by this
+
+  /**
+   * Ends the transaction.
+   *
+   * @return true the first time it is called, false afterwards.
+   */
+  protected synchronized boolean end() {
+    if (ended) {
+      return false;
+    }
+    ended = true;
+    return true;
+  }
+
+  public ArrayList<SipResponse> getAllReceivedResponses() {
+    return new ArrayList<>();
+  }
+
+  public ArrayList<SipRequest> getAllReceivedRequests() {
+    return new ArrayList<>();
+  }
+
+  public SipRequest getLastReceivedRequest() {
+    return null;
+  }
+
+  public SipResponse getLastReceivedResponse() {
+    return null;
+  }
+}
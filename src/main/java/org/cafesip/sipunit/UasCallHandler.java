@@ -0,0 +1,433 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.sip.ClientTransaction;
+import javax.sip.Dialog;
+import javax.sip.RequestEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.Header;
+import javax.sip.header.ToHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * FOR INTERNAL USE ONLY. A test class doesn't use this class.
+ *
+ * <p>
+ * This class carries out a UasCallPolicy for a SipPhone. It is given the received requests by
+ * SipPhone.dispatchRequest() on the SIP stack thread, keeps the state of each call it handles by
+ * Call-ID and sends the responses and BYEs from the scheduler threads shared by the SipPhones, so
+ * that neither the SIP stack thread nor a test thread is tied up for the ringing delay or hold time
+ * of a call. In event-loop mode (see SipStack.setEventLoops()), the phone's event loop is used as
+ * the scheduler.
+ *
+ */
+class UasCallHandler {
+
+  private static final Logger LOG = LoggerFactory.getLogger(UasCallHandler.class);
+
+  private static final int PROCEEDING = 0;
+
+  private static final int ANSWERED = 1;
+
+  private static final int ENDED = 2;
+
+  private final SipPhone phone;
+
+  private final UasCallPolicy policy;
+
+  private final ScheduledExecutorService scheduler;
+
+  private final ConcurrentHashMap<String, UasCall> calls = new ConcurrentHashMap<>();
+
+  UasCallHandler(SipPhone phone, UasCallPolicy policy) {
+    this.phone = phone;
+    this.policy = policy;
+
+    scheduler = EventLoop.getScheduler(phone);
+  }
+
+  UasCallPolicy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Handles the given request if it is an initial INVITE or belongs to a call handled here.
+   *
+   * @return true if the request has been taken, false if it is for someone else.
+   */
+  boolean handle(RequestEvent event) {
+    Request request = event.getRequest();
+    CallIdHeader callIdHdr = (CallIdHeader) request.getHeader(CallIdHeader.NAME);
+    if (callIdHdr == null) {
+      return false;
+    }
+
+    String callId = callIdHdr.getCallId();
+    String method = request.getMethod();
+
+    if (method.equals(Request.INVITE)) {
+      if (((ToHeader) request.getHeader(ToHeader.NAME)).getTag() == null) {
+        return receiveInvite(callId, event);
+      }
+
+      UasCall call = calls.get(callId);
+      if (call == null) {
+        return false;
+      }
+
+      // re-INVITE, accept it as is
+      scheduler.execute(() -> respond(call, event, Response.OK));
+      return true;
+    }
+
+    if (method.equals(Request.ACK)) {
+      return receiveAck(callId);
+    }
+
+    if (method.equals(Request.BYE)) {
+      return receiveBye(callId, event);
+    }
+
+    if (method.equals(Request.CANCEL)) {
+      return receiveCancel(callId, event);
+    }
+
+    return false;
+  }
+
+  /**
+   * Ends the given call with a BYE if it is one handled here, as when the hold time has elapsed -
+   * for a call whose session has expired.
+   *
+   * @return true if the call is handled here, false if it is for someone else.
+   */
+  boolean hangup(String callId) {
+    UasCall call = calls.get(callId);
+    if (call == null) {
+      return false;
+    }
+
+    scheduler.execute(() -> sendBye(call));
+    return true;
+  }
+
+  void shutdown() {
+    for (UasCall call : calls.values()) {
+      synchronized (call) {
+        call.state = ENDED;
+        cancelPending(call);
+      }
+    }
+    calls.clear();
+  }
+
+  private boolean receiveInvite(String callId, RequestEvent event) {
+    UasCall call = new UasCall(event, phone.generateNewTag());
+    if (calls.putIfAbsent(callId, call) != null) {
+      // a retransmission, the transaction takes care of it
+      return true;
+    }
+
+    policy.callReceived();
+
+    try {
+      ServerTransaction tr = event.getServerTransaction();
+      if (tr == null) {
+        tr = phone.getParent().getSipProvider().getNewServerTransaction(event.getRequest());
+      }
+      call.transaction = tr;
+
+      SessionTimerHandler timers = phone.getSessionTimerHandler();
+      if ((timers != null) && timers.isTooSmall(call.invite)) {
+        timers.reject422(call.invite, tr);
+        calls.remove(callId, call);
+        policy.callRejected();
+        return true;
+      }
+    } catch (Exception ex) {
+      fail(call, ex);
+      return true;
+    }
+
+    long delay = policy.nextRingingDelay();
+    call.answer = policy.nextAnswer();
+
+    if (delay == 0) {
+      scheduler.execute(() -> sendFinalResponse(call));
+      return true;
+    }
+
+    scheduler.execute(() -> ring(call, delay));
+    return true;
+  }
+
+  /*
+   * Sends the 180 and schedules the final response, unless the call has been cancelled meanwhile -
+   * under the call's monitor, so that a CANCEL's 487 can't go out before the 180.
+   */
+  private void ring(UasCall call, long delay) {
+    synchronized (call) {
+      if (call.state != PROCEEDING) {
+        return;
+      }
+
+      if (respond(call, null, Response.RINGING)) {
+        call.pending =
+            scheduler.schedule(() -> sendFinalResponse(call), delay, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  private boolean receiveAck(String callId) {
+    UasCall call = calls.get(callId);
+    if (call == null) {
+      return false;
+    }
+
+    synchronized (call) {
+      if ((call.state != ANSWERED) || call.acked) {
+        return true; // ACK retransmission
+      }
+
+      call.acked = true;
+      policy.ackReceived();
+
+      if (policy.getHangup() == UasCallPolicy.CALLEE_HANGS_UP) {
+        call.pending =
+            scheduler.schedule(() -> sendBye(call), policy.nextHoldTime(), TimeUnit.MILLISECONDS);
+      }
+    }
+
+    return true;
+  }
+
+  private boolean receiveBye(String callId, RequestEvent event) {
+    UasCall call = calls.remove(callId);
+    if (call == null) {
+      return false;
+    }
+
+    synchronized (call) {
+      call.state = ENDED;
+      cancelPending(call);
+    }
+
+    policy.byeReceived();
+    scheduler.execute(() -> respond(call, event, Response.OK));
+    return true;
+  }
+
+  private boolean receiveCancel(String callId, RequestEvent event) {
+    UasCall call = calls.get(callId);
+    if (call == null) {
+      return false;
+    }
+
+    boolean cancelled = false;
+    synchronized (call) {
+      if (call.state == PROCEEDING) {
+        call.state = ENDED;
+        cancelPending(call);
+        cancelled = true;
+      }
+    }
+
+    if (cancelled) {
+      calls.remove(callId, call);
+      policy.callCancelled();
+    }
+
+    // one task, so that the 487 follows the 200 OK to the CANCEL on a multi-threaded scheduler
+    final boolean terminated = cancelled;
+    scheduler.execute(() -> {
+      respond(call, event, Response.OK);
+      if (terminated) {
+        respond(call, null, Response.REQUEST_TERMINATED);
+      }
+    });
+
+    return true;
+  }
+
+  private void sendFinalResponse(UasCall call) {
+    synchronized (call) {
+      if (call.state != PROCEEDING) {
+        return; // cancelled
+      }
+
+      call.state = call.answer ? ANSWERED : ENDED;
+      call.pending = null;
+    }
+
+    if (call.answer) {
+      if (respond(call, null, Response.OK)) {
+        call.dialog = call.transaction.getDialog();
+        policy.callAnswered();
+
+        SessionTimerHandler timers = phone.getSessionTimerHandler();
+        if (timers != null) {
+          timers.answered(call.invite, call.dialog, null, null);
+        }
+      }
+      return;
+    }
+
+    if (respond(call, null, policy.getRejectStatusCode())) {
+      policy.callRejected();
+    }
+    calls.remove(call.callId, call);
+  }
+
+  private void sendBye(UasCall call) {
+    synchronized (call) {
+      if (call.state != ANSWERED) {
+        return;
+      }
+
+      call.state = ENDED;
+      call.pending = null;
+    }
+
+    calls.remove(call.callId, call);
+
+    SessionTimerHandler timers = phone.getSessionTimerHandler();
+    if (timers != null) {
+      timers.ended(call.callId);
+    }
+
+    try {
+      Request bye = call.dialog.createRequest(Request.BYE);
+      ClientTransaction ct = phone.getParent().getSipProvider().getNewClientTransaction(bye);
+      phone.pin(ct);
+      call.dialog.sendRequest(ct);
+      policy.byeSent();
+    } catch (Exception ex) {
+      fail(call, ex);
+    }
+  }
+
+  /**
+   * Sends a response to the given request, or to the call's INVITE if the request is null.
+   */
+  private boolean respond(UasCall call, RequestEvent event, int statusCode) {
+    try {
+      Request request = event == null ? call.invite : event.getRequest();
+      Response response = phone.getMessageFactory().createResponse(statusCode, request);
+
+      if (event == null) {
+        ((ToHeader) response.getHeader(ToHeader.NAME)).setTag(call.toTag);
+        if ((statusCode > 100) && (statusCode < 300)) {
+          response.addHeader(phone.getContactInfo(request).getContactHeader());
+        }
+
+        SessionTimerHandler timers = phone.getSessionTimerHandler();
+        if ((statusCode == Response.OK) && (timers != null)) {
+          ArrayList<Header> headers = timers.answer(request, null);
+          if (headers != null) {
+            for (Header header : headers) {
+              response.setHeader(header);
+            }
+          }
+        }
+
+        call.transaction.sendResponse(response);
+        return true;
+      }
+
+      if (request.getMethod().equals(Request.INVITE)) {
+        response.addHeader(phone.getContactInfo(call.invite).getContactHeader());
+      }
+
+      ServerTransaction tr = event.getServerTransaction();
+      if (tr == null) {
+        tr = phone.getParent().getSipProvider().getNewServerTransaction(request);
+      }
+      tr.sendResponse(response);
+      return true;
+    } catch (Exception ex) {
+      fail(call, ex);
+      return false;
+    }
+  }
+
+  private void fail(UasCall call, Exception ex) {
+    LOG.error("UAS call policy: error handling call " + call.callId + ": "
+        + ex.getClass().getName() + ": " + ex.getMessage(), ex);
+
+    boolean first;
+    synchronized (call) {
+      call.state = ENDED;
+      cancelPending(call);
+      first = (call.failed == false);
+      call.failed = true;
+    }
+
+    calls.remove(call.callId, call);
+    if (first) {
+      policy.error();
+    }
+  }
+
+  private static void cancelPending(UasCall call) {
+    if (call.pending != null) {
+      call.pending.cancel(false);
+      call.pending = null;
+    }
+  }
+
+  /**
+   * The state of one call - the fields other than the request and tag are guarded by the object's
+   * monitor.
+   */
+  private static class UasCall {
+    final Request invite;
+
+    final String callId;
+
+    final String toTag;
+
+    ServerTransaction transaction;
+
+    Dialog dialog;
+
+    boolean answer;
+
+    boolean acked;
+
+    boolean failed;
+
+    int state = PROCEEDING;
+
+    ScheduledFuture<?> pending;
+
+    UasCall(RequestEvent event, String toTag) {
+      this.invite = event.getRequest();
+      this.callId = ((CallIdHeader) invite.getHeader(CallIdHeader.NAME)).getCallId();
+      this.toTag = toTag;
+    }
+  }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sip.message.Response;
+
+/**
+ * This class describes how a SipPhone answers incoming calls by itself, without a test thread
+ * calling SipCall.waitForIncomingCall(), sendIncomingCallResponse(), waitForAck(), etc. for each
+ * call. It is used when a test needs the far end of a call to just behave like a callee - for
+ * example, a few SipPhones acting as a UAS farm absorbing a load of calls generated by the test. A
+ * policy is put into effect by calling SipPhone.setUasCallPolicy().
+ *
+ * <p>
+ * For each received initial INVITE, the SipPhone:
+ * <ul>
+ * <li>sends 180 Ringing, unless the ringing delay drawn for the call is 0,
+ * <li>after the ringing delay, answers the call with 200 OK or rejects it with the reject status
+ * code, as decided by the answer probability,
+ * <li>for an answered call, after the ACK is received, either waits for the caller to send a BYE
+ * (CALLER_HANGS_UP) or sends a BYE itself once the hold time drawn for the call has elapsed
+ * (CALLEE_HANGS_UP).
+ * </ul>
+ * A CANCEL received before the final response is answered with 200 OK and the INVITE with 487.
+ * Delays are drawn uniformly between the given minimum and maximum, in milliseconds.
+ *
+ * <p>
+ * The outcome of each call is counted by this object - see the getXyz() counter methods. A policy
+ * object may be shared by several SipPhones, in which case the counters are the totals for all of
+ * them. Settings may be changed while calls are in progress; calls already received keep the
+ * ringing delay and answer decision they were given.
+ *
+ */
+public class UasCallPolicy {
+
+  /**
+   * The calling party ends answered calls (the SipPhone waits for its BYE).
+   */
+  public static final int CALLER_HANGS_UP = 0;
+
+  /**
+   * The SipPhone ends answered calls when the hold time has elapsed.
+   */
+  public static final int CALLEE_HANGS_UP = 1;
+
+  private volatile long minRingingDelay;
+
+  private volatile long maxRingingDelay;
+
+  private volatile double answerProbability = 1.0;
+
+  private volatile int rejectStatusCode = Response.BUSY_HERE;
+
+  private volatile long minHoldTime;
+
+  private volatile long maxHoldTime;
+
+  private volatile int hangup = CALLER_HANGS_UP;
+
+  private final AtomicLong callsReceived = new AtomicLong();
+
+  private final AtomicLong callsAnswered = new AtomicLong();
+
+  private final AtomicLong callsRejected = new AtomicLong();
+
+  private final AtomicLong callsCancelled = new AtomicLong();
+
+  private final AtomicLong acksReceived = new AtomicLong();
+
+  private final AtomicLong byesReceived = new AtomicLong();
+
+  private final AtomicLong byesSent = new AtomicLong();
+
+  private final AtomicLong errors = new AtomicLong();
+
+  /**
+   * Sets the time between 180 Ringing and the final response. If both values are 0 (the default),
+   * no 180 is sent and the final response is sent right away.
+   *
+   * @param min minimum delay in milliseconds.
+   * @param max maximum delay in milliseconds, not less than min.
+   */
+  public void setRingingDelay(long min, long max) {
+    checkRange(min, max);
+    minRingingDelay = min;
+    maxRingingDelay = max;
+  }
+
+  /**
+   * Sets the probability that a call is answered with 200 OK rather than rejected. The default is
+   * 1.0 (every call is answered).
+   *
+   * @param answerProbability a value between 0.0 and 1.0.
+   */
+  public void setAnswerProbability(double answerProbability) {
+    if ((answerProbability < 0.0) || (answerProbability > 1.0)) {
+      throw new IllegalArgumentException("answer probability must be between 0.0 and 1.0");
+    }
+    this.answerProbability = answerProbability;
+  }
+
+  /**
+   * Sets the status code of the final response for rejected calls. The default is 486 Busy Here.
+   *
+   * @param rejectStatusCode a status code of 300 or more.
+   */
+  public void setRejectStatusCode(int rejectStatusCode) {
+    if ((rejectStatusCode < 300) || (rejectStatusCode > 699)) {
+      throw new IllegalArgumentException("reject status code must be between 300 and 699");
+    }
+    this.rejectStatusCode = rejectStatusCode;
+  }
+
+  /**
+   * Sets the time an answered call stays up before the SipPhone sends a BYE, counted from the
+   * reception of the ACK. Only used with CALLEE_HANGS_UP.
+   *
+   * @param min minimum hold time in milliseconds.
+   * @param max maximum hold time in milliseconds, not less than min.
+   */
+  public void setHoldTime(long min, long max) {
+    checkRange(min, max);
+    minHoldTime = min;
+    maxHoldTime = max;
+  }
+
+  /**
+   * Sets which side ends answered calls, CALLER_HANGS_UP (the default) or CALLEE_HANGS_UP.
+   */
+  public void setHangup(int hangup) {
+    if ((hangup != CALLER_HANGS_UP) && (hangup != CALLEE_HANGS_UP)) {
+      throw new IllegalArgumentException("hangup must be CALLER_HANGS_UP or CALLEE_HANGS_UP");
+    }
+    this.hangup = hangup;
+  }
+
+  public long getMinRingingDelay() {
+    return minRingingDelay;
+  }
+
+  public long getMaxRingingDelay() {
+    return maxRingingDelay;
+  }
+
+  public double getAnswerProbability() {
+    return answerProbability;
+  }
+
+  public int getRejectStatusCode() {
+    return rejectStatusCode;
+  }
+
+  public long getMinHoldTime() {
+    return minHoldTime;
+  }
+
+  public long getMaxHoldTime() {
+    return maxHoldTime;
+  }
+
+  public int getHangup() {
+    return hangup;
+  }
+
+  /**
+   * Returns the number of initial INVITEs received (retransmissions excluded).
+   */
+  public long getCallsReceived() {
+    return callsReceived.get();
+  }
+
+  /**
+   * Returns the number of calls answered with 200 OK.
+   */
+  public long getCallsAnswered() {
+    return callsAnswered.get();
+  }
+
+  /**
+   * Returns the number of calls rejected with the reject status code.
+   */
+  public long getCallsRejected() {
+    return callsRejected.get();
+  }
+
+  /**
+   * Returns the number of calls cancelled by the caller before the final response.
+   */
+  public long getCallsCancelled() {
+    return callsCancelled.get();
+  }
+
+  /**
+   * Returns the number of ACKs received for answered calls.
+   */
+  public long getAcksReceived() {
+    return acksReceived.get();
+  }
+
+  /**
+   * Returns the number of BYEs received from callers.
+   */
+  public long getByesReceived() {
+    return byesReceived.get();
+  }
+
+  /**
+   * Returns the number of BYEs sent by the SipPhone (CALLEE_HANGS_UP).
+   */
+  public long getByesSent() {
+    return byesSent.get();
+  }
+
+  /**
+   * Returns the number of calls that could not be handled because of an exception - see the log
+   * for details.
+   */
+  public long getErrors() {
+    return errors.get();
+  }
+
+  /**
+   * Returns the number of calls received that have not completed yet (answered and not hung up,
+   * or not answered yet).
+   */
+  public long getCallsInProgress() {
+    return callsReceived.get() - callsRejected.get() - callsCancelled.get() - byesReceived.get()
+        - byesSent.get() - errors.get();
+  }
+
+  /**
+   * Sets all the counters back to 0.
+   */
+  public void resetCounters() {
+    callsReceived.set(0);
+    callsAnswered.set(0);
+    callsRejected.set(0);
+    callsCancelled.set(0);
+    acksReceived.set(0);
+    byesReceived.set(0);
+    byesSent.set(0);
+    errors.set(0);
+  }
+
+  public String toString() {
+    return "received=" + getCallsReceived() + ", answered=" + getCallsAnswered() + ", rejected="
+        + getCallsRejected() + ", cancelled=" + getCallsCancelled() + ", acks=" + getAcksReceived()
+        + ", byes received=" + getByesReceived() + ", byes sent=" + getByesSent() + ", errors="
+        + getErrors();
+  }
+
+  protected long nextRingingDelay() {
+    return draw(minRingingDelay, maxRingingDelay);
+  }
+
+  protected long nextHoldTime() {
+    return draw(minHoldTime, maxHoldTime);
+  }
+
+  protected boolean nextAnswer() {
+    double p = answerProbability;
+    return (p >= 1.0) || (ThreadLocalRandom.current().nextDouble() < p);
+  }
+
+  protected void callReceived() {
+    callsReceived.incrementAndGet();
+  }
+
+  protected void callAnswered() {
+    callsAnswered.incrementAndGet();
+  }
+
+  protected void callRejected() {
+    callsRejected.incrementAndGet();
+  }
+
+  protected void callCancelled() {
+    callsCancelled.incrementAndGet();
+  }
+
+  protected void ackReceived() {
+    acksReceived.incrementAndGet();
+  }
+
+  protected void byeReceived() {
+    byesReceived.incrementAndGet();
+  }
+
+  protected void byeSent() {
+    byesSent.incrementAndGet();
+  }
+
+  protected void error() {
+    errors.incrementAndGet();
+  }
+
+  private static long draw(long min, long max) {
+    if (max <= min) {
+      return min;
+    }
+    return min + ThreadLocalRandom.current().nextLong(max - min + 1);
+  }
+
+  private static void checkRange(long min, long max) {
+    if ((min < 0) || (max < min)) {
+      throw new IllegalArgumentException("invalid range: " + min + " - " + max);
+    }
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit.test.noproxy;
+
+import static org.cafesip.sipunit.SipAssert.awaitStackDispose;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.cafesip.sipunit.CallLoadGenerator;
+import org.cafesip.sipunit.CallScenario;
+import org.cafesip.sipunit.ScenarioRunner;
+import org.cafesip.sipunit.SipCall;
+import org.cafesip.sipunit.SipPhone;
+import org.cafesip.sipunit.SipStack;
+import org.cafesip.sipunit.UasCallPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.sip.message.Response;
+
+/**
+ * Tests for CallLoadGenerator: calls started on a schedule against a SipPhone answering by itself
+ * (see SipPhone.setUasCallPolicy()).
+ *
+ * <p>
+ * Tests in this class do not require a proxy/registrar server. Messaging between UACs is direct.
+ *
+ */
+public class TestCallLoadGeneratorNoProxy {
+
+  private SipStack sipStack;
+
+  private SipPhone ua;
+
+  private SipPhone ub;
+
+  private UasCallPolicy policy;
+
+  private ScenarioRunner runner;
+
+  private String route;
+
+  private Properties properties = new Properties();
+
+  /**
+   * Initialize the sipStack and the user agents for the test.
+   */
+  @Before
+  public void setUp() throws Exception {
+    properties.setProperty("javax.sip.STACK_NAME", "testAgent");
+    properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "0");
+    properties.setProperty("gov.nist.javax.sip.DEBUG_LOG", "testAgent_debug.txt");
+    properties.setProperty("gov.nist.javax.sip.SERVER_LOG", "testAgent_log.txt");
+    properties.setProperty("gov.nist.javax.sip.READ_TIMEOUT", "1000");
+    properties.setProperty("gov.nist.javax.sip.CACHE_SERVER_CONNECTIONS", "false");
+    properties.setProperty("sipunit.test.port", "5061");
+    properties.setProperty("sipunit.test.protocol", "udp");
+    properties.putAll(System.getProperties());
+
+    int myPort;
+    try {
+      myPort = Integer.parseInt(properties.getProperty("sipunit.test.port"));
+    } catch (NumberFormatException e) {
+      myPort = 5061;
+    }
+
+    String testProtocol = properties.getProperty("sipunit.test.protocol");
+
+    sipStack = new SipStack(testProtocol, myPort, properties);
+
+    ua = sipStack.createSipPhone("sip:amit@nist.gov");
+    ua.setLoopback(true);
+
+    ub = sipStack.createSipPhone("sip:becky@nist.gov");
+    ub.setLoopback(true);
+
+    policy = new UasCallPolicy();
+    ub.setUasCallPolicy(policy);
+
+    runner = new ScenarioRunner(4);
+
+    route = ua.getStackAddress() + ':' + myPort + '/' + testProtocol;
+  }
+
+  /**
+   * Release the sipStack and the user agents for the test.
+   */
+  @After
+  public void tearDown() throws Exception {
+    runner.shutdown();
+    ub.dispose();
+    ua.dispose();
+    awaitStackDispose(sipStack);
+  }
+
+  @Test
+  public void testConstantRate() throws Exception {
+    CallLoadGenerator load = new CallLoadGenerator(ua, runner);
+    load.addScenario(new CallScenario().invite("sip:becky@nist.gov", route)
+        .expectResponse(Response.OK).ack().pauseExponential(100).bye()
+        .expectResponse(Response.OK), 1);
+    load.setConstantRate(20.0);
+
+    load.start(2000);
+    assertTrue(load.toString(), load.awaitCompletion(30000));
+
+    // attempts at 50, 100, ... 1950 ms
+    assertEquals(load.toString(), 39, load.getAttempts());
+    assertEquals(load.toString(), 39, load.getSucceeded());
+    assertEquals(0, load.getFailed());
+    assertEquals(39, load.getResponseLatency().getCount());
+    assertEquals(39, load.getCompletionLatency().getCount());
+    assertEquals(39, policy.getByesReceived());
+  }
+
+  @Test
+  public void testRamp() throws Exception {
+    CallLoadGenerator load = new CallLoadGenerator(ua, runner);
+    load.addScenario(new CallScenario().invite("sip:becky@nist.gov", route)
+        .expectResponse(Response.OK).ack().bye().expectResponse(Response.OK), 3);
+    load.addScenario(new CallScenario().invite("sip:becky@nist.gov", route)
+        .expectResponse(Response.OK).ack().pause(50).bye().expectResponse(Response.OK), 1);
+    load.setRamp(0.0, 40.0, 1000);
+    assertEquals(CallLoadGenerator.RAMP, load.getArrivals());
+
+    // 20 attempts during the ramp, 20 more in the following half second
+    load.start(1500);
+    assertTrue(load.toString(), load.awaitCompletion(30000));
+
+    assertEquals(load.toString(), 39, load.getAttempts());
+    assertEquals(load.toString(), 39, load.getSucceeded());
+    assertEquals(39, policy.getCallsAnswered());
+  }
+
+  @Test
+  public void testOpenLoop() throws Exception {
+    policy.setRingingDelay(500, 500);
+
+    CallLoadGenerator load = new CallLoadGenerator(ua, runner);
+    load.addScenario(new CallScenario().invite("sip:becky@nist.gov", route)
+        .expectResponse(Response.OK).ack().bye().expectResponse(Response.OK), 1);
+    load.setPoissonRate(50.0);
+
+    // slow answers don't hold back the next attempts
+    load.start(1000);
+    Thread.sleep(900);
+    assertTrue(load.toString(), load.getOutstanding() > 5);
+    assertTrue(load.toString(), load.awaitCompletion(30000));
+
+    assertEquals(load.toString(), load.getAttempts(), load.getSucceeded());
+    assertTrue(load.toString(),
+        load.getResponseLatency().getMin(TimeUnit.MILLISECONDS) >= 500);
+    assertEquals(load.getAttempts(), policy.getCallsAnswered());
+  }
+
+  @Test
+  public void testMessage() throws Exception {
+    SipCall callB = ub.createSipCall();
+    callB.listenForMessage();
+
+    CallLoadGenerator load = new CallLoadGenerator(ua, runner);
+    load.addScenario(new CallScenario().message("sip:becky@nist.gov", route, "Hello Becky")
+        .expectResponse(Response.OK), 1);
+    load.setConstantRate(1.0);
+
+    // a single attempt, at 1 second
+    load.start(1500);
+    assertTrue(callB.waitForMessage(5000));
+    assertEquals("Hello Becky", callB.getAllReceivedMessagesContent().get(0));
+    assertTrue(callB.sendMessageResponse(Response.OK, "OK", -1));
+
+    assertTrue(load.toString(), load.awaitCompletion(10000));
+    assertEquals(load.toString(), 1, load.getSucceeded());
+    assertEquals(1, load.getResponseLatency().getCount());
+  }
+}
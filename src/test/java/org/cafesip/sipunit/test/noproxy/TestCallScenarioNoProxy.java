@@ -0,0 +1,180 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit.test.noproxy;
+
+import static org.cafesip.sipunit.SipAssert.awaitStackDispose;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.cafesip.sipunit.CallScenario;
+import org.cafesip.sipunit.ScenarioRun;
+import org.cafesip.sipunit.ScenarioRunner;
+import org.cafesip.sipunit.SipPhone;
+import org.cafesip.sipunit.SipStack;
+import org.cafesip.sipunit.UasCallPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * Tests for CallScenario and ScenarioRunner: calls carried out as event-driven state machines on a
+ * small thread pool, against a SipPhone answering by itself (see SipPhone.setUasCallPolicy()).
+ *
+ * <p>
+ * Tests in this class do not require a proxy/registrar server. Messaging between UACs is direct.
+ *
+ */
+public class TestCallScenarioNoProxy {
+
+  private SipStack sipStack;
+
+  private SipPhone ua;
+
+  private SipPhone ub;
+
+  private UasCallPolicy policy;
+
+  private ScenarioRunner runner;
+
+  private String route;
+
+  private Properties properties = new Properties();
+
+  /**
+   * Initialize the sipStack and the user agents for the test.
+   */
+  @Before
+  public void setUp() throws Exception {
+    properties.setProperty("javax.sip.STACK_NAME", "testAgent");
+    properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "0");
+    properties.setProperty("gov.nist.javax.sip.DEBUG_LOG", "testAgent_debug.txt");
+    properties.setProperty("gov.nist.javax.sip.SERVER_LOG", "testAgent_log.txt");
+    properties.setProperty("gov.nist.javax.sip.READ_TIMEOUT", "1000");
+    properties.setProperty("gov.nist.javax.sip.CACHE_SERVER_CONNECTIONS", "false");
+    properties.setProperty("sipunit.test.port", "5061");
+    properties.setProperty("sipunit.test.protocol", "udp");
+    properties.putAll(System.getProperties());
+
+    int myPort;
+    try {
+      myPort = Integer.parseInt(properties.getProperty("sipunit.test.port"));
+    } catch (NumberFormatException e) {
+      myPort = 5061;
+    }
+
+    String testProtocol = properties.getProperty("sipunit.test.protocol");
+
+    sipStack = new SipStack(testProtocol, myPort, properties);
+
+    ua = sipStack.createSipPhone("sip:amit@nist.gov");
+    ua.setLoopback(true);
+
+    ub = sipStack.createSipPhone("sip:becky@nist.gov");
+    ub.setLoopback(true);
+
+    policy = new UasCallPolicy();
+    ub.setUasCallPolicy(policy);
+
+    runner = new ScenarioRunner(4);
+
+    route = ua.getStackAddress() + ':' + myPort + '/' + testProtocol;
+  }
+
+  /**
+   * Release the sipStack and the user agents for the test.
+   */
+  @After
+  public void tearDown() throws Exception {
+    runner.shutdown();
+    ub.dispose();
+    ua.dispose();
+    awaitStackDispose(sipStack);
+  }
+
+  @Test
+  public void testConcurrentRuns() throws Exception {
+    final int calls = 200;
+
+    CallScenario scenario = new CallScenario().invite("sip:becky@nist.gov", route)
+        .expectResponse(Response.OK).ack().pause(200).bye().expectResponse(Response.OK);
+
+    List<ScenarioRun> runs = new ArrayList<>();
+    for (int i = 0; i < calls; i++) {
+      runs.add(runner.start(ua, scenario));
+    }
+
+    assertTrue(runner.toString(), runner.awaitIdle(60000));
+    for (ScenarioRun run : runs) {
+      assertTrue(run.toString(), run.isSuccessful());
+    }
+
+    assertEquals(calls, runner.getRunsSucceeded());
+    assertEquals(0, runner.getRunsFailed());
+    assertEquals(calls, policy.getCallsAnswered());
+    assertEquals(calls, policy.getByesReceived());
+  }
+
+  @Test
+  public void testBranchOnStatus() throws Exception {
+    policy.setAnswerProbability(0.0);
+
+    CallScenario scenario = new CallScenario().invite("sip:becky@nist.gov", route)
+        .expectFinalResponse().onStatus(Response.BUSY_HERE, "busy").ack().bye()
+        .expectResponse(Response.OK).fail("call answered").label("busy").end();
+
+    ScenarioRun run = runner.start(ua, scenario);
+    assertTrue(run.await(5000));
+    assertTrue(run.toString(), run.isSuccessful());
+    assertEquals(Response.BUSY_HERE, run.getLastStatusCode());
+  }
+
+  @Test
+  public void testCalleeHangsUp() throws Exception {
+    policy.setHangup(UasCallPolicy.CALLEE_HANGS_UP);
+    policy.setHoldTime(100, 200);
+
+    CallScenario scenario = new CallScenario().invite("sip:becky@nist.gov", route)
+        .expectResponse(Response.OK).ack().expectRequest(Request.BYE).respond(Response.OK);
+
+    ScenarioRun run = runner.start(ua, scenario);
+    assertTrue(run.await(5000));
+    assertTrue(run.toString(), run.isSuccessful());
+    assertEquals(Request.BYE,
+        ((Request) run.getCall().getLastReceivedRequest().getMessage()).getMethod());
+    assertEquals(1, policy.getByesSent());
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    policy.setRingingDelay(5000, 5000);
+
+    CallScenario scenario = new CallScenario().setTimeout(500)
+        .invite("sip:becky@nist.gov", route).expectResponse(Response.OK);
+
+    ScenarioRun run = runner.start(ua, scenario);
+    assertTrue(run.await(5000));
+    assertFalse(run.isSuccessful());
+    assertTrue(run.getFailureReason(), run.getFailureReason().startsWith("timeout"));
+    assertEquals(1, runner.getRunsFailed());
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit.test.noproxy;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static org.cafesip.sipunit.SipAssert.assertLastOperationSuccess;
+import static org.cafesip.sipunit.SipAssert.awaitStackDispose;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.cafesip.sipunit.CallLatencyStats;
+import org.cafesip.sipunit.CallTimeline;
+import org.cafesip.sipunit.SipCall;
+import org.cafesip.sipunit.SipPhone;
+import org.cafesip.sipunit.SipStack;
+import org.cafesip.sipunit.UasCallPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import javax.sip.message.Request;
+
+/**
+ * Measures the call setup time seen by a calling SipCall, in particular how long
+ * SipCall.sendInviteOkAck() takes once the 200 OK has been received. The ACK used to be sent after
+ * a fixed 100 ms pause; it now goes out as soon as the dialog is confirmed. The figures are logged;
+ * the assertion only checks that the average ACK send time is well under the old pause. The
+ * latencies measured by the SipCall timeline and aggregated per SipPhone and per SipStack are
+ * checked as well.
+ *
+ * <p>
+ * Tests in this class do not require a proxy/registrar server. Messaging between UACs is direct.
+ *
+ */
+public class TestCallSetupLatencyNoProxy {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TestCallSetupLatencyNoProxy.class);
+
+  private static final int WARMUP_CALLS = 10;
+
+  private static final int CALLS = 100;
+
+  private SipStack sipStack;
+
+  private SipPhone ua;
+
+  private SipPhone ub;
+
+  private String route;
+
+  private Properties properties = new Properties();
+
+  /**
+   * Initialize the sipStack and the user agents for the test.
+   */
+  @Before
+  public void setUp() throws Exception {
+    properties.setProperty("javax.sip.STACK_NAME", "testAgent");
+    properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "0");
+    properties.setProperty("gov.nist.javax.sip.DEBUG_LOG", "testAgent_debug.txt");
+    properties.setProperty("gov.nist.javax.sip.SERVER_LOG", "testAgent_log.txt");
+    properties.setProperty("gov.nist.javax.sip.READ_TIMEOUT", "1000");
+    properties.setProperty("gov.nist.javax.sip.CACHE_SERVER_CONNECTIONS", "false");
+    properties.setProperty("sipunit.test.port", "5061");
+    properties.setProperty("sipunit.test.protocol", "udp");
+    properties.putAll(System.getProperties());
+
+    int myPort;
+    try {
+      myPort = Integer.parseInt(properties.getProperty("sipunit.test.port"));
+    } catch (NumberFormatException e) {
+      myPort = 5061;
+    }
+
+    String testProtocol = properties.getProperty("sipunit.test.protocol");
+
+    sipStack = new SipStack(testProtocol, myPort, properties);
+
+    ua = sipStack.createSipPhone("sip:amit@nist.gov");
+    ua.setLoopback(true);
+
+    ub = sipStack.createSipPhone("sip:becky@nist.gov");
+    ub.setLoopback(true);
+    ub.setUasCallPolicy(new UasCallPolicy());
+
+    route = ua.getStackAddress() + ':' + myPort + '/' + testProtocol;
+  }
+
+  /**
+   * Release the sipStack and the user agents for the test.
+   */
+  @After
+  public void tearDown() throws Exception {
+    ub.dispose();
+    ua.dispose();
+    awaitStackDispose(sipStack);
+  }
+
+  @Test
+  public void testAckSendLatency() throws Exception {
+    for (int i = 0; i < WARMUP_CALLS; i++) {
+      placeCall();
+    }
+
+    long totalAck = 0;
+    long maxAck = 0;
+    long totalSetup = 0;
+    for (int i = 0; i < CALLS; i++) {
+      long[] times = placeCall();
+      totalSetup += times[0];
+      totalAck += times[1];
+      maxAck = Math.max(maxAck, times[1]);
+    }
+
+    double nanosPerMs = TimeUnit.MILLISECONDS.toNanos(1);
+    double avgAckMs = totalAck / nanosPerMs / CALLS;
+    double maxAckMs = maxAck / nanosPerMs;
+    double avgSetupMs = totalSetup / nanosPerMs / CALLS;
+
+    LOG.info("{} calls: sendInviteOkAck() avg = {} ms, max = {} ms; INVITE to ACK sent avg = {} ms",
+        CALLS, String.format("%.3f", avgAckMs), String.format("%.3f", maxAckMs),
+        String.format("%.3f", avgSetupMs));
+
+    assertTrue("average ACK send time " + avgAckMs + " ms", avgAckMs < 50.0);
+  }
+
+  @Test
+  public void testTimelineAndLatencyStats() throws Exception {
+    ub.getUasCallPolicy().setRingingDelay(20, 20);
+
+    final int calls = 20;
+    for (int i = 0; i < calls; i++) {
+      final SipCall callA = ua.createSipCall();
+      callA.initiateOutgoingCall("sip:becky@nist.gov", route);
+      assertLastOperationSuccess("a initiate call - " + callA.format(), callA);
+      assertTrue("a wait answer - " + callA.format(), callA.waitForAnswer(5000));
+      callA.sendInviteOkAck();
+      callA.disconnect();
+      assertLastOperationSuccess("a disc - " + callA.format(), callA);
+
+      final CallTimeline timeline = callA.getTimeline();
+      await().until(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          return timeline.getByeRoundTrip(TimeUnit.NANOSECONDS) >= 0;
+        }
+      });
+
+      assertTrue(timeline.getPostDialDelay(TimeUnit.MICROSECONDS) >= 0);
+      assertTrue(timeline.getAnswerTime(TimeUnit.MILLISECONDS) >= 20);
+      assertTrue(timeline.getAnswerTime(TimeUnit.NANOSECONDS) > timeline
+          .getPostDialDelay(TimeUnit.NANOSECONDS));
+      assertTrue(timeline.getAckLatency(TimeUnit.NANOSECONDS) >= 0);
+
+      List<CallTimeline.Event> events = timeline.getEvents();
+      assertEquals(Request.INVITE, events.get(0).getMethod());
+      assertEquals(CallTimeline.SENT, events.get(0).getDirection());
+      for (int j = 1; j < events.size(); j++) {
+        assertTrue(events.get(j - 1).getTime() <= events.get(j).getTime());
+      }
+
+      callA.dispose();
+    }
+
+    CallLatencyStats stats = ua.getLatencyStats();
+    LOG.info("{} calls:\n{}", calls, stats);
+    assertEquals(calls, stats.getPostDialDelay().getCount());
+    assertEquals(calls, stats.getAnswerTime().getCount());
+    assertEquals(calls, stats.getAckLatency().getCount());
+    assertEquals(calls, stats.getByeRoundTrip().getCount());
+    assertTrue(stats.getAnswerTime().getPercentile(50.0, TimeUnit.MILLISECONDS) >= 20);
+    assertEquals(0, ub.getLatencyStats().getAnswerTime().getCount());
+    assertEquals(calls, sipStack.getLatencyStats().getAnswerTime().getCount());
+  }
+
+  /**
+   * Places and ends one call.
+   *
+   * @return the time from sending the INVITE to the ACK being sent and the time
+   *         sendInviteOkAck() took, in nanoseconds.
+   */
+  private long[] placeCall() {
+    long start = System.nanoTime();
+
+    SipCall callA = ua.createSipCall();
+    callA.initiateOutgoingCall("sip:becky@nist.gov", route);
+    assertLastOperationSuccess("a initiate call - " + callA.format(), callA);
+
+    assertTrue("a wait answer - " + callA.format(), callA.waitForAnswer(5000));
+
+    long answered = System.nanoTime();
+    callA.sendInviteOkAck();
+    long acked = System.nanoTime();
+    assertLastOperationSuccess("a send ACK - " + callA.format(), callA);
+
+    callA.disconnect();
+    assertLastOperationSuccess("a disc - " + callA.format(), callA);
+    callA.dispose();
+
+    return new long[] {acked - start, acked - answered};
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit.test.noproxy;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static org.cafesip.sipunit.SipAssert.awaitStackDispose;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.cafesip.sipunit.SipCall;
+import org.cafesip.sipunit.SipPhone;
+import org.cafesip.sipunit.SipSession;
+import org.cafesip.sipunit.SipStack;
+import org.cafesip.sipunit.UasCallPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.sip.header.CallIdHeader;
+import javax.sip.message.Response;
+
+/**
+ * Stress test for a single SipPhone used from many threads at once: SipPhone.makeCall() is called
+ * concurrently from a thread pool against a SipPhone that answers by itself (see
+ * SipPhone.setUasCallPolicy()). Every call must get through with its own Call-ID - the called side
+ * would take a duplicate Call-ID or Via branch for a retransmission and never answer it. The
+ * outcome of each call (return code, error message) must be that of the calling thread's own call.
+ *
+ * <p>
+ * Tests in this class do not require a proxy/registrar server. Messaging between UACs is direct.
+ *
+ */
+public class TestConcurrentCallsNoProxy {
+
+  private static final int THREADS = 8;
+
+  private static final int CALLS_PER_THREAD = 25;
+
+  private static final int OUTCOME_ROUNDS = 10;
+
+  private SipStack sipStack;
+
+  private SipPhone ua;
+
+  private SipPhone ub;
+
+  private UasCallPolicy policy;
+
+  private String route;
+
+  private Properties properties = new Properties();
+
+  /**
+   * Initialize the sipStack and the user agents for the test.
+   */
+  @Before
+  public void setUp() throws Exception {
+    properties.setProperty("javax.sip.STACK_NAME", "testAgent");
+    properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "0");
+    properties.setProperty("gov.nist.javax.sip.DEBUG_LOG", "testAgent_debug.txt");
+    properties.setProperty("gov.nist.javax.sip.SERVER_LOG", "testAgent_log.txt");
+    properties.setProperty("gov.nist.javax.sip.READ_TIMEOUT", "1000");
+    properties.setProperty("gov.nist.javax.sip.CACHE_SERVER_CONNECTIONS", "false");
+    properties.setProperty("sipunit.test.port", "5061");
+    properties.setProperty("sipunit.test.protocol", "udp");
+    properties.putAll(System.getProperties());
+
+    int myPort;
+    try {
+      myPort = Integer.parseInt(properties.getProperty("sipunit.test.port"));
+    } catch (NumberFormatException e) {
+      myPort = 5061;
+    }
+
+    String testProtocol = properties.getProperty("sipunit.test.protocol");
+
+    sipStack = new SipStack(testProtocol, myPort, properties);
+
+    ua = sipStack.createSipPhone("sip:amit@nist.gov");
+    ua.setLoopback(true);
+
+    ub = sipStack.createSipPhone("sip:becky@nist.gov");
+    ub.setLoopback(true);
+
+    policy = new UasCallPolicy();
+    ub.setUasCallPolicy(policy);
+
+    route = ua.getStackAddress() + ':' + myPort + '/' + testProtocol;
+  }
+
+  /**
+   * Release the sipStack and the user agents for the test.
+   */
+  @After
+  public void tearDown() throws Exception {
+    ub.dispose();
+    ua.dispose();
+    awaitStackDispose(sipStack);
+  }
+
+  @Test
+  public void testConcurrentMakeCall() throws Exception {
+    final List<String> callIds = Collections.synchronizedList(new ArrayList<String>());
+
+    ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    List<Future<Integer>> results = new ArrayList<>();
+
+    for (int t = 0; t < THREADS; t++) {
+      results.add(pool.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws Exception {
+          int completed = 0;
+          for (int i = 0; i < CALLS_PER_THREAD; i++) {
+            SipCall call = ua.makeCall("sip:becky@nist.gov", Response.OK, 10000, route);
+            if (call == null) {
+              continue;
+            }
+
+            callIds.add(((CallIdHeader) call.getLastReceivedResponse().getMessage()
+                .getHeader(CallIdHeader.NAME)).getCallId());
+
+            if (call.sendInviteOkAck() && call.disconnect()) {
+              completed++;
+            }
+            call.dispose();
+          }
+          return completed;
+        }
+      }));
+    }
+
+    int completed = 0;
+    for (Future<Integer> result : results) {
+      completed += result.get(5, TimeUnit.MINUTES);
+    }
+    pool.shutdown();
+
+    final int total = THREADS * CALLS_PER_THREAD;
+    assertEquals("calls completed - " + policy, total, completed);
+    assertEquals("distinct Call-IDs", total, callIds.stream().distinct().count());
+
+    await().until(new Callable<Long>() {
+      @Override
+      public Long call() throws Exception {
+        return policy.getByesReceived();
+      }
+    }, is((long) total));
+
+    assertEquals(total, policy.getCallsReceived());
+    assertEquals(total, policy.getAcksReceived());
+    assertEquals(0, policy.getErrors());
+    assertTrue(policy.toString(), policy.getCallsInProgress() == 0);
+  }
+
+  /**
+   * Half the threads make calls that are answered and the other half calls that are rejected with
+   * BUSY_HERE, in lockstep so that the operations overlap. Each caller must see the outcome of its
+   * own makeCall() in the SipPhone's return code and error message, not that of another thread.
+   */
+  @Test
+  public void testConcurrentOutcomesPerCaller() throws Exception {
+    SipPhone uc = sipStack.createSipPhone("sip:carol@nist.gov");
+    uc.setLoopback(true);
+    UasCallPolicy busy = new UasCallPolicy();
+    busy.setAnswerProbability(0);
+    busy.setRejectStatusCode(Response.BUSY_HERE);
+    uc.setUasCallPolicy(busy);
+
+    final CyclicBarrier round = new CyclicBarrier(THREADS);
+    ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    List<Future<String>> results = new ArrayList<>();
+
+    for (int t = 0; t < THREADS; t++) {
+      final boolean answered = (t % 2) == 0;
+      results.add(pool.submit(new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          for (int i = 0; i < OUTCOME_ROUNDS; i++) {
+            round.await(1, TimeUnit.MINUTES);
+
+            SipCall call = ua.makeCall(answered ? "sip:becky@nist.gov" : "sip:carol@nist.gov",
+                Response.OK, 10000, route);
+
+            if (answered) {
+              if ((call == null) || (ua.getReturnCode() != SipSession.NONE_YET)
+                  || (ua.getErrorMessage().length() > 0)) {
+                return "answered call " + i + " saw: " + ua.format();
+              }
+
+              call.sendInviteOkAck();
+              call.disconnect();
+              call.dispose();
+            } else if ((call != null) || (ua.getReturnCode() != Response.BUSY_HERE)
+                || (ua.getErrorMessage().endsWith(": " + Response.BUSY_HERE) == false)) {
+              return "rejected call " + i + " saw: " + ua.format();
+            }
+          }
+          return null;
+        }
+      }));
+    }
+
+    for (Future<String> result : results) {
+      assertNull(result.get(5, TimeUnit.MINUTES));
+    }
+    pool.shutdown();
+
+    assertEquals((THREADS / 2) * OUTCOME_ROUNDS, busy.getCallsRejected());
+    assertEquals(0, policy.getErrors());
+    uc.dispose();
+  }
+}
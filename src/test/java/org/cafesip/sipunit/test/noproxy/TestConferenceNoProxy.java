@@ -19,9 +19,20 @@
 
 package org.cafesip.sipunit.test.noproxy;
 
+import static org.cafesip.sipunit.SipAssert.assertNoSubscriptionErrors;
 import static org.cafesip.sipunit.SipAssert.awaitStackDispose;
+import static org.cafesip.sipunit.test.util.NotifyUtil.sendNotify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
-
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.cafesip.sipunit.ConferenceEndpoint;
+import org.cafesip.sipunit.ConferenceSubscriber;
+import org.cafesip.sipunit.ConferenceUser;
+import org.cafesip.sipunit.PresenceNotifySender;
 import org.cafesip.sipunit.SipPhone;
 import org.cafesip.sipunit.SipResponse;
 import org.cafesip.sipunit.SipStack;
@@ -38,8 +49,10 @@ import javax.sip.RequestEvent;
 import javax.sip.SipFactory;
 import javax.sip.address.Address;
 import javax.sip.address.AddressFactory;
+import javax.sip.header.AcceptHeader;
 import javax.sip.header.CallIdHeader;
 import javax.sip.header.ContactHeader;
+import javax.sip.header.ContentTypeHeader;
 import javax.sip.header.Header;
 import javax.sip.header.HeaderFactory;
 import javax.sip.header.MaxForwardsHeader;
@@ -224,6 +237,108 @@ public class TestConferenceNoProxy {
     assertNotNull(u.format(), trans);
   }
 
+  @Test
+  public void testConferenceSubscription() throws Exception {
+    SipPhone u = sipStack.createSipPhone(getSipUser());
+    u.setLoopback(true);
+
+    // the conference phone plays the focus
+    PresenceNotifySender focus = new PresenceNotifySender(uc);
+    focus.processSubscribe(5000, SipResponse.OK, "OK");
+
+    ConferenceSubscriber sub = u.subscribeConference(getSipConferenceUser(), 2000);
+    assertNotNull(u.format(), sub);
+    assertTrue(sub.format(), sub.processResponse(1000));
+    assertEquals(1, u.getConferences().size());
+    assertEquals(-1, sub.getVersion());
+
+    Request subscribe = (Request) focus.getLastReceivedRequest().getMessage();
+    assertEquals("conference-info+xml",
+        ((AcceptHeader) subscribe.getHeader(AcceptHeader.NAME)).getContentSubType());
+
+    ContentTypeHeader conferenceType =
+        headerFactory.createContentTypeHeader("application", "conference-info+xml");
+
+    // full state: alice
+    String alice = "sip:alice@example.com";
+    String bob = "sip:bob@example.com";
+
+    assertEquals(SipResponse.OK,
+        sendNotify(focus, sub, conferenceType, getResourceAsString("/conference-info.xml")));
+    assertNoSubscriptionErrors(sub);
+    assertEquals(0, sub.getVersion());
+    assertEquals("[" + alice + "]", sub.getUsers().keySet().toString());
+
+    ConferenceUser aliceBefore = sub.getUser(alice);
+    assertEquals("Alice", aliceBefore.getDisplayText());
+    assertTrue(aliceBefore.isConnected());
+    ConferenceEndpoint endpoint = aliceBefore.getEndpoint(alice);
+    assertEquals("dialed-in", endpoint.getJoiningMethod());
+    assertEquals(2, endpoint.getMedia().size());
+    assertEquals("Main Audio", endpoint.getMedia("1").getDisplayText());
+    assertEquals("video", endpoint.getMedia("2").getType());
+
+    // partial: bob joins
+    String body = conferenceInfo(1, "<conference-state><user-count>2</user-count>"
+        + "<active>true</active></conference-state><users>"
+        + "<user entity=\"" + bob + "\" state=\"full\"><display-text>Bob</display-text>"
+        + "<endpoint entity=\"" + bob + "\"><status>connected</status>"
+        + "<media id=\"3\"><type>audio</type><status>sendrecv</status></media>"
+        + "</endpoint></user></users>");
+    assertEquals(SipResponse.OK, sendNotify(focus, sub, conferenceType, body));
+    assertEquals(1, sub.getVersion());
+    assertEquals("[" + alice + ", " + bob + "]", sub.getUsers().keySet().toString());
+    assertSame(aliceBefore, sub.getUser(alice));
+    assertTrue(sub.getUser(bob).isConnected());
+    assertEquals(2, sub.getUserCount());
+    assertTrue(sub.isConferenceActive());
+
+    // partial: alice's endpoint goes on hold, only its status is given
+    ConferenceUser bobBefore = sub.getUser(bob);
+    body = conferenceInfo(2, "<users><user entity=\"" + alice + "\" state=\"partial\">"
+        + "<endpoint entity=\"" + alice + "\" state=\"partial\"><status>on-hold</status>"
+        + "</endpoint></user></users>");
+    assertEquals(SipResponse.OK, sendNotify(focus, sub, conferenceType, body));
+    assertSame(bobBefore, sub.getUser(bob));
+
+    ConferenceUser aliceAfter = sub.getUser(alice);
+    assertFalse(aliceAfter.isConnected());
+    assertEquals("Alice", aliceAfter.getDisplayText());
+    assertEquals("on-hold", aliceAfter.getEndpoint(alice).getStatus());
+    assertEquals("dialed-in", aliceAfter.getEndpoint(alice).getJoiningMethod());
+    assertEquals(2, aliceAfter.getEndpoint(alice).getMedia().size());
+    assertTrue(aliceBefore.isConnected()); // unchanged
+    assertEquals(2, sub.getUserCount());
+
+    // partial: bob leaves
+    body = conferenceInfo(3, "<conference-state><user-count>1</user-count></conference-state>"
+        + "<users><user entity=\"" + bob + "\" state=\"deleted\"/></users>");
+    assertEquals(SipResponse.OK, sendNotify(focus, sub, conferenceType, body));
+    assertEquals("[" + alice + "]", sub.getUsers().keySet().toString());
+    assertNull(sub.getUser(bob));
+    assertEquals(1, sub.getUserCount());
+
+    // a version gap is refused, leaving the roster as it was
+    body = conferenceInfo(5, "<users><user entity=\"" + alice + "\" state=\"deleted\"/></users>");
+    assertEquals(SipResponse.BAD_REQUEST, sendNotify(focus, sub, conferenceType, body));
+    assertEquals(3, sub.getVersion());
+    assertSame(aliceAfter, sub.getUser(alice));
+
+    sub.dispose();
+    assertTrue(u.getConferences().isEmpty());
+    u.dispose();
+  }
+
+  private String conferenceInfo(long version, String content) {
+    return "<conference-info xmlns=\"urn:ietf:params:xml:ns:conference-info\" entity=\""
+        + getSipConferenceUser() + "\" state=\"partial\" version=\"" + version + "\">" + content
+        + "</conference-info>";
+  }
+
+  /*
+   * Sends the given conference-info body, has the subscriber process it and returns its status
+   * code.
+   */
   private String getResourceAsString(String resource)
     throws java.net.URISyntaxException,
            java.io.IOException,
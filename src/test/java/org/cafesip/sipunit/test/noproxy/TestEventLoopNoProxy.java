@@ -0,0 +1,266 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit.test.noproxy;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static org.cafesip.sipunit.SipAssert.awaitStackDispose;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.cafesip.sipunit.SipCall;
+import org.cafesip.sipunit.SipPhone;
+import org.cafesip.sipunit.SipSession;
+import org.cafesip.sipunit.SipStack;
+import org.cafesip.sipunit.UasCallPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sip.message.Response;
+
+/**
+ * Tests for SipStack.setEventLoops(): SipPhones pinned to event-loop threads. The benchmark test
+ * runs the same load of calls between many SipPhones with and without event loops, logs the
+ * throughput of each and checks that the event loops, each getting the events of its own SipPhones
+ * only, carry more calls per second than the SIP stack threads giving every event to every
+ * SipPhone under the stack lock.
+ *
+ * <p>
+ * Tests in this class do not require a proxy/registrar server. Messaging between UACs is direct.
+ *
+ */
+public class TestEventLoopNoProxy {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TestEventLoopNoProxy.class);
+
+  private static final int PHONES = 16;
+
+  private static final int CALLS_PER_PHONE = 20;
+
+  // at least the caller's 200 OK responses to the INVITE and BYE, and the callee's INVITE, ACK and
+  // BYE
+  private static final int EVENTS_PER_CALL = 5;
+
+  private SipStack sipStack;
+
+  private List<SipPhone> phones = new ArrayList<>();
+
+  private int myPort;
+
+  private String testProtocol;
+
+  private Properties properties = new Properties();
+
+  private long loopTasks; // run by the event loops in the last runCalls()
+
+  /**
+   * Initialize the properties for the test - each test creates its own stack.
+   */
+  @Before
+  public void setUp() throws Exception {
+    properties.setProperty("javax.sip.STACK_NAME", "testAgent");
+    properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "0");
+    properties.setProperty("gov.nist.javax.sip.DEBUG_LOG", "testAgent_debug.txt");
+    properties.setProperty("gov.nist.javax.sip.SERVER_LOG", "testAgent_log.txt");
+    properties.setProperty("gov.nist.javax.sip.READ_TIMEOUT", "1000");
+    properties.setProperty("gov.nist.javax.sip.CACHE_SERVER_CONNECTIONS", "false");
+    properties.setProperty("sipunit.test.port", "5061");
+    properties.setProperty("sipunit.test.protocol", "udp");
+    properties.putAll(System.getProperties());
+
+    try {
+      myPort = Integer.parseInt(properties.getProperty("sipunit.test.port"));
+    } catch (NumberFormatException e) {
+      myPort = 5061;
+    }
+
+    testProtocol = properties.getProperty("sipunit.test.protocol");
+  }
+
+  /**
+   * Release the sipStack and the user agents for the test.
+   */
+  @After
+  public void tearDown() throws Exception {
+    disposeStack();
+  }
+
+  @Test
+  public void testExecuteOnLoop() throws Exception {
+    sipStack = new SipStack(testProtocol, myPort, properties);
+    sipStack.setEventLoops(2);
+    assertEquals(2, sipStack.getEventLoops());
+
+    SipPhone ua = createPhone("sip:amit@nist.gov");
+    SipPhone ub = createPhone("sip:becky@nist.gov");
+    assertFalse(ua.inEventLoop());
+
+    try {
+      sipStack.setEventLoops(4);
+      fail("event loops set after SipPhones were created");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+
+    assertTrue(ua.submit(ua::inEventLoop).get(5, TimeUnit.SECONDS));
+    assertFalse(ua.submit(ub::inEventLoop).get(5, TimeUnit.SECONDS));
+
+    // a blocking wait on the loop fails right away instead of holding up the loop
+    final SipCall callB = ub.createSipCall();
+    callB.listenForIncomingCall();
+    Future<Boolean> waited = ub.submit(() -> callB.waitForIncomingCall(10000));
+    assertFalse(waited.get(5, TimeUnit.SECONDS));
+    assertEquals(SipSession.EXCEPTION_ENCOUNTERED, callB.getReturnCode());
+
+    // the call itself still goes through, driven from the test thread
+    ub.setUasCallPolicy(new UasCallPolicy());
+    SipCall callA = ua.makeCall("sip:becky@nist.gov", Response.OK, 5000, route());
+    assertNotNull(ua.format(), callA);
+    assertTrue(callA.sendInviteOkAck());
+    assertTrue(callA.disconnect());
+
+    final AtomicBoolean ran = new AtomicBoolean();
+    ub.execute(() -> ran.set(ub.inEventLoop()));
+    await().untilTrue(ran);
+  }
+
+  @Test
+  public void testNoEventLoops() throws Exception {
+    sipStack = new SipStack(testProtocol, myPort, properties);
+    assertEquals(0, sipStack.getEventLoops());
+
+    SipPhone ua = createPhone("sip:amit@nist.gov");
+    assertFalse(ua.inEventLoop());
+
+    // without event loops, tasks run on the calling thread
+    final Thread caller = Thread.currentThread();
+    assertTrue(ua.submit(() -> Thread.currentThread() == caller).get());
+    assertNull(ua.submit(() -> null).get());
+  }
+
+  @Test
+  public void testThroughputBenchmark() throws Exception {
+    int processors = Runtime.getRuntime().availableProcessors();
+
+    double locked = runCalls(0);
+    assertEquals(0, loopTasks);
+    double loops = runCalls(Math.max(2, processors));
+
+    LOG.info("{} phones, {} calls: {} calls/s on the SIP stack threads, {} calls/s with {} event "
+        + "loops ({}%)", PHONES * 2, PHONES * CALLS_PER_PHONE, (long) locked, (long) loops,
+        Math.max(2, processors), Math.round((loops / locked - 1.0) * 100));
+
+    // the stack events of the calls went through the loops...
+    assertTrue("event loop tasks: " + loopTasks,
+        loopTasks >= (long) PHONES * CALLS_PER_PHONE * EVENTS_PER_CALL);
+
+    // ...each event to its own SipPhone's loop, in parallel with the others
+    assertTrue("calls/s with event loops: " + (long) loops + ", without: " + (long) locked,
+        loops > locked);
+  }
+
+  /**
+   * Runs PHONES callers, each calling its own callee CALLS_PER_PHONE times in a row from its own
+   * thread, and returns the number of calls completed per second.
+   */
+  private double runCalls(int eventLoops) throws Exception {
+    disposeStack();
+    sipStack = new SipStack(testProtocol, myPort, properties);
+    if (eventLoops > 0) {
+      sipStack.setEventLoops(eventLoops);
+    }
+
+    final UasCallPolicy policy = new UasCallPolicy();
+    final List<SipPhone> callers = new ArrayList<>();
+    for (int i = 0; i < PHONES; i++) {
+      callers.add(createPhone("sip:caller" + i + "@nist.gov"));
+      createPhone("sip:callee" + i + "@nist.gov").setUasCallPolicy(policy);
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(PHONES);
+    List<Future<Integer>> results = new ArrayList<>();
+
+    long start = System.nanoTime();
+    for (int i = 0; i < PHONES; i++) {
+      final SipPhone caller = callers.get(i);
+      final String callee = "sip:callee" + i + "@nist.gov";
+      results.add(pool.submit(() -> {
+        int completed = 0;
+        for (int c = 0; c < CALLS_PER_PHONE; c++) {
+          SipCall call = caller.makeCall(callee, Response.OK, 10000, route());
+          if ((call != null) && call.sendInviteOkAck() && call.disconnect()) {
+            completed++;
+          }
+          if (call != null) {
+            call.dispose();
+          }
+        }
+        return completed;
+      }));
+    }
+
+    int completed = 0;
+    for (Future<Integer> result : results) {
+      completed += result.get(5, TimeUnit.MINUTES);
+    }
+    long elapsed = System.nanoTime() - start;
+    pool.shutdown();
+    loopTasks = sipStack.getEventLoopTasks();
+
+    assertEquals("calls completed with " + eventLoops + " event loops - " + policy,
+        PHONES * CALLS_PER_PHONE, completed);
+    assertEquals(0, policy.getErrors());
+
+    return completed * 1e9 / elapsed;
+  }
+
+  private SipPhone createPhone(String uri) throws Exception {
+    SipPhone phone = sipStack.createSipPhone(uri);
+    phone.setLoopback(true);
+    phones.add(phone);
+    return phone;
+  }
+
+  private String route() {
+    return phones.get(0).getStackAddress() + ':' + myPort + '/' + testProtocol;
+  }
+
+  private void disposeStack() {
+    for (SipPhone phone : phones) {
+      phone.dispose();
+    }
+    phones.clear();
+
+    if (sipStack != null) {
+      awaitStackDispose(sipStack);
+      sipStack = null;
+    }
+  }
+}
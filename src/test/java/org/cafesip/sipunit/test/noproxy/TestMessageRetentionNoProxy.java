@@ -0,0 +1,215 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit.test.noproxy;
+
+import static org.cafesip.sipunit.SipAssert.assertLastOperationSuccess;
+import static org.cafesip.sipunit.SipAssert.assertResponseReceived;
+import static org.cafesip.sipunit.SipAssert.awaitStackDispose;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.cafesip.sipunit.MessageRetention;
+import org.cafesip.sipunit.MessageSummary;
+import org.cafesip.sipunit.SipCall;
+import org.cafesip.sipunit.SipPhone;
+import org.cafesip.sipunit.SipResponse;
+import org.cafesip.sipunit.SipStack;
+import org.cafesip.sipunit.UasCallPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Properties;
+
+import javax.sip.header.CSeqHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * Tests for the message history of SipCall: how many of the received messages a call keeps (see
+ * MessageRetention), while the last one stays available to the call operations, and the indexed
+ * lookups over the kept messages.
+ *
+ * <p>
+ * Tests in this class do not require a proxy/registrar server. Messaging between UACs is direct.
+ *
+ */
+public class TestMessageRetentionNoProxy {
+
+  private SipStack sipStack;
+
+  private SipPhone ua;
+
+  private SipPhone ub;
+
+  private String route;
+
+  private Properties properties = new Properties();
+
+  /**
+   * Initialize the sipStack and the user agents for the test.
+   */
+  @Before
+  public void setUp() throws Exception {
+    properties.setProperty("javax.sip.STACK_NAME", "testAgent");
+    properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "0");
+    properties.setProperty("gov.nist.javax.sip.DEBUG_LOG", "testAgent_debug.txt");
+    properties.setProperty("gov.nist.javax.sip.SERVER_LOG", "testAgent_log.txt");
+    properties.setProperty("gov.nist.javax.sip.READ_TIMEOUT", "1000");
+    properties.setProperty("gov.nist.javax.sip.CACHE_SERVER_CONNECTIONS", "false");
+    properties.setProperty("sipunit.test.port", "5061");
+    properties.setProperty("sipunit.test.protocol", "udp");
+    properties.putAll(System.getProperties());
+
+    int myPort;
+    try {
+      myPort = Integer.parseInt(properties.getProperty("sipunit.test.port"));
+    } catch (NumberFormatException e) {
+      myPort = 5061;
+    }
+
+    String testProtocol = properties.getProperty("sipunit.test.protocol");
+
+    sipStack = new SipStack(testProtocol, myPort, properties);
+
+    ua = sipStack.createSipPhone("sip:amit@nist.gov");
+    ua.setLoopback(true);
+
+    ub = sipStack.createSipPhone("sip:becky@nist.gov");
+    ub.setLoopback(true);
+
+    UasCallPolicy policy = new UasCallPolicy();
+    policy.setRingingDelay(50, 50);
+    ub.setUasCallPolicy(policy);
+
+    route = ua.getStackAddress() + ':' + myPort + '/' + testProtocol;
+  }
+
+  /**
+   * Release the sipStack and the user agents for the test.
+   */
+  @After
+  public void tearDown() throws Exception {
+    ub.dispose();
+    ua.dispose();
+    awaitStackDispose(sipStack);
+  }
+
+  @Test
+  public void testDefaultKeepsEverything() throws Exception {
+    SipCall callA = placeCall();
+    assertSame(MessageRetention.full(), callA.getMessageRetention());
+
+    // 180, 200
+    assertTrue(callA.getAllReceivedResponses().size() >= 2);
+    assertTrue(callA.getReceivedResponseSummaries().isEmpty());
+
+    endCall(callA);
+  }
+
+  @Test
+  public void testLastN() throws Exception {
+    SipCall callA = ua.createSipCall();
+    callA.setMessageRetention(MessageRetention.lastN(1));
+
+    callA.initiateOutgoingCall("sip:becky@nist.gov", route);
+    assertLastOperationSuccess("a initiate call - " + callA.format(), callA);
+    assertTrue("a wait answer - " + callA.format(), callA.waitForAnswer(5000));
+
+    assertEquals(1, callA.getAllReceivedResponses().size());
+    assertEquals(Response.OK, callA.getLastReceivedResponse().getStatusCode());
+
+    // the ACK is built from the last response, which is always kept
+    endCall(callA);
+  }
+
+  @Test
+  public void testSummary() throws Exception {
+    sipStack.setDefaultMessageRetention(MessageRetention.summary());
+    SipCall callA = placeCall();
+    assertEquals(MessageRetention.SUMMARY, callA.getMessageRetention().getMode());
+
+    assertEquals(1, callA.getAllReceivedResponses().size());
+
+    List<MessageSummary> summaries = callA.getReceivedResponseSummaries();
+    assertTrue(summaries.size() >= 2);
+    MessageSummary ringing = summaries.get(summaries.size() - 2);
+    MessageSummary ok = summaries.get(summaries.size() - 1);
+    assertEquals(Response.RINGING, ringing.getStatusCode());
+    assertEquals(Response.OK, ok.getStatusCode());
+    assertEquals(Request.INVITE, ok.getMethod());
+    assertFalse(ok.isRequest());
+    assertEquals(ringing.getCSeq(), ok.getCSeq());
+    assertTrue(ringing.getTimestamp() <= ok.getTimestamp());
+
+    endCall(callA);
+  }
+
+  @Test
+  public void testOffTrimsExistingHistory() throws Exception {
+    SipCall callA = placeCall();
+    assertTrue(callA.getAllReceivedResponses().size() >= 2);
+
+    callA.setMessageRetention(MessageRetention.off());
+    assertEquals(1, callA.getAllReceivedResponses().size());
+    assertNotNull(callA.getLastReceivedResponse());
+    assertTrue(callA.getReceivedResponseSummaries().isEmpty());
+
+    endCall(callA);
+  }
+
+  @Test
+  public void testIndexedLookups() throws Exception {
+    SipCall callA = placeCall();
+
+    SipResponse ok = callA.findMostRecentResponse(Response.OK);
+    assertNotNull(ok);
+    assertSame(callA.getLastReceivedResponse(), ok);
+    long cseq = ((CSeqHeader) ok.getMessage().getHeader(CSeqHeader.NAME)).getSeqNumber();
+
+    assertNotNull(callA.findMostRecentResponse(Response.RINGING, Request.INVITE, cseq));
+    assertNull(callA.findMostRecentResponse(Response.RINGING, Request.INVITE, cseq + 1));
+    assertNull(callA.findMostRecentResponse(Response.BUSY_HERE));
+    assertResponseReceived(Response.OK, Request.INVITE, cseq, callA);
+
+    // dropped messages drop out of the index
+    callA.setMessageRetention(MessageRetention.off());
+    assertNull(callA.findMostRecentResponse(Response.RINGING));
+    assertSame(ok, callA.findMostRecentResponse(Response.OK, Request.INVITE, cseq));
+
+    endCall(callA);
+  }
+
+  private SipCall placeCall() {
+    SipCall callA = ua.createSipCall();
+    callA.initiateOutgoingCall("sip:becky@nist.gov", route);
+    assertLastOperationSuccess("a initiate call - " + callA.format(), callA);
+    assertTrue("a wait answer - " + callA.format(), callA.waitForAnswer(5000));
+    return callA;
+  }
+
+  private void endCall(SipCall callA) {
+    callA.sendInviteOkAck();
+    assertLastOperationSuccess("a send ACK - " + callA.format(), callA);
+    callA.disconnect();
+    assertLastOperationSuccess("a disc - " + callA.format(), callA);
+    callA.dispose();
+  }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit.test.noproxy;
+
+import static org.cafesip.sipunit.SipAssert.assertHeaderContains;
+import static org.cafesip.sipunit.SipAssert.assertLastOperationSuccess;
+import static org.cafesip.sipunit.SipAssert.awaitStackDispose;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.cafesip.sipunit.SipAor;
+import org.cafesip.sipunit.SipCall;
+import org.cafesip.sipunit.SipPhone;
+import org.cafesip.sipunit.SipSession;
+import org.cafesip.sipunit.SipStack;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import javax.sip.header.ContactHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.message.Response;
+
+/**
+ * Tests for addresses of record hosted by a single SipPhone (SipPhone.createAor()), including a
+ * rough heap comparison against one SipPhone per user.
+ *
+ * <p>
+ * Tests in this class do not require a proxy/registrar server. Messaging between UACs is direct.
+ *
+ */
+public class TestMultiAorNoProxy {
+  private static final Logger LOG = LoggerFactory.getLogger(TestMultiAorNoProxy.class);
+
+  private static final int MEMORY_USERS = 1000;
+
+  private static final int MEMORY_SAMPLES = 3;
+
+  private SipStack sipStack;
+
+  private SipPhone ua;
+
+  private int myPort;
+
+  private String testProtocol;
+
+  private Properties properties = new Properties();
+
+  /**
+   * Initialize the sipStack and a user agent for the test.
+   */
+  @Before
+  public void setUp() throws Exception {
+    properties.setProperty("javax.sip.STACK_NAME", "testAgent");
+    properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "32");
+    properties.setProperty("gov.nist.javax.sip.DEBUG_LOG", "testAgent_debug.txt");
+    properties.setProperty("gov.nist.javax.sip.SERVER_LOG", "testAgent_log.txt");
+    properties.setProperty("gov.nist.javax.sip.READ_TIMEOUT", "1000");
+    properties.setProperty("gov.nist.javax.sip.CACHE_SERVER_CONNECTIONS", "false");
+    properties.setProperty("sipunit.test.port", "5061");
+    properties.setProperty("sipunit.test.protocol", "udp");
+    properties.putAll(System.getProperties());
+
+    try {
+      myPort = Integer.parseInt(properties.getProperty("sipunit.test.port"));
+    } catch (NumberFormatException e) {
+      myPort = 5061;
+    }
+
+    testProtocol = properties.getProperty("sipunit.test.protocol");
+
+    sipStack = new SipStack(testProtocol, myPort, properties);
+
+    ua = sipStack.createSipPhone("sip:amit@nist.gov");
+    ua.setLoopback(true);
+  }
+
+  /**
+   * Release the sipStack and a user agent for the test.
+   */
+  @After
+  public void tearDown() throws Exception {
+    ua.dispose();
+    awaitStackDispose(sipStack);
+  }
+
+  @Test
+  public void testCreateAor() throws Exception {
+    SipAor carol = ua.createAor("sip:carol@nist.gov");
+    assertLastOperationSuccess(ua.format(), ua);
+    assertNotNull(carol);
+    assertSame(carol, ua.getAor("sip:carol@nist.gov"));
+    assertEquals(1, ua.getAorCount());
+    assertTrue(carol.getContactInfo().getURI().startsWith("sip:carol@"));
+
+    // duplicates and the phone's own AOR are refused
+    assertNull(ua.createAor("sip:carol@nist.gov"));
+    assertNull(ua.createAor("sip:amit@nist.gov"));
+
+    ua.removeAor(carol);
+    assertNull(ua.getAor("sip:carol@nist.gov"));
+    assertEquals(0, ua.getAorCount());
+  }
+
+  @Test
+  public void testAorContactCollision() throws Exception {
+    SipAor carol = ua.createAor("sip:carol@nist.gov");
+    assertNotNull(ua.format(), carol);
+
+    // same user in another domain: same default contact
+    assertNull(ua.createAor("sip:carol@cafesip.org"));
+    assertEquals(SipSession.INVALID_ARGUMENT, ua.getReturnCode());
+    assertSame(carol, ua.getAor("sip:carol@nist.gov"));
+
+    // same user as the phone itself
+    assertNull(ua.createAor("sip:amit@cafesip.org"));
+    assertEquals(SipSession.INVALID_ARGUMENT, ua.getReturnCode());
+    assertEquals(1, ua.getAorCount());
+
+    // registering the contact of another hosted AOR fails before anything is sent
+    SipAor dave = ua.createAor("sip:dave@nist.gov");
+    assertNotNull(ua.format(), dave);
+    String daveContact = dave.getContactInfo().getURI();
+    assertFalse(dave.register("dave", "a1b2c3d4", carol.getContactInfo().getURI(), 3600, 1000));
+    assertEquals(SipSession.INVALID_ARGUMENT, dave.getReturnCode());
+    assertEquals(daveContact, dave.getContactInfo().getURI());
+
+    // requests to each contact still reach the right AOR
+    String route = ua.getStackAddress() + ':' + myPort + '/' + testProtocol;
+    SipPhone ub = sipStack.createSipPhone("sip:becky@nist.gov");
+    ub.setLoopback(true);
+
+    SipCall callToCarol = carol.createSipCall();
+    callToCarol.listenForIncomingCall();
+    SipCall callToDave = dave.createSipCall();
+    callToDave.listenForIncomingCall();
+
+    SipCall callB = ub.createSipCall();
+    callB.initiateOutgoingCall(daveContact, route);
+    assertLastOperationSuccess("b initiate call - " + callB.format(), callB);
+    assertTrue(callToDave.waitForIncomingCall(5000));
+    assertFalse(callToCarol.waitForIncomingCall(200));
+    callToDave.sendIncomingCallResponse(Response.BUSY_HERE, null, -1);
+    callB.waitOutgoingCallResponse(5000);
+    assertEquals(callB.format(), Response.BUSY_HERE, callB.getReturnCode());
+
+    // the contact is free again once its AOR is removed
+    ua.removeAor(carol);
+    SipAor carol2 = ua.createAor("sip:carol@cafesip.org");
+    assertNotNull(ua.format(), carol2);
+    assertSame(carol2, ua.getAor("sip:carol@cafesip.org"));
+
+    ub.dispose();
+  }
+
+  @Test
+  public void testCallsToAndFromHostedAor() throws Exception {
+    SipPhone ub = sipStack.createSipPhone("sip:becky@nist.gov");
+    ub.setLoopback(true);
+
+    SipAor carol = ua.createAor("sip:carol@nist.gov");
+    assertNotNull(ua.format(), carol);
+
+    String route = ua.getStackAddress() + ':' + myPort + '/' + testProtocol;
+
+    // outbound from the hosted AOR
+    SipCall callCarol = carol.createSipCall();
+    SipCall callB = ub.createSipCall();
+    callB.listenForIncomingCall();
+
+    callCarol.initiateOutgoingCall("sip:becky@nist.gov", route);
+    assertLastOperationSuccess("carol initiate call - " + callCarol.format(), callCarol);
+
+    callB.waitForIncomingCall(10000);
+    assertLastOperationSuccess("b wait incoming call - " + callB.format(), callB);
+    assertHeaderContains(callB.getLastReceivedRequest(), FromHeader.NAME, "sip:carol@nist.gov");
+    assertHeaderContains(callB.getLastReceivedRequest(), ContactHeader.NAME, "sip:carol@");
+
+    callB.sendIncomingCallResponse(Response.OK, "OK", 0);
+    assertLastOperationSuccess("b send OK - " + callB.format(), callB);
+
+    callCarol.waitOutgoingCallResponse(10000);
+    assertEquals("carol wait response - " + callCarol.format(), Response.OK,
+        callCarol.getReturnCode());
+    callCarol.sendInviteOkAck();
+    assertLastOperationSuccess("carol send ACK - " + callCarol.format(), callCarol);
+
+    callB.listenForDisconnect();
+    callCarol.disconnect();
+    assertLastOperationSuccess("carol disc - " + callCarol.format(), callCarol);
+    callB.waitForDisconnect(5000);
+    assertLastOperationSuccess("b wait disc - " + callB.format(), callB);
+    callB.respondToDisconnect();
+
+    // inbound to the hosted AOR's contact
+    SipCall callToCarol = carol.createSipCall();
+    callToCarol.listenForIncomingCall();
+
+    SipCall callB2 = ub.createSipCall();
+    callB2.initiateOutgoingCall(carol.getContactInfo().getURI(), route);
+    assertLastOperationSuccess("b initiate call - " + callB2.format(), callB2);
+
+    callToCarol.waitForIncomingCall(10000);
+    assertLastOperationSuccess("carol wait incoming call - " + callToCarol.format(), callToCarol);
+
+    callToCarol.sendIncomingCallResponse(Response.BUSY_HERE, null, -1);
+    assertLastOperationSuccess("carol send BUSY - " + callToCarol.format(), callToCarol);
+
+    callB2.waitOutgoingCallResponse(10000);
+    assertEquals("b wait response - " + callB2.format(), Response.BUSY_HERE,
+        callB2.getReturnCode());
+
+    ub.dispose();
+  }
+
+  /**
+   * Compares the heap retained by MEMORY_USERS SipPhones with that retained by the same number of
+   * AORs hosted by one SipPhone. As the figures come from heap usage deltas, which depend on when
+   * the garbage collector actually runs, each is the median of MEMORY_SAMPLES measurements. They
+   * are logged, and only a conservative ratio is asserted: a hosted AOR must take less than half
+   * the heap of a SipPhone (it is typically an order of magnitude smaller).
+   */
+  @Test
+  public void testHostedAorMemoryFootprint() throws Exception {
+    long[] phoneSamples = new long[MEMORY_SAMPLES];
+    long[] aorSamples = new long[MEMORY_SAMPLES];
+
+    for (int s = 0; s < MEMORY_SAMPLES; s++) {
+      long base = usedHeap();
+
+      List<SipPhone> phones = new ArrayList<>(MEMORY_USERS);
+      for (int i = 0; i < MEMORY_USERS; i++) {
+        phones.add(sipStack.createSipPhone("sip:phone" + i + "@nist.gov"));
+      }
+
+      phoneSamples[s] = (usedHeap() - base) / MEMORY_USERS;
+
+      for (SipPhone phone : phones) {
+        phone.dispose();
+      }
+      phones.clear();
+
+      base = usedHeap();
+
+      List<SipAor> aors = new ArrayList<>(MEMORY_USERS);
+      for (int i = 0; i < MEMORY_USERS; i++) {
+        aors.add(ua.createAor("sip:aor" + i + "@nist.gov"));
+      }
+
+      aorSamples[s] = (usedHeap() - base) / MEMORY_USERS;
+
+      assertEquals(MEMORY_USERS, ua.getAorCount());
+      for (SipAor aor : aors) {
+        ua.removeAor(aor);
+      }
+      aors.clear();
+    }
+
+    long phoneBytes = median(phoneSamples);
+    long aorBytes = median(aorSamples);
+
+    LOG.info("Approximate retained heap per user: SipPhone = {} bytes {}, hosted SipAor = {} bytes"
+        + " {}", phoneBytes, Arrays.toString(phoneSamples), aorBytes, Arrays.toString(aorSamples));
+
+    assertTrue("hosted AOR (" + aorBytes + " bytes) not smaller than half a SipPhone ("
+        + phoneBytes + " bytes)", aorBytes * 2 < phoneBytes);
+  }
+
+  private static long median(long[] samples) {
+    long[] sorted = samples.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+}
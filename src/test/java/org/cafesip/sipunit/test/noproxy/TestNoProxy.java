@@ -40,10 +40,12 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import org.cafesip.sipunit.Credential;
+import org.cafesip.sipunit.MessageListener;
 import org.cafesip.sipunit.SipCall;
 import org.cafesip.sipunit.SipMessage;
 import org.cafesip.sipunit.SipPhone;
@@ -65,6 +67,10 @@ import java.util.Arrays;
 import java.util.EventObject;
 import java.util.Properties;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import javax.sip.ClientTransaction;
 import javax.sip.Dialog;
@@ -569,6 +575,139 @@ public class TestNoProxy {
     ub.dispose();
   }
 
+  /**
+   * Two calls in progress on the same SipPhone, disconnected in the reverse order they were set up:
+   * each SipCall gets the BYE for its own dialog.
+   */
+  @Test
+  public void testConcurrentCallsOwnRequests() throws Exception {
+    SipPhone ub = sipStack.createSipPhone(getSipUserB());
+    ub.setLoopback(true);
+
+    SipCall callA1 = ua.createSipCall();
+    SipCall callA2 = ua.createSipCall();
+    SipCall callB1 = ub.createSipCall();
+    SipCall callB2 = ub.createSipCall();
+    String[] callIds = setUpConcurrentCalls(ub, callA1, callA2, callB1, callB2);
+
+    callB1.listenForDisconnect();
+    callB2.listenForDisconnect();
+
+    callA2.disconnect();
+    assertLastOperationSuccess("a2 disc - " + callA2.format(), callA2);
+    callA1.disconnect();
+    assertLastOperationSuccess("a1 disc - " + callA1.format(), callA1);
+
+    callB1.waitForDisconnect(5000);
+    assertLastOperationSuccess("b1 wait disc - " + callB1.format(), callB1);
+    assertHeaderContains(callB1.getLastReceivedRequest(), CallIdHeader.NAME, callIds[0]);
+    callB1.respondToDisconnect();
+
+    callB2.waitForDisconnect(5000);
+    assertLastOperationSuccess("b2 wait disc - " + callB2.format(), callB2);
+    assertHeaderContains(callB2.getLastReceivedRequest(), CallIdHeader.NAME, callIds[1]);
+    callB2.respondToDisconnect();
+
+    ub.dispose();
+  }
+
+  /**
+   * Two calls in progress on the same SipPhone, each sent an INFO or UPDATE: each SipCall gets the
+   * request for its own dialog, and none is left in the SipPhone's queue.
+   */
+  @Test
+  public void testConcurrentCallsOwnInfoAndUpdate() throws Exception {
+    SipPhone ub = sipStack.createSipPhone(getSipUserB());
+    ub.setLoopback(true);
+
+    SipCall callA1 = ua.createSipCall();
+    SipCall callA2 = ua.createSipCall();
+    SipCall callB1 = ub.createSipCall();
+    SipCall callB2 = ub.createSipCall();
+    String[] callIds = setUpConcurrentCalls(ub, callA1, callA2, callB1, callB2);
+
+    assertTrue(callB1.listenForRequests());
+    assertTrue(callB2.listenForRequests());
+
+    // the second call gets an INFO, the first one an UPDATE, in the reverse order of set-up
+    Request info = callA2.getDialog().createRequest(Request.INFO);
+    SipTransaction infoTrans = ua.sendRequestWithTransaction(info, false, callA2.getDialog());
+    assertNotNull(ua.format(), infoTrans);
+    Request update = callA1.getDialog().createRequest(Request.UPDATE);
+    SipTransaction updateTrans = ua.sendRequestWithTransaction(update, false, callA1.getDialog());
+    assertNotNull(ua.format(), updateTrans);
+
+    SipTransaction trans = callB1.waitForRequest(Request.UPDATE, 5000);
+    assertNotNull(callB1.format(), trans);
+    assertHeaderContains(callB1.getLastReceivedRequest(), CallIdHeader.NAME, callIds[0]);
+    assertTrue(callB1.format(), callB1.respondToRequest(trans, Response.OK, "OK"));
+
+    trans = callB2.waitForRequest(Request.INFO, 5000);
+    assertNotNull(callB2.format(), trans);
+    assertHeaderContains(callB2.getLastReceivedRequest(), CallIdHeader.NAME, callIds[1]);
+    assertTrue(callB2.format(), callB2.respondToRequest(trans, Response.OK, "OK"));
+
+    EventObject event = ua.waitResponse(infoTrans, 5000);
+    assertTrue(event instanceof ResponseEvent);
+    assertEquals(Response.OK, ((ResponseEvent) event).getResponse().getStatusCode());
+    event = ua.waitResponse(updateTrans, 5000);
+    assertTrue(event instanceof ResponseEvent);
+    assertEquals(Response.OK, ((ResponseEvent) event).getResponse().getStatusCode());
+
+    assertNull(ub.waitRequest(100));
+
+    callA1.disconnect();
+    assertLastOperationSuccess("a1 disc - " + callA1.format(), callA1);
+    callB1.waitForDisconnect(5000);
+    assertLastOperationSuccess("b1 wait disc - " + callB1.format(), callB1);
+    callB1.respondToDisconnect();
+
+    callA2.disconnect();
+    assertLastOperationSuccess("a2 disc - " + callA2.format(), callA2);
+    callB2.waitForDisconnect(5000);
+    assertLastOperationSuccess("b2 wait disc - " + callB2.format(), callB2);
+    callB2.respondToDisconnect();
+
+    ub.dispose();
+  }
+
+  /*
+   * Sets up the calls from A1 to B1, then from A2 to B2, and returns their Call-IDs.
+   */
+  private String[] setUpConcurrentCalls(SipPhone ub, SipCall callA1, SipCall callA2,
+      SipCall callB1, SipCall callB2) throws Exception {
+    String route = ua.getStackAddress() + ':' + myPort + '/' + testProtocol;
+
+    SipCall[] callsA = {callA1, callA2};
+    SipCall[] callsB = {callB1, callB2};
+    String[] callIds = new String[2];
+    for (int i = 0; i < 2; i++) {
+      callsB[i].listenForIncomingCall();
+      callsA[i].initiateOutgoingCall(getSipUserB(), route);
+      assertLastOperationSuccess("a initiate call - " + callsA[i].format(), callsA[i]);
+
+      callsB[i].waitForIncomingCall(10000);
+      assertLastOperationSuccess("b wait incoming call - " + callsB[i].format(), callsB[i]);
+      callIds[i] = ((CallIdHeader) callsB[i].getLastReceivedRequest().getMessage()
+          .getHeader(CallIdHeader.NAME)).getCallId();
+      assertSame(callsB[i], ub.getCall(callIds[i]));
+
+      callsB[i].sendIncomingCallResponse(Response.OK, "Answer - Hello world", 0);
+      assertLastOperationSuccess("b send OK - " + callsB[i].format(), callsB[i]);
+
+      callsA[i].waitOutgoingCallResponse(10000);
+      assertEquals("Unexpected response received", Response.OK, callsA[i].getReturnCode());
+      callsA[i].sendInviteOkAck();
+      assertLastOperationSuccess("Failure sending ACK - " + callsA[i].format(), callsA[i]);
+
+      callsB[i].waitForAck(5000);
+      assertLastOperationSuccess("b wait ack - " + callsB[i].format(), callsB[i]);
+    }
+
+    assertFalse(callIds[0].equals(callIds[1]));
+    return callIds;
+  }
+
   @Test
   public void testSipTestCaseMisc() throws Exception {
     // in this test, user a is handled at the SipCall level and user b at the
@@ -3238,4 +3377,77 @@ public class TestNoProxy {
 
     ub.dispose();
   }
+
+  /**
+   * A challenge to an INVITE sent by makeCall() is answered on the SIP stack thread. Here the
+   * sending of the first INVITE doesn't return until the authorized INVITE has been received: the
+   * call's transaction must still be the one of the authorized INVITE afterwards.
+   */
+  @Test
+  public void testAuthRetryBeforeSendReturns() throws Exception {
+    final CountDownLatch retried = new CountDownLatch(1);
+    final SipPhone uc = new SipPhone(sipStack, null, null, -1, getSipUserA()) {
+      @Override
+      protected SipTransaction sendRequestWithTransaction(Request request, boolean viaProxy,
+          Dialog dialog, MessageListener respListener, ArrayList<Header> additionalHeaders,
+          ArrayList<Header> replaceHeaders, String body, Consumer<SipTransaction> beforeSend) {
+        SipTransaction trans = super.sendRequestWithTransaction(request, viaProxy, dialog,
+            respListener, additionalHeaders, replaceHeaders, body, beforeSend);
+
+        if (request.getMethod().equals(Request.INVITE)
+            && (request.getHeader(ProxyAuthorizationHeader.NAME) == null)) {
+          try {
+            retried.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+
+        return trans;
+      }
+    };
+    uc.setLoopback(true);
+    uc.addUpdateCredential(new Credential("nist.gov", "amit", "a1b2c3d4"));
+
+    SipPhone ub = sipStack.createSipPhone(getSipUserB());
+    ub.setLoopback(true);
+    SipCall callB = ub.createSipCall();
+    callB.listenForIncomingCall();
+
+    final String route = uc.getStackAddress() + ':' + myPort + '/' + testProtocol;
+    CompletableFuture<SipCall> sending =
+        CompletableFuture.supplyAsync(() -> uc.makeCall(getSipUserB(), route));
+
+    assertTrue(callB.waitForIncomingCall(5000));
+    assertHeaderNotPresent(callB.getLastReceivedRequest(), ProxyAuthorizationHeader.NAME);
+
+    WWWAuthenticateHeader authHeader = AuthUtil.getAuthenticationHeader(
+        callB.getLastReceivedRequest(), callB.getHeaderFactory(), "nist.gov");
+    ArrayList<Header> addnl = new ArrayList<>();
+    addnl.add(authHeader);
+    assertTrue(callB.sendIncomingCallResponse(Response.PROXY_AUTHENTICATION_REQUIRED, null, -1,
+        addnl, null, null));
+
+    assertTrue(callB.waitForIncomingCall(5000));
+    assertHeaderPresent(callB.getLastReceivedRequest(), ProxyAuthorizationHeader.NAME);
+    retried.countDown();
+
+    SipCall callA = sending.get(5, TimeUnit.SECONDS);
+    assertNotNull(uc.format(), callA);
+    assertNotNull(callA.getLastTransaction().getRequest()
+        .getHeader(ProxyAuthorizationHeader.NAME));
+
+    assertTrue(callB.sendIncomingCallResponse(Response.OK, "OK", 0));
+    await().until(callA::isCallAnswered);
+    assertTrue(callA.format(), callA.sendInviteOkAck());
+    assertTrue(callB.waitForAck(5000));
+
+    callB.listenForDisconnect();
+    assertTrue(callA.disconnect());
+    assertTrue(callB.waitForDisconnect(5000));
+    assertTrue(callB.respondToDisconnect());
+
+    uc.dispose();
+    ub.dispose();
+  }
 }
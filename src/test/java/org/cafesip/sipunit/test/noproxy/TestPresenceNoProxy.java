@@ -16,20 +16,32 @@
 
 package org.cafesip.sipunit.test.noproxy;
 
+import static com.jayway.awaitility.Awaitility.await;
 import static org.cafesip.sipunit.SipAssert.assertNoSubscriptionErrors;
 import static org.cafesip.sipunit.SipAssert.awaitStackDispose;
+import static org.cafesip.sipunit.test.util.NotifyUtil.sendNotify;
+import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import org.cafesip.sipunit.DialogInfo;
+import org.cafesip.sipunit.DialogInfoSubscriber;
+import org.cafesip.sipunit.EventPublisher;
+import org.cafesip.sipunit.NotifyEvent;
+import org.cafesip.sipunit.NotifyFlow;
+import org.cafesip.sipunit.NotifyLoadGenerator;
 import org.cafesip.sipunit.PresenceDeviceInfo;
 import org.cafesip.sipunit.PresenceNote;
 import org.cafesip.sipunit.PresenceNotifySender;
 import org.cafesip.sipunit.PresenceSubscriber;
+import org.cafesip.sipunit.PublishPolicy;
+import org.cafesip.sipunit.ResourceListSubscriber;
 import org.cafesip.sipunit.SipPhone;
 import org.cafesip.sipunit.SipRequest;
 import org.cafesip.sipunit.SipResponse;
@@ -39,7 +51,10 @@ import org.cafesip.sipunit.SipTransaction;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
@@ -47,15 +62,34 @@ import java.util.Calendar;
 import java.util.EventObject;
 import java.util.HashMap;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
 import java.util.Properties;
-
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sip.Dialog;
 import javax.sip.RequestEvent;
 import javax.sip.ResponseEvent;
 import javax.sip.TimeoutEvent;
+import javax.sip.header.AcceptHeader;
+import javax.sip.header.ContentTypeHeader;
 import javax.sip.header.EventHeader;
+import javax.sip.header.SIPIfMatchHeader;
 import javax.sip.header.SubscriptionStateHeader;
+import javax.sip.header.SupportedHeader;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
+import javax.xml.bind.JAXBContext;
 
 /**
  * This class tests SipUnit presence functionality. Focus is on the "subscriber" side using
@@ -70,6 +104,8 @@ import javax.sip.message.Response;
  */
 public class TestPresenceNoProxy {
 
+  private static final Logger LOG = LoggerFactory.getLogger(TestPresenceNoProxy.class);
+
   private SipStack sipStack;
 
   private SipPhone ua;
@@ -1261,6 +1297,673 @@ public class TestPresenceNoProxy {
   // TODO next: 2 SipPhone, 2 buddies each; 1 SipPHone
   // that
   // has 1 buddy and 1 SipCall; amit and becky on separate boxes.
+  /**
+   * The streaming PIDF parser (SipStack.PIDF_PARSER_STAX) gives the same presence information and
+   * the same errors as the JAXB one: each NOTIFY is processed once with each parser.
+   */
+  @Test
+  public void testStreamingParserParity() throws Exception {
+    String buddy = "sip:becky@cafesip.org"; // I am amit
+
+    PresenceNotifySender ub =
+        new PresenceNotifySender(sipStack.createSipPhone(host, testProtocol, myPort, buddy));
+    ub.processSubscribe(5000, SipResponse.OK, "OK");
+
+    PresenceSubscriber sub = ua.addBuddy(buddy, 2000);
+    assertNotNull(sub);
+    assertTrue(sub.processResponse(1000));
+
+    String head = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<presence xmlns=\"urn:ietf:params:xml:ns:pidf\""
+        + " xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" entity=\"sip:becky@cafesip.org\">";
+
+    String[] bodies = {
+        head + " <tuple id=\"bs35r9\"> <status><basic>open</basic> </status>"
+            + " <contact priority=\"0.8\">im:someone@mobilecarrier.net</contact>"
+            + " <note xml:lang=\"en\">Don't Disturb Please!</note>"
+            + " <note xml:lang=\"fr\">Ne derangez pas, s'il vous plait</note>"
+            + " <timestamp>2001-10-27T16:49:29Z</timestamp> </tuple>"
+            + " <tuple id=\"doodah\"> <status><basic>closed</basic>"
+            + " <xs:string>Status extension 1</xs:string> </status>"
+            + " <contact priority=\"1.0\">me@mobilecarrier.net</contact>"
+            + " <timestamp>2002-10-27T16:48:29+02:00</timestamp> </tuple>"
+            + " <tuple id=\"eg92n8\"> <status> </status> </tuple>"
+            + " <note>I'll be in Tokyo next week</note>"
+            + " <note xml:lang=\"en\">I'll be in Tahiti after that</note> </presence>",
+        head + " </presence>",
+        head + "<tuple id=\"1\"><status><basic>open</basic><unknown>x</unknown></status>"
+            + "<device><id>mobile</id></device></tuple><xs:string>extension</xs:string>"
+            + "</presence>",
+        head + "<tuple id=\"1\"><status><basic>open</basic></status></tuple></presencee>",
+        head.replace("becky", "amit") + "</presence>"};
+
+    for (String body : bodies) {
+      assertTrue(ub.sendNotify(SubscriptionStateHeader.ACTIVE, null, body, 3600, false));
+      RequestEvent reqevent = sub.waitNotify(1000);
+      assertNotNull(reqevent);
+
+      sipStack.setPidfParser(SipStack.PIDF_PARSER_JAXB);
+      assertNotNull(sub.processNotify(reqevent));
+      String jaxb = describe(sub);
+
+      sipStack.setPidfParser(SipStack.PIDF_PARSER_STAX);
+      assertEquals(SipStack.PIDF_PARSER_STAX, sipStack.getPidfParser());
+      Response response = sub.processNotify(reqevent);
+      assertNotNull(response);
+      assertEquals(body, jaxb, describe(sub));
+
+      assertTrue(sub.replyToNotify(reqevent, response));
+    }
+  }
+
+  @Test
+  public void testPartialNotification() throws Exception {
+    String buddy = "sip:becky@cafesip.org"; // I am amit
+
+    PresenceNotifySender ub =
+        new PresenceNotifySender(sipStack.createSipPhone(host, testProtocol, myPort, buddy));
+    ub.processSubscribe(5000, SipResponse.OK, "OK");
+
+    ua.setPresencePartialNotification(true);
+    assertTrue(ua.isPresencePartialNotification());
+
+    PresenceSubscriber sub = ua.addBuddy(buddy, 2000);
+    assertNotNull(sub);
+    assertTrue(sub.processResponse(1000));
+    assertEquals(-1, sub.getPidfDiffVersion());
+
+    // the SUBSCRIBE asked for partial notification
+    ListIterator<?> accept =
+        ub.getLastReceivedRequest().getMessage().getHeaders(AcceptHeader.NAME);
+    List<String> types = new ArrayList<>();
+    while (accept.hasNext()) {
+      types.add(((AcceptHeader) accept.next()).getContentSubType());
+    }
+    assertEquals("[pidf+xml, pidf-diff+xml]", types.toString());
+
+    String ns = " xmlns=\"urn:ietf:params:xml:ns:pidf-diff\""
+        + " xmlns:p=\"urn:ietf:params:xml:ns:pidf\"";
+
+    ContentTypeHeader diff =
+        sipStack.getHeaderFactory().createContentTypeHeader("application", "pidf-diff+xml");
+
+    // a patch before the full state is refused
+    String patch = "<patch" + ns + " version=\"1\"><add sel=\"p:presence\">"
+        + "<p:tuple id=\"t9\"><p:status><p:basic>open</p:basic></p:status></p:tuple>"
+        + "</add></patch>";
+    assertEquals(SipResponse.BAD_REQUEST, sendNotify(ub, sub, diff, patch));
+    assertTrue(sub.getPresenceDevices().isEmpty());
+
+    String full = "<pidf-full" + ns + " entity=\"sip:becky@cafesip.org\" version=\"4\">"
+        + "<p:tuple id=\"t1\"><p:status><p:basic>open</p:basic></p:status></p:tuple>"
+        + "<p:tuple id=\"t2\"><p:status><p:basic>open</p:basic></p:status></p:tuple>"
+        + "<p:tuple id=\"t3\"><p:status><p:basic>closed</p:basic></p:status></p:tuple>"
+        + "<p:note>full</p:note></pidf-full>";
+    assertEquals(SipResponse.OK, sendNotify(ub, sub, diff, full));
+    assertEquals(4, sub.getPidfDiffVersion());
+    assertEquals(3, sub.getPresenceDevices().size());
+    assertEquals(1, sub.getPresenceNotes().size());
+
+    patch = "<patch" + ns + " version=\"5\">"
+        + "<add sel=\"/p:presence\"><p:tuple id=\"t4\"><p:status><p:basic>open</p:basic>"
+        + "</p:status></p:tuple><p:note>added</p:note></add>"
+        + "<replace sel=\"*/p:tuple[@id='t1']\"><p:tuple id=\"t1\"><p:status>"
+        + "<p:basic>closed</p:basic></p:status><p:contact>sip:t1@cafesip.org</p:contact>"
+        + "</p:tuple></replace>"
+        + "<remove sel='p:presence/p:tuple[@id=\"t3\"]'/></patch>";
+    assertEquals(SipResponse.OK, sendNotify(ub, sub, diff, patch));
+    assertEquals(5, sub.getPidfDiffVersion());
+
+    HashMap<String, PresenceDeviceInfo> devices = sub.getPresenceDevices();
+    assertEquals(devices.keySet().toString(), 3, devices.size());
+    assertEquals("closed", devices.get("t1").getBasicStatus());
+    assertEquals("sip:t1@cafesip.org", devices.get("t1").getContactURI());
+    assertEquals("open", devices.get("t2").getBasicStatus());
+    assertNull(devices.get("t3"));
+    assertEquals("open", devices.get("t4").getBasicStatus());
+    assertEquals(2, sub.getPresenceNotes().size());
+    assertEquals("added", sub.getPresenceNotes().get(1).getValue());
+
+    // a version gap is refused and leaves the state as it was
+    patch = "<patch" + ns + " version=\"7\"><remove sel=\"p:presence/p:tuple[@id='t2']\"/>"
+        + "</patch>";
+    assertEquals(SipResponse.BAD_REQUEST, sendNotify(ub, sub, diff, patch));
+    assertTrue(sub.getErrorMessage().indexOf("out of sequence") != -1);
+    assertEquals(5, sub.getPidfDiffVersion());
+
+    // so is a patch that doesn't fit the state, even if partly applicable
+    patch = "<patch" + ns + " version=\"6\"><remove sel=\"p:presence/p:tuple[@id='t2']\"/>"
+        + "<remove sel=\"p:presence/p:tuple[@id='t3']\"/></patch>";
+    assertEquals(SipResponse.BAD_REQUEST, sendNotify(ub, sub, diff, patch));
+    assertEquals(5, sub.getPidfDiffVersion());
+    assertNotNull(sub.getPresenceDevices().get("t2"));
+
+    patch = "<patch" + ns + " version=\"6\"><remove sel=\"p:presence/p:tuple[@id='t2']\"/>"
+        + "</patch>";
+    assertEquals(SipResponse.OK, sendNotify(ub, sub, diff, patch));
+    assertEquals(6, sub.getPidfDiffVersion());
+    assertEquals("[t1, t4]", new TreeSet<>(sub.getPresenceDevices().keySet()).toString());
+
+    // a plain PIDF body replaces everything
+    String body = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<presence xmlns=\"urn:ietf:params:xml:ns:pidf\" entity=\"sip:becky@cafesip.org\">"
+        + "<tuple id=\"t5\"><status><basic>open</basic></status></tuple></presence>";
+    assertTrue(ub.sendNotify(SubscriptionStateHeader.ACTIVE, null, body, 3600, false));
+    RequestEvent reqevent = sub.waitNotify(1000);
+    assertNotNull(reqevent);
+    Response response = sub.processNotify(reqevent);
+    assertNotNull(response);
+    assertTrue(sub.replyToNotify(reqevent, response));
+    assertEquals(-1, sub.getPidfDiffVersion());
+    assertEquals("[t5]", sub.getPresenceDevices().keySet().toString());
+  }
+
+  /*
+   * Sends the given pidf-diff body, has the subscriber process it and returns its status code.
+   */
+  @Test
+  public void testResourceListSubscription() throws Exception {
+    String list = "sip:friends@cafesip.org"; // I am amit
+
+    PresenceNotifySender ub =
+        new PresenceNotifySender(sipStack.createSipPhone(host, testProtocol, myPort, list));
+    ub.processSubscribe(5000, SipResponse.OK, "OK");
+
+    ResourceListSubscriber sub = ua.subscribeResourceList(list, 2000);
+    assertNotNull(ua.format(), sub);
+    assertTrue(sub.format(), sub.processResponse(1000));
+    assertEquals(1, ua.getResourceLists().size());
+    assertEquals(-1, sub.getListVersion());
+
+    Request subscribe = (Request) ub.getLastReceivedRequest().getMessage();
+    assertEquals("eventlist",
+        ((SupportedHeader) subscribe.getHeader(SupportedHeader.NAME)).getOptionTag());
+
+    String bob = "sip:bob@cafesip.org";
+    String carol = "sip:carol@cafesip.org";
+    String dave = "sip:dave@cafesip.org";
+
+    ContentTypeHeader related =
+        sipStack.getHeaderFactory().createContentTypeHeader("multipart", "related");
+    related.setParameter("type", "\"application/rlmi+xml\"");
+    related.setParameter("start", "\"<root@cafesip.org>\"");
+    related.setParameter("boundary", BOUNDARY);
+
+    // full state: bob and carol active with presence, dave pending
+    String rlmi = "<list xmlns=\"urn:ietf:params:xml:ns:rlmi\" uri=\"" + list
+        + "\" version=\"0\" fullState=\"true\">"
+        + "<resource uri=\"" + bob + "\"><name>Bob</name>"
+        + "<instance id=\"i1\" state=\"active\" cid=\"bob@cafesip.org\"/></resource>"
+        + "<resource uri=\"" + carol + "\">"
+        + "<instance id=\"i2\" state=\"active\" cid=\"carol@cafesip.org\"/></resource>"
+        + "<resource uri=\"" + dave + "\"/></list>";
+    String body = multipart(rlmi, pidfPart(bob, "bob@cafesip.org", "open"),
+        pidfPart(carol, "carol@cafesip.org", "closed"));
+    assertEquals(SipResponse.OK, sendNotify(ub, sub, related, body));
+    assertNoSubscriptionErrors(sub);
+    assertEquals(0, sub.getListVersion());
+
+    Map<String, PresenceSubscriber> resources = sub.getResources();
+    assertEquals("[" + bob + ", " + carol + ", " + dave + "]", resources.keySet().toString());
+    assertTrue(resources.get(bob).isSubscriptionActive());
+    assertEquals("open", resources.get(bob).getPresenceDevices().get("t1").getBasicStatus());
+    assertEquals("closed", resources.get(carol).getPresenceDevices().get("t1").getBasicStatus());
+    assertTrue(resources.get(dave).isSubscriptionPending());
+    assertTrue(resources.get(dave).getPresenceDevices().isEmpty());
+    assertNull(ua.getBuddyInfo(bob));
+
+    // partial state: carol goes terminated, dave becomes active, bob unchanged
+    rlmi = "<list xmlns=\"urn:ietf:params:xml:ns:rlmi\" uri=\"" + list
+        + "\" version=\"1\" fullState=\"false\">"
+        + "<resource uri=\"" + carol + "\">"
+        + "<instance id=\"i2\" state=\"terminated\" reason=\"rejected\"/></resource>"
+        + "<resource uri=\"" + dave + "\">"
+        + "<instance id=\"i3\" state=\"active\" cid=\"dave@cafesip.org\"/></resource></list>";
+    body = multipart(rlmi, pidfPart(dave, "dave@cafesip.org", "open"));
+    assertEquals(SipResponse.OK, sendNotify(ub, sub, related, body));
+    assertEquals(1, sub.getListVersion());
+
+    assertSame(resources.get(bob), sub.getResource(bob));
+    assertTrue(sub.getResource(bob).isSubscriptionActive());
+    assertTrue(sub.getResource(carol).isSubscriptionTerminated());
+    assertEquals("rejected", sub.getResource(carol).getTerminationReason());
+    assertTrue(sub.getResource(dave).isSubscriptionActive());
+    assertEquals("open", sub.getResource(dave).getPresenceDevices().get("t1").getBasicStatus());
+
+    // a version gap is refused, leaving the state as it was
+    rlmi = rlmi.replace("version=\"1\"", "version=\"3\"");
+    assertEquals(SipResponse.BAD_REQUEST, sendNotify(ub, sub, related, multipart(rlmi,
+        pidfPart(dave, "dave@cafesip.org", "closed"))));
+    assertEquals(1, sub.getListVersion());
+    assertEquals("open", sub.getResource(dave).getPresenceDevices().get("t1").getBasicStatus());
+
+    // so is a part with the wrong presentity
+    rlmi = rlmi.replace("version=\"3\"", "version=\"2\"");
+    assertEquals(SipResponse.BAD_REQUEST, sendNotify(ub, sub, related, multipart(rlmi,
+        pidfPart(bob, "dave@cafesip.org", "closed"))));
+    assertEquals(1, sub.getListVersion());
+
+    // a new full state drops the resources it doesn't list
+    rlmi = "<list xmlns=\"urn:ietf:params:xml:ns:rlmi\" uri=\"" + list
+        + "\" version=\"2\" fullState=\"true\">"
+        + "<resource uri=\"" + dave + "\">"
+        + "<instance id=\"i3\" state=\"active\" cid=\"dave@cafesip.org\"/></resource></list>";
+    assertEquals(SipResponse.OK, sendNotify(ub, sub, related, multipart(rlmi,
+        pidfPart(dave, "dave@cafesip.org", "closed"))));
+    assertEquals("[" + dave + "]", sub.getResources().keySet().toString());
+    assertEquals("closed", sub.getResource(dave).getPresenceDevices().get("t1").getBasicStatus());
+
+    sub.dispose();
+    assertTrue(ua.getResourceLists().isEmpty());
+  }
+
+  private static final String BOUNDARY = "50UBfW7LSCVLtggUPe5z";
+
+  private static String pidfPart(String entity, String cid, String basic) {
+    return "Content-Transfer-Encoding: binary\r\nContent-ID: <" + cid + ">\r\n"
+        + "Content-Type: application/pidf+xml;charset=\"UTF-8\"\r\n\r\n"
+        + "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<presence xmlns=\"urn:ietf:params:xml:ns:pidf\" entity=\"" + entity + "\">"
+        + "<tuple id=\"t1\"><status><basic>" + basic + "</basic></status></tuple></presence>";
+  }
+
+  private static String multipart(String rlmi, String... parts) {
+    StringBuilder body = new StringBuilder("--" + BOUNDARY + "\r\n")
+        .append("Content-Transfer-Encoding: binary\r\nContent-ID: <root@cafesip.org>\r\n")
+        .append("Content-Type: application/rlmi+xml;charset=\"UTF-8\"\r\n\r\n").append(rlmi);
+    for (String part : parts) {
+      body.append("\r\n--").append(BOUNDARY).append("\r\n").append(part);
+    }
+    return body.append("\r\n--").append(BOUNDARY).append("--\r\n").toString();
+  }
+
+  /*
+   * Sends the given multipart/related body, has the list subscriber process it and returns its
+   * status code.
+   */
+  @Test
+  public void testDialogInfoSubscriptions() throws Exception {
+    final int extensions = 20;
+
+    List<PresenceNotifySender> senders = new ArrayList<>();
+    List<String> uris = new ArrayList<>();
+    for (int i = 0; i < extensions; i++) {
+      String uri = "sip:ext" + i + "@cafesip.org";
+      PresenceNotifySender ns =
+          new PresenceNotifySender(sipStack.createSipPhone(host, testProtocol, myPort, uri));
+      ns.processSubscribe(5000, SipResponse.OK, "OK");
+      senders.add(ns);
+      uris.add(uri);
+    }
+
+    // all the SUBSCRIBEs go out at once
+    Map<String, DialogInfoSubscriber> subs = ua.subscribeDialogInfo(uris, 3600, 5000);
+    assertEquals(ua.format(), uris, new ArrayList<>(subs.keySet()));
+    assertEquals(extensions, ua.getDialogInfoSubscriptions().size());
+    for (DialogInfoSubscriber sub : subs.values()) {
+      assertTrue(sub.format(), sub.processResponse(1000));
+      assertEquals(-1, sub.getVersion());
+      assertEquals(DialogInfoSubscriber.IDLE, sub.getLampState());
+    }
+
+    Request subscribe = (Request) senders.get(0).getLastReceivedRequest().getMessage();
+    assertEquals("dialog", ((EventHeader) subscribe.getHeader(EventHeader.NAME)).getEventType());
+    assertEquals("dialog-info+xml",
+        ((AcceptHeader) subscribe.getHeader(AcceptHeader.NAME)).getContentSubType());
+
+    ContentTypeHeader dialogType =
+        sipStack.getHeaderFactory().createContentTypeHeader("application", "dialog-info+xml");
+
+    // full state: every extension is called, the even ones have answered
+    for (int i = 0; i < extensions; i++) {
+      String state = (i % 2) == 0 ? DialogInfo.CONFIRMED : DialogInfo.EARLY;
+      String body = dialogInfo(uris.get(i), 0, true, dialog("d1", DialogInfo.RECIPIENT, state));
+      assertEquals(SipResponse.OK, sendNotify(senders.get(i), subs.get(uris.get(i)), dialogType,
+          body));
+    }
+
+    for (int i = 0; i < extensions; i++) {
+      DialogInfoSubscriber sub = subs.get(uris.get(i));
+      assertNoSubscriptionErrors(sub);
+      assertEquals(0, sub.getVersion());
+      assertEquals((i % 2) == 0 ? DialogInfoSubscriber.BUSY : DialogInfoSubscriber.RINGING,
+          sub.getLampState());
+    }
+
+    // partial state: ext1 answers, and a second call comes in
+    DialogInfoSubscriber sub = subs.get(uris.get(1));
+    PresenceNotifySender ns = senders.get(1);
+    DialogInfo first = sub.getDialogInfo("d1");
+
+    String body = dialogInfo(uris.get(1), 1, false, dialog("d1", DialogInfo.RECIPIENT,
+        DialogInfo.CONFIRMED) + "<dialog id=\"d2\" call-id=\"c2\" direction=\"recipient\">"
+        + "<state>early</state><remote><identity display=\"Carol\">sip:carol@cafesip.org"
+        + "</identity><target uri=\"sip:carol@127.0.0.1\"/></remote></dialog>");
+    assertEquals(SipResponse.OK, sendNotify(ns, sub, dialogType, body));
+    assertEquals(1, sub.getVersion());
+    assertEquals(DialogInfoSubscriber.BUSY, sub.getLampState());
+    assertEquals("[d1, d2]", sub.getDialogInfo().keySet().toString());
+    assertTrue(sub.getDialogInfo("d1").isConfirmed());
+    assertTrue(first.isEarly()); // unchanged
+
+    DialogInfo second = sub.getDialogInfo("d2");
+    assertEquals("c2", second.getCallId());
+    assertEquals("Carol", second.getRemoteDisplay());
+    assertEquals("sip:carol@cafesip.org", second.getRemoteIdentity());
+    assertEquals("sip:carol@127.0.0.1", second.getRemoteTarget());
+
+    // partial state: the first call ends
+    body = dialogInfo(uris.get(1), 2, false, "<dialog id=\"d1\">"
+        + "<state event=\"remote-bye\">terminated</state></dialog>");
+    assertEquals(SipResponse.OK, sendNotify(ns, sub, dialogType, body));
+    assertEquals("[d2]", sub.getDialogInfo().keySet().toString());
+    assertEquals(DialogInfoSubscriber.RINGING, sub.getLampState());
+
+    // a version gap is refused, leaving the state as it was
+    body = dialogInfo(uris.get(1), 4, false,
+        dialog("d2", DialogInfo.RECIPIENT, DialogInfo.TERMINATED));
+    assertEquals(SipResponse.BAD_REQUEST, sendNotify(ns, sub, dialogType, body));
+    assertEquals(2, sub.getVersion());
+    assertSame(second, sub.getDialogInfo("d2"));
+
+    // so is a document about another extension
+    body = dialogInfo(uris.get(2), 3, false,
+        dialog("d2", DialogInfo.RECIPIENT, DialogInfo.TERMINATED));
+    assertEquals(SipResponse.BAD_REQUEST, sendNotify(ns, sub, dialogType, body));
+
+    body = dialogInfo(uris.get(1), 3, false,
+        dialog("d2", DialogInfo.RECIPIENT, DialogInfo.TERMINATED));
+    assertEquals(SipResponse.OK, sendNotify(ns, sub, dialogType, body));
+    assertTrue(sub.getDialogInfo().isEmpty());
+    assertEquals(DialogInfoSubscriber.IDLE, sub.getLampState());
+
+    for (DialogInfoSubscriber s : subs.values()) {
+      s.dispose();
+    }
+    assertTrue(ua.getDialogInfoSubscriptions().isEmpty());
+
+    for (PresenceNotifySender sender : senders) {
+      sender.dispose();
+    }
+  }
+
+  private static String dialogInfo(String entity, long version, boolean full, String dialogs) {
+    return "<?xml version=\"1.0\"?><dialog-info xmlns=\"urn:ietf:params:xml:ns:dialog-info\""
+        + " version=\"" + version + "\" state=\"" + (full ? "full" : "partial")
+        + "\" entity=\"" + entity + "\">" + dialogs + "</dialog-info>";
+  }
+
+  private static String dialog(String id, String direction, String state) {
+    return "<dialog id=\"" + id + "\" call-id=\"" + id + "@cafesip.org\" direction=\""
+        + direction + "\"><state>" + state + "</state></dialog>";
+  }
+
+  /*
+   * Sends the given dialog-info body, has the dialog subscriber process it and returns its status
+   * code.
+   */
+  @Test
+  public void testPublish() throws Exception {
+    final int publications = 20;
+    String presentity = "sip:becky@cafesip.org";
+
+    // a fake event state compositor: each PUBLISH gets a new entity-tag, and a refresh or
+    // modification of an entity-tag not known gets 412. It forgets all its entity-tags when told to
+    // and before handling the next PUBLISH, as on a restart. A PUBLISH for less than the minimum
+    // duration, if set, gets 423.
+    SipPhone esc = sipStack.createSipPhone(presentity);
+    esc.setLoopback(true);
+    assertTrue(esc.listenRequestMessage());
+
+    Set<String> etags = ConcurrentHashMap.newKeySet();
+    AtomicLong etagSeq = new AtomicLong();
+    AtomicLong bodyless = new AtomicLong();
+    AtomicBoolean forget = new AtomicBoolean();
+    AtomicInteger minExpires = new AtomicInteger();
+    AtomicBoolean running = new AtomicBoolean(true);
+    ExecutorService exec = Executors.newSingleThreadExecutor();
+    exec.submit(() -> {
+      while (running.get()) {
+        RequestEvent reqevent = esc.waitRequest(100);
+        if ((reqevent == null) || !reqevent.getRequest().getMethod().equals(Request.PUBLISH)) {
+          continue;
+        }
+
+        if (forget.getAndSet(false)) {
+          etags.clear();
+        }
+
+        Request publish = reqevent.getRequest();
+        SIPIfMatchHeader ifMatch = (SIPIfMatchHeader) publish.getHeader(SIPIfMatchHeader.NAME);
+        int expires = publish.getExpires().getExpires();
+        Response response;
+        if ((expires > 0) && (expires < minExpires.get())) {
+          response = sipStack.getMessageFactory()
+              .createResponse(SipResponse.INTERVAL_TOO_BRIEF, publish);
+          response.setHeader(sipStack.getHeaderFactory().createMinExpiresHeader(minExpires.get()));
+        } else if ((ifMatch != null) && (etags.remove(ifMatch.getETag()) == false)) {
+          response = sipStack.getMessageFactory()
+              .createResponse(SipResponse.CONDITIONAL_REQUEST_FAILED, publish);
+        } else {
+          if (publish.getRawContent() == null) {
+            bodyless.incrementAndGet();
+          }
+          String etag = "et" + etagSeq.incrementAndGet();
+          if (expires > 0) {
+            etags.add(etag);
+          }
+          response = sipStack.getMessageFactory().createResponse(SipResponse.OK, publish);
+          response.setHeader(sipStack.getHeaderFactory().createSIPETagHeader(etag));
+          response.setExpires(sipStack.getHeaderFactory().createExpiresHeader(expires));
+        }
+        esc.sendReply(reqevent, response);
+      }
+      return null;
+    });
+
+    // initial publication with the full state
+    EventPublisher pub = ua.publish(presentity, pidf("open"), 60, 5000);
+    assertNotNull(ua.format(), pub);
+    assertEquals(60, pub.getExpires());
+    String etag = pub.getETag();
+    assertTrue(etags.contains(etag));
+    assertEquals(1, ua.getPublishers().size());
+
+    Request publish = (Request) esc.getLastReceivedRequest().getMessage();
+    assertEquals("presence", ((EventHeader) publish.getHeader(EventHeader.NAME)).getEventType());
+    assertEquals("pidf+xml",
+        ((ContentTypeHeader) publish.getHeader(ContentTypeHeader.NAME)).getContentSubType());
+    assertNull(publish.getHeader(SIPIfMatchHeader.NAME));
+
+    // a refresh has no body and carries the entity-tag
+    assertTrue(pub.format(), pub.refresh(5000));
+    publish = (Request) esc.getLastReceivedRequest().getMessage();
+    assertNull(publish.getRawContent());
+    assertEquals(etag, ((SIPIfMatchHeader) publish.getHeader(SIPIfMatchHeader.NAME)).getETag());
+    assertFalse(etag.equals(pub.getETag()));
+    assertEquals(1, bodyless.get());
+
+    // a modification carries both
+    etag = pub.getETag();
+    assertTrue(pub.format(), pub.publish(pidf("closed"), 60, 5000));
+    publish = (Request) esc.getLastReceivedRequest().getMessage();
+    assertEquals(pidf("closed"), new String(publish.getRawContent()));
+    assertEquals(etag, ((SIPIfMatchHeader) publish.getHeader(SIPIfMatchHeader.NAME)).getETag());
+
+    // the compositor loses its state
+    forget.set(true);
+    assertFalse(pub.refresh(5000));
+    assertEquals(SipResponse.CONDITIONAL_REQUEST_FAILED, pub.getReturnCode());
+    assertNull(pub.getETag());
+    assertFalse(pub.refresh(5000));
+    assertEquals(SipSession.INVALID_OPERATION, pub.getReturnCode());
+
+    // so the next publish() starts over, and unpublish() removes it
+    assertTrue(pub.format(), pub.publish(pidf("open"), 60, 5000));
+    assertNull(((Request) esc.getLastReceivedRequest().getMessage())
+        .getHeader(SIPIfMatchHeader.NAME));
+    assertTrue(pub.format(), pub.unpublish(5000));
+    assertNull(pub.getETag());
+    assertTrue(etags.isEmpty());
+    pub.dispose();
+    assertTrue(ua.getPublishers().isEmpty());
+
+    // many publications refreshed by the phone
+    PublishPolicy policy = new PublishPolicy();
+    policy.setRefreshInterval(200);
+    ua.setPublishPolicy(policy);
+    assertSame(policy, ua.getPublishPolicy());
+
+    List<EventPublisher> pubs = new ArrayList<>();
+    for (int i = 0; i < publications; i++) {
+      EventPublisher p = ua.publish(presentity, pidf("open"), 3600, 5000);
+      assertNotNull(ua.format(), p);
+      pubs.add(p);
+    }
+
+    await().atMost(10, TimeUnit.SECONDS)
+        .until(() -> policy.getRefreshesSucceeded() >= 3 * publications);
+    assertEquals(0, policy.getConditionalFailures());
+    assertEquals(0, policy.getRefreshFailures());
+    assertTrue(policy.getRefreshLatency().getCount() > 0);
+
+    // the compositor loses its state again: each publication gets 412 and is published again
+    forget.set(true);
+    await().atMost(10, TimeUnit.SECONDS)
+        .until(() -> policy.getConditionalFailures() >= publications);
+    long succeeded = policy.getRefreshesSucceeded();
+    await().atMost(10, TimeUnit.SECONDS)
+        .until(() -> policy.getRefreshesSucceeded() >= succeeded + 2 * publications);
+    assertTrue(policy.toString(), policy.getRepublishes() >= publications);
+    assertTrue(policy.getConditionalFailureRate() > 0.0);
+    assertTrue(policy.getConditionalFailureRate() < 1.0);
+
+    // refreshes by the test program, at random times against the automatic ones, don't race them
+    long conditionalFailures = policy.getConditionalFailures();
+    EventPublisher first = pubs.get(0);
+    for (int i = 0; i < 20; i++) {
+      Thread.sleep(ThreadLocalRandom.current().nextInt(300));
+      assertTrue(first.format(), first.refresh(5000));
+    }
+    assertEquals(policy.toString(), conditionalFailures, policy.getConditionalFailures());
+
+    // the compositor wants longer publications: each is sent again with the duration it asks for
+    minExpires.set(7200);
+    await().atMost(10, TimeUnit.SECONDS)
+        .until(() -> policy.getIntervalsTooBrief() >= publications);
+    await().atMost(10, TimeUnit.SECONDS)
+        .until(() -> pubs.stream().allMatch(p -> p.getExpires() == 7200));
+    assertEquals(policy.toString(), 0, policy.getRefreshFailures());
+    LOG.trace("publish refreshes: {}", policy);
+
+    ua.setPublishPolicy(null);
+    assertNull(ua.getPublishPolicy());
+    for (EventPublisher p : pubs) {
+      p.dispose();
+    }
+    assertTrue(ua.getPublishers().isEmpty());
+
+    running.set(false);
+    exec.shutdown();
+    assertTrue(exec.awaitTermination(5, TimeUnit.SECONDS));
+    esc.dispose();
+  }
+
+  private static String pidf(String basic) {
+    return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<presence xmlns=\"urn:ietf:params:xml:ns:pidf\" entity=\"sip:becky@cafesip.org\">"
+        + "<tuple id=\"t1\"><status><basic>" + basic + "</basic></status></tuple></presence>";
+  }
+
+  private static String describe(PresenceSubscriber sub) {
+    StringBuilder buf = new StringBuilder("return code ").append(sub.getReturnCode());
+
+    List<PresenceDeviceInfo> devices = new ArrayList<>(sub.getPresenceDevices().values());
+    devices.sort((a, b) -> a.getId().compareTo(b.getId()));
+    for (PresenceDeviceInfo dev : devices) {
+      buf.append("\ntuple ").append(dev.getId()).append(": ").append(dev.getBasicStatus())
+          .append(", ").append(dev.getContactPriority()).append(", ").append(dev.getContactURI())
+          .append(", ").append(dev.getTimestamp() == null ? null : dev.getTimestamp()
+              .getTimeInMillis()).append(", extensions ").append(dev.getDeviceExtensions()
+              .size()).append('/').append(dev.getStatusExtensions().size());
+      for (PresenceNote note : dev.getDeviceNotes()) {
+        buf.append("\n  note ").append(note.getLanguage()).append(": ").append(note.getValue());
+      }
+    }
+
+    for (PresenceNote note : sub.getPresenceNotes()) {
+      buf.append("\nnote ").append(note.getLanguage()).append(": ").append(note.getValue());
+    }
+    return buf.append("\nextensions ").append(sub.getPresenceExtensions().size()).toString();
+  }
+
+  /**
+   * Benchmark of NOTIFY processing: the same PIDF NOTIFY is processed over and over by
+   * processNotify(), which parses its body with the shared JAXB context, then with the streaming
+   * parser, and the rates are logged next to that of creating a JAXB context for every body, as
+   * was done before.
+   */
+  @Test
+  public void testNotifyProcessingThroughput() throws Exception {
+    String buddy = "sip:becky@cafesip.org"; // I am amit
+
+    PresenceNotifySender ub =
+        new PresenceNotifySender(sipStack.createSipPhone(host, testProtocol, myPort, buddy));
+    ub.processSubscribe(5000, SipResponse.OK, "OK");
+
+    PresenceSubscriber sub = ua.addBuddy(buddy, 2000);
+    assertNotNull(sub);
+    assertTrue(sub.processResponse(1000));
+
+    String notifyBody = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<presence xmlns=\"urn:ietf:params:xml:ns:pidf\" entity=\"sip:becky@cafesip.org\">"
+        + "<tuple id=\"bs35r9\"><status><basic>open</basic></status>"
+        + "<contact priority=\"0.8\">im:someone@mobilecarrier.net</contact>"
+        + "<note xml:lang=\"en\">Don't Disturb Please!</note></tuple>"
+        + "<note>I'll be in Tokyo next week</note></presence>";
+    assertTrue(ub.sendNotify(SubscriptionStateHeader.ACTIVE, null, notifyBody, 3600, false));
+
+    RequestEvent reqevent = sub.waitNotify(1000);
+    assertNotNull(reqevent);
+
+    final int notifies = 5000;
+    long start = System.nanoTime();
+    for (int i = 0; i < notifies; i++) {
+      assertNotNull(sub.processNotify(reqevent));
+    }
+    double shared = notifies * 1e9 / (System.nanoTime() - start);
+
+    sipStack.setPidfParser(SipStack.PIDF_PARSER_STAX);
+    start = System.nanoTime();
+    for (int i = 0; i < notifies; i++) {
+      assertNotNull(sub.processNotify(reqevent));
+    }
+    double streaming = notifies * 1e9 / (System.nanoTime() - start);
+
+    assertNoSubscriptionErrors(sub);
+    assertEquals(SipResponse.OK, sub.getReturnCode());
+    assertEquals("open", sub.getPresenceDevices().get("bs35r9").getBasicStatus());
+    assertTrue(sub.replyToNotify(reqevent, sub.processNotify(reqevent)));
+
+    final int contexts = 200;
+    byte[] body = notifyBody.getBytes("UTF-8");
+    start = System.nanoTime();
+    for (int i = 0; i < contexts; i++) {
+      assertNotNull(JAXBContext.newInstance("org.cafesip.sipunit.presenceparser.pidf")
+          .createUnmarshaller().unmarshal(new ByteArrayInputStream(body)));
+    }
+    double perNotify = contexts * 1e9 / (System.nanoTime() - start);
+
+    LOG.info("NOTIFY processing: {} NOTIFYs/s with the shared JAXB context, {} NOTIFYs/s with the "
+        + "streaming parser, {} bodies/s with a JAXB context per body", (long) shared,
+        (long) streaming, (long) perNotify);
+
+    // the context is the costly part - a NOTIFY with the shared one is processed several times
+    // faster than a context is built, with a wide margin for loaded test machines
+    assertTrue("NOTIFYs/s with the shared JAXB context: " + (long) shared
+        + ", bodies/s with a context per body: " + (long) perNotify, shared > perNotify * 5);
+  }
+
   @Test
   public void testStrayNotify() throws Exception {
     // with no matching Subscription
@@ -1381,6 +2084,227 @@ public class TestPresenceNoProxy {
     // s2.clearEventErrors();
   }
 
+  @Test
+  public void testManyNotifySenders() throws Exception {
+    final int buddies = 50;
+
+    List<PresenceNotifySender> senders = new ArrayList<>();
+    for (int i = 0; i < buddies; i++) {
+      PresenceNotifySender ns = new PresenceNotifySender(
+          sipStack.createSipPhone(host, testProtocol, myPort, "sip:buddy" + i + "@cafesip.org"));
+      ns.processSubscribe(5000, SipResponse.OK, "OK"); // prepare
+      senders.add(ns);
+    }
+
+    List<PresenceSubscriber> subs = new ArrayList<>();
+    for (int i = 0; i < buddies; i++) {
+      PresenceSubscriber sub = ua.addBuddy("sip:buddy" + i + "@cafesip.org", 2000);
+      assertNotNull(sub);
+      assertEquals(SipResponse.OK, sub.getReturnCode());
+      assertTrue(sub.processResponse(1000));
+      subs.add(sub);
+    }
+
+    TreeSet<String> toTags = new TreeSet<>();
+    for (int i = 0; i < buddies; i++) {
+      PresenceNotifySender ns = senders.get(i);
+      String notifyBody = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<presence entity=\"sip:buddy"
+          + i + "@cafesip.org\" xmlns=\"urn:ietf:params:xml:ns:pidf\"><tuple id=\"1\">"
+          + "<status><basic>open</basic></status></tuple></presence>";
+      assertTrue(ns.sendNotify(SubscriptionStateHeader.ACTIVE, null, notifyBody, 2400, false));
+      toTags.add(ns.getDialog().getLocalTag());
+
+      PresenceSubscriber sub = subs.get(i);
+      RequestEvent reqevent = sub.waitNotify(1000);
+      assertNotNull(reqevent);
+      Response response = sub.processNotify(reqevent);
+      assertNotNull(response);
+      assertNoSubscriptionErrors(sub);
+      assertTrue(sub.isSubscriptionActive());
+      assertTrue(sub.replyToNotify(reqevent, response));
+      assertEquals("open", sub.getPresenceDevices().get("1").getBasicStatus());
+    }
+    assertEquals(buddies, toTags.size());
+
+    for (PresenceNotifySender ns : senders) {
+      ns.dispose();
+    }
+  }
+
+  @Test
+  public void testNotifyLoad() throws Exception {
+    final int buddies = 4;
+
+    NotifyLoadGenerator storm = new NotifyLoadGenerator();
+    final List<PresenceSubscriber> subs = new ArrayList<>();
+    for (int i = 0; i < buddies; i++) {
+      PresenceNotifySender ns = new PresenceNotifySender(
+          sipStack.createSipPhone(host, testProtocol, myPort, "sip:buddy" + i + "@cafesip.org"));
+      ns.processSubscribe(5000, SipResponse.OK, "OK");
+      PresenceSubscriber sub = ua.addBuddy("sip:buddy" + i + "@cafesip.org", 2000);
+      assertNotNull(sub);
+      assertTrue(sub.processResponse(1000));
+      subs.add(sub);
+      storm.addSender(ns);
+    }
+
+    // a subscription the watcher has forgotten about, replaced by a new fetch
+    PresenceNotifySender stale = new PresenceNotifySender(
+        sipStack.createSipPhone(host, testProtocol, myPort, "sip:stale@cafesip.org"));
+    stale.processSubscribe(5000, SipResponse.OK, "OK");
+    assertNotNull(ua.fetchPresenceInfo("sip:stale@cafesip.org", 2000));
+    Dialog forgotten = stale.getDialog();
+    stale.processSubscribe(5000, SipResponse.OK, "OK");
+    assertNotNull(ua.fetchPresenceInfo("sip:stale@cafesip.org", 2000));
+    stale.setDialog(forgotten);
+    storm.addSender(stale);
+
+    storm.addBody("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<presence entity=\"${entity}\" xmlns=\"urn:ietf:params:xml:ns:pidf\">"
+        + "<tuple id=\"1\"><status><basic>open</basic></status>"
+        + "<note>${seq}</note></tuple></presence>");
+    storm.addBody("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<presence entity=\"${entity}\" xmlns=\"urn:ietf:params:xml:ns:pidf\">"
+        + "<tuple id=\"1\"><status><basic>closed</basic></status>"
+        + "<note>${seq}</note></tuple></presence>");
+    storm.setRate(200.0);
+
+    // the watcher answers the NOTIFYs as they come
+    final AtomicBoolean done = new AtomicBoolean();
+    ExecutorService watcher = Executors.newFixedThreadPool(buddies);
+    for (final PresenceSubscriber sub : subs) {
+      watcher.execute(() -> {
+        while (done.get() == false) {
+          RequestEvent reqevent = sub.waitNotify(100);
+          if (reqevent != null) {
+            sub.replyToNotify(reqevent, sub.processNotify(reqevent));
+          }
+        }
+      });
+    }
+
+    storm.start(2000);
+    assertTrue(storm.toString(), storm.awaitCompletion(40000));
+    done.set(true);
+    watcher.shutdown();
+
+    LOG.info("NOTIFY load: {}", storm);
+    assertTrue(storm.getSent() > 200);
+    assertEquals(storm.toString(), storm.getSent(),
+        storm.getSucceeded() + storm.getNoSubscription());
+    assertTrue(storm.getNoSubscription() >= 1);
+    assertTrue(storm.getNoSubscriptionRate() < 0.1);
+    assertEquals(0, storm.getFailed());
+    assertEquals(storm.getSent(), storm.getResponseLatency().getCount());
+
+    for (PresenceSubscriber sub : subs) {
+      // the 481s are reported to every subscription
+      for (String err : sub.getEventErrors()) {
+        assertTrue(err, err.contains("orphan NOTIFY"));
+      }
+      assertTrue(sub.isSubscriptionActive());
+    }
+  }
+
+  @Test
+  public void testNotificationStream() throws Exception {
+    String buddy = "sip:becky@cafesip.org"; // I am amit
+
+    PresenceNotifySender ub =
+        new PresenceNotifySender(sipStack.createSipPhone(host, testProtocol, myPort, buddy));
+    ub.processSubscribe(5000, SipResponse.OK, "OK");
+
+    PresenceSubscriber sub = ua.addBuddy(buddy, 2000);
+    assertNotNull(sub);
+    assertTrue(sub.processResponse(1000));
+
+    final LinkedBlockingQueue<NotifyEvent> received = new LinkedBlockingQueue<>();
+    final AtomicBoolean completed = new AtomicBoolean();
+    final NotifyFlow.Subscription[] subscription = new NotifyFlow.Subscription[1];
+
+    sub.notifications(16).subscribe(new NotifyFlow.Subscriber<NotifyEvent>() {
+      public void onSubscribe(NotifyFlow.Subscription s) {
+        subscription[0] = s;
+        s.request(5);
+      }
+
+      public void onNext(NotifyEvent item) {
+        received.add(item);
+      }
+
+      public void onError(Throwable throwable) {
+        fail(throwable.toString());
+      }
+
+      public void onComplete() {
+        completed.set(true);
+      }
+    });
+
+    // a second subscriber is refused
+    final Throwable[] refused = new Throwable[1];
+    sub.notifications().subscribe(new NotifyFlow.Subscriber<NotifyEvent>() {
+      public void onSubscribe(NotifyFlow.Subscription s) {
+        fail("second subscriber accepted");
+      }
+
+      public void onNext(NotifyEvent item) {}
+
+      public void onError(Throwable throwable) {
+        refused[0] = throwable;
+      }
+
+      public void onComplete() {}
+    });
+    assertTrue(refused[0] instanceof IllegalStateException);
+
+    for (int i = 1; i <= 10; i++) {
+      String notifyBody = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<presence entity=\""
+          + buddy + "\" xmlns=\"urn:ietf:params:xml:ns:pidf\"><tuple id=\"" + i
+          + "\"><status><basic>open</basic></status></tuple></presence>";
+      assertTrue(ub.sendNotify(SubscriptionStateHeader.ACTIVE, null, notifyBody, 3600, false));
+    }
+
+    // only what was asked for is delivered, the rest is held
+    for (int i = 1; i <= 5; i++) {
+      NotifyEvent event = received.poll(2, TimeUnit.SECONDS);
+      assertNotNull(event);
+      assertEquals(event.toString(), SipResponse.OK, event.getStatusCode());
+      assertSame(sub, event.getSubscriber());
+      assertTrue(((Map<?, ?>) event.getContent()).containsKey(Integer.toString(i)));
+    }
+    assertNull(received.poll(500, TimeUnit.MILLISECONDS));
+
+    subscription[0].request(Long.MAX_VALUE);
+    for (int i = 6; i <= 10; i++) {
+      NotifyEvent event = received.poll(2, TimeUnit.SECONDS);
+      assertNotNull(event);
+      assertEquals(SipResponse.OK, event.getStatusCode());
+      assertEquals(SubscriptionStateHeader.ACTIVE, event.getSubscriptionState());
+    }
+    assertNull(sub.waitNotify(200)); // nothing left behind for waitNotify()
+    sub.clearEventErrors();
+
+    String notifyBody = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<presence entity=\""
+        + buddy + "\" xmlns=\"urn:ietf:params:xml:ns:pidf\"><tuple id=\"1\">"
+        + "<status><basic>closed</basic></status></tuple></presence>";
+    assertTrue(ub.sendNotify(SubscriptionStateHeader.TERMINATED, "timeout", notifyBody, 0, false));
+
+    NotifyEvent last = received.poll(2, TimeUnit.SECONDS);
+    assertNotNull(last);
+    assertTrue(last.isTerminated());
+    assertEquals("timeout", last.getTerminationReason());
+    assertTrue(completed.get());
+    assertTrue(sub.isSubscriptionTerminated());
+    assertNoSubscriptionErrors(sub);
+
+    // all the NOTIFYs were answered
+    await().until(() -> ub.getAllReceivedResponses().stream()
+        .filter(r -> r.getStatusCode() == SipResponse.OK).count(), is(11L));
+
+    ub.dispose();
+  }
+
   @Test
   public void testOnePhoneThreeBuddies() throws Exception {
     String buddyone = "sip:becky@cafesip.org";
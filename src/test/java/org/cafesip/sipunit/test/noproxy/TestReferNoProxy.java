@@ -44,6 +44,7 @@ import javax.sip.header.ExpiresHeader;
 import javax.sip.header.Header;
 import javax.sip.header.OrganizationHeader;
 import javax.sip.header.SubscriptionStateHeader;
+import javax.sip.header.ToHeader;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
 import java.text.ParseException;
@@ -1922,6 +1923,112 @@ public class TestReferNoProxy {
     assertTrue(ua.getRefererInfoByDialog(subscription.getDialogId()).contains(subscription));
   }
 
+  @Test
+  public void testNotifyRoutingSharedCallId() throws Exception {
+    // A calls B, then sends two REFERs in the call dialog: the two subscriptions share the Call-ID
+    // and tag of the dialog and differ only in event id
+
+    SipPhone ub = sipStack.createSipPhone("sip:becky@cafesip.org");
+    ub.setLoopback(true);
+    SipCall callB = ub.createSipCall();
+    assertTrue(callB.listenForIncomingCall());
+
+    SipCall callA =
+        ua.makeCall("sip:becky@cafesip.org", ua.getStackAddress() + ':' + myPort + '/'
+            + testProtocol);
+    assertLastOperationSuccess(ua.format(), ua);
+
+    assertTrue(callB.waitForIncomingCall(1000));
+    assertTrue(callB.sendIncomingCallResponse(Response.OK, "Answer - Hello world", 0));
+    awaitAnswered("Outgoing call leg not answered", callA);
+    callA.sendInviteOkAck();
+    assertLastOperationSuccess("Failure sending ACK - " + callA.format(), callA);
+
+    ReferNotifySender referHandler = new ReferNotifySender(ub);
+    referHandler.setDialog(callB.getDialog());
+    SipURI referTo =
+        ua.getUri("sip:", "dave@denver.example.org", "udp", "INVITE", null, null, null, null, null);
+
+    referHandler.processRefer(4000, SipResponse.ACCEPTED, "Accepted");
+    ReferSubscriber sub1 = ua.refer(callA.getDialog(), referTo, "id-1", 4000);
+    assertNotNull(ua.format(), sub1);
+    assertTrue(sub1.processResponse(1000));
+
+    referHandler.processRefer(4000, SipResponse.ACCEPTED, "Accepted");
+    ReferSubscriber sub2 = ua.refer(callA.getDialog(), referTo, "id-2", 4000);
+    assertNotNull(ua.format(), sub2);
+    assertTrue(sub2.processResponse(1000));
+
+    assertEquals(sub1.getDialogId(), sub2.getDialogId());
+
+    // a NOTIFY for the second subscription only reaches the second one
+    SipTransaction trans = referHandler.sendStatefulNotify(referNotify(referHandler, callB,
+        "id-2", null), false);
+    assertNotNull(trans);
+    RequestEvent reqevent = sub2.waitNotify(1000);
+    assertNotNull(reqevent);
+    assertNull(sub1.waitNotify(100));
+    assertTrue(sub2.replyToNotify(reqevent, sub2.processNotify(reqevent)));
+    assertEquals(SipResponse.OK, notifyStatus(referHandler, trans));
+
+    // and one for the first subscription only reaches the first one
+    trans = referHandler.sendStatefulNotify(referNotify(referHandler, callB, "id-1", null), false);
+    assertNotNull(trans);
+    reqevent = sub1.waitNotify(1000);
+    assertNotNull(reqevent);
+    assertNull(sub2.waitNotify(100));
+    assertTrue(sub1.replyToNotify(reqevent, sub1.processNotify(reqevent)));
+    assertEquals(SipResponse.OK, notifyStatus(referHandler, trans));
+    assertNoSubscriptionErrors(sub1);
+    assertNoSubscriptionErrors(sub2);
+
+    // an event id matching neither is an orphan
+    trans = referHandler.sendStatefulNotify(referNotify(referHandler, callB, "id-3", null), false);
+    assertNotNull(trans);
+    assertEquals(SipResponse.CALL_OR_TRANSACTION_DOES_NOT_EXIST,
+        notifyStatus(referHandler, trans));
+    await().until(() -> sub1.getEventErrors().size() == 1);
+    assertTrue(sub1.getEventErrors().get(0).contains("orphan"));
+    assertEquals(1, sub2.getEventErrors().size());
+    assertNull(sub1.waitNotify(100));
+    assertNull(sub2.waitNotify(100));
+
+    // so is a matching Call-ID and event id with another tag
+    Request notify = referNotify(referHandler, callB, "id-1", "not-my-tag");
+    trans = ub.sendRequestWithTransaction(notify, false, null);
+    assertNotNull(ub.format(), trans);
+    Object response = ub.waitResponse(trans, 2000);
+    assertTrue(response instanceof ResponseEvent);
+    assertEquals(SipResponse.CALL_OR_TRANSACTION_DOES_NOT_EXIST,
+        ((ResponseEvent) response).getResponse().getStatusCode());
+    assertNull(sub1.waitNotify(100));
+    assertNull(sub2.waitNotify(100));
+
+    callA.disposeNoBye();
+    callB.disposeNoBye();
+  }
+
+  /*
+   * Creates an in-dialog NOTIFY for the given event id, with the given To tag if not null.
+   */
+  private Request referNotify(ReferNotifySender sender, SipCall call, String eventId, String toTag)
+      throws Exception {
+    Request req = call.getDialog().createRequest(SipRequest.NOTIFY);
+    req = sender.addNotifyHeaders(req, null, null, SubscriptionStateHeader.ACTIVE, null,
+        "SIP/2.0 100 Trying\n", 30);
+    ((EventHeader) req.getHeader(EventHeader.NAME)).setEventId(eventId);
+    if (toTag != null) {
+      ((ToHeader) req.getHeader(ToHeader.NAME)).setTag(toTag);
+    }
+    return req;
+  }
+
+  private static int notifyStatus(ReferNotifySender sender, SipTransaction trans) {
+    Object response = sender.waitResponse(trans, 2000);
+    assertTrue(response instanceof ResponseEvent);
+    return ((ResponseEvent) response).getResponse().getStatusCode();
+  }
+
   @Test
   public void testOutboundIndialogAdditionalHeaders() throws Exception {
     // Setup - Establish a call from A to B
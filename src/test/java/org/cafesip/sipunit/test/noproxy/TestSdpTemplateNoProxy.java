@@ -0,0 +1,257 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit.test.noproxy;
+
+import static org.cafesip.sipunit.SipAssert.assertLastOperationSuccess;
+import static org.cafesip.sipunit.SipAssert.assertSdpAnswerValid;
+import static org.cafesip.sipunit.SipAssert.awaitStackDispose;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.cafesip.sipunit.MediaPortAllocator;
+import org.cafesip.sipunit.SdpAnswerValidator;
+import org.cafesip.sipunit.SdpSession;
+import org.cafesip.sipunit.SdpTemplate;
+import org.cafesip.sipunit.SipCall;
+import org.cafesip.sipunit.SipPhone;
+import org.cafesip.sipunit.SipStack;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.sip.message.Response;
+
+/**
+ * Tests for SdpTemplate, SdpSession, MediaPortAllocator and SdpAnswerValidator: per-call SDP offers
+ * and answers carried by calls between two SipPhones.
+ *
+ * <p>
+ * Tests in this class do not require a proxy/registrar server. Messaging between UACs is direct.
+ *
+ */
+public class TestSdpTemplateNoProxy {
+
+  private static final String TEMPLATE = "v=0\r\n" + "o=- 0 0 IN IP4 0.0.0.0\r\n" + "s=-\r\n"
+      + "c=IN IP4 0.0.0.0\r\n" + "t=0 0\r\n" + "m=audio 0 RTP/AVP 0 8 101\r\n"
+      + "a=rtpmap:101 telephone-event/8000\r\n" + "a=fmtp:101 0-15\r\n"
+      + "m=video 0 RTP/AVP 96\r\n" + "a=rtpmap:96 H264/90000\r\n";
+
+  private SipStack sipStack;
+
+  private SipPhone ua;
+
+  private SipPhone ub;
+
+  private String route;
+
+  private Properties properties = new Properties();
+
+  /**
+   * Initialize the sipStack and the user agents for the test.
+   */
+  @Before
+  public void setUp() throws Exception {
+    properties.setProperty("javax.sip.STACK_NAME", "testAgent");
+    properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "32");
+    properties.setProperty("gov.nist.javax.sip.DEBUG_LOG", "testAgent_debug.txt");
+    properties.setProperty("gov.nist.javax.sip.SERVER_LOG", "testAgent_log.txt");
+    properties.setProperty("gov.nist.javax.sip.READ_TIMEOUT", "1000");
+    properties.setProperty("gov.nist.javax.sip.CACHE_SERVER_CONNECTIONS", "false");
+    properties.setProperty("sipunit.test.port", "5061");
+    properties.setProperty("sipunit.test.protocol", "udp");
+    properties.putAll(System.getProperties());
+
+    int myPort;
+    try {
+      myPort = Integer.parseInt(properties.getProperty("sipunit.test.port"));
+    } catch (NumberFormatException e) {
+      myPort = 5061;
+    }
+
+    String testProtocol = properties.getProperty("sipunit.test.protocol");
+
+    sipStack = new SipStack(testProtocol, myPort, properties);
+
+    ua = sipStack.createSipPhone("sip:amit@nist.gov");
+    ua.setLoopback(true);
+
+    ub = sipStack.createSipPhone("sip:becky@nist.gov");
+    ub.setLoopback(true);
+
+    route = ua.getStackAddress() + ':' + myPort + '/' + testProtocol;
+  }
+
+  /**
+   * Release the sipStack and the user agents for the test.
+   */
+  @After
+  public void tearDown() throws Exception {
+    ub.dispose();
+    ua.dispose();
+    awaitStackDispose(sipStack);
+  }
+
+  @Test
+  public void testOfferAnswerInCall() throws Exception {
+    SdpTemplate template = SdpTemplate.parse(TEMPLATE);
+    assertEquals(2, template.getMediaCount());
+    MediaPortAllocator ports = new MediaPortAllocator(20000, 20099);
+
+    SdpSession sdpA = template.newSession(ports, ua.getStackAddress());
+    SdpSession sdpB = template.newSession(ports, ub.getStackAddress());
+
+    SipCall callB = ub.createSipCall();
+    callB.listenForIncomingCall();
+
+    SipCall callA = ua.createSipCall();
+    String offer = sdpA.createOffer();
+    callA.initiateOutgoingCall(ua.getAddress().getURI().toString(), "sip:becky@nist.gov", route,
+        offer, "application", "sdp", null, null);
+    assertLastOperationSuccess("a initiate call - " + callA.format(), callA);
+
+    assertTrue(callB.waitForIncomingCall(5000));
+    String received = new String(callB.getLastReceivedRequest().getRawContent());
+    assertEquals(offer, received);
+    assertTrue(received.contains("m=audio " + sdpA.getPorts()[0] + " RTP/AVP 0 8 101\r\n"));
+    assertTrue(received.contains("o=- " + sdpA.getSessionId() + " 1 IN IP4 "
+        + ua.getStackAddress() + "\r\n"));
+
+    callB.sendIncomingCallResponse(Response.OK, "OK", 0, sdpB.createAnswer(received),
+        "application", "sdp", null, null);
+    assertLastOperationSuccess("b send OK - " + callB.format(), callB);
+
+    assertTrue(callA.waitForAnswer(5000));
+    String answer = new String(callA.getLastReceivedResponse().getRawContent());
+    assertSdpAnswerValid(offer, answer);
+    assertTrue(answer.contains("m=video " + sdpB.getPorts()[1] + " RTP/AVP 96\r\n"));
+
+    callA.sendInviteOkAck();
+    assertLastOperationSuccess("a send ACK - " + callA.format(), callA);
+    callB.listenForDisconnect();
+    callA.disconnect();
+    assertTrue(callB.waitForDisconnect(5000));
+    callB.respondToDisconnect();
+
+    sdpA.release();
+    sdpB.release();
+    assertNull(sdpA.getPorts());
+    assertEquals(0, ports.getInUse());
+  }
+
+  @Test
+  public void testUniquePorts() throws Exception {
+    SdpTemplate template = SdpTemplate.parse(TEMPLATE);
+    MediaPortAllocator ports = new MediaPortAllocator(30000, 30039); // 20 RTP ports
+
+    Set<Integer> used = new HashSet<>();
+    Set<Long> sessionIds = new HashSet<>();
+    SdpSession[] sessions = new SdpSession[10];
+    for (int i = 0; i < sessions.length; i++) {
+      sessions[i] = template.newSession(ports, "192.0.2.1");
+      assertNotNull(sessions[i]);
+      assertTrue(sessionIds.add(sessions[i].getSessionId()));
+      for (int port : sessions[i].getPorts()) {
+        assertEquals(0, port % 2);
+        assertTrue(port >= 30000 && port < 30040);
+        assertTrue("port " + port + " given twice", used.add(port));
+      }
+    }
+
+    assertEquals(20, ports.getInUse());
+    assertNull(template.newSession(ports, "192.0.2.1"));
+
+    sessions[3].release();
+    sessions[3].release();
+    assertEquals(18, ports.getInUse());
+    SdpSession again = template.newSession(ports, "192.0.2.1");
+    assertNotNull(again);
+
+    try {
+      sessions[3].createOffer();
+      fail("offer from a released session");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+
+    assertEquals(0, again.getVersion());
+    again.createOffer();
+    String second = again.createOffer();
+    assertEquals(2, again.getVersion());
+    assertTrue(second.contains(" " + again.getSessionId() + " 2 IN IP4 192.0.2.1\r\n"));
+  }
+
+  @Test
+  public void testRejectedStream() throws Exception {
+    SdpTemplate template = SdpTemplate.parse(TEMPLATE);
+    String offer = template.render(1, 1, "192.0.2.1", 40000, 0);
+
+    String answer = template.createAnswer(offer, 2, 1, "192.0.2.2", 40100, 40102);
+    assertArrayEquals(new int[] {40100, 0}, new int[] {port(answer, "audio"), port(answer,
+        "video")});
+    assertSdpAnswerValid(offer, answer);
+
+    String bad = template.render(2, 1, "192.0.2.2", 40100, 40102);
+    assertFalse(SdpAnswerValidator.validate(offer, bad).isEmpty());
+
+    try {
+      template.createAnswer("v=0\r\no=- 1 1 IN IP4 192.0.2.1\r\ns=-\r\nm=audio 4000 RTP/AVP 0\r\n",
+          2, 1, "192.0.2.2", 40100, 40102);
+      fail("answer to an offer with another number of m= lines");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testValidator() throws Exception {
+    String offer = "v=0\r\n" + "o=- 1 1 IN IP4 192.0.2.1\r\n" + "s=-\r\n"
+        + "c=IN IP4 192.0.2.1\r\n" + "t=0 0\r\n" + "m=audio 4000 RTP/AVP 0 101\r\n"
+        + "a=rtpmap:101 telephone-event/8000\r\n" + "a=sendonly\r\n";
+
+    // dynamic payload type renumbered by the answerer
+    String answer = "v=0\r\n" + "o=- 2 1 IN IP4 192.0.2.2\r\n" + "s=-\r\n" + "t=0 0\r\n"
+        + "m=audio 5000 RTP/AVP 0 100\r\n" + "c=IN IP4 192.0.2.2\r\n"
+        + "a=rtpmap:100 telephone-event/8000\r\n" + "a=recvonly\r\n";
+    assertSdpAnswerValid(offer, answer);
+
+    List<String> errors = SdpAnswerValidator.validate(offer, answer.replace(" 0 100", " 8 100")
+        .replace("a=recvonly", "a=sendrecv").replace("c=IN IP4 192.0.2.2\r\n", ""));
+    assertEquals(errors.toString(), 3, errors.size());
+
+    errors = SdpAnswerValidator.validate(offer, answer.replace("m=audio", "m=video"));
+    assertEquals(errors.toString(), 1, errors.size());
+
+    errors = SdpAnswerValidator.validate(offer, answer + "m=video 5002 RTP/AVP 96\r\n");
+    assertEquals(errors.toString(), 1, errors.size());
+
+    errors = SdpAnswerValidator.validate(offer, answer.replace("o=- 2 1 IN IP4 192.0.2.2\r\n", ""));
+    assertEquals(errors.toString(), 1, errors.size());
+  }
+
+  private static int port(String sdp, String media) {
+    int start = sdp.indexOf("m=" + media + ' ') + media.length() + 3;
+    return Integer.parseInt(sdp.substring(start, sdp.indexOf(' ', start)));
+  }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit.test.noproxy;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static org.cafesip.sipunit.SipAssert.assertLastOperationSuccess;
+import static org.cafesip.sipunit.SipAssert.awaitStackDispose;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.cafesip.sipunit.SessionTimer;
+import org.cafesip.sipunit.SessionTimerPolicy;
+import org.cafesip.sipunit.SipCall;
+import org.cafesip.sipunit.SipPhone;
+import org.cafesip.sipunit.SipRequest;
+import org.cafesip.sipunit.SipResponse;
+import org.cafesip.sipunit.SipStack;
+import org.cafesip.sipunit.SipTransaction;
+import org.cafesip.sipunit.UasCallPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sip.message.Response;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for SipPhone.setSessionTimerPolicy(): calls kept alive by RFC 4028 session refreshes sent
+ * and answered by the SipPhones themselves, against a SipPhone answering by itself (see
+ * SipPhone.setUasCallPolicy()). The session intervals are a few seconds, well below the RFC 4028
+ * minimum, to keep the tests short.
+ *
+ * <p>
+ * Tests in this class do not require a proxy/registrar server. Messaging between UACs is direct.
+ *
+ */
+public class TestSessionTimerNoProxy {
+
+  private SipStack sipStack;
+
+  private SipPhone ua;
+
+  private SipPhone ub;
+
+  private UasCallPolicy policy;
+
+  private SessionTimerPolicy timersA;
+
+  private SessionTimerPolicy timersB;
+
+  private String route;
+
+  private Properties properties = new Properties();
+
+  /**
+   * Initialize the sipStack and the user agents for the test.
+   */
+  @Before
+  public void setUp() throws Exception {
+    properties.setProperty("javax.sip.STACK_NAME", "testAgent");
+    properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "0");
+    properties.setProperty("gov.nist.javax.sip.DEBUG_LOG", "testAgent_debug.txt");
+    properties.setProperty("gov.nist.javax.sip.SERVER_LOG", "testAgent_log.txt");
+    properties.setProperty("gov.nist.javax.sip.READ_TIMEOUT", "1000");
+    properties.setProperty("gov.nist.javax.sip.CACHE_SERVER_CONNECTIONS", "false");
+    properties.setProperty("sipunit.test.port", "5061");
+    properties.setProperty("sipunit.test.protocol", "udp");
+    properties.putAll(System.getProperties());
+
+    int myPort;
+    try {
+      myPort = Integer.parseInt(properties.getProperty("sipunit.test.port"));
+    } catch (NumberFormatException e) {
+      myPort = 5061;
+    }
+
+    String testProtocol = properties.getProperty("sipunit.test.protocol");
+
+    sipStack = new SipStack(testProtocol, myPort, properties);
+
+    ua = sipStack.createSipPhone("sip:amit@nist.gov");
+    ua.setLoopback(true);
+
+    ub = sipStack.createSipPhone("sip:becky@nist.gov");
+    ub.setLoopback(true);
+
+    policy = new UasCallPolicy();
+    ub.setUasCallPolicy(policy);
+
+    timersA = new SessionTimerPolicy();
+    timersA.setSessionExpires(2);
+    timersA.setMinSE(1);
+    ua.setSessionTimerPolicy(timersA);
+
+    timersB = new SessionTimerPolicy();
+    timersB.setSessionExpires(2);
+    timersB.setMinSE(1);
+    ub.setSessionTimerPolicy(timersB);
+
+    route = ua.getStackAddress() + ':' + myPort + '/' + testProtocol;
+  }
+
+  /**
+   * Release the sipStack and the user agents for the test.
+   */
+  @After
+  public void tearDown() throws Exception {
+    ub.dispose();
+    ua.dispose();
+    awaitStackDispose(sipStack);
+  }
+
+  @Test
+  public void testCallerRefreshes() throws Exception {
+    timersA.setRefresher(SessionTimerPolicy.REFRESHER_UAC);
+
+    SipCall callA = setUpCall();
+    SessionTimer timer = callA.getSessionTimer();
+    assertNotNull(timer);
+    assertTrue(timer.toString(), timer.isRefresher());
+    assertEquals(2, timer.getInterval());
+
+    // a refresh every second
+    await().atMost(10, TimeUnit.SECONDS).until(timer::getRefreshesSent, greaterThanOrEqualTo(3L));
+    await().until(timersB::getRefreshesReceived, greaterThanOrEqualTo(3L));
+    assertEquals(timer.toString(), 0, timer.getRefreshFailures());
+    assertTrue(timer.getRefreshLatency().getCount() >= 2);
+    assertTrue(timer.isActive());
+
+    callA.disconnect();
+    assertLastOperationSuccess("a disc - " + callA.format(), callA);
+    assertFalse(timer.isActive());
+    await().until(policy::getByesReceived, is(1L));
+    assertEquals(0, timersA.getSessionsExpired());
+    assertEquals(0, timersB.getSessionsExpired());
+    callA.dispose();
+  }
+
+  @Test
+  public void testCalleeRefreshesWithReinvite() throws Exception {
+    timersB.setRefresher(SessionTimerPolicy.REFRESHER_UAS);
+    timersB.setRefreshMethod(SipRequest.INVITE);
+
+    SipCall callA = setUpCall();
+    SessionTimer timer = callA.getSessionTimer();
+    assertNotNull(timer);
+    assertFalse(timer.toString(), timer.isRefresher());
+
+    await().atMost(10, TimeUnit.SECONDS).until(timer::getRefreshesReceived,
+        greaterThanOrEqualTo(3L));
+    assertTrue(timersB.getRefreshesSent() >= 3);
+    assertEquals(0, timersB.getRefreshFailures());
+    assertTrue(timer.isActive());
+    assertEquals(0, policy.getErrors());
+
+    callA.disconnect();
+    callA.dispose();
+  }
+
+  @Test
+  public void testSessionExpires() throws Exception {
+    timersB.setRefresher(SessionTimerPolicy.REFRESHER_UAS);
+
+    SipCall callA = setUpCall();
+    SessionTimer timer = callA.getSessionTimer();
+    assertNotNull(timer);
+
+    // the callee stops refreshing, the caller hangs up a third of the interval before expiry
+    ub.setSessionTimerPolicy(null);
+
+    await().atMost(10, TimeUnit.SECONDS).until(timer::isExpired);
+    assertEquals(1, timersA.getSessionsExpired());
+    await().until(policy::getByesReceived, is(1L));
+    assertEquals(0, policy.getCallsInProgress());
+    callA.dispose();
+  }
+
+  @Test
+  public void testIntervalTooSmall() throws Exception {
+    timersB.setMinSE(3);
+    timersB.setSessionExpires(3);
+
+    SipCall callA = setUpCall();
+    SessionTimer timer = callA.getSessionTimer();
+    assertNotNull(timer);
+    assertEquals(3, timer.getInterval());
+    assertEquals(1, timersA.getIntervalsTooSmall());
+    assertEquals(1, timersB.getIntervalsTooSmall());
+    assertEquals(1, policy.getCallsAnswered());
+
+    callA.disconnect();
+    callA.dispose();
+  }
+
+  @Test
+  public void testRefreshOfferAnsweredWithSessionDescription() throws Exception {
+    // the callee answers with a SipCall, the refresh comes from the test with an offer
+    ub.setUasCallPolicy(null);
+    timersA.setSessionExpires(60);
+    timersB.setSessionExpires(60);
+
+    SipCall callB = ub.createSipCall();
+    callB.listenForIncomingCall();
+
+    SipCall callA = ua.createSipCall();
+    callA.initiateOutgoingCall(null, "sip:becky@nist.gov", route, "v=0 a", "application", "sdp",
+        null, null);
+    assertLastOperationSuccess("a initiate call - " + callA.format(), callA);
+
+    assertTrue("b wait incoming call - " + callB.format(), callB.waitForIncomingCall(5000));
+    callB.sendIncomingCallResponse(SipResponse.OK, "OK", -1, "v=0 b", "application", "sdp",
+        null, null);
+    assertLastOperationSuccess("b send OK - " + callB.format(), callB);
+
+    assertTrue("a wait answer - " + callA.format(), callA.waitForAnswer(5000));
+    callA.sendInviteOkAck();
+    assertLastOperationSuccess("a send ACK - " + callA.format(), callA);
+
+    ArrayList<String> headers = new ArrayList<>();
+    headers.add("Session-Expires: 60;refresher=uac");
+    SipTransaction siptrans =
+        callA.sendReinvite(null, null, "v=0 a2", "application", "sdp", headers, null);
+    assertNotNull("a send re-INVITE - " + callA.format(), siptrans);
+
+    do {
+      assertTrue("a wait re-INVITE response - " + callA.format(),
+          callA.waitReinviteResponse(siptrans, 5000));
+    } while (callA.getReturnCode() < SipResponse.OK);
+    assertEquals(SipResponse.OK, callA.getReturnCode());
+
+    // answered by the callee's session timers with the description of the call
+    Response ok = (Response) callA.getLastReceivedResponse().getMessage();
+    assertEquals("v=0 b", new String(ok.getRawContent(), StandardCharsets.UTF_8));
+    assertNotNull(ok.getHeader("Session-Expires"));
+    await().until(timersB::getRefreshesReceived, is(1L));
+
+    callA.sendReinviteOkAck(siptrans);
+    assertLastOperationSuccess("a send re-INVITE ACK - " + callA.format(), callA);
+
+    callA.disconnect();
+    assertLastOperationSuccess("a disc - " + callA.format(), callA);
+    callA.dispose();
+    callB.dispose();
+  }
+
+  private SipCall setUpCall() {
+    SipCall callA = ua.createSipCall();
+    callA.initiateOutgoingCall("sip:becky@nist.gov", route);
+    assertLastOperationSuccess("a initiate call - " + callA.format(), callA);
+
+    assertTrue("a wait answer - " + callA.format(), callA.waitForAnswer(5000));
+    callA.sendInviteOkAck();
+    assertLastOperationSuccess("a send ACK - " + callA.format(), callA);
+    return callA;
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit.test.noproxy;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static org.cafesip.sipunit.SipAssert.assertLastOperationSuccess;
+import static org.cafesip.sipunit.SipAssert.awaitStackDispose;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.cafesip.sipunit.SipCall;
+import org.cafesip.sipunit.SipPhone;
+import org.cafesip.sipunit.SipStack;
+import org.cafesip.sipunit.SipTransaction;
+import org.cafesip.sipunit.UasCallPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Properties;
+import java.util.concurrent.Callable;
+
+import javax.sip.message.Response;
+
+/**
+ * Tests for SipPhone.setUasCallPolicy(): the called SipPhone handles the calls by itself and no
+ * test code runs on its side.
+ *
+ * <p>
+ * Tests in this class do not require a proxy/registrar server. Messaging between UACs is direct.
+ *
+ */
+public class TestUasCallPolicyNoProxy {
+
+  private SipStack sipStack;
+
+  private SipPhone ua;
+
+  private SipPhone ub;
+
+  private UasCallPolicy policy;
+
+  private String route;
+
+  private Properties properties = new Properties();
+
+  /**
+   * Initialize the sipStack and the user agents for the test.
+   */
+  @Before
+  public void setUp() throws Exception {
+    properties.setProperty("javax.sip.STACK_NAME", "testAgent");
+    properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "32");
+    properties.setProperty("gov.nist.javax.sip.DEBUG_LOG", "testAgent_debug.txt");
+    properties.setProperty("gov.nist.javax.sip.SERVER_LOG", "testAgent_log.txt");
+    properties.setProperty("gov.nist.javax.sip.READ_TIMEOUT", "1000");
+    properties.setProperty("gov.nist.javax.sip.CACHE_SERVER_CONNECTIONS", "false");
+    properties.setProperty("sipunit.test.port", "5061");
+    properties.setProperty("sipunit.test.protocol", "udp");
+    properties.putAll(System.getProperties());
+
+    int myPort;
+    try {
+      myPort = Integer.parseInt(properties.getProperty("sipunit.test.port"));
+    } catch (NumberFormatException e) {
+      myPort = 5061;
+    }
+
+    String testProtocol = properties.getProperty("sipunit.test.protocol");
+
+    sipStack = new SipStack(testProtocol, myPort, properties);
+
+    ua = sipStack.createSipPhone("sip:amit@nist.gov");
+    ua.setLoopback(true);
+
+    ub = sipStack.createSipPhone("sip:becky@nist.gov");
+    ub.setLoopback(true);
+
+    policy = new UasCallPolicy();
+    ub.setUasCallPolicy(policy);
+    assertSame(policy, ub.getUasCallPolicy());
+
+    route = ua.getStackAddress() + ':' + myPort + '/' + testProtocol;
+  }
+
+  /**
+   * Release the sipStack and the user agents for the test.
+   */
+  @After
+  public void tearDown() throws Exception {
+    ub.dispose();
+    ua.dispose();
+    awaitStackDispose(sipStack);
+  }
+
+  @Test
+  public void testAnswerCallerHangsUp() throws Exception {
+    final int calls = 20;
+
+    for (int i = 0; i < calls; i++) {
+      SipCall callA = ua.createSipCall();
+      callA.initiateOutgoingCall("sip:becky@nist.gov", route);
+      assertLastOperationSuccess("a initiate call - " + callA.format(), callA);
+
+      assertTrue("a wait answer - " + callA.format(), callA.waitForAnswer(5000));
+      callA.sendInviteOkAck();
+      assertLastOperationSuccess("a send ACK - " + callA.format(), callA);
+
+      callA.disconnect();
+      assertLastOperationSuccess("a disc - " + callA.format(), callA);
+
+      callA.dispose();
+    }
+
+    awaitCounter(policy::getByesReceived, calls);
+    assertEquals(calls, policy.getCallsReceived());
+    assertEquals(calls, policy.getCallsAnswered());
+    assertEquals(calls, policy.getAcksReceived());
+    assertEquals(0, policy.getCallsRejected());
+    assertEquals(0, policy.getByesSent());
+    assertEquals(0, policy.getErrors());
+    assertEquals(0, policy.getCallsInProgress());
+  }
+
+  @Test
+  public void testRingThenReject() throws Exception {
+    policy.setRingingDelay(100, 200);
+    policy.setAnswerProbability(0.0);
+    policy.setRejectStatusCode(Response.TEMPORARILY_UNAVAILABLE);
+
+    SipCall callA = ua.createSipCall();
+    callA.initiateOutgoingCall("sip:becky@nist.gov", route);
+    assertLastOperationSuccess("a initiate call - " + callA.format(), callA);
+
+    assertFalse(callA.waitForAnswer(5000));
+    assertEquals(callA.format(), Response.TEMPORARILY_UNAVAILABLE, callA.getReturnCode());
+    assertTrue(callA.getAllReceivedResponses().stream()
+        .anyMatch(r -> r.getStatusCode() == Response.RINGING));
+
+    awaitCounter(policy::getCallsRejected, 1);
+    assertEquals(0, policy.getCallsAnswered());
+    assertEquals(0, policy.getCallsInProgress());
+  }
+
+  @Test
+  public void testCalleeHangsUp() throws Exception {
+    policy.setHangup(UasCallPolicy.CALLEE_HANGS_UP);
+    policy.setHoldTime(100, 300);
+
+    SipCall callA = ua.createSipCall();
+    callA.listenForDisconnect();
+    callA.initiateOutgoingCall("sip:becky@nist.gov", route);
+    assertLastOperationSuccess("a initiate call - " + callA.format(), callA);
+
+    assertTrue("a wait answer - " + callA.format(), callA.waitForAnswer(5000));
+    callA.sendInviteOkAck();
+    assertLastOperationSuccess("a send ACK - " + callA.format(), callA);
+
+    assertTrue("a wait disc - " + callA.format(), callA.waitForDisconnect(5000));
+    assertTrue(callA.respondToDisconnect());
+
+    awaitCounter(policy::getByesSent, 1);
+    assertEquals(1, policy.getAcksReceived());
+    assertEquals(0, policy.getByesReceived());
+    assertEquals(0, policy.getCallsInProgress());
+  }
+
+  @Test
+  public void testCallerCancels() throws Exception {
+    policy.setRingingDelay(10000, 10000);
+
+    SipCall callA = ua.createSipCall();
+    callA.initiateOutgoingCall("sip:becky@nist.gov", route);
+    assertLastOperationSuccess("a initiate call - " + callA.format(), callA);
+
+    do {
+      assertTrue("a wait ringing - " + callA.format(), callA.waitOutgoingCallResponse(5000));
+    } while (callA.getReturnCode() != Response.RINGING);
+
+    SipTransaction cancel = callA.sendCancel();
+    assertNotNull("a send CANCEL - " + callA.format(), cancel);
+    assertTrue("a wait CANCEL response - " + callA.format(),
+        callA.waitForCancelResponse(cancel, 5000));
+    assertEquals(Response.OK, callA.getReturnCode());
+
+    assertFalse(callA.waitForAnswer(5000));
+    assertEquals(callA.format(), Response.REQUEST_TERMINATED, callA.getReturnCode());
+
+    awaitCounter(policy::getCallsCancelled, 1);
+    assertEquals(0, policy.getCallsAnswered());
+    assertEquals(0, policy.getCallsInProgress());
+  }
+
+  private static void awaitCounter(final Callable<Long> counter, long expected) {
+    await().until(counter, is(expected));
+  }
+}
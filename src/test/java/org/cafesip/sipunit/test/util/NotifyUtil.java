@@ -0,0 +1,53 @@
+/*
+ * Copyright 2005 CafeSip.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.cafesip.sipunit.test.util;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.cafesip.sipunit.EventSubscriber;
+import org.cafesip.sipunit.PresenceNotifySender;
+
+import javax.sip.RequestEvent;
+import javax.sip.header.ContentTypeHeader;
+import javax.sip.header.SubscriptionStateHeader;
+import javax.sip.message.Response;
+
+public class NotifyUtil {
+
+  /**
+   * Utility to send one NOTIFY of an active subscription and have the subscriber take it in: the
+   * subscriber waits for the NOTIFY, processes it and replies to it. Meant for the tests of the
+   * event packages whose NOTIFY bodies are documents of their own content type.
+   * 
+   * @param sender the notifier, whose subscription has been set up
+   * @param sub the subscriber
+   * @param contentType the Content-Type of the NOTIFY body
+   * @param body the NOTIFY body
+   * @return the status code of the subscriber's reply to the NOTIFY
+   */
+  public static int sendNotify(PresenceNotifySender sender, EventSubscriber sub,
+      ContentTypeHeader contentType, String body) {
+    assertTrue(sender.getErrorMessage(), sender.sendNotify(SubscriptionStateHeader.ACTIVE, null,
+        body, 3600, null, null, null, contentType, false));
+
+    RequestEvent reqevent = sub.waitNotify(1000);
+    assertNotNull(reqevent);
+    Response response = sub.processNotify(reqevent);
+    assertNotNull(response);
+    assertTrue(sub.replyToNotify(reqevent, response));
+    return response.getStatusCode();
+  }
+}